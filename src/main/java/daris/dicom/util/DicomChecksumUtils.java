@@ -1,10 +1,11 @@
 package daris.dicom.util;
 
-import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractMap.SimpleEntry;
 
 import com.pixelmed.dicom.Attribute;
@@ -17,6 +18,19 @@ import daris.util.ChecksumUtils;
 
 public class DicomChecksumUtils {
 
+    /*
+     * size of the reusable (per thread) buffer the pixel data is hashed
+     * through. Must be even so that 16 bit words are never split.
+     */
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[CHUNK_SIZE];
+        }
+    };
+
     public static SimpleEntry<String, Boolean> getPixelDataChecksum(InputStream in, String checksumType)
             throws Throwable {
         AttributeList attributeList = new AttributeList();
@@ -42,12 +56,22 @@ public class DicomChecksumUtils {
 
     public static SimpleEntry<String, Boolean> getPixelDataChecksum(File dicomFile, String checksumType)
             throws Throwable {
+        DicomFileLayout layout = DicomFileLayout.parse(dicomFile);
+        if (layout.hasPixelDataByteRange()) {
+            boolean bigEndian = layout.isBigEndian();
+            String checksum = getPixelDataChecksum(dicomFile, layout, bigEndian, checksumType);
+            return new SimpleEntry<String, Boolean>(checksum, bigEndian);
+        }
         AttributeList attributeList = new AttributeList();
         attributeList.read(dicomFile);
         return getPixelDataChecksum(attributeList, checksumType);
     }
 
     public static String getPixelDataChecksum(File dicomFile, boolean bigEndian, String checksumType) throws Throwable {
+        DicomFileLayout layout = DicomFileLayout.parse(dicomFile);
+        if (layout.hasPixelDataByteRange()) {
+            return getPixelDataChecksum(dicomFile, layout, bigEndian, checksumType);
+        }
         AttributeList attributeList = new AttributeList();
         attributeList.read(dicomFile);
         return getPixelDataChecksum(attributeList, bigEndian, checksumType);
@@ -73,26 +97,75 @@ public class DicomChecksumUtils {
     public static String getPixelDataChecksum(Attribute pixelDataAttribute, boolean bigEndian, String checksumType)
             throws Throwable {
         String vr = new String(pixelDataAttribute.getVR());
-        byte[] bytes;
+        ChecksumUtils.Digester digester = ChecksumUtils.createDigester(checksumType);
         if ("OW".equalsIgnoreCase(vr)) {
             short[] words = pixelDataAttribute.getShortValues();
-            ByteBuffer buffer = ByteBuffer.allocate(words.length * 2)
-                    .order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            byte[] chunk = CHUNK.get();
+            int n = 0;
             for (short word : words) {
-                buffer.putShort(word);
+                if (bigEndian) {
+                    chunk[n++] = (byte) (word >>> 8);
+                    chunk[n++] = (byte) word;
+                } else {
+                    chunk[n++] = (byte) word;
+                    chunk[n++] = (byte) (word >>> 8);
+                }
+                if (n == chunk.length) {
+                    digester.update(chunk, 0, n);
+                    n = 0;
+                }
+            }
+            if (n > 0) {
+                digester.update(chunk, 0, n);
             }
-            bytes = buffer.array();
         } else if ("OB".equalsIgnoreCase(vr)) {
-            bytes = pixelDataAttribute.getByteValues();
+            byte[] bytes = pixelDataAttribute.getByteValues();
+            digester.update(bytes, 0, bytes.length);
         } else {
             throw new Exception("Invalid VR: " + vr + " for PixelData(7FE0,0010).");
         }
-        InputStream in = new ByteArrayInputStream(bytes);
+        return digester.digest();
+    }
+
+    /*
+     * hashes the PixelData value straight from its byte range in the file. The
+     * 16 bit words are swapped if the byte order of the file is not the
+     * requested one, so the result is the same as from the Attribute.
+     */
+    private static String getPixelDataChecksum(File dicomFile, DicomFileLayout layout, boolean bigEndian,
+            String checksumType) throws Throwable {
+        ChecksumUtils.Digester digester = ChecksumUtils.createDigester(checksumType);
+        boolean swap = layout.isPixelDataOW() && layout.isBigEndian() != bigEndian;
+        byte[] chunk = CHUNK.get();
+        ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        FileChannel channel = FileChannel.open(dicomFile.toPath(), StandardOpenOption.READ);
         try {
-            return ChecksumUtils.getChecksum(in, checksumType);
+            long position = layout.pixelDataValueOffset();
+            long remaining = layout.pixelDataLength();
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(chunk.length, remaining));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of file: " + dicomFile.getAbsolutePath());
+                    }
+                }
+                int n = buffer.position();
+                if (swap) {
+                    for (int i = 0; i + 1 < n; i += 2) {
+                        byte b = chunk[i];
+                        chunk[i] = chunk[i + 1];
+                        chunk[i + 1] = b;
+                    }
+                }
+                digester.update(chunk, 0, n);
+                position += n;
+                remaining -= n;
+            }
         } finally {
-            in.close();
+            channel.close();
         }
+        return digester.digest();
     }
 
 }
@@ -0,0 +1,500 @@
+package daris.dicom.util;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.pixelmed.dicom.TransferSyntax;
+
+/**
+ * Byte layout of a DICOM file: the transfer syntax of the dataset and the
+ * position of the top level PixelData element. The file is scanned element by
+ * element without decoding any values (except TransferSyntaxUID and
+ * BitsAllocated), and the scan stops at PixelData, so only the header is read.
+ */
+public class DicomFileLayout {
+
+    public static final int PREAMBLE_LENGTH = 128;
+
+    public static final long UNDEFINED_LENGTH = 0xFFFFFFFFL;
+
+    /*
+     * the longest value of the first element of a bare dataset, for sniffing.
+     */
+    private static final long MAX_SNIFFED_VALUE_LENGTH = 1024;
+
+    private static final long TRANSFER_SYNTAX_UID = 0x00020010L;
+    private static final long BITS_ALLOCATED = 0x00280100L;
+    private static final long PIXEL_DATA = 0x7FE00010L;
+    private static final long ITEM = 0xFFFEE000L;
+    private static final long ITEM_DELIMITATION = 0xFFFEE00DL;
+    private static final long SEQUENCE_DELIMITATION = 0xFFFEE0DDL;
+
+    /*
+     * explicit VRs with 2 reserved bytes and a 4 byte value length.
+     */
+    private static final Set<String> LONG_VRS = new HashSet<String>(
+            Arrays.asList("OB", "OD", "OF", "OL", "OV", "OW", "SQ", "SV", "UC", "UN", "UR", "UT", "UV"));
+
+    private long _fileLength;
+    private boolean _part10;
+    private String _transferSyntaxUID;
+    private long _datasetOffset;
+    private boolean _explicitVR;
+    private boolean _bigEndian;
+    private boolean _deflated;
+    private int _bitsAllocated;
+    private long _pixelDataOffset = -1;
+    private long _pixelDataValueOffset = -1;
+    private long _pixelDataLength = -1;
+    private String _pixelDataVR;
+
+    private DicomFileLayout() {
+    }
+
+    /**
+     * The length of the file.
+     */
+    public long fileLength() {
+        return _fileLength;
+    }
+
+    /**
+     * true if the file has the 128 byte preamble, the "DICM" prefix and the
+     * file meta information.
+     */
+    public boolean isPart10() {
+        return _part10;
+    }
+
+    public String transferSyntaxUID() {
+        return _transferSyntaxUID;
+    }
+
+    /**
+     * The offset of the first element after the file meta information.
+     */
+    public long datasetOffset() {
+        return _datasetOffset;
+    }
+
+    public boolean isExplicitVR() {
+        return _explicitVR;
+    }
+
+    public boolean isBigEndian() {
+        return _bigEndian;
+    }
+
+    /**
+     * true if the dataset is deflated. The dataset is not scanned and no
+     * PixelData is located.
+     */
+    public boolean isDeflated() {
+        return _deflated;
+    }
+
+    /**
+     * The value of BitsAllocated or 0 if it is not found.
+     */
+    public int bitsAllocated() {
+        return _bitsAllocated;
+    }
+
+    public boolean hasPixelData() {
+        return _pixelDataOffset >= 0;
+    }
+
+    /**
+     * The offset of the PixelData element, i.e. the first byte of its tag, or
+     * -1 if it is not found.
+     */
+    public long pixelDataOffset() {
+        return _pixelDataOffset;
+    }
+
+    /**
+     * The offset of the value of PixelData, or -1 if it is not found.
+     */
+    public long pixelDataValueOffset() {
+        return _pixelDataValueOffset;
+    }
+
+    /**
+     * The value length of PixelData. {@link #UNDEFINED_LENGTH} if the pixel
+     * data is encapsulated.
+     */
+    public long pixelDataLength() {
+        return _pixelDataLength;
+    }
+
+    /**
+     * The VR of PixelData, or null if the dataset is in implicit VR.
+     */
+    public String pixelDataVR() {
+        return _pixelDataVR;
+    }
+
+    public boolean isPixelDataEncapsulated() {
+        return _pixelDataLength == UNDEFINED_LENGTH;
+    }
+
+    /**
+     * true if the pixel values are 16 bit words, whose byte order depends on
+     * the transfer syntax.
+     */
+    public boolean isPixelDataOW() {
+        if (_pixelDataVR != null) {
+            return "OW".equals(_pixelDataVR);
+        }
+        return _bitsAllocated > 8;
+    }
+
+    /**
+     * true if the native (not encapsulated) PixelData value can be read as a
+     * plain byte range of the file.
+     */
+    public boolean hasPixelDataByteRange() {
+        return !_deflated && hasPixelData() && !isPixelDataEncapsulated()
+                && (_pixelDataVR == null || "OW".equals(_pixelDataVR) || "OB".equals(_pixelDataVR))
+                && _pixelDataValueOffset + _pixelDataLength <= _fileLength;
+    }
+
+    public static DicomFileLayout parse(File file) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return parse(in, file.length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Checks if the file looks like a DICOM (or ACR-NEMA) file from its first
+     * bytes only. It reads at most {@link #PREAMBLE_LENGTH} + 4 bytes, so it
+     * is cheap enough to classify a large number of files.
+     */
+    public static boolean sniff(File file) throws IOException {
+        byte[] head = new byte[PREAMBLE_LENGTH + 4];
+        int n = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            while (n < head.length) {
+                int r = in.read(head, n, head.length - n);
+                if (r < 0) {
+                    break;
+                }
+                n += r;
+            }
+        }
+        return sniff(head, n);
+    }
+
+    /**
+     * Checks if the first bytes of a file look like a DICOM file: the "DICM"
+     * prefix after the preamble, or (a bare dataset in little endian) a first
+     * element of group 0x0002 or 0x0008 with an explicit VR or a short value.
+     *
+     * @param head
+     *            the first bytes of the file.
+     * @param length
+     *            the number of bytes in head.
+     */
+    public static boolean sniff(byte[] head, int length) {
+        if (length >= PREAMBLE_LENGTH + 4 && head[PREAMBLE_LENGTH] == 'D' && head[PREAMBLE_LENGTH + 1] == 'I'
+                && head[PREAMBLE_LENGTH + 2] == 'C' && head[PREAMBLE_LENGTH + 3] == 'M') {
+            return true;
+        }
+        if (length < 8) {
+            return false;
+        }
+        int group = (head[0] & 0xff) | (head[1] & 0xff) << 8;
+        if (group != 0x0002 && group != 0x0008) {
+            return false;
+        }
+        if (isVR(head[4], head[5])) {
+            return true;
+        }
+        long vl = (head[4] & 0xffL) | (head[5] & 0xffL) << 8 | (head[6] & 0xffL) << 16 | (head[7] & 0xffL) << 24;
+        return vl <= MAX_SNIFFED_VALUE_LENGTH;
+    }
+
+    static DicomFileLayout parse(InputStream in, long fileLength) throws IOException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        DicomFileLayout layout = new DicomFileLayout();
+        layout._fileLength = fileLength;
+        Reader r = new Reader(in);
+
+        /*
+         * preamble & file meta information
+         */
+        r.mark(PREAMBLE_LENGTH + 4);
+        byte[] head = new byte[PREAMBLE_LENGTH + 4];
+        if (r.readAtMost(head) == head.length && head[PREAMBLE_LENGTH] == 'D' && head[PREAMBLE_LENGTH + 1] == 'I'
+                && head[PREAMBLE_LENGTH + 2] == 'C' && head[PREAMBLE_LENGTH + 3] == 'M') {
+            layout._part10 = true;
+            parseMetaInformation(r, layout);
+            if (layout._transferSyntaxUID == null) {
+                layout._transferSyntaxUID = TransferSyntax.ExplicitVRLittleEndian;
+            }
+        } else {
+            /*
+             * no preamble: a bare dataset in little endian. Guess the VR
+             * encoding from the first element.
+             */
+            r.resetToMark();
+            r.mark(8);
+            byte[] first = new byte[6];
+            boolean explicit = r.readAtMost(first) == first.length && isVR(first[4], first[5]);
+            r.resetToMark();
+            layout._transferSyntaxUID = explicit ? TransferSyntax.ExplicitVRLittleEndian
+                    : TransferSyntax.ImplicitVRLittleEndian;
+        }
+        layout._datasetOffset = r.position();
+
+        String ts = layout._transferSyntaxUID;
+        if (TransferSyntax.DeflatedExplicitVRLittleEndian.equals(ts)) {
+            layout._deflated = true;
+            layout._explicitVR = true;
+            return layout;
+        }
+        layout._explicitVR = !TransferSyntax.ImplicitVRLittleEndian.equals(ts);
+        layout._bigEndian = TransferSyntax.ExplicitVRBigEndian.equals(ts);
+
+        /*
+         * dataset
+         */
+        parseElements(r, layout, layout._explicitVR, layout._bigEndian, true);
+        return layout;
+    }
+
+    private static void parseMetaInformation(Reader r, DicomFileLayout layout) throws IOException {
+        while (true) {
+            r.mark(2);
+            int group = r.readUnsignedShortOrEOF(false);
+            r.resetToMark();
+            if (group != 0x0002) {
+                return;
+            }
+            long tag = r.readTag(false);
+            String vr = r.readVR();
+            long vl = LONG_VRS.contains(vr) ? r.skipAndReadUnsignedInt(2, false) : r.readUnsignedShort(false);
+            if (tag == TRANSFER_SYNTAX_UID) {
+                layout._transferSyntaxUID = r.readString((int) vl);
+            } else {
+                r.skip(vl);
+            }
+        }
+    }
+
+    /*
+     * parses the elements until the end of the file (top level), PixelData (top
+     * level) or an item delimitation (in an item of undefined length).
+     */
+    private static void parseElements(Reader r, DicomFileLayout layout, boolean explicit, boolean bigEndian,
+            boolean topLevel) throws IOException {
+        while (true) {
+            long offset = r.position();
+            long tag;
+            if (topLevel) {
+                int group = r.readUnsignedShortOrEOF(bigEndian);
+                if (group < 0) {
+                    return;
+                }
+                tag = ((long) group << 16) | r.readUnsignedShort(bigEndian);
+            } else {
+                tag = r.readTag(bigEndian);
+            }
+            if (tag == ITEM_DELIMITATION) {
+                r.readUnsignedInt(bigEndian);
+                return;
+            }
+            String vr = null;
+            long vl;
+            if (explicit) {
+                vr = r.readVR();
+                vl = LONG_VRS.contains(vr) ? r.skipAndReadUnsignedInt(2, bigEndian) : r.readUnsignedShort(bigEndian);
+            } else {
+                vl = r.readUnsignedInt(bigEndian);
+            }
+            if (topLevel && tag == PIXEL_DATA) {
+                layout._pixelDataOffset = offset;
+                layout._pixelDataValueOffset = r.position();
+                layout._pixelDataLength = vl;
+                layout._pixelDataVR = vr;
+                return;
+            }
+            if (topLevel && tag > PIXEL_DATA) {
+                // e.g. DataSetTrailingPadding: no PixelData in the file.
+                return;
+            }
+            if (topLevel && tag == BITS_ALLOCATED && vl == 2) {
+                layout._bitsAllocated = r.readUnsignedShort(bigEndian);
+            } else if (vl == UNDEFINED_LENGTH) {
+                // the content of UN of undefined length is implicit VR.
+                skipSequence(r, layout, explicit && !"UN".equals(vr), bigEndian);
+            } else {
+                r.skip(vl);
+            }
+        }
+    }
+
+    private static void skipSequence(Reader r, DicomFileLayout layout, boolean explicit, boolean bigEndian)
+            throws IOException {
+        while (true) {
+            long tag = r.readTag(bigEndian);
+            long vl = r.readUnsignedInt(bigEndian);
+            if (tag == SEQUENCE_DELIMITATION) {
+                return;
+            } else if (tag == ITEM) {
+                if (vl == UNDEFINED_LENGTH) {
+                    parseElements(r, layout, explicit, bigEndian, false);
+                } else {
+                    r.skip(vl);
+                }
+            } else {
+                throw new IOException(String.format("Unexpected tag (%04X,%04X) in sequence at offset %d.",
+                        tag >>> 16, tag & 0xFFFF, r.position() - 8));
+            }
+        }
+    }
+
+    private static boolean isVR(byte b1, byte b2) {
+        return b1 >= 'A' && b1 <= 'Z' && b2 >= 'A' && b2 <= 'Z';
+    }
+
+    /*
+     * little/big endian reader that tracks its position in the stream.
+     */
+    private static class Reader {
+
+        private final InputStream _in;
+        private final byte[] _b = new byte[4];
+        private long _pos;
+        private long _markPos;
+
+        Reader(InputStream in) {
+            _in = in;
+            _pos = 0;
+        }
+
+        long position() {
+            return _pos;
+        }
+
+        void mark(int readLimit) {
+            _in.mark(readLimit);
+            _markPos = _pos;
+        }
+
+        void resetToMark() throws IOException {
+            _in.reset();
+            _pos = _markPos;
+        }
+
+        int readAtMost(byte[] buf) throws IOException {
+            int total = 0;
+            while (total < buf.length) {
+                int n = _in.read(buf, total, buf.length - total);
+                if (n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            _pos += total;
+            return total;
+        }
+
+        void readFully(byte[] buf, int len) throws IOException {
+            int total = 0;
+            while (total < len) {
+                int n = _in.read(buf, total, len - total);
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of DICOM file at offset " + (_pos + total) + ".");
+                }
+                total += n;
+            }
+            _pos += len;
+        }
+
+        int readUnsignedShortOrEOF(boolean bigEndian) throws IOException {
+            int b1 = _in.read();
+            if (b1 < 0) {
+                return -1;
+            }
+            int b2 = _in.read();
+            if (b2 < 0) {
+                throw new EOFException("Unexpected end of DICOM file at offset " + (_pos + 1) + ".");
+            }
+            _pos += 2;
+            return bigEndian ? ((b1 << 8) | b2) : ((b2 << 8) | b1);
+        }
+
+        int readUnsignedShort(boolean bigEndian) throws IOException {
+            readFully(_b, 2);
+            int b1 = _b[0] & 0xFF;
+            int b2 = _b[1] & 0xFF;
+            return bigEndian ? ((b1 << 8) | b2) : ((b2 << 8) | b1);
+        }
+
+        long readUnsignedInt(boolean bigEndian) throws IOException {
+            readFully(_b, 4);
+            long b1 = _b[0] & 0xFF;
+            long b2 = _b[1] & 0xFF;
+            long b3 = _b[2] & 0xFF;
+            long b4 = _b[3] & 0xFF;
+            return bigEndian ? ((b1 << 24) | (b2 << 16) | (b3 << 8) | b4) : ((b4 << 24) | (b3 << 16) | (b2 << 8) | b1);
+        }
+
+        long skipAndReadUnsignedInt(int n, boolean bigEndian) throws IOException {
+            skip(n);
+            return readUnsignedInt(bigEndian);
+        }
+
+        long readTag(boolean bigEndian) throws IOException {
+            long group = readUnsignedShort(bigEndian);
+            long element = readUnsignedShort(bigEndian);
+            return (group << 16) | element;
+        }
+
+        String readVR() throws IOException {
+            readFully(_b, 2);
+            return new String(_b, 0, 2, StandardCharsets.US_ASCII);
+        }
+
+        String readString(int len) throws IOException {
+            byte[] buf = new byte[len];
+            readFully(buf, len);
+            int end = len;
+            while (end > 0 && (buf[end - 1] == 0 || buf[end - 1] == ' ')) {
+                end--;
+            }
+            return new String(buf, 0, end, StandardCharsets.US_ASCII);
+        }
+
+        void skip(long n) throws IOException {
+            long remaining = n;
+            while (remaining > 0) {
+                long skipped = _in.skip(remaining);
+                if (skipped <= 0) {
+                    if (_in.read() < 0) {
+                        throw new EOFException(
+                                "Unexpected end of DICOM file at offset " + (_pos + n - remaining) + ".");
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+            _pos += n;
+        }
+    }
+
+}
@@ -7,4 +7,10 @@ public class Applications {
     public static final String PROPERTIES_FILE = new StringBuilder()
             .append(System.getProperty("user.home").replace('\\', '/')).append("/.daris/daris-lifepool-client.properties").toString();
 
+    public static final String SESSION_CACHE_FILE = new StringBuilder()
+            .append(System.getProperty("user.home").replace('\\', '/')).append("/.daris/daris-lifepool-client.sessions").toString();
+
+    public static final String DAEMON_FILE = new StringBuilder()
+            .append(System.getProperty("user.home").replace('\\', '/')).append("/.daris/daris-lifepool-client.daemon").toString();
+
 }
@@ -7,6 +7,8 @@ import java.io.InputStream;
 import java.util.Properties;
 
 import arc.mf.client.AuthenticationDetails;
+import daris.lifepool.client.task.RetryPolicy;
+import daris.lifepool.client.task.SessionCache;
 
 public class ConnectionSettings {
 
@@ -21,6 +23,8 @@ public class ConnectionSettings {
     public static final String PROPERTY_USER = "mf.user";
     public static final String PROPERTY_PASSWORD = "mf.password";
     public static final String PROPERTY_SID = "mf.sid";
+    public static final String PROPERTY_RETRIES = "mf.retries";
+    public static final String PROPERTY_SESSION_CACHE = "mf.session.cache";
 
     private String _app;
     private String _domain;
@@ -32,6 +36,8 @@ public class ConnectionSettings {
     private String _token;
     private String _user;
     private String _sid;
+    private int _retries = RetryPolicy.DEFAULT_RETRIES;
+    private boolean _sessionCache = false;
 
     public ConnectionSettings(Properties properties) {
         loadFromProperties(properties);
@@ -78,6 +84,18 @@ public class ConnectionSettings {
             if (properties.containsKey(PROPERTY_SID)) {
                 _sid = properties.getProperty(PROPERTY_SID);
             }
+            if (properties.containsKey(PROPERTY_RETRIES)) {
+                String retries = properties.getProperty(PROPERTY_RETRIES);
+                try {
+                    setRetries(Integer.parseInt(retries.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid property. " + PROPERTY_RETRIES + ": " + retries, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_SESSION_CACHE)) {
+                String sessionCache = properties.getProperty(PROPERTY_SESSION_CACHE);
+                _sessionCache = "1".equals(sessionCache) || "true".equalsIgnoreCase(sessionCache);
+            }
         }
     }
 
@@ -117,6 +135,10 @@ public class ConnectionSettings {
         }
     }
 
+    public String app() {
+        return _app;
+    }
+
     public String domain() {
         return _domain;
     }
@@ -250,6 +272,39 @@ public class ConnectionSettings {
         return _domain != null && _user != null && _password != null;
     }
 
+    /**
+     * The number of times a server call that failed with a network or a
+     * transient server error is retried, on a new connection. 0 to fail
+     * at once.
+     */
+    public int retries() {
+        return _retries;
+    }
+
+    public void setRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("Invalid number of retries: " + retries + ". Expects at least 0.");
+        }
+        _retries = retries;
+    }
+
+    public RetryPolicy retryPolicy() {
+        return new RetryPolicy(_retries);
+    }
+
+    /**
+     * Whether the session key of a login with the credentials or token is
+     * kept in a local file (see {@link SessionCache}), and reused by the next
+     * processes until it expires.
+     */
+    public boolean sessionCache() {
+        return _sessionCache;
+    }
+
+    public void setSessionCache(boolean sessionCache) {
+        _sessionCache = sessionCache;
+    }
+
     public boolean hasAuthenticationDetails() {
         return hasToken() || hasUserCredentials();
     }
@@ -2,7 +2,6 @@ package daris.lifepool.client;
 
 import java.util.List;
 
-import arc.mf.client.ServerClient;
 import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import daris.lifepool.client.DataCount.ProjectSummary;
@@ -66,41 +65,38 @@ public class DataCount extends Task<ProjectSummary> {
     }
 
     protected ProjectSummary execute() throws Throwable {
-        ServerClient.Connection cxn = connect(_settings);
-        try {
-            XmlStringWriter w = new XmlStringWriter();
-            w.push("service", new String[] { "name", "asset.query" });
-            w.add("where", "cid in '" + _settings.projectId() + "'");
-            w.add("action", "count");
-            w.pop();
-
-            w.push("service", new String[] { "name", "asset.query" });
-            w.add("where", "cid starts with '" + _settings.projectId() + "' and model='om.pssd.study'");
-            w.add("action", "count");
-            w.pop();
-
-            w.push("service", new String[] { "name", "asset.query" });
-            w.add("where", "cid starts with '" + _settings.projectId()
-                    + "' and model='om.pssd.dataset' and daris:dicom-dataset has value");
-            w.add("action", "count");
-            w.pop();
-
-            w.push("service", new String[] { "name", "asset.query" });
-            w.add("where", "cid starts with '" + _settings.projectId() + "' and asset has content");
-            w.add("xpath", "content/size");
-            w.add("action", "sum");
-            w.pop();
-
-            List<XmlDoc.Element> res = cxn.execute("service.execute", w.document()).elements("reply/response");
-            long nbPatients = res.get(0).longValue("value");
-            long nbAccessions = res.get(1).longValue("value");
-            long nbImages = res.get(2).longValue("value");
-            long totalStorageUsage = res.get(3).longValue("value");
-
-            return new ProjectSummary(nbPatients, nbAccessions, nbImages, totalStorageUsage);
-        } finally {
-            cxn.closeAndDiscard();
-        }
+        XmlStringWriter w = new XmlStringWriter();
+        w.push("service", new String[] { "name", "asset.query" });
+        w.add("where", "cid in '" + _settings.projectId() + "'");
+        w.add("action", "count");
+        w.pop();
+
+        w.push("service", new String[] { "name", "asset.query" });
+        w.add("where", "cid starts with '" + _settings.projectId() + "' and model='om.pssd.study'");
+        w.add("action", "count");
+        w.pop();
+
+        w.push("service", new String[] { "name", "asset.query" });
+        w.add("where", "cid starts with '" + _settings.projectId()
+                + "' and model='om.pssd.dataset' and daris:dicom-dataset has value");
+        w.add("action", "count");
+        w.pop();
+
+        w.push("service", new String[] { "name", "asset.query" });
+        w.add("where", "cid starts with '" + _settings.projectId() + "' and asset has content");
+        w.add("xpath", "content/size");
+        w.add("action", "sum");
+        w.pop();
+
+        List<XmlDoc.Element> res = session(_settings)
+                .execute((cxn, attempt) -> cxn.execute("service.execute", w.document()))
+                .elements("reply/response");
+        long nbPatients = res.get(0).longValue("value");
+        long nbAccessions = res.get(1).longValue("value");
+        long nbImages = res.get(2).longValue("value");
+        long totalStorageUsage = res.get(3).longValue("value");
+
+        return new ProjectSummary(nbPatients, nbAccessions, nbImages, totalStorageUsage);
     }
 
 }
\ No newline at end of file
@@ -10,7 +10,6 @@ import java.util.List;
 
 import arc.archive.ArchiveInput;
 import arc.archive.ArchiveRegistry;
-import arc.mf.client.RemoteServer;
 import arc.mf.client.ServerClient;
 import arc.mf.client.archive.Archive;
 import arc.mime.NamedMimeType;
@@ -20,6 +19,8 @@ import arc.xml.XmlDoc.Element;
 import arc.xml.XmlStringWriter;
 import daris.lifepool.client.query.Query;
 import daris.lifepool.client.query.QueryManifestParser;
+import daris.lifepool.client.task.ConnectionPool;
+import daris.lifepool.client.task.ServerSession;
 
 public class DataDownload {
 
@@ -48,7 +49,7 @@ public class DataDownload {
             for (int i = 0; i < args.length;) {
                 if (args[i].equals("--help") || args[i].equals("-h")) {
                     showHelp();
-                    System.exit(0);
+                    return;
                 } else if (args[i].equals("--mf.host")) {
                     if (mfHost != null) {
                         throw new Exception("--mf.host has already been specified.");
@@ -190,27 +191,38 @@ public class DataDownload {
             List<Query> queries = QueryManifestParser.parse(manifestFile, !includeNull);
             System.out.println("done.");
 
-            RemoteServer server = new RemoteServer(mfHost, mfPort, useHttp, encrypt);
-            final ServerClient.Connection cxn = server.open();
-            try {
-                if (mfToken != null) {
-                    cxn.connectWithToken(mfToken);
-                } else if (mfAuth != null) {
-                    String[] parts = mfAuth.split(",");
-                    if (parts.length != 3) {
-                        throw new Exception("Invalid mf.auth: " + mfAuth
-                                + ". Expects a string in the form of 'domain,user,password'");
-                    }
-                    cxn.connect(parts[0], parts[1], parts[2]);
-                } else {
-                    cxn.reconnect(mfSid);
+            ConnectionSettings settings = new ConnectionSettings(null);
+            settings.setServer(mfHost, mfPort, useHttp, encrypt);
+            if (mfToken != null) {
+                settings.setToken(mfToken);
+            } else if (mfAuth != null) {
+                String[] parts = mfAuth.split(",");
+                if (parts.length != 3) {
+                    throw new Exception(
+                            "Invalid mf.auth: " + mfAuth + ". Expects a string in the form of 'domain,user,password'");
                 }
-                System.out.print("executing queries and downloading results...");
-                download(cxn, pid, queries, extract ? outputDir : outputZipFile);
-                System.out.println("done.");
-            } finally {
-                cxn.closeAndDiscard();
+                settings.setUserCredentials(parts[0], parts[1], parts[2]);
+            } else {
+                settings.setSessionKey(mfSid);
             }
+            /*
+             * the download is retried, on a new connection, if it fails with a
+             * transient error. The output is overwritten.
+             */
+            ServerSession session = new ServerSession(() -> ConnectionPool.shared().lease(settings),
+                    settings.retryPolicy(), (attempt, delay, e) -> {
+                        System.out.println();
+                        System.out.print("download failed (attempt " + attempt + "): " + e.getMessage()
+                                + ". Retrying in " + delay + " ms...");
+                    });
+            final String projectCid = pid;
+            final File out = extract ? outputDir : outputZipFile;
+            System.out.print("executing queries and downloading results...");
+            session.execute((cxn, attempt) -> {
+                download(cxn, projectCid, queries, out);
+                return null;
+            });
+            System.out.println("done.");
         } catch (IllegalArgumentException ex) {
             System.err.println("Error: " + ex.getMessage());
             showHelp();
@@ -6,10 +6,10 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 
-import arc.mf.client.ServerClient;
 import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import daris.lifepool.client.DataList.ResultEntry;
+import daris.lifepool.client.task.ServerSession;
 import daris.lifepool.client.task.Task;
 import daris.util.CiteableIdUtils;
 
@@ -119,48 +119,44 @@ public class DataList extends Task<Set<ResultEntry>> {
     }
 
     protected Set<ResultEntry> execute() throws Throwable {
-        ServerClient.Connection cxn = connect(_settings);
-        try {
-            Set<String> patientIds = _settings.patientIds();
-            Set<String> accessionNumbers = _settings.accesionNumbers();
-            Map<String, String> patientIdMap = new HashMap<String, String>();
-            Set<ResultEntry> res = new TreeSet<ResultEntry>();
-            for (String patientId : patientIds) {
-                getDatasets(_settings.projectId(), patientId, patientIdMap, cxn, res);
-            }
-            for (String accessionNumber : accessionNumbers) {
-                getDatasets(cxn, _settings.projectId(), accessionNumber, patientIdMap, res);
-            }
-            if (res.isEmpty()) {
-                return null;
-            }
-            return res;
-        } finally {
-            cxn.closeAndDiscard();
+        ServerSession session = session(_settings);
+        Set<String> patientIds = _settings.patientIds();
+        Set<String> accessionNumbers = _settings.accesionNumbers();
+        Map<String, String> patientIdMap = new HashMap<String, String>();
+        Set<ResultEntry> res = new TreeSet<ResultEntry>();
+        for (String patientId : patientIds) {
+            getDatasets(_settings.projectId(), patientId, patientIdMap, session, res);
+        }
+        for (String accessionNumber : accessionNumbers) {
+            getDatasets(session, _settings.projectId(), accessionNumber, patientIdMap, res);
+        }
+        if (res.isEmpty()) {
+            return null;
         }
+        return res;
     }
 
     private static void getDatasets(String projectId, String patientId, Map<String, String> patientIdMap,
-            ServerClient.Connection cxn, Set<ResultEntry> res) throws Throwable {
+            ServerSession session, Set<ResultEntry> res) throws Throwable {
 
         StringBuilder sb = new StringBuilder();
         sb.append("cid starts with '").append(projectId).append("' and cid contained by (cid in '").append(projectId)
                 .append("' and xpath(mf-dicom-patient/id)='").append(patientId)
                 .append("') and daris:dicom-dataset has value");
-        getDatasets(cxn, sb.toString(), patientIdMap, res);
+        getDatasets(session, sb.toString(), patientIdMap, res);
     }
 
-    private static void getDatasets(ServerClient.Connection cxn, String pid, String accessionNumber,
+    private static void getDatasets(ServerSession session, String pid, String accessionNumber,
             Map<String, String> patientIdMap, Set<ResultEntry> res) throws Throwable {
 
         StringBuilder sb = new StringBuilder();
         sb.append("cid starts with '").append(pid)
                 .append("' and xpath(daris:dicom-dataset/object/de[@tag='00080050']/value)='").append(accessionNumber)
                 .append("'");
-        getDatasets(cxn, sb.toString(), patientIdMap, res);
+        getDatasets(session, sb.toString(), patientIdMap, res);
     }
 
-    private static void getDatasets(ServerClient.Connection cxn, String where, Map<String, String> patientIdMap,
+    private static void getDatasets(ServerSession session, String where, Map<String, String> patientIdMap,
             Set<ResultEntry> res) throws Throwable {
 
         XmlStringWriter w = new XmlStringWriter();
@@ -172,7 +168,8 @@ public class DataList extends Task<Set<ResultEntry>> {
                 "meta/daris:dicom-dataset/object/de[@tag='00080050']/value");
         w.add("xpath", new String[] { "ename", "sop-instance-uid" },
                 "meta/daris:dicom-dataset/object/de[@tag='00080018']/value");
-        List<XmlDoc.Element> aes = cxn.execute("asset.query", w.document()).elements("asset");
+        List<XmlDoc.Element> aes = session.execute((cxn, attempt) -> cxn.execute("asset.query", w.document()))
+                .elements("asset");
         if (aes != null && !aes.isEmpty()) {
             for (XmlDoc.Element ae : aes) {
                 ResultEntry re = new ResultEntry(ae);
@@ -181,7 +178,8 @@ public class DataList extends Task<Set<ResultEntry>> {
                     re.setPatientId(patientIdMap.get(re.accessionNumber()));
                 } else {
                     String subjectCid = CiteableIdUtils.parent(re.cid(), 3);
-                    patientId = cxn.execute("asset.get", "<cid>" + subjectCid + "</cid>")
+                    patientId = session
+                            .execute((cxn, attempt) -> cxn.execute("asset.get", "<cid>" + subjectCid + "</cid>"))
                             .value("asset/meta/mf-dicom-patient/id");
                     re.setPatientId(patientId);
                     patientIdMap.put(re.accessionNumber(), patientId);
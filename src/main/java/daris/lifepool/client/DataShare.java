@@ -6,12 +6,12 @@ import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 
-import arc.mf.client.RemoteServer;
 import arc.mf.client.ServerClient;
 import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import daris.lifepool.client.query.Query;
 import daris.lifepool.client.query.QueryManifestParser;
+import daris.lifepool.client.task.ConnectionPool;
 
 public class DataShare {
 
@@ -42,7 +42,7 @@ public class DataShare {
             for (int i = 0; i < args.length;) {
                 if (args[i].equals("--help") || args[i].equals("-h")) {
                     showHelp();
-                    System.exit(0);
+                    return;
                 } else if (args[i].equals("--mf.host")) {
                     if (mfHost != null) {
                         throw new Exception("--mf.host has already been specified.");
@@ -172,32 +172,30 @@ public class DataShare {
             List<Query> queries = QueryManifestParser.parse(manifestFile, !includeNull);
             System.out.println("done.");
 
-            RemoteServer server = new RemoteServer(mfHost, mfPort, useHttp, encrypt);
-            final ServerClient.Connection cxn = server.open();
-            try {
-                if (mfToken != null) {
-                    cxn.connectWithToken(mfToken);
-                } else if (mfAuth != null) {
-                    String[] parts = mfAuth.split(",");
-                    if (parts.length != 3) {
-                        throw new Exception("Invalid mf.auth: " + mfAuth
-                                + ". Expects a string in the form of 'domain,user,password'");
-                    }
-                    cxn.connect(parts[0], parts[1], parts[2]);
-                } else {
-                    cxn.reconnect(mfSid);
+            ConnectionSettings settings = new ConnectionSettings(null);
+            settings.setServer(mfHost, mfPort, useHttp, encrypt);
+            if (mfToken != null) {
+                settings.setToken(mfToken);
+            } else if (mfAuth != null) {
+                String[] parts = mfAuth.split(",");
+                if (parts.length != 3) {
+                    throw new Exception(
+                            "Invalid mf.auth: " + mfAuth + ". Expects a string in the form of 'domain,user,password'");
                 }
+                settings.setUserCredentials(parts[0], parts[1], parts[2]);
+            } else {
+                settings.setSessionKey(mfSid);
+            }
+            try (ConnectionPool.Lease lease = ConnectionPool.shared().lease(settings)) {
                 /*
                  * create secure identity token
                  */
-                String token = createSecureIdentityToken(cxn, pid, queries, expire);
+                String token = createSecureIdentityToken(lease.connection(), pid, queries, expire);
                 /*
                  * generate url
                  */
                 String url = urlForToken(token, mfHost, mfPort, useHttp && encrypt, pid);
                 System.out.println(url);
-            } finally {
-                cxn.closeAndDiscard();
             }
         } catch (IllegalArgumentException ex) {
             System.err.println("Error: " + ex.getMessage());
@@ -1,48 +1,71 @@
 package daris.lifepool.client;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.nio.file.FileVisitResult;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.text.SimpleDateFormat;
 import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Formatter;
+import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
-import java.util.stream.Stream;
 
 import com.pixelmed.dicom.Attribute;
 import com.pixelmed.dicom.AttributeList;
-import com.pixelmed.dicom.DicomFileUtilities;
+import com.pixelmed.dicom.DicomInputStream;
 import com.pixelmed.dicom.TagFromName;
-import com.pixelmed.dicom.TransferSyntax;
 
-import arc.archive.ArchiveOutput;
-import arc.archive.ArchiveRegistry;
 import arc.mf.client.ServerClient;
-import arc.mf.client.ServerClient.Connection;
-import arc.mf.client.archive.Archive;
-import arc.streams.StreamCopy.AbortCheck;
 import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import daris.dicom.util.DicomChecksumUtils;
+import daris.dicom.util.DicomFileLayout;
+import daris.lifepool.client.dicom.CompressionPolicy;
+import daris.lifepool.client.dicom.DicomBuffer;
+import daris.lifepool.client.dicom.DicomEntry;
 import daris.lifepool.client.dicom.DicomIngest;
 import daris.lifepool.client.dicom.DicomModify;
+import daris.lifepool.client.dicom.DicomSplice;
+import daris.lifepool.client.dicom.RateLimiter;
+import daris.lifepool.client.dicom.RateSchedule;
+import daris.lifepool.client.task.RetryPolicy;
+import daris.lifepool.client.task.ServerSession;
+import daris.lifepool.client.task.ServiceExecutor;
 import daris.lifepool.client.task.Task;
+import daris.lifepool.client.upload.ByteBudget;
+import daris.lifepool.client.upload.ConcurrencyController;
+import daris.lifepool.client.upload.DatasetIndex;
+import daris.lifepool.client.upload.DirectoryScanner;
+import daris.lifepool.client.upload.PatientIdIndex;
+import daris.lifepool.client.upload.PatientIdMapping;
+import daris.lifepool.client.upload.PostProcessQueue;
+import daris.lifepool.client.upload.Stage;
+import daris.lifepool.client.upload.UploadJournal;
+import daris.lifepool.client.upload.UploadPlan;
+import daris.lifepool.client.upload.UploadResult;
+import daris.lifepool.client.upload.UploadStatistics;
+import daris.lifepool.client.upload.UploadStatus;
+import daris.util.ByteUtils;
 import daris.util.CiteableIdUtils;
+import daris.util.KeyedLock;
+import daris.util.LRUCache;
 import daris.util.LoggingUtils;
 import daris.util.ThrowableUtils;
 
@@ -52,8 +75,43 @@ public class DataUpload extends Task<Void> {
 
     public static final int INDENT = 4;
 
+    /*
+     * number of pending files per worker
+     */
+    private static final int QUEUE_CAPACITY_PER_WORKER = 64;
+
+    /*
+     * number of read/prepared files waiting for the next stage, per worker
+     */
+    private static final int STAGE_QUEUE_CAPACITY_PER_WORKER = 2;
+
+    private static final String ACCESSION_LOCK_PREFIX = "accession:";
+
+    /*
+     * maximum number of files of an accession directory sent together.
+     */
+    private static final int MAX_BATCH_SIZE = 32;
+
+    /*
+     * number of series/studies whose lookups are cached.
+     */
+    private static final int LOOKUP_CACHE_SIZE = 4096;
+
+    /*
+     * the mappings loaded, reused by the next uploads in a long-running JVM
+     * (see Daemon) while their file is unchanged.
+     */
+    private static final LRUCache<String, PatientIdMapping> MAPPINGS = new LRUCache<String, PatientIdMapping>(2);
+
     static Logger getLogger() throws Throwable {
         Logger logger = LoggingUtils.createLogger(APP, Level.ALL, false);
+        /*
+         * the handlers of the previous upload in the same JVM are replaced.
+         */
+        for (Handler handler : logger.getHandlers()) {
+            logger.removeHandler(handler);
+            handler.close();
+        }
         logger.addHandler(LoggingUtils.createFileHandler(APP));
         logger.addHandler(LoggingUtils.createStreamHandler(System.out, Level.ALL, new Formatter() {
 
@@ -86,6 +144,71 @@ public class DataUpload extends Task<Void> {
 
     private DataUploadSettings _settings;
 
+    /*
+     * serializes the workers on SOPInstanceUID and AccessionNumber.
+     */
+    private final KeyedLock<String> _locks = new KeyedLock<String>();
+
+    /*
+     * SeriesInstanceUID -> first dataset (asset element) of the series.
+     */
+    private final LRUCache<String, XmlDoc.Element> _firstDatasets = new LRUCache<String, XmlDoc.Element>(
+            LOOKUP_CACHE_SIZE);
+
+    /*
+     * study cid -> current study name.
+     */
+    private final LRUCache<String, String> _studyNames = new LRUCache<String, String>(LOOKUP_CACHE_SIZE);
+
+    /*
+     * existing datasets of the project. null if not prefetched.
+     */
+    private DatasetIndex _datasetIndex;
+
+    /*
+     * null if no journal is written.
+     */
+    private UploadJournal _journal;
+
+    /*
+     * null if the post-processing runs in the upload workers.
+     */
+    private PostProcessQueue _postProcessQueue;
+
+    /*
+     * dataset cid -> journal entry of its file, while its post-processing is
+     * queued.
+     */
+    private final Map<String, UploadJournal.Entry> _postProcessing = new ConcurrentHashMap<String, UploadJournal.Entry>();
+
+    /*
+     * the datasets uploaded by this upload (and the prefetched ones).
+     */
+    private DatasetIndex _uploaded;
+
+    /*
+     * the state of the pipeline, shared by its stages.
+     */
+    private UploadStatistics _stats;
+    private AtomicReference<Throwable> _failure;
+    private ByteBudget _budget;
+
+    /*
+     * how the DICOM data is sent: its compression and its rate limits.
+     */
+    private DicomIngest.Settings _ingestSettings;
+
+    /*
+     * limits the requests sending DICOM data in flight. null if all the
+     * upload workers send at once.
+     */
+    private ConcurrencyController _concurrency;
+
+    /*
+     * the server calls retried after a transient error.
+     */
+    private final AtomicLong _nbRetries = new AtomicLong(0);
+
     public DataUpload(DataUploadSettings settings) throws Throwable {
         _settings = settings;
         _settings.setApp(APP);
@@ -114,315 +237,1472 @@ public class DataUpload extends Task<Void> {
         }
     }
 
+    @Override
+    protected void retrying(int attempt, long delay, Throwable e) {
+        _nbRetries.incrementAndGet();
+        super.retrying(attempt, delay, e);
+    }
+
     private void execute() throws Throwable {
+        if (_settings.reconcileFile() != null) {
+            reconcile(_settings.files(), _settings.reconcileFile());
+            return;
+        }
+
         logInfo("loading (AccessionNumber -> PatientID) mapping from file: '"
                 + _settings.patientIdMappingFile().getAbsolutePath() + "'");
-        Map<String, String> patientIdMapping = loadPatientIdMapping(_settings.patientIdMappingFile());
-        ServerClient.Connection cxn = connect(_settings);
+        PatientIdMapping patientIdMapping = loadPatientIdMapping(_settings.patientIdMappingFile(),
+                _settings.patientIdIndex());
+        logInfo("loaded " + patientIdMapping.size() + " mapped AccessionNumbers.");
+
+        if (_settings.prefetch()) {
+            logInfo("loading existing datasets of project " + _settings.projectId() + " ...");
+            _datasetIndex = session(_settings).execute(
+                    (cxn, attempt) -> DatasetIndex.load(ServiceExecutor.of(cxn), _settings.projectId()));
+            logInfo("loaded " + _datasetIndex.size() + " existing datasets.");
+        }
+
+        Set<File> inputs = _settings.files();
+        if (_settings.planFile() != null) {
+            logInfo("loading plan file: '" + _settings.planFile().getAbsolutePath() + "'");
+            inputs = new LinkedHashSet<File>();
+            int nbPresent = 0;
+            for (UploadPlan.Entry entry : UploadPlan.read(_settings.planFile()).entries()) {
+                File file = new File(entry.path());
+                if (entry.status() != UploadPlan.Status.IGNORED
+                        && entry.needsUpload(file.length(), file.lastModified())) {
+                    inputs.add(file);
+                } else if (entry.status() == UploadPlan.Status.PRESENT) {
+                    nbPresent++;
+                }
+            }
+            logInfo("uploading " + inputs.size() + " files of the plan (" + nbPresent + " present files skipped).");
+        }
+        if (_settings.journalFile() != null) {
+            logInfo((_settings.resume() ? "resuming from" : "writing") + " journal file: '"
+                    + _settings.journalFile().getAbsolutePath() + "'");
+            _journal = UploadJournal.open(_settings.journalFile(), _settings.resume());
+            if (_settings.resume() && inputs.isEmpty()) {
+                inputs = new LinkedHashSet<File>();
+                for (UploadJournal.Entry entry : _journal.previousFailures()) {
+                    inputs.add(new File(entry.path()));
+                }
+                logInfo("retrying " + inputs.size() + " failed files in the journal.");
+            }
+        }
         try {
-            Set<File> inputs = _settings.files();
+            upload(inputs, patientIdMapping);
+        } finally {
+            if (_journal != null) {
+                _journal.close();
+            }
+        }
+    }
+
+    /*
+     * compares the input files with the datasets in the project and writes
+     * the plan. Only the headers of the files are read; the datasets are
+     * listed with a few paged queries.
+     */
+    private void reconcile(Set<File> inputs, File planFile) throws Throwable {
+        logInfo("loading existing datasets of project " + _settings.projectId() + " ...");
+        DatasetIndex index = session(_settings).execute(
+                (cxn, attempt) -> DatasetIndex.load(ServiceExecutor.of(cxn), _settings.projectId()));
+        logInfo("loaded " + index.size() + " existing datasets.");
+
+        /*
+         * the headers are read by the scanner threads, as the files are found.
+         */
+        logInfo("scanning input files...");
+        List<UploadPlan.Entry> entries = Collections.synchronizedList(new ArrayList<UploadPlan.Entry>());
+        ForkJoinPool scanPool = new ForkJoinPool(_settings.scanThreads());
+        try {
+            DirectoryScanner scanner = new DirectoryScanner(scanPool);
+            DirectoryScanner.Listener listener = new DirectoryScanner.Listener() {
+
+                @Override
+                public boolean found(List<DirectoryScanner.Candidate> candidates) throws Throwable {
+                    for (DirectoryScanner.Candidate candidate : candidates) {
+                        entries.add(scan(candidate, index));
+                    }
+                    return true;
+                }
+
+                @Override
+                public void rejected(File file, long size, long lastModified) {
+                    entries.add(new UploadPlan.Entry(file.getAbsolutePath(), size, lastModified,
+                            UploadPlan.Status.IGNORED, null, file.getParentFile().getName(), null, null));
+                }
+
+                @Override
+                public boolean failed(File file, IOException e) {
+                    logWarning("failed to read file: '" + file.getAbsolutePath() + "': " + e.getMessage(), INDENT);
+                    return true;
+                }
+            };
             for (File input : inputs) {
-                if (Files.isDirectory(input.toPath())) {
-                    Files.walkFileTree(input.toPath(), new SimpleFileVisitor<Path>() {
-                        @Override
-                        public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) throws IOException {
-                            try {
-                                uploadDicomFile(cxn, path.toFile(), patientIdMapping);
-                            } catch (Throwable e) {
-                                logError(e);
-                                if (!_settings.continueOnError()) {
-                                    return FileVisitResult.TERMINATE;
-                                } else {
-                                    return FileVisitResult.CONTINUE;
-                                }
-                            }
-                            return FileVisitResult.CONTINUE;
-                        }
+                scanner.scan(input, listener);
+            }
+            logInfo("scanned " + scanner.numberOfFiles() + " files in " + scanner.numberOfDirectories()
+                    + " directories.");
+        } finally {
+            scanPool.shutdown();
+        }
+        entries.sort((e1, e2) -> e1.path().compareTo(e2.path()));
+
+        UploadPlan plan = new UploadPlan(entries);
+        plan.write(planFile);
+        Map<UploadPlan.Status, Long> counts = plan.counts();
+        Map<UploadPlan.Status, Long> sizes = plan.sizes();
+        for (UploadPlan.Status status : UploadPlan.Status.values()) {
+            logInfo(String.format("%s: %d files (%s).", status.name().toLowerCase().replace('_', ' '),
+                    counts.get(status), ByteUtils.getHumanReadableSize(sizes.get(status))), INDENT);
+        }
+        logInfo("written plan file: '" + planFile.getAbsolutePath() + "'");
+    }
 
-                        @Override
-                        public FileVisitResult visitFileFailed(Path path, IOException ioe) {
-                            logError(ioe);
-                            if (!_settings.continueOnError()) {
-                                return FileVisitResult.TERMINATE;
-                            } else {
-                                return FileVisitResult.CONTINUE;
-                            }
-                        }
-                    });
-                } else {
-                    try {
-                        uploadDicomFile(cxn, input, patientIdMapping);
-                    } catch (Throwable e) {
+    /*
+     * the plan entry of the DICOM file: reads its header and looks up its
+     * SOPInstanceUID (and AccessionNumber, the name of its directory) in the
+     * index.
+     */
+    private UploadPlan.Entry scan(DirectoryScanner.Candidate candidate, DatasetIndex index) throws Throwable {
+        File file = candidate.file();
+        String path = file.getAbsolutePath();
+        long size = candidate.size();
+        long lastModified = candidate.lastModified();
+        String accessionNumber = file.getParentFile().getName();
+        String sopInstanceUID;
+        try {
+            sopInstanceUID = Attribute.getSingleStringValueOrNull(readDicomHeader(file), TagFromName.SOPInstanceUID);
+        } catch (Exception e) {
+            /*
+             * the upload will report the error.
+             */
+            logWarning("failed to read file: '" + path + "': " + e.getMessage(), INDENT);
+            return new UploadPlan.Entry(path, size, lastModified, UploadPlan.Status.MISSING, null, accessionNumber,
+                    null, null);
+        }
+        if (sopInstanceUID == null) {
+            return new UploadPlan.Entry(path, size, lastModified, UploadPlan.Status.IGNORED, null, accessionNumber,
+                    null, null);
+        }
+        if (index.contains(sopInstanceUID, accessionNumber)) {
+            return new UploadPlan.Entry(path, size, lastModified, UploadPlan.Status.PRESENT, sopInstanceUID,
+                    accessionNumber, null, index.find(sopInstanceUID, accessionNumber, false));
+        }
+        String serverAccessionNumber = index.accessionNumberOf(sopInstanceUID);
+        if (serverAccessionNumber != null) {
+            boolean multiple = serverAccessionNumber.isEmpty();
+            return new UploadPlan.Entry(path, size, lastModified, UploadPlan.Status.DIFFERENT_ACCESSION,
+                    sopInstanceUID, accessionNumber, multiple ? null : serverAccessionNumber,
+                    multiple ? null : index.find(sopInstanceUID, serverAccessionNumber, false));
+        }
+        return new UploadPlan.Entry(path, size, lastModified, UploadPlan.Status.MISSING, sopInstanceUID,
+                accessionNumber, null, null);
+    }
+
+    private void upload(Set<File> inputs, PatientIdMapping patientIdMapping) throws Throwable {
+        int nbWorkers = _settings.workers();
+        int nbPreparers = Math.min(nbWorkers, Runtime.getRuntime().availableProcessors());
+        initState();
+
+        /*
+         * a sender holds its connection while it waits for room in the
+         * post-processing queue: the post-processors need connections of
+         * their own.
+         */
+        int nbConnections = 2 * nbWorkers + _settings.postProcessors();
+        if (pool().maxSize() < nbConnections) {
+            pool().setMaxSize(nbConnections);
+        }
+
+        /*
+         * read -> prepare -> send
+         */
+        Stage<List<UploadItem>> sendStage = new Stage<List<UploadItem>>("send", nbWorkers,
+                nbWorkers * STAGE_QUEUE_CAPACITY_PER_WORKER, () -> new Sender(), _failure);
+        Stage<List<UploadItem>> prepareStage = new Stage<List<UploadItem>>("prepare", nbPreparers,
+                nbWorkers * STAGE_QUEUE_CAPACITY_PER_WORKER, () -> new Preparer(patientIdMapping, sendStage),
+                _failure).onFinished(sendStage::finish);
+        Stage<List<DirectoryScanner.Candidate>> readStage = new Stage<List<DirectoryScanner.Candidate>>("read",
+                nbWorkers, nbWorkers * QUEUE_CAPACITY_PER_WORKER, () -> new Reader(prepareStage), _failure)
+                        .onFinished(prepareStage::finish);
+
+        if (_settings.postProcessors() > 0) {
+            _postProcessQueue = new PostProcessQueue(() -> connect(_settings), _settings.postProcessors(), logger())
+                    .setListener(job -> postProcessed(job.datasetCid(), UploadStatus.UPLOADED));
+        }
+        ForkJoinPool scanPool = new ForkJoinPool(_settings.scanThreads());
+        sendStage.start(APP);
+        prepareStage.start(APP);
+        readStage.start(APP);
+        try {
+            try {
+                if (_journal != null) {
+                    resubmitPostProcessing(_journal.previousPostProcessing());
+                }
+
+                /*
+                 * in batch mode, the files of a directory (an accession) are
+                 * submitted together.
+                 */
+                DirectoryScanner scanner = new DirectoryScanner(scanPool,
+                        _settings.batchAccession() ? MAX_BATCH_SIZE : 1);
+                DirectoryScanner.Listener listener = new DirectoryScanner.Listener() {
+
+                    @Override
+                    public boolean include(File file, long size, long lastModified) {
+                        return !isJournaled(file, size, lastModified);
+                    }
+
+                    @Override
+                    public boolean found(List<DirectoryScanner.Candidate> candidates) throws Throwable {
+                        return readStage.submit(candidates);
+                    }
+
+                    @Override
+                    public void rejected(File file, long size, long lastModified) throws Throwable {
+                        reject(file, size, lastModified);
+                    }
+
+                    @Override
+                    public boolean failed(File file, IOException e) {
                         if (!_settings.continueOnError()) {
-                            throw e;
-                        } else {
-                            logError(e);
+                            _failure.compareAndSet(null, e);
+                            return false;
                         }
+                        logError("failed to read file: '" + file.getAbsolutePath() + "'", e);
+                        return true;
+                    }
+                };
+                for (File input : inputs) {
+                    if (_failure.get() != null || !scanner.scan(input, listener)) {
+                        break;
                     }
                 }
+            } catch (Throwable e) {
+                _failure.compareAndSet(null, e);
+            } finally {
+                readStage.finish();
+                scanPool.shutdown();
             }
+            sendStage.await();
         } finally {
-            cxn.closeAndDiscard();
+            if (_postProcessQueue != null) {
+                logInfo("waiting for the post-processing of the uploaded datasets...");
+                _postProcessQueue.close();
+                List<PostProcessQueue.Job> failures = _postProcessQueue.failures();
+                logInfo(String.format("post-processed %d datasets (%d retries, %d failed).",
+                        _postProcessQueue.numberOfDone(), _postProcessQueue.numberOfRetries(), failures.size()));
+                for (PostProcessQueue.Job job : failures) {
+                    logError("failed to post-process dataset " + job.datasetCid() + " (source \"file:"
+                            + job.sourcePath() + "\")", job.error());
+                    postProcessed(job.datasetCid(), UploadStatus.POSTPROCESS_FAILED);
+                }
+                if (!failures.isEmpty() && !_settings.continueOnError()) {
+                    _failure.compareAndSet(null,
+                            new Exception("Failed to post-process " + failures.size() + " uploaded datasets."));
+                }
+            }
+            logInfo(_stats.summary());
+            logInfo(readStage.summary());
+            logInfo(prepareStage.summary());
+            logInfo(sendStage.summary());
+            logInfo(String.format("peak bytes in flight: %s (max: %s).",
+                    ByteUtils.getHumanReadableSize(_budget.peak()), ByteUtils.getHumanReadableSize(_budget.capacity())));
+            logInfo("compression: " + _ingestSettings.compression());
+            if (_ingestSettings.rateLimiter() != null) {
+                logInfo("rate limit: " + _ingestSettings.rateLimiter());
+            }
+            if (_concurrency != null) {
+                logInfo("adaptive " + _concurrency.summary());
+            }
+            logInfo("server call retries: " + _nbRetries.get() + " (max " + _settings.retries() + " per call).");
+            if (_settings.verbose()) {
+                logInfo(String.format("first dataset cache: %d hits, %d misses. study name cache: %d hits, %d misses.",
+                        _firstDatasets.hits(), _firstDatasets.misses(), _studyNames.hits(), _studyNames.misses()));
+            }
+        }
+        if (_failure.get() != null) {
+            throw _failure.get();
         }
     }
 
-    private void uploadDicomFile(ServerClient.Connection cxn, File dicomFile, Map<String, String> patientIdMapping)
-            throws Throwable {
+    /*
+     * the state shared by the stages of the pipeline.
+     */
+    void initState() {
+        _stats = new UploadStatistics();
+        _failure = new AtomicReference<Throwable>();
+        _budget = new ByteBudget(_settings.maxInFlightMB() * 1024L * 1024L);
+        _uploaded = _datasetIndex != null ? _datasetIndex : new DatasetIndex(_settings.projectId(), 1024);
+        _ingestSettings = DicomIngest.defaultSettings(_settings.projectId())
+                .setCompression(CompressionPolicy.parse(_settings.compression()));
+        RateSchedule rateSchedule = _settings.uploadRateSchedule();
+        if (!rateSchedule.isUnlimited()) {
+            _ingestSettings.setRateLimiter(new RateLimiter(rateSchedule));
+        }
+
+        if (_settings.adaptiveConcurrency()) {
+            RetryPolicy retryPolicy = _settings.retryPolicy();
+            _concurrency = new ConcurrencyController(1, _settings.workers(), retryPolicy::isRetryable,
+                    RateLimiter::threadWaitNanos)
+                    .setListener((oldLimit, newLimit, controller) -> logInfo(
+                            (newLimit > oldLimit ? "raised " : "lowered ") + controller.status()));
+        }
+    }
 
-        logInfo("Uploading file: '" + dicomFile.getAbsolutePath() + "' ...");
-        if (!DicomFileUtilities.isDicomOrAcrNemaFile(dicomFile)) {
-            logInfo("ignored. File: '" + dicomFile.getAbsolutePath() + "' is NOT a DICOM file.", INDENT);
+    /*
+     * the datasets uploaded by a previous run whose post-processing did not
+     * complete: their files are not uploaded again.
+     */
+    private void resubmitPostProcessing(List<UploadJournal.Entry> entries) throws Throwable {
+        if (entries.isEmpty()) {
             return;
         }
+        logInfo("re-submitting the post-processing of " + entries.size() + " uploaded datasets in the journal.");
+        ServerSession session = session(_settings);
+        for (UploadJournal.Entry entry : entries) {
+            if (session.execute(
+                    (cxn, attempt) -> postProcess(ServiceExecutor.of(cxn), entry)) == UploadStatus.UPLOADED) {
+                _journal.append(entry.withStatus(UploadStatus.UPLOADED));
+            }
+        }
+    }
 
-        AttributeList attributeList = new AttributeList();
+    /*
+     * records a file that is not a DICOM file.
+     */
+    private void reject(File file, long size, long lastModified) throws IOException {
+        logInfo("ignored. File: '" + file.getAbsolutePath() + "' is NOT a DICOM file.");
+        _stats.add(UploadStatus.IGNORED, size);
+        if (_journal != null) {
+            _journal.append(new UploadJournal.Entry(file.getAbsolutePath(), size, lastModified,
+                    UploadStatus.IGNORED, null, null));
+        }
+    }
 
-        if (_settings.verbose()) {
-            logInfo("reading DICOM file: '" + dicomFile.getName() + "' ...", INDENT);
+    /*
+     * checks if the journal being resumed says the file is done. It uses the
+     * attributes from the directory walk, so the file is not opened.
+     */
+    private boolean isJournaled(File file, long size, long lastModified) {
+        if (_journal != null && _journal.isDone(file.getAbsolutePath(), size, lastModified)) {
+            if (_settings.verbose()) {
+                logInfo("ignored. File: '" + file.getAbsolutePath() + "' is done according to the journal.");
+            }
+            _stats.add(UploadStatus.SKIPPED, size);
+            return true;
         }
-        attributeList.read(dicomFile);
+        return false;
+    }
 
-        if (_settings.verbose()) {
-            logInfo("editting DICOM object in memory ...", INDENT);
+    /*
+     * a file whose dataset is being post-processed was journaled when its
+     * post-processing was submitted.
+     */
+    private void journal(File file, long size, UploadResult result) throws IOException {
+        if (_journal != null && result.status() != UploadStatus.POSTPROCESS_PENDING) {
+            _journal.append(new UploadJournal.Entry(file.getAbsolutePath(), size, file.lastModified(),
+                    result.status(), result.sopInstanceUID(), result.datasetCid()));
         }
+    }
+
+    /*
+     * a file going through the upload pipeline.
+     */
+    static class UploadItem {
+
+        private final File _file;
+        private final long _size;
+        private AttributeList _attributeList;
+        private String _accessionNumber;
+        private String _accessionNumberInDicomFile;
+        private String _seriesInstanceUID;
+        private String _sopInstanceUID;
+        private DicomFileLayout _layout;
+        private boolean _splice;
+        private DicomEntry _dicom;
+
         /*
-         * AccessionNumber:
+         * the dataset found of the file is not post-processed.
          */
-        String accessionNumber = dicomFile.getParentFile().getName();
-        String accessionNumberInDicomFile = Attribute.getSingleStringValueOrNull(attributeList,
-                TagFromName.AccessionNumber);
-        if (!accessionNumber.equals(accessionNumberInDicomFile)) {
-            if (_settings.verbose()) {
-                logWarning("AccessionNumber: " + accessionNumberInDicomFile + " in file: '"
-                        + dicomFile.getAbsolutePath() + "' does not match its directory name. Set AccessionNumber to: "
-                        + accessionNumber + ".", INDENT);
-            }
-            DicomModify.putAttribute(attributeList, TagFromName.AccessionNumber, accessionNumber);
-        }
-        logInfo("AccessionNumber: " + accessionNumber, INDENT);
+        private boolean _postProcessPending;
 
         /*
-         * SeriesInstanceUID: unique identifier for the series
+         * bytes acquired from the budget.
          */
-        String seriesInstanceUID = Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SeriesInstanceUID);
-        if (seriesInstanceUID == null) {
-            throw new Exception("No SeriesInstanceUID is found in DICOM file header.");
-        }
+        private long _charge;
 
         /*
-         * SeriesNumber: series number
-         *
-         * set SeriesNumber to 1 if it is null, because Mediaflux DICOM engine
-         * requires it.
+         * the result is recorded.
          */
-        String seriesNumber = Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SeriesNumber);
-        if (seriesNumber == null) {
-            DicomModify.putAttribute(attributeList, TagFromName.SeriesNumber, "1");
+        private boolean _finished;
+
+        UploadItem(DirectoryScanner.Candidate candidate) {
+            _file = candidate.file();
+            _size = candidate.size();
         }
 
         /*
-         * SOPInstanceUID: unique identifier for the instance/image
+         * a file read and prepared already: its AccessionNumber is the name
+         * of its directory.
          */
-        String sopInstanceUID = Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SOPInstanceUID);
-        if (sopInstanceUID == null) {
-            throw new Exception("No SOPInstanceUID is found in DICOM file header.");
+        UploadItem(File file, AttributeList attributeList, String seriesInstanceUID, String sopInstanceUID,
+                DicomEntry dicom) {
+            _file = file;
+            _size = dicom.length();
+            _attributeList = attributeList;
+            _accessionNumber = file.getParentFile().getName();
+            _accessionNumberInDicomFile = _accessionNumber;
+            _seriesInstanceUID = seriesInstanceUID;
+            _sopInstanceUID = sopInstanceUID;
+            _dicom = dicom;
         }
 
         /*
-         * check if the dataset already exists
+         * estimated memory held by the file until it is sent: the header if
+         * the PixelData is spliced; otherwise the AttributeList plus its
+         * encoded copy.
          */
-        String datasetCid = findDicomDataset(cxn, _settings.projectId(), sopInstanceUID, accessionNumber, true);
-        if (datasetCid != null) {
-            if (_settings.checkCSum()) {
-                SimpleEntry<String, Boolean> serverMD5Info = null;
-                try {
-                    serverMD5Info = getPixelDataChecksum(cxn, datasetCid, true);
-                } catch (Throwable e) {
-                }
-                String serverMD5 = serverMD5Info == null ? null : serverMD5Info.getKey();
-                boolean bigEndian = serverMD5Info == null ? false : serverMD5Info.getValue();
-                String localMD5 = null;
-                try {
-                    localMD5 = DicomChecksumUtils.getPixelDataChecksum(attributeList, bigEndian, "md5");
-                } catch (Throwable e) {
+        long estimatedMemory() {
+            return _splice ? _layout.pixelDataOffset() : 2 * _size;
+        }
+    }
+
+    /*
+     * waits for the bytes of the item to be available. Returns false if the
+     * upload is aborted meanwhile, or if wait is false and the bytes are not
+     * available now.
+     */
+    private boolean acquire(UploadItem item, boolean wait) throws InterruptedException {
+        long bytes = item.estimatedMemory();
+        if (!wait) {
+            if (!_budget.acquire(bytes, 0L)) {
+                return false;
+            }
+            item._charge = bytes;
+            return true;
+        }
+        long startTime = System.nanoTime();
+        try {
+            while (!_budget.acquire(bytes, 1000L)) {
+                if (_failure.get() != null) {
+                    return false;
                 }
+            }
+        } finally {
+            Stage.blocked(System.nanoTime() - startTime);
+        }
+        item._charge = bytes;
+        return true;
+    }
+
+    private void release(UploadItem item) {
+        if (item._charge > 0) {
+            _budget.release(item._charge);
+            item._charge = 0;
+        }
+        item._attributeList = null;
+        item._dicom = null;
+    }
 
-                if (serverMD5 == null) {
-                    if (_settings.verbose()) {
-                        logWarning("No MD5 checksum was generated for dataset " + datasetCid, INDENT);
+    private void release(List<UploadItem> items) {
+        for (UploadItem item : items) {
+            release(item);
+        }
+    }
+
+    private void finish(UploadItem item, UploadResult result) throws IOException {
+        item._finished = true;
+        release(item);
+        _stats.add(result.status(), item._size);
+        journal(item._file, item._size, result);
+    }
+
+    private void fail(UploadItem item, Throwable e) throws IOException {
+        if (!_settings.continueOnError()) {
+            _failure.compareAndSet(null, e);
+        } else {
+            logError(e);
+        }
+        finish(item, new UploadResult(UploadStatus.FAILED, item._sopInstanceUID, null));
+    }
+
+    /*
+     * file I/O and parsing of the files sniffed as DICOM by the scanner:
+     * reads the header, skips the files already uploaded and reads the rest
+     * of the file if it cannot be spliced.
+     */
+    private class Reader implements Stage.Worker<List<DirectoryScanner.Candidate>> {
+
+        private final Stage<List<UploadItem>> _next;
+        private final ServerSession _session;
+
+        Reader(Stage<List<UploadItem>> next) {
+            _next = next;
+            _session = session(_settings);
+        }
+
+        @Override
+        public void process(List<DirectoryScanner.Candidate> candidates) throws Throwable {
+            List<UploadItem> batch = new ArrayList<UploadItem>(candidates.size());
+            for (DirectoryScanner.Candidate candidate : candidates) {
+                UploadItem item = new UploadItem(candidate);
+                try {
+                    UploadResult result = read(item);
+                    if (result != null) {
+                        finish(item, result);
+                        continue;
                     }
-                } else {
-                    if (_settings.verbose()) {
-                        logInfo("MD5 checksum: " + serverMD5 + " for dataset " + datasetCid, INDENT);
+                    if (!batch.isEmpty() && !acquire(item, false)) {
+                        /*
+                         * the budget is used up: pass the files read so far
+                         * on, so that their bytes are released, then wait.
+                         */
+                        List<UploadItem> readItems = batch;
+                        batch = new ArrayList<UploadItem>(candidates.size());
+                        if (!_next.submit(readItems)) {
+                            release(readItems);
+                            release(item);
+                            return;
+                        }
+                    }
+                    if (item._charge == 0 && !acquire(item, true)) {
+                        release(item);
+                        release(batch);
+                        return;
                     }
+                    load(item);
+                } catch (InterruptedException e) {
+                    release(item);
+                    release(batch);
+                    throw e;
+                } catch (Throwable e) {
+                    fail(item, e);
+                    continue;
                 }
+                batch.add(item);
+            }
+            if (!batch.isEmpty() && !_next.submit(batch)) {
+                release(batch);
+            }
+        }
 
-                if (localMD5 == null) {
-                    if (_settings.verbose()) {
-                        logWarning("No MD5 checksum was generated for file: '" + dicomFile.getAbsolutePath() + "'",
-                                INDENT);
-                    }
-                } else {
-                    if (_settings.verbose()) {
-                        logInfo("MD5 checksum: " + localMD5 + " for file: '" + dicomFile.getAbsolutePath() + "'",
-                                INDENT);
-                    }
+        /*
+         * returns the result if the file does not need to be uploaded.
+         */
+        private UploadResult read(UploadItem item) throws Throwable {
+            File dicomFile = item._file;
+            logInfo("Uploading file: '" + dicomFile.getAbsolutePath() + "' ...");
+
+            /*
+             * read the header only (up to PixelData). It is all we need to
+             * decide whether the file has been uploaded.
+             */
+            if (_settings.verbose()) {
+                logInfo("reading DICOM header: '" + dicomFile.getName() + "' ...", INDENT);
+            }
+            AttributeList attributeList = readDicomHeader(dicomFile);
+            item._attributeList = attributeList;
+
+            /*
+             * AccessionNumber:
+             */
+            String accessionNumber = dicomFile.getParentFile().getName();
+            String accessionNumberInDicomFile = Attribute.getSingleStringValueOrNull(attributeList,
+                    TagFromName.AccessionNumber);
+            if (!accessionNumber.equals(accessionNumberInDicomFile)) {
+                if (_settings.verbose()) {
+                    logWarning("AccessionNumber: " + accessionNumberInDicomFile + " in file: '"
+                            + dicomFile.getAbsolutePath()
+                            + "' does not match its directory name. Set AccessionNumber to: " + accessionNumber + ".",
+                            INDENT);
                 }
+            }
+            logInfo("AccessionNumber: " + accessionNumber, INDENT);
+            item._accessionNumber = accessionNumber;
+            item._accessionNumberInDicomFile = accessionNumberInDicomFile;
 
-                if (serverMD5 != null && localMD5 != null && serverMD5.equalsIgnoreCase(localMD5)) {
-                    if (_settings.verbose()) {
-                        logInfo("MD5 checksum: " + localMD5 + " match for dataset " + datasetCid + " and file: '"
-                                + dicomFile.getAbsolutePath() + "'", INDENT);
-                    }
-                } else if (serverMD5 == null && localMD5 == null) {
-                    if (_settings.verbose()) {
-                        logWarning("No MD5 checksum can be generated on both server dataset " + datasetCid
-                                + " and local file: " + dicomFile.getAbsolutePath()
-                                + ". The DICOM file may not contain PixelData.", INDENT);
-                    }
-                } else {
-                    throw new Exception("MD5 checksum of file: '" + dicomFile.getAbsolutePath() + "' (" + localMD5
-                            + ") of PixelData does not match with dataset " + datasetCid + " (" + serverMD5 + ").");
+            /*
+             * SeriesInstanceUID: unique identifier for the series
+             */
+            item._seriesInstanceUID = Attribute.getSingleStringValueOrNull(attributeList,
+                    TagFromName.SeriesInstanceUID);
+            if (item._seriesInstanceUID == null) {
+                throw new Exception("No SeriesInstanceUID is found in DICOM file header.");
+            }
+
+            /*
+             * SOPInstanceUID: unique identifier for the instance/image
+             */
+            String sopInstanceUID = Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SOPInstanceUID);
+            if (sopInstanceUID == null) {
+                throw new Exception("No SOPInstanceUID is found in DICOM file header.");
+            }
+            item._sopInstanceUID = sopInstanceUID;
+
+            /*
+             * check if the dataset already exists (before this upload; the
+             * sender checks the datasets uploaded by this upload)
+             */
+            String datasetCid = _session
+                    .execute((cxn, attempt) -> findUploadedDataset(ServiceExecutor.of(cxn), item));
+            if (datasetCid != null) {
+                if (_settings.checkCSum()) {
+                    _session.execute((cxn, attempt) -> {
+                        checkPixelDataChecksum(ServiceExecutor.of(cxn), datasetCid, dicomFile);
+                        return null;
+                    });
                 }
+                logInfo("ignored. File was previous uploaded as dataset " + datasetCid, INDENT);
+                return new UploadResult(UploadStatus.SKIPPED, sopInstanceUID, datasetCid);
             }
-            logInfo("ignored. File was previous uploaded as dataset " + datasetCid, INDENT);
-            return;
+
+            /*
+             * the file needs to be uploaded. If its PixelData can be copied
+             * as it is, only the header (already read) is re-encoded.
+             */
+            try {
+                item._layout = DicomFileLayout.parse(dicomFile);
+            } catch (IOException e) {
+                // not a layout the scanner understands: re-encode everything.
+            }
+            item._splice = item._layout != null && DicomSplice.canSplice(item._layout);
+            return null;
         }
 
         /*
-         * modify dicom file
+         * reads the complete file if it cannot be spliced.
          */
-        if (_settings.verbose()) {
-            logInfo("modifying temporary copy of file: '" + dicomFile.getAbsolutePath() + "'", INDENT);
+        private void load(UploadItem item) throws Throwable {
+            if (!item._splice) {
+                if (_settings.verbose()) {
+                    logInfo("reading DICOM file: '" + item._file.getName() + "' ...", INDENT);
+                }
+                AttributeList attributeList = new AttributeList();
+                attributeList.read(item._file);
+                item._attributeList = attributeList;
+            }
         }
-        String prefix = dicomFile.getName();
-        if (prefix.endsWith(".dcm") || prefix.endsWith(".DCM")) {
-            prefix = prefix.substring(0, prefix.length() - 4);
+
+        @Override
+        public void discard(List<DirectoryScanner.Candidate> candidates) {
+            // nothing is held yet.
         }
-        // File modifiedDicomFile = File.createTempFile(prefix, ".dcm");
+    }
+
+    /*
+     * CPU: edits the header and encodes the DICOM object.
+     */
+    private class Preparer implements Stage.Worker<List<UploadItem>> {
 
-        DicomModify.putAttribute(attributeList, TagFromName.PatientName, _settings.projectId());
+        private final PatientIdMapping _patientIdMapping;
+        private final Stage<List<UploadItem>> _next;
 
-        String patientId = patientIdMapping.get(accessionNumber);
-        if (patientId == null) {
-            throw new Exception("Could not find PatientID in mapping file for AccessionNumber: " + accessionNumber);
+        Preparer(PatientIdMapping patientIdMapping, Stage<List<UploadItem>> next) {
+            _patientIdMapping = patientIdMapping;
+            _next = next;
         }
-        DicomModify.putAttribute(attributeList, TagFromName.PatientID, patientId);
 
-        /*
-         * find first dataset in the study
-         */
-        XmlDoc.Element firstDatasetAE = getFirstDicomDataset(cxn, _settings.projectId(), seriesInstanceUID);
-        if (firstDatasetAE == null) {
+        @Override
+        public void process(List<UploadItem> batch) throws Throwable {
+            List<UploadItem> prepared = new ArrayList<UploadItem>(batch.size());
+            for (UploadItem item : batch) {
+                try {
+                    prepare(item);
+                } catch (Throwable e) {
+                    fail(item, e);
+                    continue;
+                }
+                prepared.add(item);
+            }
+            if (!prepared.isEmpty() && !_next.submit(prepared)) {
+                release(prepared);
+            }
+        }
+
+        private void prepare(UploadItem item) throws Throwable {
+            AttributeList attributeList = item._attributeList;
+            String accessionNumber = item._accessionNumber;
+            if (_settings.verbose()) {
+                logInfo("editting DICOM object in memory: '" + item._file.getName() + "' ...", INDENT);
+            }
+            if (!accessionNumber.equals(item._accessionNumberInDicomFile)) {
+                DicomModify.putAttribute(attributeList, TagFromName.AccessionNumber, accessionNumber);
+            }
+
             /*
-             * dicom ingest
+             * SeriesNumber: series number
+             *
+             * set SeriesNumber to 1 if it is null, because Mediaflux DICOM
+             * engine requires it.
              */
-            logInfo("ingesting dataset...", INDENT);
-            String studyCid = DicomIngest.ingest(cxn, attributeList, dicomFile.getAbsolutePath(), _settings.projectId(),
-                    logger());
-            firstDatasetAE = cxn.execute("asset.query", "<action>get-meta</action><size>1</size><where>cid in '"
-                    + studyCid + "' and mf-note hasno value</where>").element("asset");
+            String seriesNumber = Attribute.getSingleStringValueOrNull(attributeList, TagFromName.SeriesNumber);
+            if (seriesNumber == null) {
+                DicomModify.putAttribute(attributeList, TagFromName.SeriesNumber, "1");
+            }
 
-            if (firstDatasetAE == null) {
-                throw new Exception("Failed to find the newly ingested DICOM dataset in study " + studyCid
-                        + ". (source \"file:" + dicomFile.getAbsolutePath() + "\")");
+            DicomModify.putAttribute(attributeList, TagFromName.PatientName, _settings.projectId());
+
+            String patientId = _patientIdMapping.patientIdOf(accessionNumber);
+            if (patientId == null) {
+                throw new Exception("Could not find PatientID in mapping file for AccessionNumber: " + accessionNumber);
             }
+            DicomModify.putAttribute(attributeList, TagFromName.PatientID, patientId);
+
+            /*
+             * the encoded object is sent by another thread: it needs a buffer
+             * of its own, sized from the file so that it is not grown while
+             * encoding.
+             */
+            item._dicom = item._splice ? DicomSplice.create(item._file, item._layout, attributeList)
+                    : DicomBuffer.encode(attributeList, item._size);
+            if (_settings.verbose()) {
+                logInfo((item._splice ? "spliced" : "encoded") + " DICOM object: " + item._dicom.length()
+                        + " bytes. (source \"file:" + item._file.getAbsolutePath() + "\")", INDENT);
+            }
+        }
 
-            String firstDatasetCid = firstDatasetAE.value("cid");
+        @Override
+        public void discard(List<UploadItem> batch) {
+            release(batch);
+        }
+    }
+
+    /*
+     * network: ingests or creates the datasets.
+     */
+    private class Sender implements Stage.Worker<List<UploadItem>> {
+
+        private final ServerSession _session;
 
-            if (firstDatasetAE.elementExists("lock")) {
-                throw new Exception("The newly ingested dataset " + firstDatasetAE.value("cid") + " is locked.");
+        Sender() throws Throwable {
+            _session = session(_settings);
+            /*
+             * fails the stage early if the server cannot be reached, and
+             * warms the pool up.
+             */
+            _session.execute((cxn, attempt) -> null);
+        }
+
+        @Override
+        public void process(List<UploadItem> batch) throws Throwable {
+            List<UploadItem> items = batch;
+            if (_settings.batchAccession() && batch.size() > 1) {
+                try {
+                    items = _session.execute((cxn, attempt) -> {
+                        ServiceExecutor executor = ServiceExecutor.of(cxn);
+                        List<UploadItem> unfinished = attempt == 1 ? batch : recheck(executor, batch);
+                        return unfinished.isEmpty() ? unfinished
+                                : ingestAccession(executor, unfinished, attempt > 1);
+                    });
+                } catch (Throwable e) {
+                    for (UploadItem item : batch) {
+                        if (!item._finished) {
+                            fail(item, e);
+                        }
+                    }
+                    return;
+                }
             }
+            for (UploadItem item : items) {
+                if (_failure.get() != null) {
+                    release(item);
+                    continue;
+                }
+                UploadResult result;
+                try {
+                    result = _session.execute((cxn, attempt) -> attempt == 1 ? send(ServiceExecutor.of(cxn), item)
+                            : resend(ServiceExecutor.of(cxn), item));
+                } catch (Throwable e) {
+                    fail(item, e);
+                    continue;
+                }
+                finish(item, result);
+            }
+        }
 
-            logInfo("ingested dataset: " + firstDatasetCid, INDENT);
+        @Override
+        public void discard(List<UploadItem> batch) {
+            release(batch);
+        }
+    }
 
-            // update study name & description
-            logInfo("updating metadata for study " + studyCid, INDENT);
-            updateStudyName(cxn, studyCid, attributeList);
+    /*
+     * sends a request carrying the bytes of DICOM data: when the concurrency
+     * adapts, once there is room for it, and its latency or error adjusts the
+     * limit.
+     */
+    private <T> T sendData(long bytes, ConcurrencyController.Call<T> call) throws Throwable {
+        return _concurrency == null ? call.call() : _concurrency.execute(bytes, call);
+    }
 
-            // update newly ingested dataset
-            logInfo("updating metadata for dataset " + firstDatasetCid, INDENT);
-            updateDicomDataset(cxn, firstDatasetAE, dicomFile.getAbsolutePath(), attributeList, _settings.checkCSum());
+    /*
+     * a retry of send(): the failed attempt may have created (or ingested and
+     * updated) the dataset before the connection failed, or ingested it but
+     * not updated it.
+     */
+    UploadResult resend(ServiceExecutor cxn, UploadItem item) throws Throwable {
+        String datasetCid = recheck(cxn, item);
+        if (datasetCid != null) {
+            UploadStatus status = postProcess(cxn, item, datasetCid);
+            return new UploadResult(status, item._sopInstanceUID, datasetCid);
+        }
+        return send(cxn, item, true);
+    }
+
+    /*
+     * a retry of ingestAccession(): the items not finished yet and whose
+     * datasets were not created by the failed attempt.
+     */
+    private List<UploadItem> recheck(ServiceExecutor cxn, List<UploadItem> batch) throws Throwable {
+        List<UploadItem> items = new ArrayList<UploadItem>(batch.size());
+        for (UploadItem item : batch) {
+            if (item._finished) {
+                continue;
+            }
+            String datasetCid = recheck(cxn, item);
+            if (datasetCid != null) {
+                UploadStatus status = postProcess(cxn, item, datasetCid);
+                finish(item, new UploadResult(status, item._sopInstanceUID, datasetCid));
+            } else {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    /*
+     * the dataset of the file, by the mf-note set when it is created or when
+     * it is updated after the ingest. (daris:dicom-dataset is set by the
+     * post-processing, which may not have run yet.)
+     */
+    private String recheck(ServiceExecutor cxn, UploadItem item) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("where", "cid starts with '" + _settings.projectId() + "' and xpath(mf-dicom-series/uid)='"
+                + item._seriesInstanceUID + "' and xpath(mf-note/note)='source: " + item._file.getAbsolutePath()
+                + "'");
+        w.add("size", 1);
+        w.add("action", "get-cid");
+        String datasetCid = cxn.execute("asset.query", w.document()).value("cid");
+        if (datasetCid != null) {
+            logInfo("found dataset " + datasetCid + " created before the connection failed. (source \"file:"
+                    + item._file.getAbsolutePath() + "\")", INDENT);
+            _uploaded.put(item._sopInstanceUID, item._accessionNumber, datasetCid);
+        }
+        return datasetCid;
+    }
+
+    UploadResult send(ServiceExecutor cxn, UploadItem item) throws Throwable {
+        return send(cxn, item, false);
+    }
+
+    /*
+     * retry: whether the file may have been ingested by a failed attempt.
+     */
+    private UploadResult send(ServiceExecutor cxn, UploadItem item, boolean retry) throws Throwable {
+
+        File dicomFile = item._file;
+        AttributeList attributeList = item._attributeList;
+        DicomEntry dicom = item._dicom;
+        String accessionNumber = item._accessionNumber;
+        String seriesInstanceUID = item._seriesInstanceUID;
+        String sopInstanceUID = item._sopInstanceUID;
+
+        /*
+         * serialize uploads of the same SOPInstanceUID so that the existence
+         * check and the upload are atomic. (The reader checked the datasets
+         * uploaded before; two files of the same SOPInstanceUID may have both
+         * passed that check.)
+         */
+        try (KeyedLock.Handle sopInstanceLock = _locks.lock(sopInstanceUID)) {
+
+            String datasetCid = _uploaded.find(sopInstanceUID, accessionNumber, false);
+            if (datasetCid != null) {
+                logInfo("ignored. File: '" + dicomFile.getAbsolutePath() + "' was uploaded as dataset " + datasetCid,
+                        INDENT);
+                return new UploadResult(UploadStatus.SKIPPED, sopInstanceUID, datasetCid);
+            }
+
+            /*
+             * find first dataset in the study. Only one file per accession
+             * can be ingested at a time, otherwise concurrent ingests of the
+             * same study would create duplicate studies. Once the first
+             * dataset exists, the lock is released and the remaining files of
+             * the series are created concurrently.
+             */
+            XmlDoc.Element firstDatasetAE;
+            try (KeyedLock.Handle accessionLock = _locks.lock(ACCESSION_LOCK_PREFIX + accessionNumber)) {
+                firstDatasetAE = _firstDatasets.get(seriesInstanceUID);
+                if (firstDatasetAE == null) {
+                    firstDatasetAE = getFirstDicomDataset(cxn, _settings.projectId(), seriesInstanceUID, true);
+                    _firstDatasets.put(seriesInstanceUID, firstDatasetAE);
+                }
+                if (firstDatasetAE == null) {
+                    /*
+                     * a failed attempt may have ingested the dataset, and
+                     * failed to update it: it is updated, not ingested again.
+                     */
+                    String studyCid = null;
+                    if (retry) {
+                        XmlDoc.Element ingestedAE = getFirstDicomDataset(cxn, _settings.projectId(),
+                                seriesInstanceUID, false);
+                        if (ingestedAE != null) {
+                            studyCid = CiteableIdUtils.parent(ingestedAE.value("cid"));
+                            logInfo("found dataset " + ingestedAE.value("cid")
+                                    + " ingested before the connection failed. (source \"file:"
+                                    + dicomFile.getAbsolutePath() + "\")", INDENT);
+                        }
+                    }
+
+                    /*
+                     * dicom ingest
+                     */
+                    if (studyCid == null) {
+                        logInfo("ingesting dataset... (source \"file:" + dicomFile.getAbsolutePath() + "\")",
+                                INDENT);
+                        studyCid = sendData(dicom.length(),
+                                () -> DicomIngest.ingest(cxn, dicom, dicomFile.getAbsolutePath(), _ingestSettings));
+                    }
+
+                    /*
+                     * the newly ingested dataset and, unless its name is
+                     * cached, the study: in one round trip.
+                     */
+                    String studyName = studyNameFor(attributeList);
+                    boolean studyNameCached = studyName.equals(_studyNames.get(studyCid));
+                    XmlStringWriter w = new XmlStringWriter();
+                    w.push("service", new String[] { "name", "asset.query" });
+                    w.add("where", "cid in '" + studyCid + "' and mf-note hasno value");
+                    w.add("size", 1);
+                    w.add("action", "get-meta");
+                    w.pop();
+                    if (!studyNameCached) {
+                        w.push("service", new String[] { "name", "asset.get" });
+                        w.add("cid", studyCid);
+                        w.pop();
+                    }
+                    List<XmlDoc.Element> res = cxn.execute("service.execute", w.document())
+                            .elements("reply/response");
+                    firstDatasetAE = res.get(0).element("asset");
+                    XmlDoc.Element studyAE = studyNameCached ? null : res.get(1).element("asset");
+
+                    if (firstDatasetAE == null) {
+                        throw new Exception("Failed to find the newly ingested DICOM dataset in study " + studyCid
+                                + ". (source \"file:" + dicomFile.getAbsolutePath() + "\")");
+                    }
+
+                    String firstDatasetCid = firstDatasetAE.value("cid");
+
+                    if (firstDatasetAE.elementExists("lock")) {
+                        throw new Exception("The newly ingested dataset " + firstDatasetAE.value("cid") + " is locked.");
+                    }
+
+                    logInfo("ingested dataset: " + firstDatasetCid, INDENT);
+                    _uploaded.put(sopInstanceUID, accessionNumber, firstDatasetCid);
+
+                    /*
+                     * update study name & description and the newly ingested
+                     * dataset: in one round trip.
+                     */
+                    logInfo("updating metadata for study " + studyCid + " and dataset " + firstDatasetCid, INDENT);
+                    w = new XmlStringWriter();
+                    if (studyAE != null) {
+                        addStudyNameUpdate(w, studyAE, studyName);
+                    }
+                    addDicomDatasetUpdate(w, firstDatasetAE, dicomFile.getAbsolutePath(), attributeList);
+                    cxn.execute("service.execute", w.document());
+                    _studyNames.put(studyCid, studyName);
+                    UploadStatus status = postProcess(cxn, item, firstDatasetCid);
+                    _firstDatasets.put(seriesInstanceUID, firstDatasetAE);
+                    return new UploadResult(status, sopInstanceUID, firstDatasetCid);
+                }
+            }
 
-        } else {
             /*
              * create dataset
              */
             String studyCid = CiteableIdUtils.parent(firstDatasetAE.value("cid"));
-            logInfo("creating dataset (in study " + studyCid + ")...", INDENT);
-            datasetCid = createDicomDataset(cxn, firstDatasetAE, attributeList, dicomFile.getAbsolutePath(),
-                    _settings.checkCSum());
+            logInfo("creating dataset (in study " + studyCid + ")... (source \"file:" + dicomFile.getAbsolutePath()
+                    + "\")", INDENT);
+            XmlDoc.Element firstSiblingAE = firstDatasetAE;
+            datasetCid = sendData(dicom.length(), () -> createDicomDataset(cxn, firstSiblingAE, attributeList, dicom,
+                    dicomFile.getAbsolutePath(), _ingestSettings));
             logInfo("created dataset " + datasetCid, INDENT);
+            UploadStatus status = postProcess(cxn, item, datasetCid);
+            _uploaded.put(sopInstanceUID, accessionNumber, datasetCid);
+            return new UploadResult(status, sopInstanceUID, datasetCid);
         }
     }
 
-    static Map<String, String> loadPatientIdMapping(File file) throws Throwable {
-        Map<String, String> map = new HashMap<String, String>((120000 * 4 + 2) / 3);
-        try (Stream<String> stream = Files.lines(file.toPath())) {
-            stream.forEach(line -> {
-                if (line.matches("^\\ *\\d+\\ *,.+")) {
-                    String[] tokens = line.trim().split("\\ *,\\ *");
-                    String patientId = tokens[0];
-                    String accessionNumber = tokens[1];
-                    map.put(accessionNumber, patientId);
+    /*
+     * batch mode: ingests the first file of each new series of the accession,
+     * all in one dicom.ingest request, then updates the new datasets and
+     * their study in one more. The files already uploaded are skipped. The
+     * other files (of series that already exist, or that are ingested by
+     * this batch) are returned, to be sent one by one. retry: whether the
+     * files may have been ingested by a failed attempt.
+     */
+    private List<UploadItem> ingestAccession(ServiceExecutor cxn, List<UploadItem> batch, boolean retry)
+            throws Throwable {
+
+        String accessionNumber = batch.get(0)._accessionNumber;
+        String source = batch.get(0)._file.getParentFile().getAbsolutePath();
+        List<UploadItem> remaining = new ArrayList<UploadItem>(batch.size());
+
+        /*
+         * lock the SOPInstanceUIDs in order, so that batches sharing
+         * instances cannot deadlock, then the accession.
+         */
+        Set<String> sopInstanceUIDs = new TreeSet<String>();
+        for (UploadItem item : batch) {
+            sopInstanceUIDs.add(item._sopInstanceUID);
+        }
+        List<KeyedLock.Handle> sopInstanceLocks = new ArrayList<KeyedLock.Handle>(sopInstanceUIDs.size());
+        try {
+            for (String sopInstanceUID : sopInstanceUIDs) {
+                sopInstanceLocks.add(_locks.lock(sopInstanceUID));
+            }
+            try (KeyedLock.Handle accessionLock = _locks.lock(ACCESSION_LOCK_PREFIX + accessionNumber)) {
+
+                /*
+                 * the first datasets of the series, from the cache or in one
+                 * round trip.
+                 */
+                List<UploadItem> items = new ArrayList<UploadItem>(batch.size());
+                Map<String, XmlDoc.Element> firstDatasets = new HashMap<String, XmlDoc.Element>();
+                Set<String> unknownSeries = new LinkedHashSet<String>();
+                for (UploadItem item : batch) {
+                    String datasetCid = _uploaded.find(item._sopInstanceUID, accessionNumber, false);
+                    if (datasetCid != null) {
+                        logInfo("ignored. File: '" + item._file.getAbsolutePath() + "' was uploaded as dataset "
+                                + datasetCid, INDENT);
+                        finish(item, new UploadResult(UploadStatus.SKIPPED, item._sopInstanceUID, datasetCid));
+                        continue;
+                    }
+                    items.add(item);
+                    XmlDoc.Element firstDatasetAE = _firstDatasets.get(item._seriesInstanceUID);
+                    if (firstDatasetAE != null) {
+                        firstDatasets.put(item._seriesInstanceUID, firstDatasetAE);
+                    } else {
+                        unknownSeries.add(item._seriesInstanceUID);
+                    }
+                }
+                if (!unknownSeries.isEmpty()) {
+                    XmlStringWriter w = new XmlStringWriter();
+                    addDicomDatasetQueries(w, _settings.projectId(), unknownSeries, true);
+                    List<XmlDoc.Element> res = cxn.execute("service.execute", w.document())
+                            .elements("reply/response");
+                    int i = 0;
+                    for (String seriesInstanceUID : unknownSeries) {
+                        XmlDoc.Element firstDatasetAE = res.get(i++).element("asset");
+                        if (firstDatasetAE != null) {
+                            firstDatasets.put(seriesInstanceUID, firstDatasetAE);
+                            _firstDatasets.put(seriesInstanceUID, firstDatasetAE);
+                        }
+                    }
+                }
+
+                /*
+                 * the first file of each new series is ingested.
+                 */
+                List<UploadItem> ingested = new ArrayList<UploadItem>(items.size());
+                Set<String> newSeries = new LinkedHashSet<String>();
+                for (UploadItem item : items) {
+                    if (firstDatasets.containsKey(item._seriesInstanceUID) || !newSeries.add(item._seriesInstanceUID)) {
+                        remaining.add(item);
+                    } else {
+                        ingested.add(item);
+                    }
+                }
+                if (ingested.isEmpty()) {
+                    return remaining;
+                }
+
+                /*
+                 * a failed attempt may have ingested some of them, and failed
+                 * to update them: they are updated, not ingested again.
+                 */
+                List<DicomEntry> dicoms = new ArrayList<DicomEntry>(ingested.size());
+                long bytes = 0;
+                if (retry) {
+                    XmlStringWriter w = new XmlStringWriter();
+                    addDicomDatasetQueries(w, _settings.projectId(), newSeries, false);
+                    List<XmlDoc.Element> res = cxn.execute("service.execute", w.document())
+                            .elements("reply/response");
+                    for (int i = 0; i < ingested.size(); i++) {
+                        UploadItem item = ingested.get(i);
+                        XmlDoc.Element ingestedAE = res.get(i).element("asset");
+                        if (ingestedAE == null) {
+                            dicoms.add(item._dicom);
+                            bytes += item._dicom.length();
+                        } else {
+                            logInfo("found dataset " + ingestedAE.value("cid")
+                                    + " ingested before the connection failed. (source \"file:"
+                                    + item._file.getAbsolutePath() + "\")", INDENT);
+                        }
+                    }
+                } else {
+                    for (UploadItem item : ingested) {
+                        dicoms.add(item._dicom);
+                        bytes += item._dicom.length();
+                    }
+                }
+                if (!dicoms.isEmpty()) {
+                    logInfo("ingesting " + dicoms.size() + " datasets of accession " + accessionNumber
+                            + "... (source \"file:" + source + "\")", INDENT);
+                    sendData(bytes, () -> DicomIngest.ingest(cxn, dicoms, source, _ingestSettings));
+                }
+
+                /*
+                 * the newly ingested datasets: in one round trip.
+                 */
+                XmlStringWriter w = new XmlStringWriter();
+                addDicomDatasetQueries(w, _settings.projectId(), newSeries, false);
+                List<XmlDoc.Element> res = cxn.execute("service.execute", w.document()).elements("reply/response");
+                List<XmlDoc.Element> datasetAEs = new ArrayList<XmlDoc.Element>(ingested.size());
+                Map<String, String> studyNames = new LinkedHashMap<String, String>();
+                for (int i = 0; i < ingested.size(); i++) {
+                    UploadItem item = ingested.get(i);
+                    XmlDoc.Element datasetAE = res.get(i).element("asset");
+                    if (datasetAE == null) {
+                        throw new Exception("Failed to find the newly ingested DICOM dataset of series "
+                                + item._seriesInstanceUID + ". (source \"file:" + item._file.getAbsolutePath()
+                                + "\")");
+                    }
+                    if (datasetAE.elementExists("lock")) {
+                        throw new Exception("The newly ingested dataset " + datasetAE.value("cid") + " is locked.");
+                    }
+                    datasetAEs.add(datasetAE);
+                    String studyCid = CiteableIdUtils.parent(datasetAE.value("cid"));
+                    String studyName = studyNameFor(item._attributeList);
+                    if (!studyName.equals(_studyNames.get(studyCid))) {
+                        studyNames.put(studyCid, studyName);
+                    }
+                }
+
+                /*
+                 * the studies whose names are not cached: in one round trip.
+                 */
+                List<XmlDoc.Element> studyAEs = new ArrayList<XmlDoc.Element>(studyNames.size());
+                if (!studyNames.isEmpty()) {
+                    w = new XmlStringWriter();
+                    for (String studyCid : studyNames.keySet()) {
+                        w.push("service", new String[] { "name", "asset.get" });
+                        w.add("cid", studyCid);
+                        w.pop();
+                    }
+                    for (XmlDoc.Element re : cxn.execute("service.execute", w.document())
+                            .elements("reply/response")) {
+                        studyAEs.add(re.element("asset"));
+                    }
+                }
+
+                /*
+                 * update the study names & descriptions and the newly
+                 * ingested datasets: in one round trip.
+                 */
+                w = new XmlStringWriter();
+                for (XmlDoc.Element studyAE : studyAEs) {
+                    addStudyNameUpdate(w, studyAE, studyNames.get(studyAE.value("cid")));
+                }
+                for (int i = 0; i < ingested.size(); i++) {
+                    UploadItem item = ingested.get(i);
+                    addDicomDatasetUpdate(w, datasetAEs.get(i), item._file.getAbsolutePath(), item._attributeList);
+                }
+                cxn.execute("service.execute", w.document());
+                for (Map.Entry<String, String> entry : studyNames.entrySet()) {
+                    _studyNames.put(entry.getKey(), entry.getValue());
                 }
-            });
+                for (int i = 0; i < ingested.size(); i++) {
+                    UploadItem item = ingested.get(i);
+                    XmlDoc.Element datasetAE = datasetAEs.get(i);
+                    String datasetCid = datasetAE.value("cid");
+                    logInfo("ingested dataset: " + datasetCid + " (source \"file:" + item._file.getAbsolutePath()
+                            + "\")", INDENT);
+                    _uploaded.put(item._sopInstanceUID, accessionNumber, datasetCid);
+                    _firstDatasets.put(item._seriesInstanceUID, datasetAE);
+                    UploadStatus status = postProcess(cxn, item, datasetCid);
+                    finish(item, new UploadResult(status, item._sopInstanceUID, datasetCid));
+                }
+            }
+        } finally {
+            for (KeyedLock.Handle sopInstanceLock : sopInstanceLocks) {
+                sopInstanceLock.close();
+            }
+        }
+        return remaining;
+    }
+
+    private UploadStatus postProcess(ServiceExecutor cxn, UploadItem item, String datasetCid)
+            throws Throwable {
+        return postProcess(cxn, new UploadJournal.Entry(item._file.getAbsolutePath(), item._size,
+                item._file.lastModified(), UploadStatus.UPLOADED, item._sopInstanceUID, datasetCid));
+    }
+
+    /*
+     * daris:dicom-dataset metadata and checksum: in the post-processing queue,
+     * or in one round trip if there is no queue. Returns UPLOADED if it is
+     * done, POSTPROCESS_PENDING if it is queued: the file is then journaled,
+     * until the job completes.
+     */
+    private UploadStatus postProcess(ServiceExecutor cxn, UploadJournal.Entry entry) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        addDatasetPostProcessing(w, entry.datasetCid(), _settings.checkCSum());
+        if (_postProcessQueue == null) {
+            cxn.execute("service.execute", w.document());
+            return UploadStatus.UPLOADED;
         }
-        if (map.isEmpty()) {
+        if (_journal != null) {
+            UploadJournal.Entry pending = entry.withStatus(UploadStatus.POSTPROCESS_PENDING);
+            _postProcessing.put(entry.datasetCid(), pending);
+            _journal.append(pending);
+        }
+        _postProcessQueue.submit(entry.datasetCid(), entry.path(), w.document());
+        return UploadStatus.POSTPROCESS_PENDING;
+    }
+
+    /*
+     * journals the end of the post-processing of the dataset: UPLOADED, or
+     * POSTPROCESS_FAILED to retry it when the journal is resumed.
+     */
+    private void postProcessed(String datasetCid, UploadStatus status) {
+        UploadJournal.Entry entry = _postProcessing.remove(datasetCid);
+        if (entry != null) {
+            try {
+                _journal.append(entry.withStatus(status));
+            } catch (IOException e) {
+                logError("failed to write journal file: '" + _journal.file().getAbsolutePath() + "'", e);
+            }
+        }
+    }
+
+    private void checkPixelDataChecksum(ServiceExecutor cxn, String datasetCid, File dicomFile)
+            throws Throwable {
+        SimpleEntry<String, Boolean> serverMD5Info = null;
+        try {
+            serverMD5Info = getPixelDataChecksum(cxn, datasetCid, true);
+        } catch (Throwable e) {
+        }
+        String serverMD5 = serverMD5Info == null ? null : serverMD5Info.getKey();
+        boolean bigEndian = serverMD5Info == null ? false : serverMD5Info.getValue();
+        String localMD5 = null;
+        try {
+            // hashed straight from the file, without decoding PixelData.
+            localMD5 = DicomChecksumUtils.getPixelDataChecksum(dicomFile, bigEndian, "md5");
+        } catch (Throwable e) {
+        }
+
+        if (serverMD5 == null) {
+            if (_settings.verbose()) {
+                logWarning("No MD5 checksum was generated for dataset " + datasetCid, INDENT);
+            }
+        } else {
+            if (_settings.verbose()) {
+                logInfo("MD5 checksum: " + serverMD5 + " for dataset " + datasetCid, INDENT);
+            }
+        }
+
+        if (localMD5 == null) {
+            if (_settings.verbose()) {
+                logWarning("No MD5 checksum was generated for file: '" + dicomFile.getAbsolutePath() + "'", INDENT);
+            }
+        } else {
+            if (_settings.verbose()) {
+                logInfo("MD5 checksum: " + localMD5 + " for file: '" + dicomFile.getAbsolutePath() + "'", INDENT);
+            }
+        }
+
+        if (serverMD5 != null && localMD5 != null && serverMD5.equalsIgnoreCase(localMD5)) {
+            if (_settings.verbose()) {
+                logInfo("MD5 checksum: " + localMD5 + " match for dataset " + datasetCid + " and file: '"
+                        + dicomFile.getAbsolutePath() + "'", INDENT);
+            }
+        } else if (serverMD5 == null && localMD5 == null) {
+            if (_settings.verbose()) {
+                logWarning("No MD5 checksum can be generated on both server dataset " + datasetCid
+                        + " and local file: " + dicomFile.getAbsolutePath()
+                        + ". The DICOM file may not contain PixelData.", INDENT);
+            }
+        } else {
+            throw new Exception("MD5 checksum of file: '" + dicomFile.getAbsolutePath() + "' (" + localMD5
+                    + ") of PixelData does not match with dataset " + datasetCid + " (" + serverMD5 + ").");
+        }
+    }
+
+    /*
+     * reads the DICOM file up to, but not including, PixelData.
+     */
+    static AttributeList readDicomHeader(File dicomFile) throws Throwable {
+        AttributeList attributeList = new AttributeList();
+        DicomInputStream dis = new DicomInputStream(new BufferedInputStream(new FileInputStream(dicomFile)));
+        try {
+            attributeList.read(dis, TagFromName.PixelData);
+        } finally {
+            dis.close();
+        }
+        return attributeList;
+    }
+
+    private PatientIdMapping loadPatientIdMapping(File file, boolean useIndex) throws Throwable {
+        String key = file.getAbsolutePath() + (useIndex ? ":index:" : ":") + file.length() + ":"
+                + file.lastModified();
+        PatientIdMapping mapping = MAPPINGS.get(key);
+        if (mapping != null) {
+            return mapping;
+        }
+        if (useIndex) {
+            File indexFile = PatientIdIndex.indexFileOf(file);
+            try {
+                mapping = PatientIdIndex.open(file, indexFile);
+            } catch (IOException e) {
+                logWarning("failed to open index file: '" + indexFile.getAbsolutePath() + "': " + e.getMessage());
+            }
+        }
+        if (mapping == null) {
+            mapping = PatientIdMapping.load(file);
+        }
+        if (mapping.size() == 0) {
             throw new IllegalArgumentException("Failed to parse patient id mapping file: " + file.getPath() + ".");
         }
-        return map;
+        MAPPINGS.put(key, mapping);
+        return mapping;
+    }
+
+    /*
+     * The dataset of the file: by its SOPInstanceUID and AccessionNumber
+     * (daris:dicom-dataset), or by the mf-note of its source path if the
+     * post-processing that sets daris:dicom-dataset has not run. (It may
+     * never run: the jobs queued by an upload that was killed are lost if it
+     * had no journal.)
+     *
+     * The prefetched index answers for the datasets that existed when the
+     * upload started. A miss is still confirmed with the server, in case the
+     * file was uploaded by another client since; misses are the files that
+     * are about to be uploaded, so this costs one query per upload.
+     */
+    private String findDicomDataset(ServiceExecutor cxn, UploadItem item) throws Throwable {
+        String sourceNote = "source: " + item._file.getAbsolutePath();
+        if (_datasetIndex != null) {
+            String cid = _datasetIndex.find(item._sopInstanceUID, item._accessionNumber, true);
+            if (cid != null) {
+                return cid;
+            }
+            cid = _datasetIndex.findByNote(sourceNote);
+            if (cid != null) {
+                item._postProcessPending = true;
+                return cid;
+            }
+        }
+        XmlDoc.Element ae = findDicomDataset(cxn, _settings.projectId(), item._sopInstanceUID,
+                item._accessionNumber, sourceNote, true);
+        if (ae == null) {
+            return null;
+        }
+        item._postProcessPending = ae.value("sop-instance-uid") == null;
+        return ae.value("cid");
     }
 
-    private static String findDicomDataset(ServerClient.Connection cxn, String projectCid, String sopInstanceUID,
-            String accessionNumber, boolean exceptionIfMultipleFound) throws Throwable {
+    /*
+     * the dataset of the file, if it was uploaded before. If its
+     * post-processing never ran, it is submitted.
+     */
+    String findUploadedDataset(ServiceExecutor cxn, UploadItem item) throws Throwable {
+        String datasetCid = findDicomDataset(cxn, item);
+        if (datasetCid != null && item._postProcessPending) {
+            logInfo("dataset " + datasetCid + " of the file was not post-processed. Submitting its post-processing.",
+                    INDENT);
+            postProcess(cxn, item, datasetCid);
+        }
+        return datasetCid;
+    }
+
+    /*
+     * returns the cid and the SOPInstanceUID (in daris:dicom-dataset, if set)
+     * of the dataset found.
+     */
+    private static XmlDoc.Element findDicomDataset(ServiceExecutor cxn, String projectCid, String sopInstanceUID,
+            String accessionNumber, String sourceNote, boolean exceptionIfMultipleFound) throws Throwable {
 
         StringBuilder sb = new StringBuilder();
         sb.append("cid starts with '").append(projectCid).append("'");
-        sb.append(" and xpath(daris:dicom-dataset/object/de[@tag='00080018']/value)='").append(sopInstanceUID)
+        sb.append(" and ((xpath(daris:dicom-dataset/object/de[@tag='00080018']/value)='").append(sopInstanceUID)
                 .append("'");
         sb.append(" and xpath(daris:dicom-dataset/object/de[@tag='00080050']/value)='").append(accessionNumber)
-                .append("'");
+                .append("')");
+        sb.append(" or xpath(mf-note/note)='").append(sourceNote).append("')");
 
         XmlStringWriter w = new XmlStringWriter();
         w.add("where", sb.toString());
-        w.add("action", "get-cid");
+        w.add("action", "get-value");
+        w.add("xpath", new String[] { "ename", "cid" }, "cid");
+        w.add("xpath", new String[] { "ename", "sop-instance-uid" },
+                "meta/daris:dicom-dataset/object/de[@tag='00080018']/value");
 
-        XmlDoc.Element re = cxn.execute("asset.query", w.document());
-        int nbResults = re.count("cid");
-        if (nbResults > 1 && exceptionIfMultipleFound) {
+        List<XmlDoc.Element> aes = cxn.execute("asset.query", w.document()).elements("asset");
+        if (aes == null || aes.isEmpty()) {
+            return null;
+        }
+        if (aes.size() > 1 && exceptionIfMultipleFound) {
             StringBuilder sb1 = new StringBuilder();
-            Collection<String> cids = re.values("cid");
-            for (String cid : cids) {
-                sb.append(cid).append(" ");
+            for (XmlDoc.Element ae : aes) {
+                sb1.append(ae.value("cid")).append(" ");
             }
             throw new Exception("More than one dicom datasets: " + sb1.toString() + "are found with SOPInstanceUID="
-                    + sopInstanceUID + " and AccessionNumber=" + accessionNumber + ". Expects only one. ");
+                    + sopInstanceUID + " and AccessionNumber=" + accessionNumber + " or with mf-note '" + sourceNote
+                    + "'. Expects only one. ");
         }
-        return re.value("cid");
+        return aes.get(0);
     }
 
-    private static XmlDoc.Element getFirstDicomDataset(ServerClient.Connection cxn, String projectCid,
-            String seriesInstanceUID) throws Throwable {
+    private static XmlDoc.Element getFirstDicomDataset(ServiceExecutor cxn, String projectCid,
+            String seriesInstanceUID, boolean uploaded) throws Throwable {
+        XmlStringWriter w = new XmlStringWriter();
+        w.add("where", dicomDatasetWhere(projectCid, seriesInstanceUID, uploaded));
+        w.add("size", 1);
+        w.add("action", "get-meta");
+        return cxn.execute("asset.query", w.document()).element("asset");
+    }
 
+    /*
+     * the query of the datasets of the series: the uploaded ones (with the
+     * mf-note of the source file) or the newly ingested ones (without).
+     */
+    private static String dicomDatasetWhere(String projectCid, String seriesInstanceUID, boolean uploaded) {
         StringBuilder sb = new StringBuilder();
         sb.append("cid starts with '").append(projectCid).append("'");
         sb.append(" and xpath(mf-dicom-series/uid)='").append(seriesInstanceUID).append("'");
-        sb.append(" and mf-note has value");
+        sb.append(uploaded ? " and mf-note has value" : " and mf-note hasno value");
+        return sb.toString();
+    }
 
-        XmlStringWriter w = new XmlStringWriter();
-        w.add("where", sb.toString());
-        w.add("size", 1);
-        w.add("action", "get-meta");
-        return cxn.execute("asset.query", w.document()).element("asset");
+    /*
+     * adds an asset.query of the first dataset of each series to the
+     * service.execute request.
+     */
+    private static void addDicomDatasetQueries(XmlStringWriter w, String projectCid,
+            Collection<String> seriesInstanceUIDs, boolean uploaded) throws Throwable {
+        for (String seriesInstanceUID : seriesInstanceUIDs) {
+            w.push("service", new String[] { "name", "asset.query" });
+            w.add("where", dicomDatasetWhere(projectCid, seriesInstanceUID, uploaded));
+            w.add("size", 1);
+            w.add("action", "get-meta");
+            w.pop();
+        }
     }
 
-    private static void updateDicomDataset(ServerClient.Connection cxn, XmlDoc.Element ae, String sourcePath,
-            AttributeList attributeList, boolean csumCheck) throws Throwable {
+    /**
+     * Adds the asset.set of the newly ingested dataset to the service.execute
+     * request.
+     */
+    private static void addDicomDatasetUpdate(XmlStringWriter w, XmlDoc.Element ae, String sourcePath,
+            AttributeList attributeList) throws Throwable {
         String name = datasetNameFor(attributeList);
         String description = datasetDescriptionFor(attributeList);
 
-        XmlStringWriter w = new XmlStringWriter();
+        w.push("service", new String[] { "name", "asset.set" });
         w.add("id", ae.value("@id"));
         w.push("meta");
 
@@ -450,20 +1730,30 @@ public class DataUpload extends Task<Void> {
 
         w.pop();
 
-        cxn.execute("asset.set", w.document());
+        w.pop();
+    }
 
-        /*
-         * daris:dicom-dataset
-         */
-        String cid = ae.value("cid");
-        populateAdditionalDicomMetadata(cxn, cid);
+    /**
+     * Adds the services to run after a dataset is created to the
+     * service.execute request: daris:dicom-dataset metadata and, if
+     * requested, the PixelData checksum.
+     */
+    private static void addDatasetPostProcessing(XmlStringWriter w, String datasetCid, boolean csumCheck)
+            throws Throwable {
+        w.push("service", new String[] { "name", "vicnode.daris.lifepool.metadata.extract" });
+        w.add("cid", datasetCid);
+        w.pop();
 
         if (csumCheck) {
-            generatePixelDataChecksum(cxn, cid);
+            w.push("service", new String[] { "name", "daris.dicom.pixel-data.checksum.generate" });
+            w.add("cid", datasetCid);
+            w.add("type", "md5");
+            w.add("save", true);
+            w.pop();
         }
     }
 
-    private static XmlDoc.Element generatePixelDataChecksum(Connection cxn, String datasetCid) throws Throwable {
+    private static XmlDoc.Element generatePixelDataChecksum(ServiceExecutor cxn, String datasetCid) throws Throwable {
         XmlStringWriter w = new XmlStringWriter();
         w.add("cid", datasetCid);
         w.add("type", "md5");
@@ -471,9 +1761,9 @@ public class DataUpload extends Task<Void> {
         return cxn.execute("daris.dicom.pixel-data.checksum.generate", w.document());
     }
 
-    private static SimpleEntry<String, Boolean> getPixelDataChecksum(Connection cxn, String datasetCid,
+    private static SimpleEntry<String, Boolean> getPixelDataChecksum(ServiceExecutor cxn, String datasetCid,
             boolean generate) throws Throwable {
-        XmlDoc.Element ae = cxn.execute("asset.get", "<cid>" + datasetCid + "</cid>", null, null).element("asset");
+        XmlDoc.Element ae = cxn.execute("asset.get", "<cid>" + datasetCid + "</cid>").element("asset");
         boolean bigEndian = ae.booleanValue("meta/daris:dicom-pixel-data-checksum/object/@big-endian", false);
         String serverMD5 = ae.value("meta/daris:dicom-pixel-data-checksum/object/pixel-data/csum[@type='md5']");
         if (serverMD5 == null) {
@@ -488,8 +1778,9 @@ public class DataUpload extends Task<Void> {
         return new SimpleEntry<String, Boolean>(serverMD5, bigEndian);
     }
 
-    static String createDicomDataset(ServerClient.Connection cxn, XmlDoc.Element firstSiblingAE,
-            AttributeList attributeList, String sourcePath, boolean csumCheck) throws Throwable {
+    static String createDicomDataset(ServiceExecutor cxn, XmlDoc.Element firstSiblingAE,
+            AttributeList attributeList, DicomEntry dicom, String sourcePath, DicomIngest.Settings settings)
+            throws Throwable {
 
         String firstDatasetCid = firstSiblingAE.value("cid");
         String studyCid = CiteableIdUtils.parent(firstDatasetCid);
@@ -596,58 +1887,9 @@ public class DataUpload extends Task<Void> {
         w.pop();
 
         String[] datasetCid = new String[1];
-        Archive.declareSupportForAllTypes();
-        ServerClient.Input sci = new ServerClient.GeneratedInput("application/arc-archive", "aar", sourcePath, -1,
-                null) {
-
-            @Override
-            protected void copyTo(OutputStream os, AbortCheck ac) throws Throwable {
-                ArchiveOutput ao = ArchiveRegistry.createOutput(os, "application/arc-archive",
-                        DicomIngest.Settings.DEFAULT_COMPRESSION_LEVEL, null);
-
-                PipedInputStream pis = new PipedInputStream();
-                PipedOutputStream pos = new PipedOutputStream(pis);
-                Throwable[] workerException = new Throwable[1];
-                Thread workerThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            try {
-                                attributeList.write(pos, TransferSyntax.ExplicitVRLittleEndian, true, true);
-                            } finally {
-                                pos.close();
-                            }
-                        } catch (Throwable e) {
-                            System.err.println("Error in worker thread: " + Thread.currentThread().getName());
-                            e.printStackTrace(System.err);
-                            workerException[0] = e;
-                        }
-                    }
-                }, "Writing DICOM to PipedOutputStream");
-                try {
-                    workerThread.start();
-                    ao.add("application/dicom", Paths.get(sourcePath).getFileName().toString(), pis, -1);
-                    workerThread.join();
-                    if (workerException[0] != null) {
-                        throw new Exception("Worker thread exception: " + workerException[0].getMessage(),
-                                workerException[0]);
-                    }
-                } finally {
-                    ao.close();
-                }
-            }
-        };
+        ServerClient.Input sci = DicomIngest.archiveInput(sourcePath, settings,
+                DicomIngest.entryContent(dicom, sourcePath));
         datasetCid[0] = cxn.execute("om.pssd.dataset.derivation.create", w.document(), sci).value("id");
-
-        /*
-         * daris:dicom-dataset
-         */
-        populateAdditionalDicomMetadata(cxn, datasetCid[0]);
-
-        if (csumCheck) {
-            generatePixelDataChecksum(cxn, datasetCid[0]);
-        }
-
         return datasetCid[0];
 
     }
@@ -737,52 +1979,30 @@ public class DataUpload extends Task<Void> {
         }
     }
 
-    private static void populateAdditionalDicomMetadata(ServerClient.Connection cxn, String datasetCid)
+    /**
+     * Adds the asset.set of the study name (and description) to the
+     * service.execute request, if it differs from the one derived from the
+     * DICOM header.
+     *
+     * @param studyAE
+     *            the study asset element (from asset.get).
+     * @return true if the update is added.
+     */
+    private static boolean addStudyNameUpdate(XmlStringWriter w, XmlDoc.Element studyAE, String studyName)
             throws Throwable {
-
-        XmlStringWriter w = new XmlStringWriter();
-        w.add("cid", datasetCid);
-
-        // NOTE: code commented out below are replaced by calling
-        // vicnode.daris.lifepool.metadata.extract service
-        // @formatter:off      
-//        w.add("doc-tag", "pssd.meta");
-//        w.add("if-exists", "merge");
-//        w.add("tag", "00080008"); // ImageType
-//        w.add("tag", "00080018"); // SOPInstanceUID
-//        w.add("tag", "00080050"); // AccessionNumber
-//        w.add("tag", "00080060"); // Modality
-//        w.add("tag", "00080068"); // PresentationIntentType
-//        w.add("tag", "00080070"); // Manufacturer
-//        w.add("tag", "00080080"); // InstitutionName
-//        w.add("tag", "0008103E"); // SeriesDescription
-//        w.add("tag", "00081090"); // ManufacturerModelName
-//        w.add("tag", "00181400"); // AcquisitionDeviceProcessingDescription
-//        w.add("tag", "00185101"); // ViewPosition
-//        w.add("tag", "00200062"); // ImageLaterality
-//        cxn.execute("dicom.metadata.populate", w.document());
-        // @formatter:on
-
-        cxn.execute("vicnode.daris.lifepool.metadata.extract", w.document());
-    }
-
-    private static void updateStudyName(ServerClient.Connection cxn, String studyCid, AttributeList attributeList)
-            throws Throwable {
-
-        XmlDoc.Element ae = cxn.execute("asset.get", "<cid>" + studyCid + "</cid>");
-        String studyName = studyNameFor(attributeList);
-        if (!studyName.equals(ae.value("meta/daris:pssd-object/name"))) {
-            XmlStringWriter w = new XmlStringWriter();
-            w.add("cid", studyCid);
-            w.push("meta");
-            w.push("daris:pssd-object", new String[] { "id", ae.value("meta/daris:pssd-object/@id") });
-            w.add("name", studyName);
-            w.add("description", studyName);
-            w.pop();
-            w.pop();
-            cxn.execute("asset.set", w.document());
+        if (studyName.equals(studyAE.value("meta/daris:pssd-object/name"))) {
+            return false;
         }
-
+        w.push("service", new String[] { "name", "asset.set" });
+        w.add("cid", studyAE.value("cid"));
+        w.push("meta");
+        w.push("daris:pssd-object", new String[] { "id", studyAE.value("meta/daris:pssd-object/@id") });
+        w.add("name", studyName);
+        w.add("description", studyName);
+        w.pop();
+        w.pop();
+        w.pop();
+        return true;
     }
 
 }
@@ -5,21 +5,61 @@ import java.util.LinkedHashSet;
 import java.util.Properties;
 import java.util.Set;
 
+import daris.lifepool.client.dicom.CompressionPolicy;
+import daris.lifepool.client.dicom.DicomIngest;
+import daris.lifepool.client.dicom.RateSchedule;
+
 public class DataUploadSettings extends ConnectionSettings {
 
     public static final String PROPERTY_PID = "pid";
     public static final String PROPERTY_CONTINUE_ON_ERROR = "upload.continue-on-error";
     public static final String PROPERTY_CSUM = "upload.csum";
     public static final String PROPERTY_PATIENT_ID_MAP = "upload.patient.id.map";
+    public static final String PROPERTY_PATIENT_ID_INDEX = "upload.patient.id.index";
     public static final String PROPERTY_VERBOSE = "upload.verbose";
     public static final String PROPERTY_LOGGING = "upload.logging";
+    public static final String PROPERTY_WORKERS = "upload.workers";
+    public static final String PROPERTY_PREFETCH = "upload.prefetch";
+    public static final String PROPERTY_JOURNAL = "upload.journal";
+    public static final String PROPERTY_POST_PROCESSORS = "upload.post-processors";
+    public static final String PROPERTY_MAX_IN_FLIGHT_MB = "upload.max-in-flight-mb";
+    public static final String PROPERTY_COMPRESSION = "upload.compression";
+    public static final String PROPERTY_BATCH_ACCESSION = "upload.batch-accession";
+    public static final String PROPERTY_SCAN_THREADS = "upload.scan-threads";
+    public static final String PROPERTY_MAX_MB_PER_SECOND = "upload.max-mb-per-second";
+    public static final String PROPERTY_MAX_REQUESTS_PER_SECOND = "upload.max-requests-per-second";
+    public static final String PROPERTY_RATE_SCHEDULE = "upload.rate-schedule";
+    public static final String PROPERTY_ADAPTIVE_CONCURRENCY = "upload.adaptive-concurrency";
+
+    public static final int DEFAULT_WORKERS = 1;
+    public static final int DEFAULT_POST_PROCESSORS = 2;
+    public static final int DEFAULT_MAX_IN_FLIGHT_MB = 512;
+    public static final int DEFAULT_SCAN_THREADS = 8;
+    public static final String DEFAULT_COMPRESSION = Integer
+            .toString(DicomIngest.Settings.DEFAULT_COMPRESSION_LEVEL);
 
     private boolean _continueOnError;
     private boolean _csum;
     private File _patientIdMappingFile;
+    private boolean _patientIdIndex;
     private String _pid;
     private boolean _verbose;
     private boolean _logging;
+    private int _workers = DEFAULT_WORKERS;
+    private boolean _adaptiveConcurrency;
+    private int _postProcessors = DEFAULT_POST_PROCESSORS;
+    private int _maxInFlightMB = DEFAULT_MAX_IN_FLIGHT_MB;
+    private int _scanThreads = DEFAULT_SCAN_THREADS;
+    private String _compression = DEFAULT_COMPRESSION;
+    private double _maxMBPerSecond;
+    private double _maxRequestsPerSecond;
+    private String _rateSchedule;
+    private boolean _prefetch;
+    private boolean _batchAccession;
+    private File _journalFile;
+    private boolean _resume;
+    private File _reconcileFile;
+    private File _planFile;
     private Set<File> _files;
 
     public DataUploadSettings(Properties properties, File... files) {
@@ -45,6 +85,10 @@ public class DataUploadSettings extends ConnectionSettings {
             if (properties.containsKey(PROPERTY_PATIENT_ID_MAP)) {
                 setPatientIdMappingFile(properties.getProperty(PROPERTY_PATIENT_ID_MAP));
             }
+            if (properties.containsKey(PROPERTY_PATIENT_ID_INDEX)) {
+                String patientIdIndex = properties.getProperty(PROPERTY_PATIENT_ID_INDEX);
+                _patientIdIndex = "1".equals(patientIdIndex) || "true".equalsIgnoreCase(patientIdIndex);
+            }
             if (properties.containsKey(PROPERTY_CSUM)) {
                 String csum = properties.getProperty(PROPERTY_CSUM);
                 _csum = "1".equals(csum) || "true".equalsIgnoreCase(csum);
@@ -61,6 +105,92 @@ public class DataUploadSettings extends ConnectionSettings {
                 String logging = properties.getProperty(PROPERTY_LOGGING);
                 _logging = "1".equals(logging) || "true".equalsIgnoreCase(logging);
             }
+            if (properties.containsKey(PROPERTY_PREFETCH)) {
+                String prefetch = properties.getProperty(PROPERTY_PREFETCH);
+                _prefetch = "1".equals(prefetch) || "true".equalsIgnoreCase(prefetch);
+            }
+            if (properties.containsKey(PROPERTY_BATCH_ACCESSION)) {
+                String batchAccession = properties.getProperty(PROPERTY_BATCH_ACCESSION);
+                _batchAccession = "1".equals(batchAccession) || "true".equalsIgnoreCase(batchAccession);
+            }
+            if (properties.containsKey(PROPERTY_ADAPTIVE_CONCURRENCY)) {
+                String adaptiveConcurrency = properties.getProperty(PROPERTY_ADAPTIVE_CONCURRENCY);
+                _adaptiveConcurrency = "1".equals(adaptiveConcurrency) || "true".equalsIgnoreCase(adaptiveConcurrency);
+            }
+            if (properties.containsKey(PROPERTY_JOURNAL)) {
+                setJournalFile(new File(properties.getProperty(PROPERTY_JOURNAL)));
+            }
+            if (properties.containsKey(PROPERTY_WORKERS)) {
+                String workers = properties.getProperty(PROPERTY_WORKERS);
+                try {
+                    setWorkers(Integer.parseInt(workers.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid property. " + PROPERTY_WORKERS + ": " + workers, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_POST_PROCESSORS)) {
+                String postProcessors = properties.getProperty(PROPERTY_POST_PROCESSORS);
+                try {
+                    setPostProcessors(Integer.parseInt(postProcessors.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_POST_PROCESSORS + ": " + postProcessors, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_MAX_IN_FLIGHT_MB)) {
+                String maxInFlightMB = properties.getProperty(PROPERTY_MAX_IN_FLIGHT_MB);
+                try {
+                    setMaxInFlightMB(Integer.parseInt(maxInFlightMB.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_MAX_IN_FLIGHT_MB + ": " + maxInFlightMB, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_SCAN_THREADS)) {
+                String scanThreads = properties.getProperty(PROPERTY_SCAN_THREADS);
+                try {
+                    setScanThreads(Integer.parseInt(scanThreads.trim()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_SCAN_THREADS + ": " + scanThreads, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_MAX_MB_PER_SECOND)) {
+                String maxMBPerSecond = properties.getProperty(PROPERTY_MAX_MB_PER_SECOND);
+                try {
+                    setMaxMBPerSecond(Double.parseDouble(maxMBPerSecond.trim()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_MAX_MB_PER_SECOND + ": " + maxMBPerSecond, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_MAX_REQUESTS_PER_SECOND)) {
+                String maxRequestsPerSecond = properties.getProperty(PROPERTY_MAX_REQUESTS_PER_SECOND);
+                try {
+                    setMaxRequestsPerSecond(Double.parseDouble(maxRequestsPerSecond.trim()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_MAX_REQUESTS_PER_SECOND + ": " + maxRequestsPerSecond, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_RATE_SCHEDULE)) {
+                String rateSchedule = properties.getProperty(PROPERTY_RATE_SCHEDULE);
+                try {
+                    setRateSchedule(rateSchedule);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_RATE_SCHEDULE + ": " + rateSchedule, e);
+                }
+            }
+            if (properties.containsKey(PROPERTY_COMPRESSION)) {
+                String compression = properties.getProperty(PROPERTY_COMPRESSION);
+                try {
+                    setCompression(compression);
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid property. " + PROPERTY_COMPRESSION + ": " + compression, e);
+                }
+            }
         }
     }
 
@@ -92,6 +222,19 @@ public class DataUploadSettings extends ConnectionSettings {
         return _patientIdMappingFile;
     }
 
+    /**
+     * Whether the mapping is read from its memory-mapped index file (see
+     * {@link daris.lifepool.client.upload.PatientIdIndex}), which is rebuilt
+     * when the size or the modification time of the mapping file changes.
+     */
+    public boolean patientIdIndex() {
+        return _patientIdIndex;
+    }
+
+    public void setPatientIdIndex(boolean patientIdIndex) {
+        _patientIdIndex = patientIdIndex;
+    }
+
     public void setVerbose(boolean verbose) {
         _verbose = verbose;
     }
@@ -108,6 +251,214 @@ public class DataUploadSettings extends ConnectionSettings {
         return _logging;
     }
 
+    public int workers() {
+        return _workers;
+    }
+
+    public void setWorkers(int workers) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("Invalid number of workers: " + workers + ". Expects at least 1.");
+        }
+        _workers = workers;
+    }
+
+    /**
+     * Whether the number of requests sending DICOM data at once adapts to the
+     * latency and the errors of the server, from 1 up to the number of
+     * workers. See {@link daris.lifepool.client.upload.ConcurrencyController}.
+     */
+    public boolean adaptiveConcurrency() {
+        return _adaptiveConcurrency;
+    }
+
+    public void setAdaptiveConcurrency(boolean adaptiveConcurrency) {
+        _adaptiveConcurrency = adaptiveConcurrency;
+    }
+
+    /**
+     * The number of threads (each with its own connection) running the
+     * post-processing of the uploaded datasets. 0 if it runs in the upload
+     * workers.
+     */
+    public int postProcessors() {
+        return _postProcessors;
+    }
+
+    public void setPostProcessors(int postProcessors) {
+        if (postProcessors < 0) {
+            throw new IllegalArgumentException(
+                    "Invalid number of post-processors: " + postProcessors + ". Expects at least 0.");
+        }
+        _postProcessors = postProcessors;
+    }
+
+    /**
+     * The maximum memory (in MB, estimated) held by the files being read,
+     * prepared or sent.
+     */
+    public int maxInFlightMB() {
+        return _maxInFlightMB;
+    }
+
+    public void setMaxInFlightMB(int maxInFlightMB) {
+        if (maxInFlightMB < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum bytes in flight: " + maxInFlightMB + "MB. Expects at least 1.");
+        }
+        _maxInFlightMB = maxInFlightMB;
+    }
+
+    /**
+     * The number of threads listing the input directories and sniffing the
+     * files. More threads than CPUs help on network file systems, where the
+     * listings are slow.
+     */
+    public int scanThreads() {
+        return _scanThreads;
+    }
+
+    public void setScanThreads(int scanThreads) {
+        if (scanThreads < 1) {
+            throw new IllegalArgumentException(
+                    "Invalid number of scan threads: " + scanThreads + ". Expects at least 1.");
+        }
+        _scanThreads = scanThreads;
+    }
+
+    /**
+     * The compression of the uploaded DICOM data: "off", "auto" (chosen from
+     * the measured throughput) or a fixed level from 0 to 9. See
+     * {@link CompressionPolicy}.
+     */
+    public String compression() {
+        return _compression;
+    }
+
+    public void setCompression(String compression) {
+        // validates the value.
+        CompressionPolicy.parse(compression);
+        _compression = compression.trim().toLowerCase();
+    }
+
+    /**
+     * The maximum bandwidth (in MB per second) of the uploads, outside the
+     * windows of the rate schedule. 0 for no limit.
+     */
+    public double maxMBPerSecond() {
+        return _maxMBPerSecond;
+    }
+
+    public void setMaxMBPerSecond(double maxMBPerSecond) {
+        if (!(maxMBPerSecond >= 0) || Double.isInfinite(maxMBPerSecond)) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum bandwidth: " + maxMBPerSecond + "MB/s. Expects at least 0.");
+        }
+        _maxMBPerSecond = maxMBPerSecond;
+    }
+
+    /**
+     * The maximum number of upload requests per second, outside the windows
+     * of the rate schedule. 0 for no limit.
+     */
+    public double maxRequestsPerSecond() {
+        return _maxRequestsPerSecond;
+    }
+
+    public void setMaxRequestsPerSecond(double maxRequestsPerSecond) {
+        if (!(maxRequestsPerSecond >= 0) || Double.isInfinite(maxRequestsPerSecond)) {
+            throw new IllegalArgumentException(
+                    "Invalid maximum requests per second: " + maxRequestsPerSecond + ". Expects at least 0.");
+        }
+        _maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    /**
+     * The rate limits of the time windows, e.g. "20:00-06:00=0" for no limit
+     * at night. null if the maximum rates apply all day. See
+     * {@link RateSchedule}.
+     */
+    public String rateSchedule() {
+        return _rateSchedule;
+    }
+
+    public void setRateSchedule(String rateSchedule) {
+        // validates the value.
+        RateSchedule.parse(rateSchedule, RateSchedule.Rate.UNLIMITED);
+        _rateSchedule = rateSchedule == null || rateSchedule.trim().isEmpty() ? null : rateSchedule.trim();
+    }
+
+    /**
+     * The rate schedule of the uploads, from the maximum rates and the
+     * windows.
+     */
+    public RateSchedule uploadRateSchedule() {
+        RateSchedule.Rate rate = new RateSchedule.Rate(Math.round(_maxMBPerSecond * RateSchedule.MB),
+                _maxRequestsPerSecond);
+        return RateSchedule.parse(_rateSchedule, rate);
+    }
+
+    public void setPrefetch(boolean prefetch) {
+        _prefetch = prefetch;
+    }
+
+    public boolean prefetch() {
+        return _prefetch;
+    }
+
+    /**
+     * Whether the files of an accession directory are sent together: the
+     * first image of each new series in one dicom.ingest request.
+     */
+    public boolean batchAccession() {
+        return _batchAccession;
+    }
+
+    public void setBatchAccession(boolean batchAccession) {
+        _batchAccession = batchAccession;
+    }
+
+    public File journalFile() {
+        return _journalFile;
+    }
+
+    public void setJournalFile(File journalFile) {
+        _journalFile = journalFile;
+    }
+
+    public boolean resume() {
+        return _resume;
+    }
+
+    public void setResume(File journalFile) {
+        _journalFile = journalFile;
+        _resume = journalFile != null;
+    }
+
+    /**
+     * The plan file to write in reconcile mode: the input files are compared
+     * with the datasets in the project, nothing is uploaded. null if not in
+     * reconcile mode.
+     */
+    public File reconcileFile() {
+        return _reconcileFile;
+    }
+
+    public void setReconcileFile(File reconcileFile) {
+        _reconcileFile = reconcileFile;
+    }
+
+    /**
+     * The plan file (written in reconcile mode) whose files to upload. null
+     * if the input files are uploaded.
+     */
+    public File planFile() {
+        return _planFile;
+    }
+
+    public void setPlanFile(File planFile) {
+        _planFile = planFile;
+    }
+
     public String projectId() {
         return _pid;
     }
@@ -143,14 +494,31 @@ public class DataUploadSettings extends ConnectionSettings {
         if (_pid == null) {
             throw new IllegalArgumentException("Missing pid");
         }
-        if (_patientIdMappingFile == null) {
-            throw new IllegalArgumentException("Missing patient.id.map");
+        /*
+         * reconciling reads the headers only: the PatientIDs are not mapped.
+         */
+        if (_reconcileFile == null) {
+            if (_patientIdMappingFile == null) {
+                throw new IllegalArgumentException("Missing patient.id.map");
+            }
+            if (!_patientIdMappingFile.exists()) {
+                throw new IllegalArgumentException(
+                        "patient.id.map file: '" + _patientIdMappingFile.getPath() + "' does not exist.");
+            }
         }
-        if (!_patientIdMappingFile.exists()) {
-            throw new IllegalArgumentException(
-                    "patient.id.map file: '" + _patientIdMappingFile.getPath() + "' does not exist.");
+        if (_resume && !_journalFile.exists()) {
+            throw new IllegalArgumentException("Journal file: '" + _journalFile.getPath() + "' does not exist.");
+        }
+        if (_reconcileFile != null && _planFile != null) {
+            throw new IllegalArgumentException("Cannot reconcile and upload a plan at the same time.");
+        }
+        if (_planFile != null && !_planFile.exists()) {
+            throw new IllegalArgumentException("Plan file: '" + _planFile.getPath() + "' does not exist.");
+        }
+        if (_planFile != null && !_files.isEmpty()) {
+            throw new IllegalArgumentException("Unexpected input files or directories: the files are in the plan.");
         }
-        if (_files.isEmpty()) {
+        if (_files.isEmpty() && !_resume && _planFile == null) {
             throw new IllegalArgumentException("Missing input dicom files or directories");
         }
     }
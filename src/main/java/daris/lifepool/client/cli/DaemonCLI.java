@@ -0,0 +1,99 @@
+package daris.lifepool.client.cli;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+
+import daris.lifepool.client.Applications;
+import daris.lifepool.client.daemon.Daemon;
+
+public class DaemonCLI {
+
+    public static final String APP = "daris-lifepool-daemon";
+
+    public static void main(String[] args) throws Throwable {
+        /*
+         * parse arguments
+         */
+        int port = 0;
+        String command = null;
+        try {
+            for (int i = 0; i < args.length;) {
+                if (args[i].equals("--help") || args[i].equals("-h")) {
+                    showHelp();
+                    return;
+                } else if (args[i].equals("--port")) {
+                    try {
+                        port = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid port: " + args[i + 1], e);
+                    }
+                    if (port < 0 || port > 65535) {
+                        throw new IllegalArgumentException("Invalid port: " + args[i + 1]);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--status")) {
+                    command = Daemon.COMMAND_STATUS;
+                    i++;
+                } else if (args[i].equals("--stop")) {
+                    command = Daemon.COMMAND_STOP;
+                    i++;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            showHelp();
+            throw ex;
+        }
+
+        File file = new File(Applications.DAEMON_FILE);
+        if (command != null) {
+            try {
+                Daemon.send(file, command, new String[0], System.out, System.err);
+            } catch (IOException e) {
+                System.out.println("daemon is not running.");
+            }
+            return;
+        }
+        if (file.exists()) {
+            try {
+                PrintStream discard = new PrintStream(new ByteArrayOutputStream());
+                Daemon.send(file, Daemon.COMMAND_STATUS, new String[0], discard, discard);
+                throw new IllegalStateException("A daemon is already running. See " + APP + " --status");
+            } catch (IOException e) {
+                /*
+                 * left behind by a daemon that did not stop cleanly.
+                 */
+            }
+        }
+
+        /*
+         * run the daemon until it is stopped
+         */
+        Daemon daemon = new Daemon(port, file);
+        System.out.println("daemon listening on " + Daemon.HOST + ":" + daemon.port() + " (" + file.getAbsolutePath()
+                + ")");
+        daemon.run();
+        System.out.println("daemon stopped.");
+    }
+
+    private static void showHelp() {
+        // @formatter:off
+        System.out.println();
+        System.out.println("Usage: " + APP + " [--help] [--port <port>] [--status] [--stop]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("    --port <port>                        The loopback port to listen on. Defaults to a free port. The port and a secret are written in ~/.daris/daris-lifepool-client.daemon, readable by the user only.");
+        System.out.println();
+        System.out.println("Switches:");
+        System.out.println("    --status                             Show the status of the running daemon.");
+        System.out.println("    --stop                               Stop the running daemon, once its running commands complete.");
+        System.out.println("    --help                               Display help information.");
+        System.out.println();
+        // @formatter:on
+    }
+
+}
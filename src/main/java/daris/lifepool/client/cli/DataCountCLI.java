@@ -16,7 +16,7 @@ public class DataCountCLI {
             for (int i = 0; i < args.length;) {
                 if (args[i].equals("--help") || args[i].equals("-h")) {
                     showHelp();
-                    System.exit(0);
+                    return;
                 } else if (args[i].equals("--mf.host")) {
                     settings.setServerHost(args[i + 1]);
                     i += 2;
@@ -44,6 +44,16 @@ public class DataCountCLI {
                 } else if (args[i].equals("--mf.sid")) {
                     settings.setSessionKey(args[i + 1]);
                     i += 2;
+                } else if (args[i].equals("--mf.retries")) {
+                    try {
+                        settings.setRetries(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid mf.retries: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--mf.session.cache")) {
+                    settings.setSessionCache(true);
+                    i++;
                 } else if (args[i].equals("--pid")) {
                     settings.setProjectId(args[i + 1]);
                     i += 2;
@@ -75,7 +85,7 @@ public class DataCountCLI {
     private static void showHelp() {
         // @formatter:off
         System.out.println();
-        System.out.println("Usage: daris-lifepool-data-count [--help] --mf.host <host> --mf.port <port> --mf.transport <transport> [--mf.token <token>|--mf.auth <domain,user,password>|--mf.sid <sid>] --pid <project-cid>");
+        System.out.println("Usage: daris-lifepool-data-count [--help] --mf.host <host> --mf.port <port> --mf.transport <transport> [--mf.token <token>|--mf.auth <domain,user,password>|--mf.sid <sid>] [--mf.retries <n>] [--mf.session.cache] --pid <project-cid>");
         System.out.println();
         System.out.println("Options:");
         System.out.println("    --mf.host <host>                     The Mediaflux server host.");
@@ -84,9 +94,11 @@ public class DataCountCLI {
         System.out.println("    --mf.auth <domain,user,password>     The Mediaflux user authentication deatils.");
         System.out.println("    --mf.token <token>                   The Mediaflux secure identity token.");
         System.out.println("    --mf.sid <sid>                       The Mediaflux session id.");
+        System.out.println("    --mf.retries <n>                     The number of times a server call that fails with a network or transient server error is retried, on a new connection, with exponential backoff. Defaults to 6.");
         System.out.println("    --pid <project-cid>                  The DaRIS project cid.");
         System.out.println();
         System.out.println("Switches:");        
+        System.out.println("    --mf.session.cache                   Keep the session key of the login in a file readable by the user only (~/.daris/daris-lifepool-client.sessions), and reuse it in the next invocations until it expires, instead of authenticating again.");
         System.out.println("    --help                               Display help information.");
         System.out.println();
         // @formatter:on
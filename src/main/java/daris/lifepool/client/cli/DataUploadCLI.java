@@ -17,7 +17,7 @@ public class DataUploadCLI {
             for (int i = 0; i < args.length;) {
                 if (args[i].equals("--help") || args[i].equals("-h")) {
                     showHelp();
-                    System.exit(0);
+                    return;
                 } else if (args[i].equals("--mf.host")) {
                     settings.setServerHost(args[i + 1]);
                     i += 2;
@@ -45,6 +45,16 @@ public class DataUploadCLI {
                 } else if (args[i].equals("--mf.sid")) {
                     settings.setSessionKey(args[i + 1]);
                     i += 2;
+                } else if (args[i].equals("--mf.retries")) {
+                    try {
+                        settings.setRetries(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid mf.retries: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--mf.session.cache")) {
+                    settings.setSessionCache(true);
+                    i++;
                 } else if (args[i].equals("--pid")) {
                     settings.setProjectId(args[i + 1]);
                     i += 2;
@@ -55,12 +65,92 @@ public class DataUploadCLI {
                     }
                     settings.setPatientIdMappingFile(file);
                     i += 2;
+                } else if (args[i].equals("--workers")) {
+                    try {
+                        settings.setWorkers(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid workers: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--post-processors")) {
+                    try {
+                        settings.setPostProcessors(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid post-processors: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--max-in-flight-mb")) {
+                    try {
+                        settings.setMaxInFlightMB(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid max-in-flight-mb: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--scan-threads")) {
+                    try {
+                        settings.setScanThreads(Integer.parseInt(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid scan-threads: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--max-mb-per-second")) {
+                    try {
+                        settings.setMaxMBPerSecond(Double.parseDouble(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid max-mb-per-second: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--max-requests-per-second")) {
+                    try {
+                        settings.setMaxRequestsPerSecond(Double.parseDouble(args[i + 1]));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid max-requests-per-second: " + args[i + 1], e);
+                    }
+                    i += 2;
+                } else if (args[i].equals("--rate-schedule")) {
+                    settings.setRateSchedule(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("--compression")) {
+                    settings.setCompression(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("--journal")) {
+                    settings.setJournalFile(new File(args[i + 1]));
+                    i += 2;
+                } else if (args[i].equals("--resume")) {
+                    File file = new File(args[i + 1]);
+                    if (!file.exists()) {
+                        throw new IllegalArgumentException("File '" + args[i + 1] + "' is not found.");
+                    }
+                    settings.setResume(file);
+                    i += 2;
+                } else if (args[i].equals("--reconcile")) {
+                    settings.setReconcileFile(new File(args[i + 1]));
+                    i += 2;
+                } else if (args[i].equals("--plan")) {
+                    File file = new File(args[i + 1]);
+                    if (!file.exists()) {
+                        throw new IllegalArgumentException("File '" + args[i + 1] + "' is not found.");
+                    }
+                    settings.setPlanFile(file);
+                    i += 2;
+                } else if (args[i].equals("--adaptive-concurrency")) {
+                    settings.setAdaptiveConcurrency(true);
+                    i++;
                 } else if (args[i].equals("--continue-on-error")) {
                     settings.setContinueOnError(true);
                     i++;
                 } else if (args[i].equals("--csum")) {
                     settings.setCheckCSum(true);
                     i++;
+                } else if (args[i].equals("--patient.id.index")) {
+                    settings.setPatientIdIndex(true);
+                    i++;
+                } else if (args[i].equals("--prefetch")) {
+                    settings.setPrefetch(true);
+                    i++;
+                } else if (args[i].equals("--batch-accession")) {
+                    settings.setBatchAccession(true);
+                    i++;
                 } else if (args[i].equals("--verbose")) {
                     settings.setVerbose(true);
                     i++;
@@ -92,7 +182,7 @@ public class DataUploadCLI {
     private static void showHelp() {
         // @formatter:off
         System.out.println();
-        System.out.println("Usage: " + DataUpload.APP + " [--help] --mf.host <host> --mf.port <port> --mf.transport <transport> [--mf.token <token>|--mf.auth <domain,user,password>|--mf.sid <sid>] [--csum] [--continue-on-error] [--verbose] --pid <project-cid> <dicom-files/dicom-directories>");
+        System.out.println("Usage: " + DataUpload.APP + " [--help] --mf.host <host> --mf.port <port> --mf.transport <transport> [--mf.token <token>|--mf.auth <domain,user,password>|--mf.sid <sid>] [--mf.retries <n>] [--mf.session.cache] [--workers <n>] [--adaptive-concurrency] [--post-processors <n>] [--max-in-flight-mb <n>] [--scan-threads <n>] [--compression <off|auto|0-9>] [--max-mb-per-second <n>] [--max-requests-per-second <n>] [--rate-schedule <schedule>] [--journal <file>|--resume <journal>] [--reconcile <plan>|--plan <plan>] [--patient.id.index] [--csum] [--prefetch] [--batch-accession] [--continue-on-error] [--verbose] --pid <project-cid> [dicom-files/dicom-directories]");
         System.out.println();
         System.out.println("Options:");
         System.out.println("    --mf.host <host>                     The Mediaflux server host.");
@@ -101,11 +191,29 @@ public class DataUploadCLI {
         System.out.println("    --mf.auth <domain,user,password>     The Mediaflux user authentication deatils.");
         System.out.println("    --mf.token <token>                   The Mediaflux secure identity token.");
         System.out.println("    --mf.sid <sid>                       The Mediaflux session id.");
+        System.out.println("    --mf.retries <n>                     The number of times a server call that fails with a network or transient server error is retried, on a new connection, with exponential backoff. Defaults to 6.");
         System.out.println("    --pid <project-cid>                  The DaRIS project cid.");
-        System.out.println("    --patient.id.map <paitent-id-map>    The file contains AccessionNumber -> PatientID mapping.");
+        System.out.println("    --patient.id.map <paitent-id-map>    The file contains AccessionNumber -> PatientID mapping. Not needed with --reconcile.");
+        System.out.println("    --workers <n>                        The number of concurrent upload workers, each with its own connection. Defaults to " + DataUploadSettings.DEFAULT_WORKERS + ".");
+        System.out.println("    --post-processors <n>                The number of background threads, each with its own connection, extracting metadata and generating checksums of the uploaded datasets. 0 to do it in the upload workers. Defaults to " + DataUploadSettings.DEFAULT_POST_PROCESSORS + ".");
+        System.out.println("    --max-in-flight-mb <n>               The maximum memory (in MB) held by the files being read, prepared and sent. Defaults to " + DataUploadSettings.DEFAULT_MAX_IN_FLIGHT_MB + ".");
+        System.out.println("    --scan-threads <n>                   The number of threads listing the input directories and detecting the DICOM files. Defaults to 8.");
+        System.out.println("    --compression <off|auto|0-9>         The compression of the DICOM data: off, auto (the level is chosen from the measured CPU and network throughput) or a fixed level. Already compressed pixel data is not compressed again. Defaults to " + DataUploadSettings.DEFAULT_COMPRESSION + ".");
+        System.out.println("    --max-mb-per-second <n>              The maximum bandwidth (in MB per second) of the uploads, shared by the workers. 0 for no limit. Defaults to 0.");
+        System.out.println("    --max-requests-per-second <n>        The maximum number of upload requests per second. 0 for no limit. Defaults to 0.");
+        System.out.println("    --rate-schedule <schedule>           The limits of the time windows, overriding the maximum rates, as comma separated HH:mm-HH:mm=<MB/s>[/<requests/s>], e.g. 20:00-06:00=0 for no limit at night. The limits change while the upload runs.");
+        System.out.println("    --journal <file>                     Record the result of each file in the journal file.");
+        System.out.println("    --resume <journal>                   Skip the files that the journal records as done and unmodified, and append to the journal. Re-submit the post-processing of the datasets whose post-processing did not complete. If no input is given, retry the failed files in the journal.");
+        System.out.println("    --reconcile <plan>                   Compare the input files (headers only) with the datasets in the project, and write the plan file: the files missing, present, or present with a different AccessionNumber. Nothing is uploaded.");
+        System.out.println("    --plan <plan>                        Upload the files of the plan file that are missing, present with a different AccessionNumber, or modified since the plan was made.");
         System.out.println();
         System.out.println("Switches:");        
+        System.out.println("    --mf.session.cache                   Keep the session key of the login in a file readable by the user only (~/.daris/daris-lifepool-client.sessions), and reuse it in the next invocations until it expires, instead of authenticating again.");
         System.out.println("    --csum                               Generate and compare MD5 checksums of PixelData.");
+        System.out.println("    --patient.id.index                   Read the mapping from a memory-mapped index file (the mapping file name with .idx appended), rebuilt when the mapping file changes. See daris-lifepool-patient-id-index.");
+        System.out.println("    --prefetch                           Load the SOPInstanceUIDs of the datasets already in the project before uploading, instead of querying the server for each file.");
+        System.out.println("    --batch-accession                    Send the files of an accession directory together: the first image of each new series in one request.");
+        System.out.println("    --adaptive-concurrency               Adapt the number of requests sending DICOM data at once to the server: from 1 up to the number of workers, raised while the latency per byte (not counting the waits for --max-mb-per-second and --rate-schedule) stays healthy, halved on timeouts and transient errors. The concurrency and the latency percentiles are logged when it changes.");
         System.out.println("    --continue-on-error                  Continue to upload remaining input files when error occurs.");
         System.out.println("    --logging                            Enable logging. Log file will be in directory: " + System.getProperty("user.dir") + ".");
         System.out.println("    --verbose                            Show detailed progress information.");
@@ -0,0 +1,90 @@
+package daris.lifepool.client.cli;
+
+import java.io.File;
+
+import daris.lifepool.client.DataUploadSettings;
+import daris.lifepool.client.upload.PatientIdIndex;
+
+public class PatientIdIndexCLI {
+
+    public static final String APP = "daris-lifepool-patient-id-index";
+
+    public static void main(String[] args) throws Throwable {
+        /*
+         * load & parse settings
+         */
+        DataUploadSettings settings = new DataUploadSettings();
+        File indexFile = null;
+        boolean force = false;
+        try {
+            settings.loadFromDefaultPropertiesFile();
+            for (int i = 0; i < args.length;) {
+                if (args[i].equals("--help") || args[i].equals("-h")) {
+                    showHelp();
+                    return;
+                } else if (args[i].equals("--patient.id.map")) {
+                    File file = new File(args[i + 1]);
+                    if (!file.exists()) {
+                        throw new IllegalArgumentException("File '" + args[i + 1] + "' is not found.");
+                    }
+                    settings.setPatientIdMappingFile(file);
+                    i += 2;
+                } else if (args[i].equals("--index")) {
+                    indexFile = new File(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("--force")) {
+                    force = true;
+                    i++;
+                } else {
+                    throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+                }
+            }
+            if (settings.patientIdMappingFile() == null) {
+                throw new IllegalArgumentException("Missing patient.id.map");
+            }
+            if (!settings.patientIdMappingFile().exists()) {
+                throw new IllegalArgumentException(
+                        "patient.id.map file: '" + settings.patientIdMappingFile().getPath() + "' does not exist.");
+            }
+        } catch (IllegalArgumentException ex) {
+            System.err.println("Error: " + ex.getMessage());
+            showHelp();
+            throw ex;
+        }
+
+        /*
+         * build the index, unless it is up to date
+         */
+        File mappingFile = settings.patientIdMappingFile();
+        if (indexFile == null) {
+            indexFile = PatientIdIndex.indexFileOf(mappingFile);
+        }
+        long startTime = System.currentTimeMillis();
+        PatientIdIndex index;
+        if (force) {
+            PatientIdIndex.build(mappingFile, indexFile);
+            index = PatientIdIndex.open(indexFile);
+        } else {
+            index = PatientIdIndex.open(mappingFile, indexFile);
+        }
+        System.out.println(String.format("%s: %d AccessionNumbers (%d ms)", indexFile.getAbsolutePath(), index.size(),
+                System.currentTimeMillis() - startTime));
+    }
+
+    private static void showHelp() {
+        // @formatter:off
+        System.out.println();
+        System.out.println("Usage: " + APP + " [--help] [--patient.id.map <paitent-id-map>] [--index <index-file>] [--force]");
+        System.out.println();
+        System.out.println("Options:");
+        System.out.println("    --patient.id.map <paitent-id-map>    The file contains AccessionNumber -> PatientID mapping. Defaults to upload.patient.id.map in the configuration file.");
+        System.out.println("    --index <index-file>                 The index file to write. Defaults to the mapping file name with .idx appended, where daris-lifepool-data-upload --patient.id.index reads it.");
+        System.out.println();
+        System.out.println("Switches:");
+        System.out.println("    --force                              Rebuild the index even if it is up to date with the mapping file.");
+        System.out.println("    --help                               Display help information.");
+        System.out.println();
+        // @formatter:on
+    }
+
+}
@@ -0,0 +1,525 @@
+package daris.lifepool.client.daemon;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import daris.lifepool.client.Applications;
+import daris.lifepool.client.DataDownload;
+import daris.lifepool.client.DataShare;
+import daris.lifepool.client.cli.DataCountCLI;
+import daris.lifepool.client.cli.DataListCLI;
+import daris.lifepool.client.cli.DataUploadCLI;
+import daris.lifepool.client.cli.PatientIdIndexCLI;
+import daris.lifepool.client.task.ConnectionPool;
+import daris.util.ChecksumUtils;
+import daris.util.FileUtils;
+
+/**
+ * Runs the commands of the command line utilities in a long-running JVM, so
+ * that they do not pay for the JVM start, the class loading, the connections
+ * to the server (see {@link ConnectionPool#shared()}) and the loading of the
+ * patient id mapping each time.
+ *
+ * The daemon listens on a loopback port. The port and a random secret are
+ * written in {@link Applications#DAEMON_FILE}, readable by the user only; a
+ * client proves it can read the file by sending the secret. A request is
+ * lines of UTF-8 text:
+ *
+ * <pre>
+ * secret
+ * command
+ * working directory of the client
+ * number of arguments
+ * argument (one per line)
+ * </pre>
+ *
+ * The response is lines, each prefixed with its channel: "o " a line of
+ * standard output, "e " of standard error, "O " and "E " the last partial
+ * line (without a new line), and "x " the exit status, last.
+ *
+ * The relative paths in the arguments are resolved against the working
+ * directory of the client.
+ *
+ * The uploads run one at a time: they share the connection pool, and each
+ * sizes its workers and its adaptive concurrency to the whole pool, so two
+ * concurrent uploads could each hold part of the connections while waiting
+ * for more. An upload sent while another runs waits, and tells its client.
+ */
+public class Daemon {
+
+    public static final String HOST = "127.0.0.1";
+
+    public static final String COMMAND_STATUS = "status";
+
+    public static final String COMMAND_STOP = "stop";
+
+    private static final int MAX_ARGS = 100000;
+
+    /*
+     * the time the client has to send its request.
+     */
+    private static final int REQUEST_TIMEOUT = 10000;
+
+    public static interface Command {
+        void execute(String[] args) throws Throwable;
+    }
+
+    /*
+     * a command and the arguments that are paths: the values of the path
+     * options, and the other arguments that are existing files if
+     * positionalPaths is set. The commands that exit after showing their
+     * help when they have no arguments are given --help instead. The
+     * exclusive commands run one at a time.
+     */
+    private static class CommandEntry {
+
+        final Command command;
+        final boolean requiresArguments;
+        final boolean exclusive;
+        final boolean positionalPaths;
+        final Set<String> pathOptions;
+
+        CommandEntry(Command command, boolean requiresArguments, boolean exclusive, boolean positionalPaths,
+                String... pathOptions) {
+            this.command = command;
+            this.requiresArguments = requiresArguments;
+            this.exclusive = exclusive;
+            this.positionalPaths = positionalPaths;
+            this.pathOptions = new HashSet<String>(Arrays.asList(pathOptions));
+        }
+    }
+
+    private static final Map<String, CommandEntry> COMMANDS = new LinkedHashMap<String, CommandEntry>();
+
+    static {
+        COMMANDS.put("data-upload", new CommandEntry(DataUploadCLI::main, false, true, true, "--patient.id.map",
+                "--journal", "--resume", "--reconcile", "--plan"));
+        COMMANDS.put("data-list", new CommandEntry(DataListCLI::main, false, false, false));
+        COMMANDS.put("data-count", new CommandEntry(DataCountCLI::main, false, false, false));
+        COMMANDS.put("data-download", new CommandEntry(DataDownload::main, true, false, true, "--manifest"));
+        COMMANDS.put("data-share", new CommandEntry(DataShare::main, true, false, false, "--manifest"));
+        COMMANDS.put("patient-id-index",
+                new CommandEntry(PatientIdIndexCLI::main, false, false, false, "--patient.id.map", "--index"));
+    }
+
+    private final ServerSocket _serverSocket;
+    private final File _file;
+    private final String _secret;
+    private final ExecutorService _executor;
+    private final RoutingOutputStream _out;
+    private final RoutingOutputStream _err;
+    private final long _startTime;
+    private final AtomicLong _nbCommands;
+    private final AtomicInteger _nbRunning;
+    private final AtomicInteger _nbWaiting;
+    private final ReentrantLock _exclusiveLock;
+    private volatile boolean _stopped;
+
+    /**
+     * @param port
+     *            the port, 0 for any free port.
+     * @param file
+     *            the file the port and the secret are written to.
+     */
+    public Daemon(int port, File file) throws IOException {
+        _serverSocket = new ServerSocket(port, 50, InetAddress.getByName(HOST));
+        _file = file;
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        _secret = ChecksumUtils.toHexString(secret);
+        _executor = Executors.newCachedThreadPool(r -> new Thread(r, "daemon-command"));
+        _out = new RoutingOutputStream(new FileOutputStream(FileDescriptor.out));
+        _err = new RoutingOutputStream(new FileOutputStream(FileDescriptor.err));
+        _startTime = System.currentTimeMillis();
+        _nbCommands = new AtomicLong(0);
+        _nbRunning = new AtomicInteger(0);
+        _nbWaiting = new AtomicInteger(0);
+        _exclusiveLock = new ReentrantLock(true);
+    }
+
+    public int port() {
+        return _serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts the requests until the daemon is stopped, then waits for the
+     * running commands.
+     */
+    public void run() throws Throwable {
+        System.setOut(new PrintStream(_out, true, "UTF-8"));
+        System.setErr(new PrintStream(_err, true, "UTF-8"));
+        FileUtils.writeOwnerOnly(_file, port() + "\n" + _secret + "\n");
+        try {
+            while (!_stopped) {
+                Socket socket;
+                try {
+                    socket = _serverSocket.accept();
+                } catch (SocketException e) {
+                    if (_stopped) {
+                        break;
+                    }
+                    throw e;
+                }
+                _executor.submit(() -> handle(socket));
+            }
+        } finally {
+            stop();
+            _executor.shutdown();
+            _executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            deleteFile();
+            ConnectionPool.shared().close();
+        }
+    }
+
+    /**
+     * Stops accepting requests.
+     */
+    public void stop() {
+        _stopped = true;
+        try {
+            _serverSocket.close();
+        } catch (IOException e) {
+            // stopped anyway.
+        }
+    }
+
+    /*
+     * deletes the file unless another daemon has replaced it.
+     */
+    private void deleteFile() {
+        try {
+            List<String> lines = Files.readAllLines(_file.toPath(), StandardCharsets.UTF_8);
+            if (lines.size() > 1 && _secret.equals(lines.get(1))) {
+                Files.delete(_file.toPath());
+            }
+        } catch (IOException e) {
+            /*
+             * left behind: the clients fail to connect, and run the commands
+             * themselves.
+             */
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(REQUEST_TIMEOUT);
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            String secret = reader.readLine();
+            if (secret == null || !MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                    _secret.getBytes(StandardCharsets.UTF_8))) {
+                return;
+            }
+            String name = reader.readLine();
+            String cwd = reader.readLine();
+            String nbArgs = reader.readLine();
+            if (name == null || cwd == null || nbArgs == null) {
+                return;
+            }
+            int n = Integer.parseInt(nbArgs.trim());
+            if (n < 0 || n > MAX_ARGS) {
+                return;
+            }
+            String[] args = new String[n];
+            for (int i = 0; i < n; i++) {
+                args[i] = reader.readLine();
+                if (args[i] == null) {
+                    return;
+                }
+            }
+            s.setSoTimeout(0);
+            Response response = new Response(new BufferedOutputStream(s.getOutputStream()));
+            response.exit(execute(name, new File(cwd), args, response));
+        } catch (IOException | NumberFormatException e) {
+            // the client is gone, or not a client.
+        }
+    }
+
+    private int execute(String name, File cwd, String[] args, Response response) throws IOException {
+        if (COMMAND_STATUS.equals(name)) {
+            response.println('o', status());
+            return 0;
+        }
+        if (COMMAND_STOP.equals(name)) {
+            response.println('o', "stopping daemon after " + _nbRunning.get() + " running commands...");
+            stop();
+            return 0;
+        }
+        CommandEntry entry = COMMANDS.get(name);
+        if (entry == null) {
+            response.println('e', "Error: unknown command: " + name + ". Expects one of " + COMMANDS.keySet());
+            return 2;
+        }
+        _nbCommands.incrementAndGet();
+        ChannelOutputStream out = response.channel('o', 'O');
+        ChannelOutputStream err = response.channel('e', 'E');
+        _out.route(out);
+        _err.route(err);
+        boolean locked = false;
+        boolean running = false;
+        try {
+            if (entry.exclusive) {
+                if (!_exclusiveLock.tryLock()) {
+                    response.println('e', "waiting for the running " + name + " to complete...");
+                    _nbWaiting.incrementAndGet();
+                    try {
+                        _exclusiveLock.lockInterruptibly();
+                    } finally {
+                        _nbWaiting.decrementAndGet();
+                    }
+                }
+                locked = true;
+            }
+            _nbRunning.incrementAndGet();
+            running = true;
+            if (entry.requiresArguments && args.length == 0) {
+                entry.command.execute(new String[] { "--help" });
+                return 1;
+            }
+            entry.command.execute(resolve(entry, cwd, args));
+            return 0;
+        } catch (Throwable e) {
+            /*
+             * as the JVM would print it.
+             */
+            System.err.print("Exception in thread \"main\" ");
+            e.printStackTrace(System.err);
+            return 1;
+        } finally {
+            System.out.flush();
+            System.err.flush();
+            _out.route(null);
+            _err.route(null);
+            out.close();
+            err.close();
+            if (running) {
+                _nbRunning.decrementAndGet();
+            }
+            if (locked) {
+                _exclusiveLock.unlock();
+            }
+        }
+    }
+
+    private String status() {
+        ConnectionPool pool = ConnectionPool.shared();
+        return String.format(
+                "daemon listening on %s:%d since %s: %d commands (%d running, %d waiting), %d connections opened, "
+                        + "%d reused.",
+                HOST, port(), new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(_startTime)),
+                _nbCommands.get(), _nbRunning.get(), _nbWaiting.get(), pool.numberOfOpened(),
+                pool.numberOfReused());
+    }
+
+    /*
+     * resolves the relative paths in the arguments against the working
+     * directory of the client.
+     */
+    private static String[] resolve(CommandEntry entry, File cwd, String[] args) {
+        String[] resolved = args.clone();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (entry.pathOptions.contains(arg) && i + 1 < args.length) {
+                i++;
+                resolved[i] = resolve(cwd, args[i]);
+            } else if (entry.positionalPaths && !arg.startsWith("-") && !new File(arg).isAbsolute()
+                    && new File(cwd, arg).exists()) {
+                resolved[i] = resolve(cwd, arg);
+            }
+        }
+        return resolved;
+    }
+
+    private static String resolve(File cwd, String path) {
+        return new File(path).isAbsolute() ? path : new File(cwd, path).getPath();
+    }
+
+    /*
+     * the response to a request. The frames of the channels are written
+     * whole, from any thread.
+     */
+    private static class Response {
+
+        private final OutputStream _out;
+
+        Response(OutputStream out) {
+            _out = out;
+        }
+
+        ChannelOutputStream channel(char lineChannel, char partialChannel) {
+            return new ChannelOutputStream(this, lineChannel, partialChannel);
+        }
+
+        synchronized void frame(char channel, byte[] b, int off, int len) throws IOException {
+            _out.write(channel);
+            _out.write(' ');
+            _out.write(b, off, len);
+            _out.write('\n');
+        }
+
+        synchronized void println(char channel, String line) throws IOException {
+            byte[] b = line.getBytes(StandardCharsets.UTF_8);
+            frame(channel, b, 0, b.length);
+            _out.flush();
+        }
+
+        synchronized void flush() throws IOException {
+            _out.flush();
+        }
+
+        synchronized void exit(int status) throws IOException {
+            println('x', Integer.toString(status));
+        }
+    }
+
+    /*
+     * a channel of the response: sends the lines as they are completed.
+     */
+    private static class ChannelOutputStream extends OutputStream {
+
+        private final Response _response;
+        private final char _lineChannel;
+        private final char _partialChannel;
+        private final ByteArrayOutputStream _line;
+
+        ChannelOutputStream(Response response, char lineChannel, char partialChannel) {
+            _response = response;
+            _lineChannel = lineChannel;
+            _partialChannel = partialChannel;
+            _line = new ByteArrayOutputStream(256);
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (b == '\n') {
+                byte[] line = _line.toByteArray();
+                int len = line.length;
+                if (len > 0 && line[len - 1] == '\r') {
+                    len--;
+                }
+                _response.frame(_lineChannel, line, 0, len);
+                _line.reset();
+            } else {
+                _line.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            for (int i = 0; i < len; i++) {
+                write(b[off + i]);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            _response.flush();
+        }
+
+        /**
+         * Sends the partial line left, if any.
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (_line.size() > 0) {
+                byte[] line = _line.toByteArray();
+                _response.frame(_partialChannel, line, 0, line.length);
+                _line.reset();
+            }
+            _response.flush();
+        }
+    }
+
+    /**
+     * Sends a request to the running daemon, and copies the response to the
+     * streams.
+     *
+     * @return the exit status of the command.
+     * @throws IOException
+     *             if no daemon is running.
+     */
+    public static int send(File file, String command, String[] args, PrintStream out, PrintStream err)
+            throws IOException {
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        if (lines.size() < 2) {
+            throw new IOException("Invalid daemon file: " + file.getPath());
+        }
+        int port;
+        try {
+            port = Integer.parseInt(lines.get(0).trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid daemon file: " + file.getPath(), e);
+        }
+        try (Socket socket = new Socket(InetAddress.getByName(HOST), port)) {
+            StringBuilder sb = new StringBuilder();
+            sb.append(lines.get(1)).append('\n').append(command).append('\n')
+                    .append(new File(System.getProperty("user.dir")).getAbsolutePath()).append('\n')
+                    .append(args.length).append('\n');
+            for (String arg : args) {
+                sb.append(arg).append('\n');
+            }
+            OutputStream os = socket.getOutputStream();
+            os.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            os.flush();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() < 2) {
+                    continue;
+                }
+                String text = line.substring(2);
+                switch (line.charAt(0)) {
+                case 'o':
+                    out.println(text);
+                    break;
+                case 'O':
+                    out.print(text);
+                    break;
+                case 'e':
+                    err.println(text);
+                    break;
+                case 'E':
+                    err.print(text);
+                    break;
+                case 'x':
+                    return Integer.parseInt(text.trim());
+                default:
+                    break;
+                }
+            }
+            throw new IOException("Connection to the daemon closed before the command completed.");
+        }
+    }
+
+}
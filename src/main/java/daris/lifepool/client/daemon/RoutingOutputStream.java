@@ -0,0 +1,59 @@
+package daris.lifepool.client.daemon;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Installed (in a PrintStream) as System.out or System.err of the daemon:
+ * what a thread prints goes to the output of the command it runs, or of the
+ * command run by the thread that started it, else to the console of the
+ * daemon.
+ */
+class RoutingOutputStream extends OutputStream {
+
+    private final OutputStream _console;
+    private final InheritableThreadLocal<OutputStream> _target;
+
+    RoutingOutputStream(OutputStream console) {
+        _console = console;
+        _target = new InheritableThreadLocal<OutputStream>();
+    }
+
+    /**
+     * Routes the output of the current thread, and of the threads it starts.
+     * null to route it back to the console.
+     */
+    void route(OutputStream out) {
+        if (out == null) {
+            _target.remove();
+        } else {
+            _target.set(out);
+        }
+    }
+
+    private OutputStream target() {
+        OutputStream out = _target.get();
+        return out == null ? _console : out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        target().write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        target().write(b, off, len);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        target().flush();
+    }
+
+    @Override
+    public void close() {
+        // the streams are closed by their owners.
+    }
+
+}
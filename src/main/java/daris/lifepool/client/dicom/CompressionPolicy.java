@@ -0,0 +1,220 @@
+package daris.lifepool.client.dicom;
+
+/**
+ * Chooses the deflate level of the DICOM data sent to the server.
+ *
+ * <ul>
+ * <li>off: the data is not compressed.</li>
+ * <li>fixed (a level from 0 to 9): the data is compressed at the level.</li>
+ * <li>auto: the level is chosen from the throughput measured during the run.
+ * For each candidate level, the CPU time and the compression ratio are
+ * measured; for the link, the time spent writing the compressed bytes. The
+ * level with the least estimated time per byte (CPU time + ratio * network
+ * time) wins. The other levels are tried again from time to time, as the link
+ * and the data change.</li>
+ * </ul>
+ *
+ * Except when it is off, the level is 0 for the DICOM objects whose pixel
+ * data is already compressed (encapsulated, e.g. JPEG 2000), as deflating
+ * them again costs CPU time for almost no gain.
+ */
+public abstract class CompressionPolicy {
+
+    public static final String OFF = "off";
+
+    public static final String AUTO = "auto";
+
+    /**
+     * Chooses the level to compress a DICOM object (or a set of DICOM
+     * objects).
+     *
+     * @param compressed
+     *            true if the pixel data is already compressed.
+     * @return the level, from 0 to 9.
+     */
+    public abstract int level(boolean compressed);
+
+    /**
+     * Records the measurement of a transfer compressed at the level returned
+     * by {@link #level(boolean)}.
+     *
+     * @param level
+     *            the compression level.
+     * @param bytes
+     *            the number of bytes before compression.
+     * @param compressedBytes
+     *            the number of bytes written to the connection.
+     * @param nanos
+     *            the total time of the transfer.
+     * @param writeNanos
+     *            the time spent writing to the connection.
+     */
+    public void record(int level, long bytes, long compressedBytes, long nanos, long writeNanos) {
+
+    }
+
+    /**
+     * Parses the policy: "off", "auto" or a level from 0 to 9.
+     *
+     * @throws IllegalArgumentException
+     *             if the value is invalid.
+     */
+    public static CompressionPolicy parse(String value) {
+        String v = value == null ? "" : value.trim().toLowerCase();
+        if (OFF.equals(v)) {
+            return off();
+        }
+        if (AUTO.equals(v)) {
+            return auto();
+        }
+        int level;
+        try {
+            level = Integer.parseInt(v);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    "Invalid compression: " + value + ". Expects " + OFF + ", " + AUTO + " or a level from 0 to 9.", e);
+        }
+        return fixed(level);
+    }
+
+    public static CompressionPolicy off() {
+        return new Fixed(0, false);
+    }
+
+    public static CompressionPolicy fixed(int level) {
+        if (level < 0 || level > 9) {
+            throw new IllegalArgumentException("Invalid compression level: " + level + ". Expects 0 to 9.");
+        }
+        return new Fixed(level, true);
+    }
+
+    public static CompressionPolicy auto() {
+        return new Auto();
+    }
+
+    private static class Fixed extends CompressionPolicy {
+
+        private final int _level;
+        private final boolean _enabled;
+
+        Fixed(int level, boolean enabled) {
+            _level = level;
+            _enabled = enabled;
+        }
+
+        @Override
+        public int level(boolean compressed) {
+            return compressed ? 0 : _level;
+        }
+
+        @Override
+        public String toString() {
+            return _enabled ? Integer.toString(_level) : OFF;
+        }
+    }
+
+    private static class Auto extends CompressionPolicy {
+
+        private static final int[] LEVELS = { 1, 6, 0, 3 };
+
+        /*
+         * the number of samples of a level before its estimates are used.
+         */
+        private static final int MIN_SAMPLES = 2;
+
+        /*
+         * try a level other than the best one every so many choices.
+         */
+        private static final int EXPLORE_INTERVAL = 50;
+
+        /*
+         * transfers smaller than this are too noisy to be measured.
+         */
+        private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+        /*
+         * weight of a new sample in the moving averages.
+         */
+        private static final double ALPHA = 0.2;
+
+        private final int[] _samples = new int[10];
+        private final double[] _cpuNanosPerByte = new double[10];
+        private final double[] _ratio = new double[10];
+        private double _networkNanosPerByte = -1.0;
+        private long _nbChoices;
+        private int _nbExplorations;
+
+        @Override
+        public synchronized int level(boolean compressed) {
+            if (compressed) {
+                return 0;
+            }
+            for (int level : LEVELS) {
+                if (_samples[level] < MIN_SAMPLES) {
+                    return level;
+                }
+            }
+            int best = best();
+            _nbChoices++;
+            if (_nbChoices % EXPLORE_INTERVAL == 0) {
+                /*
+                 * the other levels, in turn.
+                 */
+                _nbExplorations++;
+                int other = LEVELS[_nbExplorations % LEVELS.length];
+                if (other != best) {
+                    return other;
+                }
+            }
+            return best;
+        }
+
+        private int best() {
+            int best = LEVELS[0];
+            double bestCost = Double.MAX_VALUE;
+            for (int level : LEVELS) {
+                double cost = _cpuNanosPerByte[level] + _ratio[level] * Math.max(_networkNanosPerByte, 0.0);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = level;
+                }
+            }
+            return best;
+        }
+
+        @Override
+        public synchronized void record(int level, long bytes, long compressedBytes, long nanos, long writeNanos) {
+            if (level < 0 || level > 9 || bytes < MIN_SAMPLE_BYTES || compressedBytes <= 0) {
+                return;
+            }
+            double cpuNanosPerByte = (double) Math.max(nanos - writeNanos, 0L) / bytes;
+            double ratio = (double) compressedBytes / bytes;
+            double networkNanosPerByte = (double) writeNanos / compressedBytes;
+            if (_samples[level] == 0) {
+                _cpuNanosPerByte[level] = cpuNanosPerByte;
+                _ratio[level] = ratio;
+            } else {
+                _cpuNanosPerByte[level] += ALPHA * (cpuNanosPerByte - _cpuNanosPerByte[level]);
+                _ratio[level] += ALPHA * (ratio - _ratio[level]);
+            }
+            _samples[level]++;
+            if (_networkNanosPerByte < 0) {
+                _networkNanosPerByte = networkNanosPerByte;
+            } else {
+                _networkNanosPerByte += ALPHA * (networkNanosPerByte - _networkNanosPerByte);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            for (int level : LEVELS) {
+                if (_samples[level] < MIN_SAMPLES) {
+                    return AUTO;
+                }
+            }
+            return String.format("%s (level %d, %.1f MB/s network)", AUTO, best(),
+                    _networkNanosPerByte > 0 ? 1000.0 / _networkNanosPerByte : 0.0);
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package daris.lifepool.client.dicom;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+import arc.archive.ArchiveOutput;
+
+/**
+ * A DICOM object encoded (as ExplicitVRLittleEndian with meta information)
+ * into a reusable per-thread buffer, ready to be added to an archive. It
+ * replaces writing the AttributeList through a PipedOutputStream from a new
+ * thread for every file.
+ *
+ * The buffer is reused by the next {@link #encode(AttributeList)} call on the
+ * same thread, so a DicomBuffer must be consumed before that, or be encoded
+ * with {@link #encode(AttributeList, boolean)} or
+ * {@link #encode(AttributeList, long)} into a buffer of its own.
+ */
+public class DicomBuffer implements DicomEntry {
+
+    /*
+     * buffers larger than this are not kept for reuse after encoding.
+     */
+    public static final int MAX_RETAINED_SIZE = 256 * 1024 * 1024;
+
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    /*
+     * the room left for the header to grow when the size of the object is
+     * known beforehand: explicit VRs, meta information, edited values.
+     */
+    private static final int HEADER_SLACK = 64 * 1024;
+
+    private static class Buffer extends OutputStream {
+
+        private byte[] _buf;
+        private int _count = 0;
+
+        Buffer(int initialSize) {
+            _buf = new byte[initialSize];
+        }
+
+        private void ensureCapacity(int minCapacity) {
+            if (minCapacity < 0) {
+                throw new OutOfMemoryError("DICOM object is larger than 2GB.");
+            }
+            if (minCapacity > _buf.length) {
+                int newCapacity = Math.max(_buf.length << 1, minCapacity);
+                if (newCapacity < 0) {
+                    newCapacity = Integer.MAX_VALUE - 8;
+                }
+                _buf = Arrays.copyOf(_buf, newCapacity);
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(_count + 1);
+            _buf[_count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(_count + len);
+            System.arraycopy(b, off, _buf, _count, len);
+            _count += len;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release: the buffer is reused.
+        }
+    }
+
+    private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>();
+
+    private final byte[] _bytes;
+    private final int _length;
+    private final long _encodeNanos;
+    private final boolean _compressed;
+
+    private DicomBuffer(byte[] bytes, int length, long encodeNanos, boolean compressed) {
+        _bytes = bytes;
+        _length = length;
+        _encodeNanos = encodeNanos;
+        _compressed = compressed;
+    }
+
+    public static DicomBuffer encode(AttributeList attributeList) throws Throwable {
+        return encode(attributeList, true);
+    }
+
+    /**
+     * 
+     * @param attributeList
+     * @param reuseBuffer
+     *            if true, encode into the buffer of the calling thread. It must
+     *            be false if the DicomBuffer is consumed by another thread.
+     * @return
+     * @throws Throwable
+     */
+    public static DicomBuffer encode(AttributeList attributeList, boolean reuseBuffer) throws Throwable {
+        Buffer buffer = reuseBuffer ? BUFFER.get() : new Buffer(INITIAL_SIZE);
+        if (buffer == null) {
+            buffer = new Buffer(INITIAL_SIZE);
+            BUFFER.set(buffer);
+        }
+        DicomBuffer db = encode(attributeList, buffer);
+        if (reuseBuffer && buffer._buf.length > MAX_RETAINED_SIZE) {
+            BUFFER.remove();
+        }
+        return db;
+    }
+
+    /**
+     * Encodes into a buffer of its own, allocated once for the expected
+     * length, instead of growing (and copying) it from 1MB while encoding.
+     *
+     * @param expectedLength
+     *            the expected length of the encoded object, e.g. the size of
+     *            the file it was read from.
+     */
+    public static DicomBuffer encode(AttributeList attributeList, long expectedLength) throws Throwable {
+        long size = Math.max(0, expectedLength) + HEADER_SLACK;
+        return encode(attributeList, new Buffer((int) Math.min(size, Integer.MAX_VALUE - 8)));
+    }
+
+    private static DicomBuffer encode(AttributeList attributeList, Buffer buffer) throws Throwable {
+        long startTime = System.nanoTime();
+        buffer._count = 0;
+        attributeList.write(buffer, TransferSyntax.ExplicitVRLittleEndian, true, false);
+        return new DicomBuffer(buffer._buf, buffer._count, System.nanoTime() - startTime,
+                isCompressed(attributeList));
+    }
+
+    /**
+     * Whether the transfer syntax of the DICOM object has encapsulated
+     * (compressed) pixel data.
+     */
+    public static boolean isCompressed(AttributeList attributeList) {
+        String transferSyntaxUID = Attribute.getSingleStringValueOrNull(attributeList,
+                TagFromName.TransferSyntaxUID);
+        return transferSyntaxUID != null && new TransferSyntax(transferSyntaxUID).isEncapsulated();
+    }
+
+    @Override
+    public boolean isCompressed() {
+        return _compressed;
+    }
+
+    @Override
+    public long length() {
+        return _length;
+    }
+
+    /**
+     * The time it took to encode the DICOM object, in nanoseconds.
+     */
+    public long encodeNanos() {
+        return _encodeNanos;
+    }
+
+    public InputStream stream() {
+        return new ByteArrayInputStream(_bytes, 0, _length);
+    }
+
+    public void writeTo(OutputStream os) throws Throwable {
+        os.write(_bytes, 0, _length);
+    }
+
+    @Override
+    public void addTo(ArchiveOutput ao, String name) throws Throwable {
+        ao.add(MIME_TYPE, name, stream(), _length);
+    }
+
+}
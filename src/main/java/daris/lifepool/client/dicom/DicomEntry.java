@@ -0,0 +1,33 @@
+package daris.lifepool.client.dicom;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import arc.archive.ArchiveOutput;
+
+/**
+ * A DICOM object to be sent as an entry of an arc archive.
+ */
+public interface DicomEntry {
+
+    public static final String MIME_TYPE = "application/dicom";
+
+    /**
+     * The length of the encoded DICOM object in bytes.
+     */
+    long length();
+
+    /**
+     * Whether the pixel data is already compressed (encapsulated), so
+     * deflating the object again gains little.
+     */
+    boolean isCompressed();
+
+    /**
+     * A new stream of the encoded DICOM object.
+     */
+    InputStream stream() throws IOException;
+
+    void addTo(ArchiveOutput ao, String name) throws Throwable;
+
+}
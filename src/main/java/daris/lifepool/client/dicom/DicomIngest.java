@@ -1,9 +1,9 @@
 package daris.lifepool.client.dicom;
 
 import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -15,7 +15,6 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.pixelmed.dicom.AttributeList;
-import com.pixelmed.dicom.TransferSyntax;
 
 import arc.archive.ArchiveOutput;
 import arc.archive.ArchiveRegistry;
@@ -25,6 +24,8 @@ import arc.streams.StreamCopy.AbortCheck;
 import arc.xml.XmlDoc;
 import arc.xml.XmlStringWriter;
 import arc.xml.XmlWriter;
+import daris.lifepool.client.task.ServiceExecutor;
+import daris.util.LocalIOException;
 
 public class DicomIngest {
 
@@ -37,7 +38,8 @@ public class DicomIngest {
         private String _engine;
         private String _service;
         private String _type; // mime type of input stream
-        private int _compressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        private CompressionPolicy _compression = CompressionPolicy.fixed(DEFAULT_COMPRESSION_LEVEL);
+        private RateLimiter _rateLimiter;
 
         public String mimeTypeOfInputStream() {
             return _type;
@@ -92,18 +94,29 @@ public class DicomIngest {
             return this;
         }
 
-        public int compressionLevel() {
-            return _compressionLevel;
+        public CompressionPolicy compression() {
+            return _compression;
+        }
+
+        public Settings setCompression(CompressionPolicy compression) {
+            _compression = compression;
+            return this;
         }
 
         public Settings setCompressionLevel(int compressionLevel) {
-            if (compressionLevel < 0) {
-                _compressionLevel = 0;
-            } else if (compressionLevel > 9) {
-                _compressionLevel = 9;
-            } else {
-                _compressionLevel = compressionLevel;
-            }
+            return setCompression(CompressionPolicy.fixed(Math.max(0, Math.min(9, compressionLevel))));
+        }
+
+        public RateLimiter rateLimiter() {
+            return _rateLimiter;
+        }
+
+        /**
+         * Sets the limiter of the bandwidth and of the number of requests
+         * sending the DICOM data. null (the default) for no limit.
+         */
+        public Settings setRateLimiter(RateLimiter rateLimiter) {
+            _rateLimiter = rateLimiter;
             return this;
         }
 
@@ -128,8 +141,10 @@ public class DicomIngest {
         }
     }
 
-    public static String ingest(ServerClient.Connection cxn, AttributeList attributeList, String sourcePath,
-            String projectCid, Logger logger) throws Throwable {
+    /**
+     * The settings to ingest the DICOM data into the specified project.
+     */
+    public static Settings defaultSettings(String projectCid) {
         Settings settings = new Settings();
         settings.setEngine("nig.dicom");
         settings.setAnonymize(true);
@@ -143,27 +158,24 @@ public class DicomIngest {
         settings.setArg("nig.dicom.subject.name.from.id", "true");
         settings.setArg("nig.dicom.write.mf-dicom-patient", "true");
         settings.setArg("nig.dicom.id.citable", projectCid);
-        return ingest(cxn, attributeList, sourcePath, settings, logger);
+        return settings;
     }
 
-    public static String ingest(ServerClient.Connection cxn, File dicomFile, String projectCid) throws Throwable {
-        Settings settings = new Settings();
-        settings.setEngine("nig.dicom");
-        settings.setAnonymize(true);
-        settings.setMimeTypeOfInputStream("application/arc-archive");
-        settings.setArg("nig.dicom.id.by",
-                "study.id,patient.name.first,patient.name,patient.id,referring.physician.name");
-        settings.setArg("nig.dicom.id.ignore-non-digits", "true");
-        settings.setArg("nig.dicom.subject.create", "true");
-        settings.setArg("nig.dicom.subject.find.method", "id");
-        settings.setArg("nig.dicom.subject.meta.set-service", "vicnode.daris.subject.meta.set");
-        settings.setArg("nig.dicom.subject.name.from.id", "true");
-        settings.setArg("nig.dicom.write.mf-dicom-patient", "true");
-        settings.setArg("nig.dicom.id.citable", projectCid);
-        return ingest(cxn, dicomFile, settings);
+    public static String ingest(ServiceExecutor cxn, AttributeList attributeList, String sourcePath,
+            String projectCid, Logger logger) throws Throwable {
+        return ingest(cxn, attributeList, sourcePath, defaultSettings(projectCid), logger);
     }
 
-    public static String ingest(ServerClient.Connection cxn, File dicomFile, Settings settings) throws Throwable {
+    public static String ingest(ServiceExecutor cxn, DicomEntry dicom, String sourcePath, String projectCid)
+            throws Throwable {
+        return ingest(cxn, dicom, sourcePath, defaultSettings(projectCid));
+    }
+
+    public static String ingest(ServiceExecutor cxn, File dicomFile, String projectCid) throws Throwable {
+        return ingest(cxn, dicomFile, defaultSettings(projectCid));
+    }
+
+    public static String ingest(ServiceExecutor cxn, File dicomFile, Settings settings) throws Throwable {
         List<File> dicomFiles = new ArrayList<File>(1);
         dicomFiles.add(dicomFile);
         XmlDoc.Element re = ingest(cxn, dicomFiles, settings);
@@ -172,88 +184,282 @@ public class DicomIngest {
         return studyCid;
     }
 
-    public static XmlDoc.Element ingest(ServerClient.Connection cxn, final List<File> dicomFiles,
+    public static XmlDoc.Element ingest(ServiceExecutor cxn, final List<File> dicomFiles,
             final Settings settings) throws Throwable {
 
         XmlStringWriter w = new XmlStringWriter();
         settings.save(w);
 
-        Archive.declareSupportForAllTypes();
         Collections.sort(dicomFiles);
-        ServerClient.Input sci = new ServerClient.GeneratedInput("application/arc-archive", "aar",
-                dicomFiles.get(0).getParentFile().getAbsolutePath(), -1, null) {
+        ServerClient.Input sci = archiveInput(dicomFiles.get(0).getParentFile().getAbsolutePath(), settings,
+                new ArchiveContent() {
 
-            @Override
-            protected void copyTo(OutputStream os, AbortCheck ac) throws Throwable {
-                ArchiveOutput ao = ArchiveRegistry.createOutput(os, "application/arc-archive",
-                        settings.compressionLevel(), null);
-                try {
-                    for (int i = 0; i < dicomFiles.size(); i++) {
-                        File dicomFile = dicomFiles.get(i);
-                        ao.add("application/dicom", String.format("%08d.dcm", i + 1), dicomFile);
+                    @Override
+                    public void addTo(ArchiveOutput ao) throws Throwable {
+                        for (int i = 0; i < dicomFiles.size(); i++) {
+                            ao.add(DicomEntry.MIME_TYPE, entryName(i), dicomFiles.get(i));
+                        }
+                    }
+
+
+                    private String entryName(int i) {
+                        return String.format("%08d.dcm", i + 1);
+                    }
+
+                    @Override
+                    public long length() {
+                        long length = 0;
+                        for (File dicomFile : dicomFiles) {
+                            length += dicomFile.length();
+                        }
+                        return length;
+                    }
+
+                    @Override
+                    public boolean isCompressed() {
+                        // unknown without parsing the files.
+                        return false;
                     }
-                } finally {
-                    ao.close();
+                });
+        return cxn.execute("dicom.ingest", w.document(), sci);
+    }
+
+    /**
+     * Ingests the (edited) DICOM objects, e.g. the images of an accession, in
+     * one archive and one request.
+     *
+     * @param dicoms
+     *            the DICOM objects.
+     * @param source
+     *            the source of the DICOM objects, e.g. the accession
+     *            directory.
+     * @return the result of dicom.ingest.
+     */
+    public static XmlDoc.Element ingest(ServiceExecutor cxn, final List<? extends DicomEntry> dicoms,
+            String source, final Settings settings) throws Throwable {
+
+        XmlStringWriter w = new XmlStringWriter();
+        settings.save(w);
+
+        ServerClient.Input sci = archiveInput(source, settings, new ArchiveContent() {
+
+            @Override
+            public void addTo(ArchiveOutput ao) throws Throwable {
+                for (int i = 0; i < dicoms.size(); i++) {
+                    dicoms.get(i).addTo(ao, entryName(i));
                 }
+            }
 
+
+            private String entryName(int i) {
+                return String.format("%08d.dcm", i + 1);
             }
-        };
+
+            @Override
+            public long length() {
+                long length = 0;
+                for (DicomEntry dicom : dicoms) {
+                    length += dicom.length();
+                }
+                return length;
+            }
+
+            @Override
+            public boolean isCompressed() {
+                for (DicomEntry dicom : dicoms) {
+                    if (!dicom.isCompressed()) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
         return cxn.execute("dicom.ingest", w.document(), sci);
     }
 
-    public static String ingest(ServerClient.Connection cxn, final AttributeList attributeList, final String sourcePath,
+    public static String ingest(ServiceExecutor cxn, final AttributeList attributeList, final String sourcePath,
             final Settings settings, final Logger logger) throws Throwable {
 
+        /*
+         * encode the DICOM object before sending, in the calling thread.
+         */
+        DicomBuffer dicom = DicomBuffer.encode(attributeList);
+        if (logger != null) {
+            logger.log(Level.FINE, String.format("encoded %d bytes in %.3f ms. (source \"file:%s\")", dicom.length(),
+                    dicom.encodeNanos() / 1000000.0, sourcePath));
+        }
+        return ingest(cxn, dicom, sourcePath, settings);
+    }
+
+    public static String ingest(ServiceExecutor cxn, final DicomEntry dicom, final String sourcePath,
+            final Settings settings) throws Throwable {
+
         XmlStringWriter w = new XmlStringWriter();
         settings.save(w);
 
+        ServerClient.Input sci = archiveInput(sourcePath, settings, entryContent(dicom, sourcePath));
+        XmlDoc.Element re = cxn.execute("dicom.ingest", w.document(), sci);
+        String studyAssetId = re.value("study/@id");
+        String studyCid = cxn.execute("asset.identifier.get", "<id>" + studyAssetId + "</id>").value("id/@cid");
+        return studyCid;
+    }
+
+    /**
+     * The DICOM data to write into the archive sent to the server.
+     */
+    public static interface ArchiveContent {
+
+        void addTo(ArchiveOutput ao) throws Throwable;
+
+        /**
+         * The number of bytes before compression.
+         */
+        long length();
+
+        /**
+         * Whether the pixel data is already compressed.
+         */
+        boolean isCompressed();
+    }
+
+    public static ArchiveContent entryContent(final DicomEntry dicom, final String sourcePath) {
+        final String name = Paths.get(sourcePath).getFileName().toString();
+        return new ArchiveContent() {
+
+            @Override
+            public void addTo(ArchiveOutput ao) throws Throwable {
+                dicom.addTo(ao, name);
+            }
+
+
+            @Override
+            public long length() {
+                return dicom.length();
+            }
+
+            @Override
+            public boolean isCompressed() {
+                return dicom.isCompressed();
+            }
+        };
+    }
+
+    /**
+     * Creates the input to send the DICOM data to dicom.ingest: an arc
+     * archive, compressed at the level chosen by the compression policy of the
+     * settings, which is given the measurements of the transfer. If the
+     * settings have a rate limiter, the request waits for it, and so do the
+     * bytes written to the connection: the time they wait counts as network
+     * time for the compression policy.
+     */
+    public static ServerClient.Input archiveInput(String source, final Settings settings,
+            final ArchiveContent content) throws Throwable {
+        final CompressionPolicy compression = settings.compression();
+        final boolean compressed = content.isCompressed();
+        final int level = compression.level(compressed);
+        final RateLimiter rateLimiter = settings.rateLimiter();
         Archive.declareSupportForAllTypes();
-        ServerClient.Input sci = new ServerClient.GeneratedInput("application/arc-archive", "aar", sourcePath, -1,
-                null) {
+        return new ServerClient.GeneratedInput("application/arc-archive", "aar", source, -1, null) {
 
             @Override
             protected void copyTo(OutputStream os, AbortCheck ac) throws Throwable {
-                ArchiveOutput ao = ArchiveRegistry.createOutput(os, "application/arc-archive",
-                        settings.compressionLevel(), null);
-                PipedInputStream pis = new PipedInputStream();
-                PipedOutputStream pos = new PipedOutputStream(pis);
-                Throwable[] workerException = new Throwable[1];
-                Thread workerThread = new Thread(new Runnable() {
-                    @Override
-                    public void run() {
-                        try {
-                            try {
-                                attributeList.write(pos, TransferSyntax.ExplicitVRLittleEndian, true, true);
-                            } finally {
-                                pos.close();
-                            }
-                        } catch (Throwable e) {
-                            if(logger!=null){
-                                logger.log(Level.SEVERE, e.getMessage(), e);
-                            }
-                            System.err.println("Error in worker thread: " + Thread.currentThread().getName());
-                            e.printStackTrace(System.err);
-                            workerException[0] = e;
-                        }
-                    }
-                }, "Writing DICOM to PipedOutputStream");
+                if (rateLimiter != null) {
+                    rateLimiter.acquireRequest();
+                    os = rateLimiter.limit(os);
+                }
+                long startTime = System.nanoTime();
+                MeteredOutputStream mos = new MeteredOutputStream(os);
                 try {
-                    workerThread.start();
-                    ao.add("application/dicom", Paths.get(sourcePath).getFileName().toString(), pis, -1);
-                    workerThread.join();
-                    if (workerException[0] != null) {
-                        throw new Exception("Worker thread exception: " + workerException[0].getMessage(),
-                                workerException[0]);
+                    ArchiveOutput ao = ArchiveRegistry.createOutput(mos, "application/arc-archive", level, null);
+                    try {
+                        content.addTo(ao);
+                    } finally {
+                        ao.close();
                     }
-                } finally {
-                    ao.close();
+                } catch (IOException e) {
+                    throw mos.localError(e);
+                }
+                if (!compressed) {
+                    compression.record(level, content.length(), mos.count(), System.nanoTime() - startTime,
+                            mos.nanos());
                 }
             }
         };
-        XmlDoc.Element re = cxn.execute("dicom.ingest", w.document(), sci);
-        String studyAssetId = re.value("study/@id");
-        String studyCid = cxn.execute("asset.identifier.get", "<id>" + studyAssetId + "</id>").value("id/@cid");
-        return studyCid;
+    }
+
+    /*
+     * counts the bytes written to the connection and the time spent writing
+     * them, and remembers the error of the connection, if any.
+     */
+    private static class MeteredOutputStream extends FilterOutputStream {
+
+        private long _count;
+        private long _nanos;
+        private volatile IOException _error;
+
+        MeteredOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                _error = e;
+                throw e;
+            }
+            _nanos += System.nanoTime() - startTime;
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                _error = e;
+                throw e;
+            }
+            _nanos += System.nanoTime() - startTime;
+            _count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            long startTime = System.nanoTime();
+            try {
+                out.flush();
+            } catch (IOException e) {
+                _error = e;
+                throw e;
+            }
+            _nanos += System.nanoTime() - startTime;
+        }
+
+        /*
+         * the error, unchanged if it is (or is caused by) the error of the
+         * connection, otherwise (e.g. reading the DICOM file) a
+         * LocalIOException, so that the request is not retried.
+         */
+        IOException localError(IOException e) {
+            for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+                if (t == _error || t instanceof LocalIOException) {
+                    return e;
+                }
+            }
+            return new LocalIOException(e.getMessage(), e);
+        }
+
+        long count() {
+            return _count;
+        }
+
+        long nanos() {
+            return _nanos;
+        }
     }
 
 }
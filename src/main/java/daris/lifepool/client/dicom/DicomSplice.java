@@ -0,0 +1,205 @@
+package daris.lifepool.client.dicom;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomException;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+import arc.archive.ArchiveOutput;
+import daris.dicom.util.DicomFileLayout;
+
+/**
+ * A DICOM object made of the re-encoded header (the elements before
+ * PixelData, which are the ones DataUpload modifies) followed by the PixelData
+ * bytes copied as they are from the source file. The result is the same as
+ * encoding the complete AttributeList as ExplicitVRLittleEndian, without
+ * decoding and re-encoding the pixel data.
+ *
+ * It only applies to little endian files with native (not encapsulated) pixel
+ * data as the last element. See {@link #canSplice(DicomFileLayout)}.
+ */
+public class DicomSplice implements DicomEntry {
+
+    private static final Map<Integer, String> IMPLICIT_PIXEL_DATA_VRS = new ConcurrentHashMap<Integer, String>();
+
+    private final File _file;
+    private final byte[] _header;
+    private final long _pixelDataValueOffset;
+    private final long _pixelDataLength;
+
+    private DicomSplice(File file, byte[] header, long pixelDataValueOffset, long pixelDataLength) {
+        _file = file;
+        _header = header;
+        _pixelDataValueOffset = pixelDataValueOffset;
+        _pixelDataLength = pixelDataLength;
+    }
+
+    public static boolean canSplice(DicomFileLayout layout) {
+        String ts = layout.transferSyntaxUID();
+        return (TransferSyntax.ExplicitVRLittleEndian.equals(ts) || TransferSyntax.ImplicitVRLittleEndian.equals(ts))
+                && layout.hasPixelDataByteRange()
+                && layout.pixelDataValueOffset() + layout.pixelDataLength() == layout.fileLength();
+    }
+
+    /**
+     * 
+     * @param file
+     *            the source DICOM file.
+     * @param layout
+     *            the layout of the source DICOM file.
+     * @param header
+     *            the (modified) elements of the file before PixelData.
+     * @return null if the file cannot be spliced.
+     * @throws Throwable
+     */
+    public static DicomSplice create(File file, DicomFileLayout layout, AttributeList header) throws Throwable {
+        if (!canSplice(layout) || header.get(TagFromName.PixelData) != null) {
+            return null;
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream((int) Math.min(layout.pixelDataOffset() + 1024, 65536));
+        header.write(os, TransferSyntax.ExplicitVRLittleEndian, true, false);
+
+        /*
+         * PixelData element header in explicit VR little endian
+         */
+        long length = layout.pixelDataLength();
+        os.write(0xE0);
+        os.write(0x7F);
+        os.write(0x10);
+        os.write(0x00);
+        String vr = layout.pixelDataVR() != null ? layout.pixelDataVR()
+                : implicitPixelDataVR(layout.bitsAllocated());
+        os.write(vr.charAt(0));
+        os.write(vr.charAt(1));
+        os.write(0x00);
+        os.write(0x00);
+        os.write((int) (length & 0xFF));
+        os.write((int) ((length >>> 8) & 0xFF));
+        os.write((int) ((length >>> 16) & 0xFF));
+        os.write((int) ((length >>> 24) & 0xFF));
+
+        return new DicomSplice(file, os.toByteArray(), layout.pixelDataValueOffset(), length);
+    }
+
+    /*
+     * the VR pixelmed gives to the PixelData of an implicit VR dataset, for
+     * the BitsAllocated. The full encoding writes the PixelData in that VR
+     * (OW for 8 bit pixels too, if pixelmed follows PS3.5 A.1), so the splice
+     * must write the same. It is found once, by reading a tiny dataset.
+     */
+    private static String implicitPixelDataVR(int bitsAllocated) throws Throwable {
+        String vr = IMPLICIT_PIXEL_DATA_VRS.get(bitsAllocated);
+        if (vr == null) {
+            byte[] dataset = { 0x28, 0x00, 0x00, 0x01, 0x02, 0x00, 0x00, 0x00, (byte) bitsAllocated,
+                    (byte) (bitsAllocated >>> 8), (byte) 0xE0, 0x7F, 0x10, 0x00, 0x02, 0x00, 0x00, 0x00, 0x00,
+                    0x00 };
+            AttributeList attributeList = new AttributeList();
+            DicomInputStream dis = new DicomInputStream(new ByteArrayInputStream(dataset),
+                    TransferSyntax.ImplicitVRLittleEndian, false);
+            try {
+                attributeList.read(dis);
+            } finally {
+                dis.close();
+            }
+            vr = new String(attributeList.getPixelData().getVR(), StandardCharsets.US_ASCII);
+            if (!"OW".equals(vr) && !"OB".equals(vr)) {
+                throw new DicomException("Unexpected VR " + vr + " of implicit VR PixelData.");
+            }
+            IMPLICIT_PIXEL_DATA_VRS.put(bitsAllocated, vr);
+        }
+        return vr;
+    }
+
+    @Override
+    public long length() {
+        return _header.length + _pixelDataLength;
+    }
+
+    /**
+     * Always false: only native (uncompressed) pixel data is spliced.
+     */
+    @Override
+    public boolean isCompressed() {
+        return false;
+    }
+
+    public InputStream stream() throws IOException {
+        return new SequenceInputStream(new ByteArrayInputStream(_header),
+                new FileRangeInputStream(_file, _pixelDataValueOffset, _pixelDataLength));
+    }
+
+    @Override
+    public void addTo(ArchiveOutput ao, String name) throws Throwable {
+        InputStream in = stream();
+        try {
+            ao.add(MIME_TYPE, name, in, length());
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * reads a byte range of the file with positional reads, without going
+     * through a decoder.
+     */
+    private static class FileRangeInputStream extends InputStream {
+
+        private final FileChannel _channel;
+        private long _position;
+        private long _remaining;
+
+        FileRangeInputStream(File file, long offset, long length) throws IOException {
+            _channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            _position = offset;
+            _remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xFF);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (_remaining <= 0) {
+                return -1;
+            }
+            int n = _channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, _remaining)), _position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of file. " + _remaining + " bytes of PixelData are missing.");
+            }
+            _position += n;
+            _remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(_remaining, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            _channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package daris.lifepool.client.dicom;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.time.LocalTime;
+
+/**
+ * Limits the bandwidth and the number of requests of the uploads, shared by
+ * all the upload workers: two token buckets, of bytes and of requests,
+ * refilled at the rate of the schedule for the current time of the day. The
+ * schedule is checked every second, so the rate changes live when a window
+ * starts or ends, and can be replaced while the uploads run.
+ *
+ * A bucket holds at most one second of its rate: after an idle period, the
+ * uploads burst for one second at most.
+ *
+ * The time waited is also summed per thread (see {@link #threadWaitNanos()}),
+ * so that the latency of a request can be measured without it.
+ */
+public class RateLimiter {
+
+    /*
+     * the largest write taken from the bucket at once, so that the workers
+     * share the bandwidth smoothly.
+     */
+    private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /*
+     * the interval at which the rate is read from the schedule.
+     */
+    private static final long SCHEDULE_CHECK_INTERVAL = 1000000000L;
+
+    private static final ThreadLocal<long[]> THREAD_WAIT_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+    private static class Bucket {
+
+        private double _rate;
+        private double _capacity;
+        private double _tokens;
+        private long _last;
+
+        void setRate(double rate, double minCapacity, long now) {
+            if (_rate == 0) {
+                // starts full.
+                _tokens = Math.max(rate, minCapacity);
+            }
+            _rate = rate;
+            _capacity = Math.max(rate, minCapacity);
+            _tokens = Math.min(_tokens, _capacity);
+            _last = now;
+        }
+
+        /*
+         * takes the tokens, or returns the time to wait (in nanoseconds)
+         * before trying again. More tokens than the capacity are taken when
+         * the bucket is full: the bucket is then in debt.
+         */
+        long take(double n, long now) {
+            if (_rate == 0) {
+                return 0;
+            }
+            _tokens = Math.min(_capacity, _tokens + (now - _last) * _rate / 1000000000.0);
+            _last = now;
+            double needed = Math.min(n, _capacity);
+            if (_tokens >= needed) {
+                _tokens -= n;
+                return 0;
+            }
+            return Math.max(1L, (long) Math.ceil((needed - _tokens) * 1000000000.0 / _rate));
+        }
+    }
+
+    private RateSchedule _schedule;
+    private RateSchedule.Rate _rate;
+    private long _lastCheck;
+    private final Bucket _bytes = new Bucket();
+    private final Bucket _requests = new Bucket();
+    private long _waitNanos;
+
+    public RateLimiter(RateSchedule schedule) {
+        setSchedule(schedule);
+    }
+
+    /**
+     * Replaces the schedule. It applies to the writes in progress.
+     */
+    public synchronized void setSchedule(RateSchedule schedule) {
+        _schedule = schedule;
+        _lastCheck = System.nanoTime();
+        update(_lastCheck);
+        notifyAll();
+    }
+
+    public synchronized RateSchedule schedule() {
+        return _schedule;
+    }
+
+    /**
+     * The rate in force.
+     */
+    public synchronized RateSchedule.Rate rate() {
+        return _rate;
+    }
+
+    /**
+     * The time the uploads waited for the rate limit, summed over the
+     * workers, in nanoseconds.
+     */
+    public synchronized long waitNanos() {
+        return _waitNanos;
+    }
+
+    /**
+     * The time the calling thread has waited for the rate limits (of all the
+     * limiters), in nanoseconds: the difference between two calls is the
+     * time waited in between.
+     */
+    public static long threadWaitNanos() {
+        return THREAD_WAIT_NANOS.get()[0];
+    }
+
+    private void update(long now) {
+        RateSchedule.Rate rate = _schedule.rateAt(LocalTime.now());
+        if (!rate.equals(_rate)) {
+            _rate = rate;
+            _bytes.setRate(rate.bytesPerSecond(), MAX_CHUNK_SIZE, now);
+            _requests.setRate(rate.requestsPerSecond(), 1, now);
+        }
+    }
+
+    private void acquire(Bucket bucket, double n) throws InterruptedException {
+        long startTime = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now - _lastCheck >= SCHEDULE_CHECK_INTERVAL) {
+                _lastCheck = now;
+                update(now);
+            }
+            long nanos = bucket.take(n, now);
+            if (nanos == 0) {
+                if (startTime != 0) {
+                    _waitNanos += now - startTime;
+                    THREAD_WAIT_NANOS.get()[0] += now - startTime;
+                }
+                return;
+            }
+            if (startTime == 0) {
+                startTime = now;
+            }
+            /*
+             * wakes up in time to see a change of the schedule.
+             */
+            long millis = Math.min(SCHEDULE_CHECK_INTERVAL, nanos) / 1000000L;
+            wait(millis, (int) (millis == 0 ? Math.min(nanos, 999999L) : 0));
+        }
+    }
+
+    /**
+     * Waits for the rate limit to allow a request.
+     */
+    public synchronized void acquireRequest() throws InterruptedException {
+        acquire(_requests, 1);
+    }
+
+    /**
+     * Waits for the rate limit to allow the bytes to be written.
+     */
+    public synchronized void acquireBytes(long bytes) throws InterruptedException {
+        acquire(_bytes, bytes);
+    }
+
+    /**
+     * Wraps the stream so that the bytes written to it are limited by the
+     * rate.
+     */
+    public OutputStream limit(OutputStream os) {
+        return new LimitedOutputStream(os);
+    }
+
+    private class LimitedOutputStream extends FilterOutputStream {
+
+        LimitedOutputStream(OutputStream os) {
+            super(os);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            acquire(1);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int n = Math.min(len, MAX_CHUNK_SIZE);
+                acquire(n);
+                out.write(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        private void acquire(long bytes) throws IOException {
+            try {
+                acquireBytes(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for the upload rate limit.");
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s (schedule: %s, waited %.1f s)", _rate, _schedule, _waitNanos / 1000000000.0);
+    }
+
+}
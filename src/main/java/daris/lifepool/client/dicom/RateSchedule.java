@@ -0,0 +1,211 @@
+package daris.lifepool.client.dicom;
+
+import java.time.LocalTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The rate limits of the uploads by time of the day: a default rate, and the
+ * rates of time windows. A schedule is written as comma separated windows:
+ *
+ * <pre>
+ * HH:mm-HH:mm=&lt;MB/s&gt;[/&lt;requests/s&gt;]
+ * </pre>
+ *
+ * e.g. "20:00-06:00=0,12:00-14:00=20/5", where 0 (or an omitted requests/s)
+ * is no limit. A window ending before it starts spans midnight. The first
+ * window containing the time wins; outside the windows, the default rate
+ * applies.
+ */
+public class RateSchedule {
+
+    public static final long MB = 1024L * 1024L;
+
+    /**
+     * A rate limit. 0 for no limit.
+     */
+    public static class Rate {
+
+        public static final Rate UNLIMITED = new Rate(0, 0);
+
+        private final long _bytesPerSecond;
+        private final double _requestsPerSecond;
+
+        public Rate(long bytesPerSecond, double requestsPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("Invalid bytes per second: " + bytesPerSecond);
+            }
+            if (requestsPerSecond < 0 || Double.isNaN(requestsPerSecond) || Double.isInfinite(requestsPerSecond)) {
+                throw new IllegalArgumentException("Invalid requests per second: " + requestsPerSecond);
+            }
+            _bytesPerSecond = bytesPerSecond;
+            _requestsPerSecond = requestsPerSecond;
+        }
+
+        public long bytesPerSecond() {
+            return _bytesPerSecond;
+        }
+
+        public double requestsPerSecond() {
+            return _requestsPerSecond;
+        }
+
+        public boolean isUnlimited() {
+            return _bytesPerSecond == 0 && _requestsPerSecond == 0;
+        }
+
+        /**
+         * Parses a rate: &lt;MB/s&gt;[/&lt;requests/s&gt;].
+         */
+        public static Rate parse(String value) {
+            String v = value == null ? "" : value.trim();
+            int idx = v.indexOf('/');
+            try {
+                double mbPerSecond = Double.parseDouble(idx < 0 ? v : v.substring(0, idx).trim());
+                double requestsPerSecond = idx < 0 ? 0 : Double.parseDouble(v.substring(idx + 1).trim());
+                if (mbPerSecond < 0 || Double.isNaN(mbPerSecond) || Double.isInfinite(mbPerSecond)) {
+                    throw new IllegalArgumentException("Invalid rate: " + value + ". Expects <MB/s>[/<requests/s>].");
+                }
+                return new Rate(Math.round(mbPerSecond * MB), requestsPerSecond);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid rate: " + value + ". Expects <MB/s>[/<requests/s>].", e);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Rate)) {
+                return false;
+            }
+            Rate r = (Rate) o;
+            return _bytesPerSecond == r._bytesPerSecond && _requestsPerSecond == r._requestsPerSecond;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(_bytesPerSecond) * 31 + Double.hashCode(_requestsPerSecond);
+        }
+
+        @Override
+        public String toString() {
+            if (isUnlimited()) {
+                return "unlimited";
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(_bytesPerSecond == 0 ? "unlimited" : String.format("%.1f MB/s", (double) _bytesPerSecond / MB));
+            sb.append(", ");
+            sb.append(_requestsPerSecond == 0 ? "unlimited" : String.format("%.1f", _requestsPerSecond));
+            sb.append(" requests/s");
+            return sb.toString();
+        }
+    }
+
+    private static class Window {
+
+        final LocalTime start;
+        final LocalTime end;
+        final Rate rate;
+
+        Window(LocalTime start, LocalTime end, Rate rate) {
+            this.start = start;
+            this.end = end;
+            this.rate = rate;
+        }
+
+        boolean contains(LocalTime time) {
+            if (start.isAfter(end)) {
+                return !time.isBefore(start) || time.isBefore(end);
+            }
+            return !time.isBefore(start) && time.isBefore(end);
+        }
+    }
+
+    private final Rate _defaultRate;
+    private final List<Window> _windows;
+    private final String _spec;
+
+    private RateSchedule(Rate defaultRate, List<Window> windows, String spec) {
+        _defaultRate = defaultRate;
+        _windows = Collections.unmodifiableList(windows);
+        _spec = spec;
+    }
+
+    /**
+     * A schedule without windows: the rate applies all day.
+     */
+    public static RateSchedule constant(Rate rate) {
+        return new RateSchedule(rate, new ArrayList<Window>(), null);
+    }
+
+    /**
+     * Parses the windows of the schedule. null or empty for none.
+     *
+     * @param defaultRate
+     *            the rate outside the windows.
+     * @throws IllegalArgumentException
+     *             if the value is invalid.
+     */
+    public static RateSchedule parse(String value, Rate defaultRate) {
+        List<Window> windows = new ArrayList<Window>();
+        String spec = value == null ? "" : value.trim();
+        if (!spec.isEmpty()) {
+            for (String token : spec.split(",")) {
+                String t = token.trim();
+                int eq = t.indexOf('=');
+                int dash = t.indexOf('-');
+                if (eq < 0 || dash < 0 || dash > eq) {
+                    throw new IllegalArgumentException(
+                            "Invalid rate schedule window: " + t + ". Expects HH:mm-HH:mm=<MB/s>[/<requests/s>].");
+                }
+                try {
+                    LocalTime start = LocalTime.parse(t.substring(0, dash).trim());
+                    LocalTime end = LocalTime.parse(t.substring(dash + 1, eq).trim());
+                    windows.add(new Window(start, end, Rate.parse(t.substring(eq + 1))));
+                } catch (DateTimeParseException e) {
+                    throw new IllegalArgumentException(
+                            "Invalid rate schedule window: " + t + ". Expects HH:mm-HH:mm=<MB/s>[/<requests/s>].", e);
+                }
+            }
+        }
+        return new RateSchedule(defaultRate, windows, spec.isEmpty() ? null : spec);
+    }
+
+    public Rate defaultRate() {
+        return _defaultRate;
+    }
+
+    /**
+     * The rate at the time of the day.
+     */
+    public Rate rateAt(LocalTime time) {
+        for (Window window : _windows) {
+            if (window.contains(time)) {
+                return window.rate;
+            }
+        }
+        return _defaultRate;
+    }
+
+    /**
+     * Whether there is no limit at any time.
+     */
+    public boolean isUnlimited() {
+        if (!_defaultRate.isUnlimited()) {
+            return false;
+        }
+        for (Window window : _windows) {
+            if (!window.rate.isUnlimited()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return _spec == null ? _defaultRate.toString() : _defaultRate + " (" + _spec + ")";
+    }
+
+}
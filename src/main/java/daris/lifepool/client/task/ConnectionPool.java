@@ -0,0 +1,495 @@
+package daris.lifepool.client.task;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import arc.mf.client.RemoteServer;
+import arc.mf.client.ServerClient;
+import daris.lifepool.client.ConnectionSettings;
+
+/**
+ * Authenticated connections to the server, kept open between the calls and
+ * the tasks that use the same {@link ConnectionSettings} (server, transport
+ * and credentials, token or session key), so that the TLS and authentication
+ * handshakes are not repeated.
+ *
+ * A connection is leased with {@link #lease(ConnectionSettings)} and
+ * returned to the pool when the lease is closed, unless it was
+ * {@link Lease#invalidate() invalidated}. There are at most
+ * {@link #maxSize()} connections per settings; a lease waits for one to be
+ * returned when they are all leased. A connection idle for longer than
+ * {@link #validationInterval()} is checked with a cheap call before it is
+ * leased again, and one idle for longer than {@link #maxIdleTime()} is
+ * closed.
+ *
+ * If {@link ConnectionSettings#sessionCache()} is set, a new connection
+ * reconnects to the session of a previous login (see {@link SessionCache}),
+ * and authenticates only if there is none or it has expired.
+ *
+ * Thread-safe.
+ */
+public class ConnectionPool {
+
+    public static final int DEFAULT_MAX_SIZE = 16;
+
+    public static final long DEFAULT_MAX_IDLE_TIME = 120000L;
+
+    public static final long DEFAULT_VALIDATION_INTERVAL = 30000L;
+
+    /*
+     * the service called to check an idle connection.
+     */
+    private static final String HEALTH_CHECK_SERVICE = "server.version";
+
+    private static ConnectionPool _shared;
+
+    /**
+     * The pool shared by the tasks of the JVM. It is closed when the JVM
+     * exits.
+     */
+    public static synchronized ConnectionPool shared() {
+        if (_shared == null) {
+            ConnectionPool pool = new ConnectionPool(DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_TIME,
+                    DEFAULT_VALIDATION_INTERVAL);
+            Runtime.getRuntime().addShutdownHook(new Thread(pool::close, "connection-pool-shutdown"));
+            _shared = pool;
+        }
+        return _shared;
+    }
+
+    /**
+     * A connection leased from the pool.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final Key _key;
+        private final ServerClient.Connection _cxn;
+        private boolean _valid = true;
+        private boolean _returned;
+
+        private Lease(Key key, ServerClient.Connection cxn) {
+            _key = key;
+            _cxn = cxn;
+        }
+
+        public ServerClient.Connection connection() {
+            return _cxn;
+        }
+
+        /**
+         * Marks the connection as broken (or in an unknown state, e.g. a
+         * call failed half way): it is discarded instead of being returned.
+         */
+        public void invalidate() {
+            _valid = false;
+        }
+
+        /**
+         * Returns the connection to the pool.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (_returned) {
+                    return;
+                }
+                _returned = true;
+            }
+            release(_key, _cxn, _valid);
+        }
+    }
+
+    /*
+     * the fields of the settings that identify the connections.
+     */
+    private static class Key {
+
+        private final String _host;
+        private final Integer _port;
+        private final String _transport;
+        private final String _app;
+        private final String _domain;
+        private final String _user;
+        private final String _password;
+        private final String _token;
+        private final String _sid;
+
+        Key(ConnectionSettings settings) {
+            _host = settings.serverHost();
+            _port = settings.serverPort();
+            _transport = settings.transport();
+            _app = settings.app();
+            _domain = settings.domain();
+            _user = settings.user();
+            _password = settings.password();
+            _token = settings.token();
+            _sid = settings.sessionKey();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return Objects.equals(_host, k._host) && Objects.equals(_port, k._port)
+                    && Objects.equals(_transport, k._transport) && Objects.equals(_app, k._app)
+                    && Objects.equals(_domain, k._domain) && Objects.equals(_user, k._user)
+                    && Objects.equals(_password, k._password) && Objects.equals(_token, k._token)
+                    && Objects.equals(_sid, k._sid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(_host, _port, _transport, _app, _domain, _user, _password, _token, _sid);
+        }
+
+        @Override
+        public String toString() {
+            return _transport + "://" + _host + ":" + _port;
+        }
+    }
+
+    private static class Idle {
+
+        final ServerClient.Connection cxn;
+        final long since;
+
+        Idle(ServerClient.Connection cxn, long since) {
+            this.cxn = cxn;
+            this.since = since;
+        }
+    }
+
+    /*
+     * the connections of a key: the idle ones, most recently returned first,
+     * and the number of open ones (leased, idle or being opened).
+     */
+    private static class Entry {
+
+        final Deque<Idle> idle = new ArrayDeque<Idle>();
+        int size;
+    }
+
+    /*
+     * a connection reconnected to a session of the session cache, until its
+     * first lease is returned.
+     */
+    private static class CachedSession {
+
+        final ConnectionSettings settings;
+        final String sessionKey;
+
+        CachedSession(ConnectionSettings settings, String sessionKey) {
+            this.settings = settings;
+            this.sessionKey = sessionKey;
+        }
+    }
+
+    private final Map<Key, Entry> _entries;
+    private final Map<ServerClient.Connection, CachedSession> _cachedSessions;
+    private final long _maxIdleTime;
+    private final long _validationInterval;
+    private int _maxSize;
+    private boolean _closed;
+    private ScheduledExecutorService _evictor;
+    private long _nbOpened;
+    private long _nbReused;
+
+    /**
+     * @param maxSize
+     *            the maximum number of connections per settings.
+     * @param maxIdleTime
+     *            the time (in milliseconds) after which an idle connection is
+     *            closed.
+     * @param validationInterval
+     *            the idle time (in milliseconds) after which a connection is
+     *            checked before it is leased.
+     */
+    public ConnectionPool(int maxSize, long maxIdleTime, long validationInterval) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Invalid pool size: " + maxSize + ". Expects at least 1.");
+        }
+        _entries = new HashMap<Key, Entry>();
+        _cachedSessions = new IdentityHashMap<ServerClient.Connection, CachedSession>();
+        _maxSize = maxSize;
+        _maxIdleTime = Math.max(maxIdleTime, 1L);
+        _validationInterval = Math.max(validationInterval, 0L);
+    }
+
+    public synchronized int maxSize() {
+        return _maxSize;
+    }
+
+    /**
+     * Changes the maximum number of connections per settings. A task whose
+     * threads hold a connection while they wait for each other must have at
+     * least one per thread.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Invalid pool size: " + maxSize + ". Expects at least 1.");
+        }
+        _maxSize = maxSize;
+        notifyAll();
+    }
+
+    public long maxIdleTime() {
+        return _maxIdleTime;
+    }
+
+    public long validationInterval() {
+        return _validationInterval;
+    }
+
+    /**
+     * The number of connections opened, and authenticated, by the pool.
+     */
+    public synchronized long numberOfOpened() {
+        return _nbOpened;
+    }
+
+    /**
+     * The number of leases of a connection that was already open.
+     */
+    public synchronized long numberOfReused() {
+        return _nbReused;
+    }
+
+    /**
+     * Leases a connection for the settings: an idle one if there is one that
+     * is still alive, else a new one. It waits if the maximum number of
+     * connections for the settings are leased.
+     */
+    public Lease lease(ConnectionSettings settings) throws Throwable {
+        Key key = new Key(settings);
+        while (true) {
+            Idle idle = null;
+            synchronized (this) {
+                if (_closed) {
+                    throw new IllegalStateException("Connection pool is closed.");
+                }
+                Entry entry = _entries.get(key);
+                if (entry == null) {
+                    entry = new Entry();
+                    _entries.put(key, entry);
+                }
+                if (!entry.idle.isEmpty()) {
+                    idle = entry.idle.pollFirst();
+                } else if (entry.size < _maxSize) {
+                    entry.size++;
+                } else {
+                    wait();
+                    continue;
+                }
+            }
+            if (idle == null) {
+                ServerClient.Connection cxn;
+                try {
+                    cxn = open(settings);
+                } catch (Throwable e) {
+                    release(key, null, false);
+                    throw e;
+                }
+                synchronized (this) {
+                    _nbOpened++;
+                }
+                return new Lease(key, cxn);
+            }
+            if (System.currentTimeMillis() - idle.since < _validationInterval || isAlive(idle.cxn)) {
+                synchronized (this) {
+                    _nbReused++;
+                }
+                return new Lease(key, idle.cxn);
+            }
+            /*
+             * dead (e.g. its session expired or the server restarted): the
+             * next one is tried.
+             */
+            release(key, idle.cxn, false);
+        }
+    }
+
+    /**
+     * Opens and authenticates a new connection.
+     */
+    protected ServerClient.Connection open(ConnectionSettings settings) throws Throwable {
+        RemoteServer server = new RemoteServer(settings.serverHost(), settings.serverPort(), settings.useHttp(),
+                settings.encrypt());
+        ServerClient.Connection cxn = server.open();
+        if (settings.hasAuthenticationDetails() && settings.sessionCache()) {
+            String sessionKey = SessionCache.defaultCache().get(settings);
+            if (sessionKey != null) {
+                try {
+                    cxn.reconnect(sessionKey);
+                    synchronized (this) {
+                        _cachedSessions.put(cxn, new CachedSession(settings, sessionKey));
+                    }
+                    return cxn;
+                } catch (Throwable e) {
+                    /*
+                     * expired: authenticates on a new connection.
+                     */
+                    SessionCache.defaultCache().remove(settings, sessionKey);
+                    discard(cxn);
+                    cxn = server.open();
+                }
+            }
+        }
+        try {
+            if (settings.hasAuthenticationDetails()) {
+                cxn.connect(settings.authenticationDetails());
+                if (settings.sessionCache()) {
+                    SessionCache.defaultCache().put(settings, cxn.sessionKey());
+                }
+            } else {
+                cxn.reconnect(settings.sessionKey());
+            }
+        } catch (Throwable e) {
+            discard(cxn);
+            throw e;
+        }
+        return cxn;
+    }
+
+    /**
+     * Checks if the idle connection can still be used.
+     */
+    protected boolean isAlive(ServerClient.Connection cxn) {
+        try {
+            cxn.execute(HEALTH_CHECK_SERVICE);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    /*
+     * returns the connection to the pool, or discards it. A null connection
+     * is one that failed to open.
+     */
+    private void release(Key key, ServerClient.Connection cxn, boolean reusable) {
+        boolean keep = false;
+        CachedSession cachedSession = null;
+        synchronized (this) {
+            if (cxn != null) {
+                cachedSession = _cachedSessions.remove(cxn);
+            }
+            Entry entry = _entries.get(key);
+            if (reusable && !_closed && entry.size <= _maxSize) {
+                entry.idle.addFirst(new Idle(cxn, System.currentTimeMillis()));
+                startEvictor();
+                keep = true;
+            } else {
+                entry.size--;
+                if (entry.size == 0) {
+                    _entries.remove(key);
+                }
+            }
+            notifyAll();
+        }
+        if (!keep && cxn != null) {
+            discard(cxn);
+        }
+        if (!reusable && cachedSession != null) {
+            /*
+             * the first use of a cached session failed: it may have expired
+             * since it was reconnected.
+             */
+            SessionCache.defaultCache().remove(cachedSession.settings, cachedSession.sessionKey);
+        }
+    }
+
+    /*
+     * the evictor thread is started when the first connection is returned,
+     * as most pools are used by one task and closed with the JVM.
+     */
+    private void startEvictor() {
+        if (_evictor == null) {
+            _evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "connection-pool-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(_maxIdleTime / 2, 1000L);
+            _evictor.scheduleWithFixedDelay(this::evict, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Closes the connections idle for longer than {@link #maxIdleTime()}.
+     */
+    public void evict() {
+        Deque<ServerClient.Connection> evicted = new ArrayDeque<ServerClient.Connection>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                /*
+                 * the oldest are at the end.
+                 */
+                while (!entry.idle.isEmpty() && now - entry.idle.peekLast().since >= _maxIdleTime) {
+                    evicted.add(entry.idle.pollLast().cxn);
+                    entry.size--;
+                }
+                if (entry.size == 0) {
+                    it.remove();
+                }
+            }
+            if (!evicted.isEmpty()) {
+                notifyAll();
+            }
+        }
+        for (ServerClient.Connection cxn : evicted) {
+            discard(cxn);
+        }
+    }
+
+    /**
+     * Closes the idle connections. The leased ones are closed when they are
+     * returned.
+     */
+    public void close() {
+        Deque<ServerClient.Connection> closed = new ArrayDeque<ServerClient.Connection>();
+        synchronized (this) {
+            _closed = true;
+            for (Iterator<Entry> it = _entries.values().iterator(); it.hasNext();) {
+                Entry entry = it.next();
+                while (!entry.idle.isEmpty()) {
+                    closed.add(entry.idle.pollFirst().cxn);
+                    entry.size--;
+                }
+                if (entry.size == 0) {
+                    it.remove();
+                }
+            }
+            if (_evictor != null) {
+                _evictor.shutdownNow();
+            }
+            notifyAll();
+        }
+        for (ServerClient.Connection cxn : closed) {
+            discard(cxn);
+        }
+    }
+
+    private static void discard(ServerClient.Connection cxn) {
+        try {
+            cxn.closeAndDiscard();
+        } catch (Throwable e) {
+            // the connection is not reused anyway.
+        }
+    }
+
+}
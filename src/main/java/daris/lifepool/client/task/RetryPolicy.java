@@ -0,0 +1,127 @@
+package daris.lifepool.client.task;
+
+import java.io.EOFException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.net.ssl.SSLException;
+
+import daris.util.LocalIOException;
+
+/**
+ * When and how long to wait before retrying a failed server call.
+ *
+ * The delay doubles with each attempt, from {@link #initialDelay()} up to
+ * {@link #maxDelay()}, and is randomized between half and all of it, so that
+ * the workers disconnected at the same time (e.g. by a server restart) do not
+ * all reconnect at the same time.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_RETRIES = 6;
+
+    public static final long DEFAULT_INITIAL_DELAY = 1000L;
+
+    public static final long DEFAULT_MAX_DELAY = 30000L;
+
+    /*
+     * the (lower case) messages of the server errors that are expected to go
+     * away: the session expired or was lost in a restart, or the server is
+     * busy or restarting.
+     */
+    private static final String[] TRANSIENT_ERRORS = { "session is not valid", "session has expired",
+            "invalid session", "no session", "not authenticated", "shutting down", "service unavailable",
+            "server is busy", "too many connections", "timed out", "connection reset", "connection refused",
+            "connection closed", "try again" };
+
+    private final int _retries;
+    private final long _initialDelay;
+    private final long _maxDelay;
+
+    public RetryPolicy(int retries, long initialDelay, long maxDelay) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("Invalid number of retries: " + retries + ". Expects at least 0.");
+        }
+        _retries = retries;
+        _initialDelay = Math.max(initialDelay, 1L);
+        _maxDelay = Math.max(maxDelay, _initialDelay);
+    }
+
+    public RetryPolicy(int retries) {
+        this(retries, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * The number of retries after the first attempt.
+     */
+    public int retries() {
+        return _retries;
+    }
+
+    public long initialDelay() {
+        return _initialDelay;
+    }
+
+    public long maxDelay() {
+        return _maxDelay;
+    }
+
+    /**
+     * The delay before the next attempt.
+     *
+     * @param attempt
+     *            the attempt that failed, from 1.
+     */
+    public long delay(int attempt) {
+        long delay = Math.min(_maxDelay, _initialDelay << Math.min(Math.max(attempt - 1, 0), 30));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Whether the call that failed with the error may succeed if it is
+     * retried on a new connection: network errors and transient server
+     * errors. The other errors (e.g. invalid arguments, access denied, local
+     * file errors, see {@link LocalIOException}) are fatal.
+     */
+    public boolean isRetryable(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof LocalIOException) {
+                return false;
+            }
+        }
+        for (Throwable t = e; t != null; t = t.getCause() == t ? null : t.getCause()) {
+            if (t instanceof InterruptedException
+                    || (t instanceof InterruptedIOException && !(t instanceof SocketTimeoutException))) {
+                return false;
+            }
+            if (t instanceof SocketException || t instanceof SocketTimeoutException || t instanceof SSLException
+                    || t instanceof UnknownHostException || t instanceof EOFException) {
+                /*
+                 * connection refused or reset, timeout, TLS, DNS, or the
+                 * server closed the connection. (The local errors sending the
+                 * request are LocalIOExceptions.)
+                 */
+                return true;
+            }
+            String message = t.getMessage();
+            if (message != null) {
+                message = message.toLowerCase();
+                for (String error : TRANSIENT_ERRORS) {
+                    if (message.contains(error)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return _retries + " retries, " + _initialDelay + "ms to " + _maxDelay + "ms apart";
+    }
+
+}
@@ -0,0 +1,87 @@
+package daris.lifepool.client.task;
+
+import arc.mf.client.ServerClient;
+
+/**
+ * Server calls that are retried when they fail. Each call made through
+ * {@link #execute(Call)} leases a connection (see {@link ConnectionPool}) and
+ * returns it when it is done; an attempt that fails with an error the
+ * {@link RetryPolicy} considers transient is retried on another connection
+ * (logged in again with the credentials, token or session key of the
+ * settings).
+ *
+ * A call that is not idempotent has to check, when its attempt is not the
+ * first, whether the previous attempt succeeded on the server before it
+ * failed.
+ *
+ * Holds no connection between the calls: it can be shared by the threads.
+ */
+public class ServerSession {
+
+    public static interface Connector {
+        ConnectionPool.Lease lease() throws Throwable;
+    }
+
+    public static interface Call<T> {
+
+        /**
+         * @param attempt
+         *            the attempt, from 1.
+         */
+        T call(ServerClient.Connection cxn, int attempt) throws Throwable;
+    }
+
+    public static interface RetryListener {
+
+        /**
+         * Called before waiting to retry the call that failed.
+         */
+        void retrying(int attempt, long delay, Throwable e);
+    }
+
+    private final Connector _connector;
+    private final RetryPolicy _retryPolicy;
+    private final RetryListener _listener;
+
+    public ServerSession(Connector connector, RetryPolicy retryPolicy, RetryListener listener) {
+        _connector = connector;
+        _retryPolicy = retryPolicy;
+        _listener = listener;
+    }
+
+    /**
+     * Executes the call, retrying it if it fails with a transient error.
+     *
+     * @throws Throwable
+     *             the error of the last attempt, or the first fatal error.
+     */
+    public <T> T execute(Call<T> call) throws Throwable {
+        for (int attempt = 1;; attempt++) {
+            ConnectionPool.Lease lease = null;
+            try {
+                lease = _connector.lease();
+                T result = call.call(lease.connection(), attempt);
+                lease.close();
+                return result;
+            } catch (Throwable e) {
+                if (lease != null) {
+                    /*
+                     * the connection may be dead, its session expired, or the
+                     * call interrupted half way: it is not reused.
+                     */
+                    lease.invalidate();
+                    lease.close();
+                }
+                if (attempt > _retryPolicy.retries() || !_retryPolicy.isRetryable(e)) {
+                    throw e;
+                }
+                long delay = _retryPolicy.delay(attempt);
+                if (_listener != null) {
+                    _listener.retrying(attempt, delay, e);
+                }
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package daris.lifepool.client.task;
+
+import arc.mf.client.ServerClient;
+import arc.xml.XmlDoc;
+
+/**
+ * The service calls the upload makes on a connection. The uploads depend on
+ * this rather than on {@link ServerClient.Connection}, so that they can run
+ * against another implementation (e.g. an in-memory server in the tests).
+ */
+public interface ServiceExecutor {
+
+    /**
+     * Executes the service and returns its result.
+     */
+    XmlDoc.Element execute(String service, String args) throws Throwable;
+
+    /**
+     * Executes the service with the input and returns its result.
+     */
+    XmlDoc.Element execute(String service, String args, ServerClient.Input input) throws Throwable;
+
+    /**
+     * The calls on the connection.
+     */
+    static ServiceExecutor of(final ServerClient.Connection cxn) {
+        return new ServiceExecutor() {
+
+            @Override
+            public XmlDoc.Element execute(String service, String args) throws Throwable {
+                return cxn.execute(service, args);
+            }
+
+            @Override
+            public XmlDoc.Element execute(String service, String args, ServerClient.Input input) throws Throwable {
+                return cxn.execute(service, args, input);
+            }
+        };
+    }
+}
@@ -0,0 +1,186 @@
+package daris.lifepool.client.task;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import daris.lifepool.client.Applications;
+import daris.lifepool.client.ConnectionSettings;
+import daris.util.ChecksumUtils;
+import daris.util.FileUtils;
+
+/**
+ * The session keys of the previous logins, kept in a local file so that the
+ * next process connecting with the same settings reconnects to the session
+ * instead of authenticating again.
+ *
+ * Each line of the file is:
+ *
+ * <pre>
+ * key \t session key \t creation time
+ * </pre>
+ *
+ * where the key is a SHA-256 digest of the server and of the credentials or
+ * token: they are not stored. The file is readable and writable by its owner
+ * only, and ignored if it is not (on the file systems that have POSIX
+ * permissions). It is replaced atomically: the concurrent processes may lose
+ * each other's updates, which only costs a login.
+ */
+public class SessionCache {
+
+    /**
+     * The age after which a session key is not tried any more. The server
+     * expires idle sessions sooner: a reconnection that fails falls back to
+     * authentication.
+     */
+    public static final long DEFAULT_MAX_AGE = 24L * 60L * 60L * 1000L;
+
+    private static SessionCache _default;
+
+    /**
+     * The cache in the .daris directory of the user.
+     */
+    public static synchronized SessionCache defaultCache() {
+        if (_default == null) {
+            _default = new SessionCache(new File(Applications.SESSION_CACHE_FILE), DEFAULT_MAX_AGE);
+        }
+        return _default;
+    }
+
+    private static class Entry {
+
+        final String sessionKey;
+        final long created;
+
+        Entry(String sessionKey, long created) {
+            this.sessionKey = sessionKey;
+            this.created = created;
+        }
+    }
+
+    private final File _file;
+    private final long _maxAge;
+
+    public SessionCache(File file, long maxAge) {
+        _file = file;
+        _maxAge = maxAge;
+    }
+
+    public File file() {
+        return _file;
+    }
+
+    /**
+     * The session key of the last login with the settings, or null.
+     */
+    public synchronized String get(ConnectionSettings settings) {
+        Entry entry = read().get(keyOf(settings));
+        return entry == null ? null : entry.sessionKey;
+    }
+
+    /**
+     * Records the session key of a login with the settings. Errors are
+     * ignored: the cache is an optimization.
+     */
+    public synchronized void put(ConnectionSettings settings, String sessionKey) {
+        if (sessionKey == null) {
+            return;
+        }
+        Map<String, Entry> entries = read();
+        entries.put(keyOf(settings), new Entry(sessionKey, System.currentTimeMillis()));
+        write(entries);
+    }
+
+    /**
+     * Removes the session key of the settings if it is still the given one,
+     * e.g. when the session turns out to be expired.
+     */
+    public synchronized void remove(ConnectionSettings settings, String sessionKey) {
+        Map<String, Entry> entries = read();
+        String key = keyOf(settings);
+        Entry entry = entries.get(key);
+        if (entry != null && entry.sessionKey.equals(sessionKey)) {
+            entries.remove(key);
+            write(entries);
+        }
+    }
+
+    /*
+     * the entries that are not too old. None if the file is missing,
+     * unreadable or readable by others.
+     */
+    private Map<String, Entry> read() {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        Path path = _file.toPath();
+        if (!Files.isRegularFile(path)) {
+            return entries;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            if (!FileUtils.isOwnerOnly(_file)) {
+                return entries;
+            }
+            try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    if (parts.length != 3) {
+                        continue;
+                    }
+                    try {
+                        long created = Long.parseLong(parts[2]);
+                        if (now - created < _maxAge) {
+                            entries.put(parts[0], new Entry(parts[1], created));
+                        }
+                    } catch (NumberFormatException e) {
+                        // skipped.
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // as if empty.
+        }
+        return entries;
+    }
+
+    private void write(Map<String, Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            sb.append(e.getKey()).append('\t').append(e.getValue().sessionKey).append('\t')
+                    .append(e.getValue().created).append(System.lineSeparator());
+        }
+        try {
+            FileUtils.writeOwnerOnly(_file, sb.toString());
+        } catch (IOException e) {
+            // not cached.
+        }
+    }
+
+    /*
+     * the digest of the fields identifying the login.
+     */
+    static String keyOf(ConnectionSettings settings) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            String[] fields = { settings.serverHost(), String.valueOf(settings.serverPort()), settings.transport(),
+                    settings.app(), settings.domain(), settings.user(), settings.password(), settings.token() };
+            for (String field : fields) {
+                if (field != null) {
+                    md.update(field.getBytes(StandardCharsets.UTF_8));
+                }
+                md.update((byte) 0);
+            }
+            return ChecksumUtils.toHexString(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -4,24 +4,47 @@ import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import arc.mf.client.RemoteServer;
-import arc.mf.client.ServerClient;
 import daris.lifepool.client.ConnectionSettings;
 
 public abstract class Task<T> implements Callable<T> {
 
     private Logger _logger;
 
-    protected ServerClient.Connection connect(ConnectionSettings settings) throws Throwable {
-        RemoteServer server = new RemoteServer(settings.serverHost(), settings.serverPort(), settings.useHttp(),
-                settings.encrypt());
-        ServerClient.Connection cxn = server.open();
-        if (settings.hasAuthenticationDetails()) {
-            cxn.connect(settings.authenticationDetails());
-        } else {
-            cxn.reconnect(settings.sessionKey());
-        }
-        return cxn;
+    private ConnectionPool _pool;
+
+    /**
+     * The pool the connections of the task are leased from. Defaults to
+     * {@link ConnectionPool#shared()}.
+     */
+    public ConnectionPool pool() {
+        return _pool == null ? ConnectionPool.shared() : _pool;
+    }
+
+    public void setPool(ConnectionPool pool) {
+        _pool = pool;
+    }
+
+    /**
+     * Leases a connection from the pool. It has to be closed, to be returned.
+     */
+    protected ConnectionPool.Lease connect(ConnectionSettings settings) throws Throwable {
+        return pool().lease(settings);
+    }
+
+    /**
+     * A session whose calls are retried, on a new connection, when they fail
+     * with a transient error. See {@link ConnectionSettings#retries()}.
+     */
+    protected ServerSession session(ConnectionSettings settings) {
+        return new ServerSession(() -> connect(settings), settings.retryPolicy(), this::retrying);
+    }
+
+    /**
+     * Called before a server call that failed is retried.
+     */
+    protected void retrying(int attempt, long delay, Throwable e) {
+        logWarning("server call failed (attempt " + attempt + "): " + e.getMessage() + ". Retrying in " + delay
+                + " ms...");
     }
 
     public void setLogger(Logger logger) {
@@ -0,0 +1,66 @@
+package daris.lifepool.client.upload;
+
+/**
+ * Caps the number of bytes held in memory by the files in flight in the upload
+ * pipeline. A file larger than the capacity is let through when nothing else
+ * is in flight.
+ */
+public class ByteBudget {
+
+    private final long _capacity;
+    private long _used;
+    private long _peak;
+
+    public ByteBudget(long capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        _capacity = capacity;
+    }
+
+    public long capacity() {
+        return _capacity;
+    }
+
+    /**
+     * Acquires the bytes, waiting at most the specified time for them to be
+     * released by other files.
+     *
+     * @param bytes
+     * @param timeout
+     *            in milliseconds.
+     * @return false if the bytes were not acquired before the timeout.
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(long bytes, long timeout) throws InterruptedException {
+        long n = Math.min(bytes, _capacity);
+        long deadline = System.currentTimeMillis() + timeout;
+        while (_used + n > _capacity) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        _used += n;
+        _peak = Math.max(_peak, _used);
+        return true;
+    }
+
+    /**
+     * Releases the bytes acquired by {@link #acquire(long, long)}.
+     */
+    public synchronized void release(long bytes) {
+        _used -= Math.min(bytes, _capacity);
+        notifyAll();
+    }
+
+    public synchronized long used() {
+        return _used;
+    }
+
+    public synchronized long peak() {
+        return _peak;
+    }
+
+}
@@ -0,0 +1,286 @@
+package daris.lifepool.client.upload;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Adapts the number of upload requests in flight to the load of the server
+ * (additive increase, multiplicative decrease):
+ *
+ * <ul>
+ * <li>a request that succeeds with a healthy latency, while the limit was
+ * reached, raises the limit by 1/limit: by one once a full limit of requests
+ * has succeeded.</li>
+ * <li>a request that fails with a timeout or a transient error (e.g. the
+ * server is busy) halves the limit. The requests started before the last
+ * decrease do not decrease it again: they were sent at the previous
+ * limit.</li>
+ * <li>a slow request holds the limit.</li>
+ * </ul>
+ *
+ * The latency is healthy when it is within {@link #LATENCY_TOLERANCE} times
+ * the 10th percentile of the recent requests: the latency of the server when
+ * it is not loaded. The latencies are compared per byte sent (counting at
+ * least {@link #MIN_REQUEST_BYTES} per request), so that a large file is not
+ * mistaken for a loaded server, and without the time the request waited for
+ * the rate limit (see {@link #ConcurrencyController(int, int, Predicate,
+ * LongSupplier)}), so that a throttled upload is not either.
+ *
+ * The limit stays between the minimum and the maximum (the number of upload
+ * workers). The latencies of the recent requests and the errors are kept for
+ * monitoring.
+ */
+public class ConcurrencyController {
+
+    public static final double LATENCY_TOLERANCE = 2.0;
+
+    public static final double DECREASE_FACTOR = 0.5;
+
+    /**
+     * The size a request counts as at least, when its latency is compared
+     * per byte: the latency of the small requests is mostly their overhead.
+     */
+    public static final long MIN_REQUEST_BYTES = 64 * 1024;
+
+    /*
+     * the number of recent requests whose latencies are kept.
+     */
+    private static final int WINDOW_SIZE = 256;
+
+    /*
+     * the number of latencies before their percentiles are used: until then
+     * the latency is healthy.
+     */
+    private static final int MIN_SAMPLES = 16;
+
+    public static interface Call<T> {
+        T call() throws Throwable;
+    }
+
+    public static interface Listener {
+
+        /**
+         * Called when the (whole) limit changes.
+         */
+        void limitChanged(int oldLimit, int newLimit, ConcurrencyController controller);
+    }
+
+    private final int _min;
+    private final int _max;
+    private final Predicate<Throwable> _isOverload;
+    private final LongSupplier _waitNanos;
+    private Listener _listener;
+
+    private double _limit;
+    private int _inFlight;
+    private long _lastDecrease;
+    private final long[] _latencies = new long[WINDOW_SIZE];
+    /*
+     * the latencies per byte, without the rate limit waits: to tell whether
+     * a latency is healthy.
+     */
+    private final double[] _nanosPerByte = new double[WINDOW_SIZE];
+    private int _nbLatencies;
+    private int _next;
+    private long _nbRequests;
+    private long _nbErrors;
+    private long _nbOverloads;
+    private int _peakLimit;
+
+    /**
+     * @param min
+     *            the minimum (and initial) number of requests in flight.
+     * @param max
+     *            the maximum number of requests in flight.
+     * @param isOverload
+     *            whether a failed request signals an overloaded server, e.g.
+     *            {@link daris.lifepool.client.task.RetryPolicy#isRetryable(Throwable)}.
+     * @param waitNanos
+     *            the time the calling thread has waited for the rate limit so
+     *            far, e.g.
+     *            {@link daris.lifepool.client.dicom.RateLimiter#threadWaitNanos()}:
+     *            it is not counted in the latency of its requests.
+     */
+    public ConcurrencyController(int min, int max, Predicate<Throwable> isOverload, LongSupplier waitNanos) {
+        if (min < 1 || max < min) {
+            throw new IllegalArgumentException("Invalid concurrency: " + min + " to " + max + ".");
+        }
+        _min = min;
+        _max = max;
+        _isOverload = isOverload;
+        _waitNanos = waitNanos;
+        _limit = min;
+        _peakLimit = min;
+        _lastDecrease = System.nanoTime();
+    }
+
+    public ConcurrencyController setListener(Listener listener) {
+        _listener = listener;
+        return this;
+    }
+
+    /**
+     * Executes the request once the number of requests in flight is below
+     * the limit, and adapts the limit to its latency or error.
+     *
+     * @param bytes
+     *            the number of bytes the request sends.
+     */
+    public <T> T execute(long bytes, Call<T> call) throws Throwable {
+        Permit permit = acquire(bytes);
+        T result;
+        try {
+            result = call.call();
+        } catch (Throwable e) {
+            release(permit, e);
+            throw e;
+        }
+        release(permit, null);
+        return result;
+    }
+
+    private static class Permit {
+
+        final long bytes;
+        final long startTime;
+        final long startWaitNanos;
+        final boolean saturated;
+
+        Permit(long bytes, long startTime, long startWaitNanos, boolean saturated) {
+            this.bytes = bytes;
+            this.startTime = startTime;
+            this.startWaitNanos = startWaitNanos;
+            this.saturated = saturated;
+        }
+    }
+
+    private Permit acquire(long bytes) throws InterruptedException {
+        boolean saturated;
+        synchronized (this) {
+            while (_inFlight >= limit()) {
+                wait();
+            }
+            _inFlight++;
+            saturated = _inFlight >= limit();
+        }
+        return new Permit(bytes, System.nanoTime(), _waitNanos.getAsLong(), saturated);
+    }
+
+    private void release(Permit permit, Throwable error) {
+        long endTime = System.nanoTime();
+        /*
+         * read in the calling thread, as the wait time is the thread's.
+         */
+        long waitNanos = _waitNanos.getAsLong() - permit.startWaitNanos;
+        int oldLimit;
+        int newLimit;
+        synchronized (this) {
+            oldLimit = limit();
+            _inFlight--;
+            _nbRequests++;
+            if (error == null) {
+                long latency = endTime - permit.startTime;
+                double nanosPerByte = Math.max(0L, latency - waitNanos)
+                        / (double) Math.max(permit.bytes, MIN_REQUEST_BYTES);
+                if (permit.saturated && isHealthy(nanosPerByte)) {
+                    _limit = Math.min(_max, _limit + 1.0 / _limit);
+                }
+                record(latency, nanosPerByte);
+            } else {
+                _nbErrors++;
+                if (_isOverload.test(error)) {
+                    _nbOverloads++;
+                    if (permit.startTime - _lastDecrease >= 0) {
+                        _limit = Math.max(_min, _limit * DECREASE_FACTOR);
+                        _lastDecrease = endTime;
+                    }
+                }
+            }
+            newLimit = limit();
+            _peakLimit = Math.max(_peakLimit, newLimit);
+            notifyAll();
+        }
+        if (newLimit != oldLimit && _listener != null) {
+            _listener.limitChanged(oldLimit, newLimit, this);
+        }
+    }
+
+    private boolean isHealthy(double nanosPerByte) {
+        if (_nbLatencies < MIN_SAMPLES) {
+            return true;
+        }
+        double[] recent = Arrays.copyOf(_nanosPerByte, _nbLatencies);
+        Arrays.sort(recent);
+        return nanosPerByte <= LATENCY_TOLERANCE * recent[index(0.1, recent.length)];
+    }
+
+    private void record(long latency, double nanosPerByte) {
+        _latencies[_next] = latency;
+        _nanosPerByte[_next] = nanosPerByte;
+        _next = (_next + 1) % WINDOW_SIZE;
+        _nbLatencies = Math.min(_nbLatencies + 1, WINDOW_SIZE);
+    }
+
+    private static int index(double p, int length) {
+        int i = (int) Math.ceil(p * length) - 1;
+        return Math.max(0, Math.min(i, length - 1));
+    }
+
+    /**
+     * The current limit of the requests in flight.
+     */
+    public synchronized int limit() {
+        return (int) _limit;
+    }
+
+    public synchronized int peakLimit() {
+        return _peakLimit;
+    }
+
+    public synchronized int inFlight() {
+        return _inFlight;
+    }
+
+    /**
+     * The latency (in nanoseconds) of the recent successful requests at the
+     * percentile (from 0 to 1). 0 if there is none.
+     */
+    public synchronized long percentile(double p) {
+        if (_nbLatencies == 0) {
+            return 0;
+        }
+        long[] latencies = Arrays.copyOf(_latencies, _nbLatencies);
+        Arrays.sort(latencies);
+        return latencies[index(p, latencies.length)];
+    }
+
+    public synchronized long numberOfRequests() {
+        return _nbRequests;
+    }
+
+    public synchronized long numberOfErrors() {
+        return _nbErrors;
+    }
+
+    /**
+     * The fraction of the requests that failed.
+     */
+    public synchronized double errorRate() {
+        return _nbRequests == 0 ? 0.0 : (double) _nbErrors / _nbRequests;
+    }
+
+    /**
+     * The current state: the limit, and the latencies of the recent requests.
+     */
+    public synchronized String status() {
+        return String.format("concurrency %d (%d to %d), latency p50 %.3f s, p90 %.3f s, p99 %.3f s", limit(), _min,
+                _max, percentile(0.5) / 1e9, percentile(0.9) / 1e9, percentile(0.99) / 1e9);
+    }
+
+    public synchronized String summary() {
+        return String.format("%s; peak concurrency %d, %d requests, %d errors (%.1f%%, %d overloads).", status(),
+                _peakLimit, _nbRequests, _nbErrors, errorRate() * 100.0, _nbOverloads);
+    }
+
+}
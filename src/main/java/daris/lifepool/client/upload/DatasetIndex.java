@@ -0,0 +1,184 @@
+package daris.lifepool.client.upload;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import arc.xml.XmlDoc;
+import arc.xml.XmlStringWriter;
+import daris.lifepool.client.task.ServiceExecutor;
+
+/**
+ * In-memory index of the DICOM datasets in a project: (SOPInstanceUID,
+ * AccessionNumber) -> dataset cid. It is loaded with a few paged asset.query
+ * calls so that the "already uploaded?" check does not need a round trip per
+ * file.
+ *
+ * The datasets whose daris:dicom-dataset is not set yet (their
+ * post-processing has not run) are indexed by their mf-note instead, which
+ * holds the path of their source file.
+ */
+public class DatasetIndex {
+
+    public static final int DEFAULT_PAGE_SIZE = 10000;
+
+    /*
+     * value for the keys that match more than one dataset.
+     */
+    private static final String MULTIPLE = "";
+
+    private final String _projectCid;
+    private final ConcurrentHashMap<String, String> _cids;
+
+    /*
+     * SOPInstanceUID -> AccessionNumber (or MULTIPLE).
+     */
+    private final ConcurrentHashMap<String, String> _accessionNumbers;
+
+    /*
+     * mf-note -> cid (or MULTIPLE) of the datasets without
+     * daris:dicom-dataset.
+     */
+    private final ConcurrentHashMap<String, String> _notes;
+
+    public DatasetIndex(String projectCid, int initialCapacity) {
+        _projectCid = projectCid;
+        _cids = new ConcurrentHashMap<String, String>(initialCapacity);
+        _accessionNumbers = new ConcurrentHashMap<String, String>(initialCapacity);
+        _notes = new ConcurrentHashMap<String, String>();
+    }
+
+    public String projectId() {
+        return _projectCid;
+    }
+
+    private static String keyFor(String sopInstanceUID, String accessionNumber) {
+        return new StringBuilder(sopInstanceUID.length() + accessionNumber.length() + 1).append(sopInstanceUID)
+                .append('/').append(accessionNumber).toString();
+    }
+
+    public void put(String sopInstanceUID, String accessionNumber, String cid) {
+        if (sopInstanceUID == null || accessionNumber == null || cid == null) {
+            return;
+        }
+        _cids.merge(keyFor(sopInstanceUID, accessionNumber), cid, (v1, v2) -> v1.equals(v2) ? v1 : MULTIPLE);
+        _accessionNumbers.merge(sopInstanceUID, accessionNumber, (v1, v2) -> v1.equals(v2) ? v1 : MULTIPLE);
+    }
+
+    public void putNote(String note, String cid) {
+        if (note == null || cid == null) {
+            return;
+        }
+        _notes.merge(note, cid, (v1, v2) -> v1.equals(v2) ? v1 : MULTIPLE);
+    }
+
+    /**
+     * Looks up the dataset cid by the mf-note, among the datasets that had
+     * no daris:dicom-dataset when the index was loaded.
+     *
+     * @return the dataset cid or null if it is not in the index, or if more
+     *         than one dataset has the mf-note.
+     */
+    public String findByNote(String note) {
+        String cid = _notes.get(note);
+        return MULTIPLE.equals(cid) ? null : cid;
+    }
+
+    /**
+     * Looks up the dataset cid.
+     *
+     * @param sopInstanceUID
+     * @param accessionNumber
+     * @param exceptionIfMultipleFound
+     * @return the dataset cid or null if it is not in the index.
+     * @throws Throwable
+     */
+    public String find(String sopInstanceUID, String accessionNumber, boolean exceptionIfMultipleFound)
+            throws Throwable {
+        String cid = _cids.get(keyFor(sopInstanceUID, accessionNumber));
+        if (MULTIPLE.equals(cid)) {
+            if (exceptionIfMultipleFound) {
+                throw new Exception("More than one dicom datasets are found with SOPInstanceUID=" + sopInstanceUID
+                        + " and AccessionNumber=" + accessionNumber + ". Expects only one. ");
+            }
+            return null;
+        }
+        return cid;
+    }
+
+    public boolean contains(String sopInstanceUID, String accessionNumber) {
+        return _cids.containsKey(keyFor(sopInstanceUID, accessionNumber));
+    }
+
+    /**
+     * Looks up the AccessionNumber of the datasets of the SOPInstanceUID,
+     * whatever their AccessionNumber.
+     *
+     * @param sopInstanceUID
+     * @return the AccessionNumber, an empty string if the datasets have
+     *         different AccessionNumbers, or null if there is no dataset.
+     */
+    public String accessionNumberOf(String sopInstanceUID) {
+        return _accessionNumbers.get(sopInstanceUID);
+    }
+
+    public int size() {
+        return _cids.size();
+    }
+
+    public static DatasetIndex load(ServiceExecutor cxn, String projectCid) throws Throwable {
+        return load(cxn, projectCid, DEFAULT_PAGE_SIZE);
+    }
+
+    public static DatasetIndex load(ServiceExecutor cxn, String projectCid, int pageSize) throws Throwable {
+        String where = "cid starts with '" + projectCid + "' and daris:dicom-dataset has value";
+        long total = cxn.execute("asset.query", "<where>" + where + "</where><action>count</action>")
+                .longValue("value", 0);
+        DatasetIndex index = new DatasetIndex(projectCid, (int) Math.min((total * 4 + 2) / 3, Integer.MAX_VALUE));
+        forEach(cxn, where, pageSize, ae -> index.put(ae.value("sop-instance-uid"), ae.value("accession-number"),
+                ae.value("cid")), "accession-number", "meta/daris:dicom-dataset/object/de[@tag='00080050']/value",
+                "sop-instance-uid", "meta/daris:dicom-dataset/object/de[@tag='00080018']/value");
+
+        /*
+         * the datasets not post-processed (usually none or a few)
+         */
+        forEach(cxn, "cid starts with '" + projectCid + "' and daris:dicom-dataset hasno value and mf-note has value",
+                pageSize, ae -> index.putNote(ae.value("note"), ae.value("cid")), "note", "meta/mf-note/note");
+        return index;
+    }
+
+    private static interface AssetConsumer {
+        void accept(XmlDoc.Element ae) throws Throwable;
+    }
+
+    /*
+     * pages through the assets of the query, getting their cid and the values
+     * of the (ename, xpath) pairs.
+     */
+    private static void forEach(ServiceExecutor cxn, String where, int pageSize, AssetConsumer consumer,
+            String... enameXPaths) throws Throwable {
+        long idx = 1;
+        while (true) {
+            XmlStringWriter w = new XmlStringWriter();
+            w.add("where", where);
+            w.add("action", "get-value");
+            w.add("idx", idx);
+            w.add("size", pageSize);
+            w.add("xpath", new String[] { "ename", "cid" }, "cid");
+            for (int i = 0; i + 1 < enameXPaths.length; i += 2) {
+                w.add("xpath", new String[] { "ename", enameXPaths[i] }, enameXPaths[i + 1]);
+            }
+            List<XmlDoc.Element> aes = cxn.execute("asset.query", w.document()).elements("asset");
+            if (aes == null || aes.isEmpty()) {
+                break;
+            }
+            for (XmlDoc.Element ae : aes) {
+                consumer.accept(ae);
+            }
+            if (aes.size() < pageSize) {
+                break;
+            }
+            idx += aes.size();
+        }
+    }
+
+}
@@ -0,0 +1,281 @@
+package daris.lifepool.client.upload;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import daris.dicom.util.DicomFileLayout;
+
+/**
+ * Scans directory trees for DICOM files on a fork-join pool: each directory is
+ * listed by a task of its own, so that the slow listings (e.g. on NFS) of
+ * many directories overlap. Each file is sniffed by reading its first bytes
+ * only (see {@link DicomFileLayout#sniff(File)}).
+ *
+ * The DICOM files of a directory are passed to the {@link Listener} in
+ * batches. Symbolic links to directories are not followed.
+ */
+public class DirectoryScanner {
+
+    public static final int DEFAULT_BATCH_SIZE = 1;
+
+    /**
+     * A DICOM file found by the scanner.
+     */
+    public static class Candidate {
+
+        private final File _file;
+        private final long _size;
+        private final long _lastModified;
+
+        public Candidate(File file, long size, long lastModified) {
+            _file = file;
+            _size = size;
+            _lastModified = lastModified;
+        }
+
+        public File file() {
+            return _file;
+        }
+
+        public long size() {
+            return _size;
+        }
+
+        public long lastModified() {
+            return _lastModified;
+        }
+    }
+
+    /**
+     * Receives the results of the scan. It is called by the threads of the
+     * pool, concurrently.
+     */
+    public static interface Listener {
+
+        /**
+         * Checks if the file should be sniffed, e.g. false if it is known to
+         * be done. The file is not opened yet.
+         */
+        default boolean include(File file, long size, long lastModified) {
+            return true;
+        }
+
+        /**
+         * Receives DICOM files of the same directory. It may block.
+         *
+         * @return false to stop the scan.
+         */
+        boolean found(List<Candidate> candidates) throws Throwable;
+
+        /**
+         * Receives a file that is not a DICOM file.
+         */
+        default void rejected(File file, long size, long lastModified) throws Throwable {
+
+        }
+
+        /**
+         * Receives a file or directory that cannot be read.
+         *
+         * @return false to stop the scan.
+         */
+        boolean failed(File file, IOException e);
+    }
+
+    private final ForkJoinPool _pool;
+    private final int _batchSize;
+    private final AtomicLong _nbDirectories;
+    private final AtomicLong _nbFiles;
+    private final AtomicLong _nbDicomFiles;
+
+    public DirectoryScanner(ForkJoinPool pool, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize + ". Expects at least 1.");
+        }
+        _pool = pool;
+        _batchSize = batchSize;
+        _nbDirectories = new AtomicLong(0);
+        _nbFiles = new AtomicLong(0);
+        _nbDicomFiles = new AtomicLong(0);
+    }
+
+    public DirectoryScanner(ForkJoinPool pool) {
+        this(pool, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Scans the directory tree, or the file, and waits for the scan to
+     * complete.
+     *
+     * @return false if the scan was stopped by the listener.
+     * @throws Throwable
+     *             the first exception thrown by the listener.
+     */
+    public boolean scan(File root, Listener listener) throws Throwable {
+        Scan scan = new Scan(listener);
+        _pool.invoke(new Task(scan, root.toPath(), true));
+        if (scan.failure.get() != null) {
+            throw scan.failure.get();
+        }
+        return !scan.stopped;
+    }
+
+    public long numberOfDirectories() {
+        return _nbDirectories.get();
+    }
+
+    public long numberOfFiles() {
+        return _nbFiles.get();
+    }
+
+    public long numberOfDicomFiles() {
+        return _nbDicomFiles.get();
+    }
+
+    private static class Scan {
+
+        final Listener listener;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        volatile boolean stopped;
+
+        Scan(Listener listener) {
+            this.listener = listener;
+        }
+
+        void fail(Throwable e) {
+            failure.compareAndSet(null, e);
+            stopped = true;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private class Task extends RecursiveAction {
+
+        private final Scan _scan;
+        private final Path _path;
+        private final boolean _root;
+
+        Task(Scan scan, Path path, boolean root) {
+            _scan = scan;
+            _path = path;
+            _root = root;
+        }
+
+        @Override
+        protected void compute() {
+            if (_root && !Files.isDirectory(_path)) {
+                List<Candidate> candidates = new ArrayList<Candidate>(1);
+                try {
+                    BasicFileAttributes attrs = Files.readAttributes(_path, BasicFileAttributes.class);
+                    visit(_path, attrs, candidates);
+                } catch (IOException e) {
+                    failed(_path, e);
+                }
+                emit(candidates);
+                return;
+            }
+            _nbDirectories.incrementAndGet();
+            List<Task> subtasks = new ArrayList<Task>();
+            List<Candidate> candidates = new ArrayList<Candidate>(_batchSize);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(_path)) {
+                for (Path path : entries) {
+                    if (_scan.stopped) {
+                        break;
+                    }
+                    BasicFileAttributes attrs;
+                    try {
+                        attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        failed(path, e);
+                        continue;
+                    }
+                    if (attrs.isDirectory()) {
+                        if (!Files.isSymbolicLink(path)) {
+                            Task subtask = new Task(_scan, path, false);
+                            subtask.fork();
+                            subtasks.add(subtask);
+                        }
+                        continue;
+                    }
+                    try {
+                        visit(path, attrs, candidates);
+                    } catch (IOException e) {
+                        failed(path, e);
+                        continue;
+                    }
+                    if (candidates.size() >= _batchSize) {
+                        emit(candidates);
+                        candidates = new ArrayList<Candidate>(_batchSize);
+                    }
+                }
+            } catch (IOException e) {
+                failed(_path, e);
+            } catch (DirectoryIteratorException e) {
+                failed(_path, e.getCause());
+            }
+            emit(candidates);
+            for (Task subtask : subtasks) {
+                subtask.join();
+            }
+        }
+
+        /*
+         * sniffs the regular file, adding it to the candidates if it is a
+         * DICOM file.
+         */
+        private void visit(Path path, BasicFileAttributes attrs, List<Candidate> candidates) throws IOException {
+            if (!attrs.isRegularFile()) {
+                return;
+            }
+            _nbFiles.incrementAndGet();
+            File file = path.toFile();
+            long size = attrs.size();
+            long lastModified = attrs.lastModifiedTime().toMillis();
+            if (!_scan.listener.include(file, size, lastModified)) {
+                return;
+            }
+            if (DicomFileLayout.sniff(file)) {
+                _nbDicomFiles.incrementAndGet();
+                candidates.add(new Candidate(file, size, lastModified));
+            } else {
+                try {
+                    _scan.listener.rejected(file, size, lastModified);
+                } catch (Throwable e) {
+                    _scan.fail(e);
+                }
+            }
+        }
+
+        private void emit(List<Candidate> candidates) {
+            if (candidates.isEmpty() || _scan.stopped) {
+                return;
+            }
+            try {
+                if (!_scan.listener.found(Collections.unmodifiableList(candidates))) {
+                    _scan.stopped = true;
+                }
+            } catch (Throwable e) {
+                _scan.fail(e);
+            }
+        }
+
+        private void failed(Path path, IOException e) {
+            if (!_scan.listener.failed(path.toFile(), e)) {
+                _scan.stopped = true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,306 @@
+package daris.lifepool.client.upload;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The AccessionNumber -> PatientID mapping in a binary file of fixed-width
+ * records, sorted by AccessionNumber:
+ *
+ * <pre>
+ * header: magic, version, mapping file size, mapping file mtime, number of records, key width, value width
+ * record: AccessionNumber (key width bytes), PatientID (value width bytes), padded with zeros
+ * </pre>
+ *
+ * The file is mapped into memory and binary-searched in place: a lookup reads
+ * O(log n) records and allocates nothing but the PatientID it returns. The
+ * pages are in the page cache, shared by all the processes reading the same
+ * index, so it costs almost no heap.
+ *
+ * The index records the size and the modification time of the mapping file
+ * it was built from. {@link #open(File, File)} rebuilds it when they change.
+ */
+public class PatientIdIndex extends PatientIdMapping {
+
+    private static final int MAGIC = 0x50494458; // PIDX
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_LENGTH = 40;
+
+    private final MappedByteBuffer _buffer;
+    private final int _size;
+    private final int _keyWidth;
+    private final int _recordWidth;
+    private final long _mappingFileSize;
+    private final long _mappingFileLastModified;
+
+    private PatientIdIndex(MappedByteBuffer buffer, int size, int keyWidth, int valueWidth, long mappingFileSize,
+            long mappingFileLastModified) {
+        _buffer = buffer;
+        _size = size;
+        _keyWidth = keyWidth;
+        _recordWidth = keyWidth + valueWidth;
+        _mappingFileSize = mappingFileSize;
+        _mappingFileLastModified = mappingFileLastModified;
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+
+    /**
+     * Whether the index was built from the current version of the mapping
+     * file.
+     */
+    public boolean isUpToDate(File mappingFile) {
+        return mappingFile.length() == _mappingFileSize && mappingFile.lastModified() == _mappingFileLastModified;
+    }
+
+    @Override
+    public String patientIdOf(String accessionNumber) {
+        int n = accessionNumber.length();
+        for (int i = 0; i < n; i++) {
+            if (accessionNumber.charAt(i) >= 0x80) {
+                /*
+                 * the keys are UTF-8: compare the bytes.
+                 */
+                return patientIdOf(accessionNumber.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        if (n > _keyWidth) {
+            return null;
+        }
+        int low = 0;
+        int high = _size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = HEADER_LENGTH + mid * _recordWidth;
+            int c = compare(offset, accessionNumber);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return valueAt(offset);
+            }
+        }
+        return null;
+    }
+
+    private String patientIdOf(byte[] key) {
+        if (key.length > _keyWidth) {
+            return null;
+        }
+        int low = 0;
+        int high = _size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int offset = HEADER_LENGTH + mid * _recordWidth;
+            int c = compare(offset, key);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return valueAt(offset);
+            }
+        }
+        return null;
+    }
+
+    /*
+     * compares the key of the record with the (ASCII) AccessionNumber. The
+     * padding zeros sort before any character.
+     */
+    private int compare(int offset, String accessionNumber) {
+        int n = accessionNumber.length();
+        for (int i = 0; i < _keyWidth; i++) {
+            int b = _buffer.get(offset + i) & 0xFF;
+            int c = i < n ? accessionNumber.charAt(i) : 0;
+            if (b != c) {
+                return b - c;
+            }
+        }
+        return 0;
+    }
+
+    private int compare(int offset, byte[] key) {
+        for (int i = 0; i < _keyWidth; i++) {
+            int b = _buffer.get(offset + i) & 0xFF;
+            int c = i < key.length ? key[i] & 0xFF : 0;
+            if (b != c) {
+                return b - c;
+            }
+        }
+        return 0;
+    }
+
+    private String valueAt(int offset) {
+        int start = offset + _keyWidth;
+        int end = offset + _recordWidth;
+        int length = 0;
+        while (start + length < end && _buffer.get(start + length) != 0) {
+            length++;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = _buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    void forEach(EntryConsumer consumer) throws IOException {
+        byte[] record = new byte[_recordWidth];
+        for (int i = 0; i < _size; i++) {
+            int offset = HEADER_LENGTH + i * _recordWidth;
+            for (int j = 0; j < _recordWidth; j++) {
+                record[j] = _buffer.get(offset + j);
+            }
+            consumer.accept(record, _keyWidth, lengthOf(record, _keyWidth, _recordWidth), 0,
+                    lengthOf(record, 0, _keyWidth));
+        }
+    }
+
+    private static int lengthOf(byte[] b, int start, int end) {
+        int i = start;
+        while (i < end && b[i] != 0) {
+            i++;
+        }
+        return i - start;
+    }
+
+    /**
+     * Maps the index file of the mapping file, building it first if it is
+     * missing, invalid or out of date.
+     *
+     * @param mappingFile
+     *            the CSV file.
+     * @param indexFile
+     *            the index file, see {@link #indexFileOf(File)}.
+     */
+    public static PatientIdIndex open(File mappingFile, File indexFile) throws IOException {
+        if (indexFile.exists()) {
+            try {
+                PatientIdIndex index = open(indexFile);
+                if (index.isUpToDate(mappingFile)) {
+                    return index;
+                }
+            } catch (IOException e) {
+                /*
+                 * invalid, e.g. of an older version: rebuilt.
+                 */
+            }
+        }
+        build(mappingFile, indexFile);
+        return open(indexFile);
+    }
+
+    /**
+     * Maps the index file. It is not checked against the mapping file.
+     */
+    public static PatientIdIndex open(File indexFile) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(indexFile, "r")) {
+            FileChannel channel = file.getChannel();
+            long fileLength = channel.size();
+            if (fileLength < HEADER_LENGTH || fileLength > Integer.MAX_VALUE) {
+                throw new IOException("Invalid patient id index file: " + indexFile.getPath() + ".");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileLength);
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            long mappingFileSize = buffer.getLong(8);
+            long mappingFileLastModified = buffer.getLong(16);
+            int size = buffer.getInt(24);
+            int keyWidth = buffer.getInt(28);
+            int valueWidth = buffer.getInt(32);
+            if (magic != MAGIC || version != VERSION || size < 0 || keyWidth < 0 || valueWidth < 0
+                    || fileLength != HEADER_LENGTH + (long) size * (keyWidth + valueWidth)) {
+                throw new IOException("Invalid patient id index file: " + indexFile.getPath() + ".");
+            }
+            return new PatientIdIndex(buffer, size, keyWidth, valueWidth, mappingFileSize, mappingFileLastModified);
+        }
+    }
+
+    /**
+     * Parses the mapping file and writes its index file. The index file is
+     * replaced atomically, so the processes that have mapped the previous
+     * version keep reading it.
+     *
+     * @return the number of records.
+     */
+    public static int build(File mappingFile, File indexFile) throws IOException {
+        /*
+         * the size and the mtime are taken before parsing: if the file
+         * changes meanwhile, the index is rebuilt next time.
+         */
+        long mappingFileSize = mappingFile.length();
+        long mappingFileLastModified = mappingFile.lastModified();
+        PatientIdMapping mapping = PatientIdMapping.load(mappingFile);
+        int[] widths = new int[2];
+        mapping.forEach((data, patientIdOffset, patientIdLength, accessionNumberOffset, accessionNumberLength) -> {
+            widths[0] = Math.max(widths[0], accessionNumberLength);
+            widths[1] = Math.max(widths[1], patientIdLength);
+        });
+        int keyWidth = widths[0];
+        int valueWidth = widths[1];
+        if (HEADER_LENGTH + (long) mapping.size() * (keyWidth + valueWidth) > Integer.MAX_VALUE) {
+            throw new IOException("Mapping file " + mappingFile.getPath() + " is too large to be indexed.");
+        }
+
+        /*
+         * a temporary file of its own, as other processes may be building
+         * the same index.
+         */
+        File tmpFile = File.createTempFile(indexFile.getName() + ".", ".tmp",
+                indexFile.getAbsoluteFile().getParentFile());
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(mappingFileSize);
+            dos.writeLong(mappingFileLastModified);
+            dos.writeInt(mapping.size());
+            dos.writeInt(keyWidth);
+            dos.writeInt(valueWidth);
+            dos.writeInt(0);
+            byte[] zeros = new byte[Math.max(keyWidth, valueWidth)];
+            mapping.forEach((data, patientIdOffset, patientIdLength, accessionNumberOffset, accessionNumberLength) -> {
+                dos.write(data, accessionNumberOffset, accessionNumberLength);
+                dos.write(zeros, 0, keyWidth - accessionNumberLength);
+                dos.write(data, patientIdOffset, patientIdLength);
+                dos.write(zeros, 0, valueWidth - patientIdLength);
+            });
+            dos.flush();
+            out.getChannel().force(false);
+        } catch (IOException e) {
+            tmpFile.delete();
+            throw e;
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return mapping.size();
+    }
+
+    /**
+     * The index file of the mapping file: in the same directory, with .idx
+     * appended to its name.
+     */
+    public static File indexFileOf(File mappingFile) {
+        return new File(mappingFile.getAbsoluteFile().getParentFile(), mappingFile.getName() + ".idx");
+    }
+
+}
@@ -0,0 +1,380 @@
+package daris.lifepool.client.upload;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The AccessionNumber -> PatientID mapping, read from the CSV file whose lines
+ * are:
+ *
+ * <pre>
+ * PatientID, AccessionNumber[, ...]
+ * </pre>
+ *
+ * The PatientID is digits. The other lines (e.g. a header) are ignored. If an
+ * AccessionNumber is repeated, its last line wins.
+ *
+ * {@link #load(File)} holds the mapping in two arrays: the entries, sorted by
+ * AccessionNumber, and the bytes of the IDs. Each entry packs the offset of
+ * its PatientID (followed by its AccessionNumber) in the data and the lengths
+ * of both, so a lookup is a binary search with no object per entry. See
+ * {@link PatientIdIndex} for the memory-mapped index file.
+ */
+public abstract class PatientIdMapping {
+
+    private static final int MAX_ID_LENGTH = 0xFFFF;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The number of AccessionNumbers.
+     */
+    public abstract int size();
+
+    /**
+     * The PatientID of the AccessionNumber, or null if it is not mapped.
+     */
+    public abstract String patientIdOf(String accessionNumber);
+
+    /**
+     * Receives the entries of the mapping, in the order of the
+     * AccessionNumbers.
+     */
+    static interface EntryConsumer {
+        void accept(byte[] data, int patientIdOffset, int patientIdLength, int accessionNumberOffset,
+                int accessionNumberLength) throws IOException;
+    }
+
+    private static class Sorted extends PatientIdMapping {
+
+        private final long[] _entries;
+        private final byte[] _data;
+
+        Sorted(long[] entries, byte[] data) {
+            _entries = entries;
+            _data = data;
+        }
+
+        @Override
+        public int size() {
+            return _entries.length;
+        }
+
+        @Override
+        public String patientIdOf(String accessionNumber) {
+            byte[] key = accessionNumber.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = _entries.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                long entry = _entries[mid];
+                int c = compare(_data, offsetOf(entry) + patientIdLengthOf(entry), accessionNumberLengthOf(entry),
+                        key);
+                if (c < 0) {
+                    low = mid + 1;
+                } else if (c > 0) {
+                    high = mid - 1;
+                } else {
+                    return new String(_data, offsetOf(entry), patientIdLengthOf(entry), StandardCharsets.US_ASCII);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        void forEach(EntryConsumer consumer) throws IOException {
+            for (long entry : _entries) {
+                int offset = offsetOf(entry);
+                int patientIdLength = patientIdLengthOf(entry);
+                consumer.accept(_data, offset, patientIdLength, offset + patientIdLength,
+                        accessionNumberLengthOf(entry));
+            }
+        }
+    }
+
+    /**
+     * Passes the entries to the consumer, in the order of the
+     * AccessionNumbers.
+     */
+    abstract void forEach(EntryConsumer consumer) throws IOException;
+
+    private static int compare(byte[] data, int offset, int length, byte[] key) {
+        int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            int c = (data[offset + i] & 0xFF) - (key[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static long entry(int offset, int patientIdLength, int accessionNumberLength) {
+        return ((long) offset << 32) | ((long) patientIdLength << 16) | accessionNumberLength;
+    }
+
+    private static int offsetOf(long entry) {
+        return (int) (entry >>> 32);
+    }
+
+    private static int patientIdLengthOf(long entry) {
+        return (int) (entry >>> 16) & 0xFFFF;
+    }
+
+    private static int accessionNumberLengthOf(long entry) {
+        return (int) entry & 0xFFFF;
+    }
+
+    /**
+     * Parses the CSV file.
+     */
+    public static PatientIdMapping load(File csvFile) throws IOException {
+        try (InputStream in = new FileInputStream(csvFile)) {
+            Parser parser = new Parser(csvFile.length());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                parser.parse(buffer, n);
+            }
+            return parser.finish();
+        }
+    }
+
+    /*
+     * The tokenizer: a state per position in the line, so each byte is
+     * looked at once. The IDs are appended to the data as they are read; the
+     * line is dropped (the data truncated) if it turns out to be invalid.
+     */
+    private static class Parser {
+
+        private static final int LEADING_SPACES = 0;
+        private static final int PATIENT_ID = 1;
+        private static final int SPACES_BEFORE_COMMA = 2;
+        private static final int SPACES_AFTER_COMMA = 3;
+        private static final int ACCESSION_NUMBER = 4;
+        private static final int SKIP = 5;
+
+        private byte[] _data;
+        private int _length;
+        private long[] _entries;
+        private int _nbEntries;
+
+        private int _state = LEADING_SPACES;
+        /*
+         * the start of the current line in the data: where it is truncated
+         * back to if the line is invalid.
+         */
+        private int _lineStart;
+        private int _patientIdLength;
+        private int _accessionNumberStart;
+        private int _accessionNumberEnd;
+
+        Parser(long fileLength) {
+            /*
+             * the IDs take about 2/3 of the file, one entry per 24 bytes.
+             */
+            _data = new byte[(int) Math.min(Math.max(fileLength, 1024L), Integer.MAX_VALUE - 8)];
+            _entries = new long[(int) Math.min(Math.max(fileLength / 24, 64L), Integer.MAX_VALUE - 8)];
+        }
+
+        void parse(byte[] b, int n) throws IOException {
+            for (int i = 0; i < n; i++) {
+                byte c = b[i];
+                if (c == '\n') {
+                    endLine();
+                    continue;
+                }
+                switch (_state) {
+                case LEADING_SPACES:
+                    if (c == ' ') {
+                        break;
+                    }
+                    if (c >= '0' && c <= '9') {
+                        append(c);
+                        _state = PATIENT_ID;
+                    } else {
+                        _state = SKIP;
+                    }
+                    break;
+                case PATIENT_ID:
+                    if (c >= '0' && c <= '9') {
+                        append(c);
+                    } else if (c == ' ' || c == ',') {
+                        _patientIdLength = _length - _lineStart;
+                        _state = c == ',' ? SPACES_AFTER_COMMA : SPACES_BEFORE_COMMA;
+                    } else {
+                        _state = SKIP;
+                    }
+                    break;
+                case SPACES_BEFORE_COMMA:
+                    if (c == ',') {
+                        _state = SPACES_AFTER_COMMA;
+                    } else if (c != ' ') {
+                        _state = SKIP;
+                    }
+                    break;
+                case SPACES_AFTER_COMMA:
+                    if (c == ' ') {
+                        break;
+                    }
+                    _accessionNumberStart = _length;
+                    _accessionNumberEnd = _length;
+                    _state = ACCESSION_NUMBER;
+                    // fall through
+                case ACCESSION_NUMBER:
+                    if (c == ',') {
+                        addEntry();
+                        _state = SKIP;
+                    } else {
+                        append(c);
+                        if ((c & 0xFF) > ' ') {
+                            /*
+                             * trailing spaces (and \r) are trimmed.
+                             */
+                            _accessionNumberEnd = _length;
+                        }
+                    }
+                    break;
+                default:
+                    break;
+                }
+            }
+        }
+
+        private void endLine() throws IOException {
+            if (_state == ACCESSION_NUMBER) {
+                addEntry();
+            } else {
+                _length = _lineStart;
+            }
+            _state = LEADING_SPACES;
+        }
+
+        private void append(byte c) throws IOException {
+            if (_length == _data.length) {
+                if (_data.length >= Integer.MAX_VALUE - 8) {
+                    throw new IOException("Mapping file is too large.");
+                }
+                _data = Arrays.copyOf(_data, (int) Math.min(_data.length * 3L / 2L, Integer.MAX_VALUE - 8));
+            }
+            _data[_length++] = c;
+        }
+
+        private void addEntry() {
+            int patientIdLength = _patientIdLength;
+            int accessionNumberLength = _accessionNumberEnd - _accessionNumberStart;
+            if (accessionNumberLength == 0 || patientIdLength > MAX_ID_LENGTH
+                    || accessionNumberLength > MAX_ID_LENGTH) {
+                _length = _lineStart;
+                return;
+            }
+            if (_nbEntries == _entries.length) {
+                _entries = Arrays.copyOf(_entries, _entries.length * 3 / 2);
+            }
+            _entries[_nbEntries++] = entry(_lineStart, patientIdLength, accessionNumberLength);
+            _length = _accessionNumberEnd;
+            _lineStart = _length;
+        }
+
+        PatientIdMapping finish() throws IOException {
+            endLine();
+            /*
+             * the entries are in the order of the lines, so the offset breaks
+             * the ties and the last duplicate is the one kept.
+             */
+            sort(_data, _entries, 0, _nbEntries - 1);
+            int n = 0;
+            for (int i = 0; i < _nbEntries; i++) {
+                if (n > 0 && compareKeys(_data, _entries[n - 1], _entries[i]) == 0) {
+                    _entries[n - 1] = _entries[i];
+                } else {
+                    _entries[n++] = _entries[i];
+                }
+            }
+            return new Sorted(Arrays.copyOf(_entries, n), Arrays.copyOf(_data, _length));
+        }
+    }
+
+    private static int compareKeys(byte[] data, long e1, long e2) {
+        int o1 = offsetOf(e1) + patientIdLengthOf(e1);
+        int o2 = offsetOf(e2) + patientIdLengthOf(e2);
+        int l1 = accessionNumberLengthOf(e1);
+        int l2 = accessionNumberLengthOf(e2);
+        int n = Math.min(l1, l2);
+        for (int i = 0; i < n; i++) {
+            int c = (data[o1 + i] & 0xFF) - (data[o2 + i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return l1 - l2;
+    }
+
+    private static int compareEntries(byte[] data, long e1, long e2) {
+        int c = compareKeys(data, e1, e2);
+        return c != 0 ? c : Integer.compare(offsetOf(e1), offsetOf(e2));
+    }
+
+    /*
+     * quicksort of the entries by AccessionNumber (then offset), without
+     * boxing them.
+     */
+    private static void sort(byte[] data, long[] a, int low, int high) {
+        while (high - low > 16) {
+            int mid = (low + high) >>> 1;
+            if (compareEntries(data, a[mid], a[low]) < 0) {
+                swap(a, mid, low);
+            }
+            if (compareEntries(data, a[high], a[low]) < 0) {
+                swap(a, high, low);
+            }
+            if (compareEntries(data, a[high], a[mid]) < 0) {
+                swap(a, high, mid);
+            }
+            long pivot = a[mid];
+            int i = low;
+            int j = high;
+            while (i <= j) {
+                while (compareEntries(data, a[i], pivot) < 0) {
+                    i++;
+                }
+                while (compareEntries(data, a[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            /*
+             * recurse into the smaller part, loop on the larger one.
+             */
+            if (j - low < high - i) {
+                sort(data, a, low, j);
+                low = i;
+            } else {
+                sort(data, a, i, high);
+                high = j;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            long e = a[i];
+            int j = i - 1;
+            while (j >= low && compareEntries(data, a[j], e) > 0) {
+                a[j + 1] = a[j];
+                j--;
+            }
+            a[j + 1] = e;
+        }
+    }
+
+    private static void swap(long[] a, int i, int j) {
+        long t = a[i];
+        a[i] = a[j];
+        a[j] = t;
+    }
+
+}
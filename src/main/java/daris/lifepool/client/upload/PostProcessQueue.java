@@ -0,0 +1,266 @@
+package daris.lifepool.client.upload;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import daris.lifepool.client.task.ConnectionPool;
+
+/**
+ * Bounded queue of the server-side jobs to run after a dataset is uploaded
+ * (metadata extraction, PixelData checksum generation...), executed by a few
+ * threads, each job on a connection leased from the pool, so that the upload
+ * workers do not wait for them.
+ *
+ * A job is a service.execute request. A failed job is retried (on another
+ * connection) up to {@link #DEFAULT_MAX_ATTEMPTS} times, then once more when
+ * the queue is closed. The jobs that still fail are available from
+ * {@link #failures()}; the datasets themselves do not need to be uploaded
+ * again. The {@link Listener} is told of the jobs that succeed, e.g. to
+ * journal them.
+ */
+public class PostProcessQueue implements Closeable {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    public static final long DEFAULT_RETRY_DELAY = 2000L;
+
+    public static interface ConnectionFactory {
+        ConnectionPool.Lease lease() throws Throwable;
+    }
+
+    public static interface Listener {
+
+        /**
+         * Called, in the thread that executed it, when a job succeeds.
+         */
+        void completed(Job job);
+    }
+
+    public static class Job {
+
+        private final String _datasetCid;
+        private final String _sourcePath;
+        private final String _request;
+        private int _attempts;
+        private Throwable _error;
+
+        Job(String datasetCid, String sourcePath, String request) {
+            _datasetCid = datasetCid;
+            _sourcePath = sourcePath;
+            _request = request;
+        }
+
+        public String datasetCid() {
+            return _datasetCid;
+        }
+
+        public String sourcePath() {
+            return _sourcePath;
+        }
+
+        public int attempts() {
+            return _attempts;
+        }
+
+        /**
+         * The error of the last attempt. null if the job succeeded.
+         */
+        public Throwable error() {
+            return _error;
+        }
+    }
+
+    private static final Job END_OF_QUEUE = new Job(null, null, null);
+
+    private final ConnectionFactory _connectionFactory;
+    private final int _nbThreads;
+    private final BlockingQueue<Job> _queue;
+    private final ExecutorService _executor;
+    private final ConcurrentLinkedQueue<Job> _failures;
+    private final AtomicLong _nbDone;
+    private final AtomicLong _nbRetries;
+    private final Logger _logger;
+    private Listener _listener;
+    private boolean _closed;
+
+    public PostProcessQueue(ConnectionFactory connectionFactory, int nbThreads, int capacity, Logger logger) {
+        if (nbThreads < 1) {
+            throw new IllegalArgumentException("Invalid number of threads: " + nbThreads + ". Expects at least 1.");
+        }
+        _connectionFactory = connectionFactory;
+        _nbThreads = nbThreads;
+        _queue = new ArrayBlockingQueue<Job>(capacity);
+        _failures = new ConcurrentLinkedQueue<Job>();
+        _nbDone = new AtomicLong(0);
+        _nbRetries = new AtomicLong(0);
+        _logger = logger;
+        _executor = Executors.newFixedThreadPool(nbThreads, new ThreadFactory() {
+            private final AtomicInteger _n = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "post-processor-" + _n.incrementAndGet());
+            }
+        });
+        for (int i = 0; i < nbThreads; i++) {
+            _executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    process();
+                }
+            });
+        }
+    }
+
+    public PostProcessQueue(ConnectionFactory connectionFactory, int nbThreads, Logger logger) {
+        this(connectionFactory, nbThreads, DEFAULT_CAPACITY, logger);
+    }
+
+    public PostProcessQueue setListener(Listener listener) {
+        _listener = listener;
+        return this;
+    }
+
+    /**
+     * Adds a job to the queue. It blocks if the queue is full.
+     *
+     * @param datasetCid
+     *            the dataset the job applies to.
+     * @param sourcePath
+     *            the source file of the dataset.
+     * @param request
+     *            the arguments of service.execute.
+     * @throws InterruptedException
+     */
+    public void submit(String datasetCid, String sourcePath, String request) throws InterruptedException {
+        synchronized (this) {
+            if (_closed) {
+                throw new IllegalStateException("Post-processing queue is closed.");
+            }
+        }
+        _queue.put(new Job(datasetCid, sourcePath, request));
+    }
+
+    private void process() {
+        try {
+            while (true) {
+                Job job = _queue.take();
+                if (job == END_OF_QUEUE) {
+                    break;
+                }
+                execute(job, DEFAULT_MAX_ATTEMPTS);
+                if (job.error() != null) {
+                    _failures.add(job);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * executes the job, retrying it on another connection if it fails.
+     */
+    private void execute(Job job, int maxAttempts) throws InterruptedException {
+        for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+            job._attempts++;
+            ConnectionPool.Lease lease = null;
+            try {
+                lease = _connectionFactory.lease();
+                lease.connection().execute("service.execute", job._request);
+                lease.close();
+            } catch (Throwable e) {
+                job._error = e;
+                if (lease != null) {
+                    lease.invalidate();
+                    lease.close();
+                }
+                log(Level.WARNING, "post-processing of dataset " + job._datasetCid + " failed (attempt "
+                        + job._attempts + "): " + e.getMessage());
+                if (attempt < maxAttempts) {
+                    _nbRetries.incrementAndGet();
+                    Thread.sleep(DEFAULT_RETRY_DELAY * attempt);
+                }
+                continue;
+            }
+            job._error = null;
+            _nbDone.incrementAndGet();
+            if (_listener != null) {
+                _listener.completed(job);
+            }
+            return;
+        }
+    }
+
+    private void log(Level level, String message) {
+        if (_logger != null) {
+            _logger.log(level, message);
+        }
+    }
+
+    public long numberOfDone() {
+        return _nbDone.get();
+    }
+
+    public long numberOfRetries() {
+        return _nbRetries.get();
+    }
+
+    /**
+     * The jobs that failed after all attempts.
+     */
+    public List<Job> failures() {
+        return new ArrayList<Job>(_failures);
+    }
+
+    /**
+     * Waits for the queued jobs to complete, then retries the failed ones
+     * once more.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+        }
+        try {
+            for (int i = 0; i < _nbThreads; i++) {
+                _queue.put(END_OF_QUEUE);
+            }
+            _executor.shutdown();
+            _executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            if (!_failures.isEmpty()) {
+                List<Job> failures = failures();
+                _failures.clear();
+                for (Job job : failures) {
+                    _nbRetries.incrementAndGet();
+                    execute(job, 1);
+                    if (job.error() != null) {
+                        _failures.add(job);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            _executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+package daris.lifepool.client.upload;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A stage of the upload pipeline: a bounded input queue consumed by a fixed
+ * number of threads. Each thread has its own {@link Worker}, which usually
+ * passes the processed item on to the next stage.
+ *
+ * When the shared failure is set, the pipeline is aborted: the pending items
+ * are discarded (see {@link Worker#discard(Object)}) instead of processed.
+ *
+ * The time the threads spend processing items is recorded, minus the time
+ * they are blocked by the next stage (see {@link #submit(Object)} and
+ * {@link #blocked(long)}), so that the busiest stage shows where the
+ * bottleneck is.
+ *
+ * @param <T>
+ */
+public class Stage<T> {
+
+    public static interface Worker<T> {
+
+        void process(T item) throws Throwable;
+
+        /**
+         * Called instead of {@link #process(Object)} when the pipeline is
+         * aborted.
+         */
+        default void discard(T item) {
+
+        }
+
+        /**
+         * Releases the resources of the worker when its thread ends.
+         */
+        default void close() {
+
+        }
+    }
+
+    public static interface WorkerFactory<T> {
+        Worker<T> create() throws Throwable;
+    }
+
+    private static final ThreadLocal<Stage<?>> CURRENT = new ThreadLocal<Stage<?>>();
+
+    private final Object _endOfQueue = new Object();
+
+    private final String _name;
+    private final int _nbThreads;
+    private final BlockingQueue<Object> _queue;
+    private final WorkerFactory<T> _workerFactory;
+    private final AtomicReference<Throwable> _failure;
+    private final AtomicInteger _nbRunning;
+    private final CountDownLatch _done;
+    private final AtomicLong _busyNanos;
+    private final AtomicLong _blockedNanos;
+    private final AtomicLong _nbItems;
+    private Runnable _onFinished;
+    private long _startTime;
+    private long _endTime;
+
+    public Stage(String name, int nbThreads, int capacity, WorkerFactory<T> workerFactory,
+            AtomicReference<Throwable> failure) {
+        _name = name;
+        _nbThreads = nbThreads;
+        _queue = new ArrayBlockingQueue<Object>(capacity);
+        _workerFactory = workerFactory;
+        _failure = failure;
+        _nbRunning = new AtomicInteger(nbThreads);
+        _done = new CountDownLatch(nbThreads);
+        _busyNanos = new AtomicLong(0);
+        _blockedNanos = new AtomicLong(0);
+        _nbItems = new AtomicLong(0);
+    }
+
+    public String name() {
+        return _name;
+    }
+
+    /**
+     * Sets the action to run when all the threads of the stage have ended,
+     * e.g. finishing the next stage.
+     */
+    public Stage<T> onFinished(Runnable onFinished) {
+        _onFinished = onFinished;
+        return this;
+    }
+
+    public void start(String threadNamePrefix) {
+        _startTime = System.nanoTime();
+        for (int i = 0; i < _nbThreads; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runWorker();
+                }
+            }, threadNamePrefix + "-" + _name + "-" + (i + 1));
+            thread.start();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void runWorker() {
+        Worker<T> worker = null;
+        CURRENT.set(this);
+        try {
+            worker = _workerFactory.create();
+            Object o;
+            while ((o = _queue.take()) != _endOfQueue) {
+                T item = (T) o;
+                if (_failure.get() != null) {
+                    worker.discard(item);
+                    continue;
+                }
+                long startTime = System.nanoTime();
+                try {
+                    worker.process(item);
+                } finally {
+                    _busyNanos.addAndGet(System.nanoTime() - startTime);
+                    _nbItems.incrementAndGet();
+                }
+            }
+        } catch (Throwable e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            _failure.compareAndSet(null, e);
+            // keep draining so that the upstream stages never block.
+            drain(worker);
+        } finally {
+            CURRENT.remove();
+            if (worker != null) {
+                worker.close();
+            }
+            if (_nbRunning.decrementAndGet() == 0) {
+                _endTime = System.nanoTime();
+                if (_onFinished != null) {
+                    _onFinished.run();
+                }
+            }
+            _done.countDown();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void drain(Worker<T> worker) {
+        while (true) {
+            Object o;
+            try {
+                o = _queue.take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (o == _endOfQueue) {
+                return;
+            }
+            if (worker != null) {
+                worker.discard((T) o);
+            }
+        }
+    }
+
+    /**
+     * Adds an item to the input queue. It blocks while the queue is full,
+     * unless the pipeline is aborted.
+     *
+     * @return false if the pipeline is aborted. The item is not added.
+     * @throws InterruptedException
+     */
+    public boolean submit(T item) throws InterruptedException {
+        long startTime = System.nanoTime();
+        try {
+            while (_failure.get() == null) {
+                if (_queue.offer(item, 1, TimeUnit.SECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            blocked(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Records the time the calling thread was blocked while processing an
+     * item, e.g. waiting for memory. It is not counted as busy time of its
+     * stage.
+     */
+    public static void blocked(long nanos) {
+        Stage<?> stage = CURRENT.get();
+        if (stage != null) {
+            stage._blockedNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Signals that no more items will be submitted. The threads end once the
+     * queued items are processed.
+     */
+    public void finish() {
+        try {
+            for (int i = 0; i < _nbThreads; i++) {
+                _queue.put(_endOfQueue);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _failure.compareAndSet(null, e);
+        }
+    }
+
+    public void await() throws InterruptedException {
+        _done.await();
+    }
+
+    public long numberOfItems() {
+        return _nbItems.get();
+    }
+
+    private double fractionOfTime(long nanos) {
+        long endTime = _nbRunning.get() == 0 ? _endTime : System.nanoTime();
+        long elapsed = Math.max(endTime - _startTime, 1L);
+        return Math.min((double) nanos / ((double) elapsed * _nbThreads), 1.0);
+    }
+
+    /**
+     * The fraction of the time the threads of the stage spent processing
+     * items, not blocked by the next stage.
+     */
+    public double utilization() {
+        return fractionOfTime(Math.max(_busyNanos.get() - _blockedNanos.get(), 0L));
+    }
+
+    /**
+     * The fraction of the time the threads of the stage were blocked by the
+     * next stage.
+     */
+    public double blockedRatio() {
+        return fractionOfTime(_blockedNanos.get());
+    }
+
+    public String summary() {
+        return String.format("%s: %d threads, %d items, %.1f%% busy, %.1f%% blocked.", _name, _nbThreads,
+                numberOfItems(), utilization() * 100.0, blockedRatio() * 100.0);
+    }
+
+}
@@ -0,0 +1,332 @@
+package daris.lifepool.client.upload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only journal of the files processed by DataUpload. One line per
+ * file:
+ *
+ * <pre>
+ * status \t size \t last-modified \t SOPInstanceUID \t dataset-cid \t path
+ * </pre>
+ *
+ * A dataset whose post-processing did not complete is journaled
+ * POSTPROCESS_PENDING (or POSTPROCESS_FAILED), with its cid, until it does:
+ * its file is done, but its post-processing is submitted again when the
+ * journal is resumed.
+ *
+ * The journal is fsync'ed every {@link #DEFAULT_SYNC_ENTRIES} entries or
+ * {@link #DEFAULT_SYNC_INTERVAL} milliseconds, whichever comes first. An
+ * incomplete last line, left by a crash, is ignored when the journal is read.
+ */
+public class UploadJournal implements Closeable {
+
+    public static final int DEFAULT_SYNC_ENTRIES = 100;
+
+    public static final long DEFAULT_SYNC_INTERVAL = 5000L;
+
+    private static final String NULL = "-";
+
+    private static final char SEPARATOR = '\t';
+
+    public static class Entry {
+
+        private final String _path;
+        private final long _size;
+        private final long _lastModified;
+        private final UploadStatus _status;
+        private final String _sopInstanceUID;
+        private final String _datasetCid;
+
+        public Entry(String path, long size, long lastModified, UploadStatus status, String sopInstanceUID,
+                String datasetCid) {
+            _path = path;
+            _size = size;
+            _lastModified = lastModified;
+            _status = status;
+            _sopInstanceUID = sopInstanceUID;
+            _datasetCid = datasetCid;
+        }
+
+        public String path() {
+            return _path;
+        }
+
+        public long size() {
+            return _size;
+        }
+
+        public long lastModified() {
+            return _lastModified;
+        }
+
+        public UploadStatus status() {
+            return _status;
+        }
+
+        public String sopInstanceUID() {
+            return _sopInstanceUID;
+        }
+
+        public String datasetCid() {
+            return _datasetCid;
+        }
+
+        /*
+         * the file does not need to be processed again if it has not been
+         * modified since.
+         */
+        public boolean isDone() {
+            return _status != UploadStatus.FAILED;
+        }
+
+        /*
+         * the file is uploaded, but the post-processing of its dataset has not
+         * completed.
+         */
+        public boolean needsPostProcessing() {
+            return (_status == UploadStatus.POSTPROCESS_PENDING || _status == UploadStatus.POSTPROCESS_FAILED)
+                    && _datasetCid != null;
+        }
+
+        /**
+         * The same file, in another status.
+         */
+        public Entry withStatus(UploadStatus status) {
+            return new Entry(_path, _size, _lastModified, status, _sopInstanceUID, _datasetCid);
+        }
+
+        public boolean matches(long size, long lastModified) {
+            return _size == size && _lastModified == lastModified;
+        }
+
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(_status.name()).append(SEPARATOR);
+            sb.append(_size).append(SEPARATOR);
+            sb.append(_lastModified).append(SEPARATOR);
+            sb.append(_sopInstanceUID == null ? NULL : _sopInstanceUID).append(SEPARATOR);
+            sb.append(_datasetCid == null ? NULL : _datasetCid).append(SEPARATOR);
+            sb.append(_path);
+            return sb.toString();
+        }
+
+        static Entry parse(String line) {
+            String[] tokens = line.split(String.valueOf(SEPARATOR), 6);
+            if (tokens.length != 6 || tokens[5].isEmpty()) {
+                return null;
+            }
+            try {
+                UploadStatus status = UploadStatus.valueOf(tokens[0]);
+                long size = Long.parseLong(tokens[1]);
+                long lastModified = Long.parseLong(tokens[2]);
+                String sopInstanceUID = NULL.equals(tokens[3]) ? null : tokens[3];
+                String datasetCid = NULL.equals(tokens[4]) ? null : tokens[4];
+                return new Entry(tokens[5], size, lastModified, status, sopInstanceUID, datasetCid);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+
+    private final File _file;
+    private final Map<String, Entry> _previousEntries;
+    private final FileOutputStream _out;
+    private final Writer _writer;
+    private final int _syncEntries;
+    private final long _syncInterval;
+    private int _nbUnsynced;
+    private long _lastSyncTime;
+
+    private UploadJournal(File file, Map<String, Entry> previousEntries, int syncEntries, long syncInterval)
+            throws IOException {
+        _file = file;
+        _previousEntries = previousEntries;
+        _out = new FileOutputStream(file, true);
+        _writer = new BufferedWriter(new OutputStreamWriter(_out, StandardCharsets.UTF_8));
+        _syncEntries = syncEntries;
+        _syncInterval = syncInterval;
+        _nbUnsynced = 0;
+        _lastSyncTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Opens the journal for appending.
+     *
+     * @param file
+     *            the journal file.
+     * @param resume
+     *            if true, the existing entries are loaded (and the file is
+     *            compacted) so that the done files can be skipped.
+     * @return
+     * @throws IOException
+     */
+    public static UploadJournal open(File file, boolean resume) throws IOException {
+        Map<String, Entry> entries;
+        if (resume && file.exists()) {
+            entries = read(file);
+            write(file, entries.values());
+        } else {
+            entries = Collections.emptyMap();
+        }
+        return new UploadJournal(file, entries, DEFAULT_SYNC_ENTRIES, DEFAULT_SYNC_INTERVAL);
+    }
+
+    public File file() {
+        return _file;
+    }
+
+    /**
+     * Checks if the file was done by a previous run, and has not been modified
+     * since. It does not access the file.
+     */
+    public boolean isDone(String path, long size, long lastModified) {
+        Entry entry = _previousEntries.get(path);
+        return entry != null && entry.isDone() && entry.matches(size, lastModified);
+    }
+
+    public List<Entry> previousFailures() {
+        return failures(_previousEntries);
+    }
+
+    /**
+     * The files uploaded by a previous run whose datasets have not been
+     * post-processed.
+     */
+    public List<Entry> previousPostProcessing() {
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Entry entry : _previousEntries.values()) {
+            if (entry.needsPostProcessing()) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    public synchronized void append(Entry entry) throws IOException {
+        _writer.write(entry.toLine());
+        _writer.write('\n');
+        _nbUnsynced++;
+        if (_nbUnsynced >= _syncEntries || System.currentTimeMillis() - _lastSyncTime >= _syncInterval) {
+            sync();
+        }
+    }
+
+    public synchronized void sync() throws IOException {
+        _writer.flush();
+        _out.getChannel().force(false);
+        _nbUnsynced = 0;
+        _lastSyncTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            sync();
+        } finally {
+            _writer.close();
+        }
+    }
+
+    /**
+     * Reads the journal file. The latest entry of each path wins.
+     *
+     * @param file
+     * @return the entries keyed by path, in the order of their first
+     *         appearance.
+     * @throws IOException
+     */
+    public static Map<String, Entry> read(File file) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        boolean complete = endsWithNewLine(file);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next != null || complete) {
+                    Entry entry = Entry.parse(line);
+                    if (entry != null) {
+                        entries.put(entry.path(), entry);
+                    }
+                }
+                line = next;
+            }
+        }
+        return entries;
+    }
+
+    private static boolean endsWithNewLine(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    /**
+     * Rewrites the journal file so that it contains only the latest entry of
+     * each path. The file is replaced atomically.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public static void compact(File file) throws IOException {
+        write(file, read(file).values());
+    }
+
+    private static void write(File file, Iterable<Entry> entries) throws IOException {
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (Entry entry : entries) {
+                writer.write(entry.toLine());
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getChannel().force(false);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the failed entries of the journal file, in the order they were
+     *         journaled.
+     */
+    public static List<Entry> failures(File file) throws IOException {
+        return failures(read(file));
+    }
+
+    private static List<Entry> failures(Map<String, Entry> entries) {
+        List<Entry> failures = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (!entry.isDone()) {
+                failures.add(entry);
+            }
+        }
+        return failures;
+    }
+
+}
@@ -0,0 +1,258 @@
+package daris.lifepool.client.upload;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of reconciling the local files with the datasets in the
+ * project, written by DataUpload --reconcile and read by DataUpload --plan.
+ * One line per file:
+ *
+ * <pre>
+ * status \t size \t last-modified \t SOPInstanceUID \t AccessionNumber \t server-AccessionNumber \t dataset-cid \t path
+ * </pre>
+ *
+ * The AccessionNumber of a file is the name of its directory, as in the
+ * upload.
+ */
+public class UploadPlan {
+
+    private static final String NULL = "-";
+
+    private static final char SEPARATOR = '\t';
+
+    public static enum Status {
+
+        /*
+         * no dataset of the SOPInstanceUID in the project: to be uploaded.
+         */
+        MISSING,
+
+        /*
+         * a dataset of the SOPInstanceUID and AccessionNumber is in the
+         * project.
+         */
+        PRESENT,
+
+        /*
+         * a dataset of the SOPInstanceUID is in the project, but with another
+         * AccessionNumber: to be uploaded (as the upload would), or reviewed.
+         */
+        DIFFERENT_ACCESSION,
+
+        /*
+         * not a DICOM file, or no SOPInstanceUID.
+         */
+        IGNORED;
+    }
+
+    public static class Entry {
+
+        private final String _path;
+        private final long _size;
+        private final long _lastModified;
+        private final Status _status;
+        private final String _sopInstanceUID;
+        private final String _accessionNumber;
+        private final String _serverAccessionNumber;
+        private final String _datasetCid;
+
+        public Entry(String path, long size, long lastModified, Status status, String sopInstanceUID,
+                String accessionNumber, String serverAccessionNumber, String datasetCid) {
+            _path = path;
+            _size = size;
+            _lastModified = lastModified;
+            _status = status;
+            _sopInstanceUID = sopInstanceUID;
+            _accessionNumber = accessionNumber;
+            _serverAccessionNumber = serverAccessionNumber;
+            _datasetCid = datasetCid;
+        }
+
+        public String path() {
+            return _path;
+        }
+
+        public long size() {
+            return _size;
+        }
+
+        public long lastModified() {
+            return _lastModified;
+        }
+
+        public Status status() {
+            return _status;
+        }
+
+        public String sopInstanceUID() {
+            return _sopInstanceUID;
+        }
+
+        public String accessionNumber() {
+            return _accessionNumber;
+        }
+
+        /**
+         * The AccessionNumber of the existing dataset, if it differs.
+         */
+        public String serverAccessionNumber() {
+            return _serverAccessionNumber;
+        }
+
+        /**
+         * The existing dataset. null if missing, or if more than one dataset
+         * match.
+         */
+        public String datasetCid() {
+            return _datasetCid;
+        }
+
+        /**
+         * Whether the file needs to be uploaded: it is missing or has another
+         * AccessionNumber in the project, or it has been modified since the
+         * plan was made. It does not access the file.
+         */
+        public boolean needsUpload(long size, long lastModified) {
+            if (_status == Status.MISSING || _status == Status.DIFFERENT_ACCESSION) {
+                return true;
+            }
+            return _size != size || _lastModified != lastModified;
+        }
+
+        String toLine() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(_status.name()).append(SEPARATOR);
+            sb.append(_size).append(SEPARATOR);
+            sb.append(_lastModified).append(SEPARATOR);
+            sb.append(_sopInstanceUID == null ? NULL : _sopInstanceUID).append(SEPARATOR);
+            sb.append(_accessionNumber == null ? NULL : _accessionNumber).append(SEPARATOR);
+            sb.append(_serverAccessionNumber == null ? NULL : _serverAccessionNumber).append(SEPARATOR);
+            sb.append(_datasetCid == null ? NULL : _datasetCid).append(SEPARATOR);
+            sb.append(_path);
+            return sb.toString();
+        }
+
+        static Entry parse(String line) {
+            String[] tokens = line.split(String.valueOf(SEPARATOR), 8);
+            if (tokens.length != 8 || tokens[7].isEmpty()) {
+                return null;
+            }
+            try {
+                Status status = Status.valueOf(tokens[0]);
+                long size = Long.parseLong(tokens[1]);
+                long lastModified = Long.parseLong(tokens[2]);
+                return new Entry(tokens[7], size, lastModified, status, valueOf(tokens[3]), valueOf(tokens[4]),
+                        valueOf(tokens[5]), valueOf(tokens[6]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private static String valueOf(String token) {
+            return NULL.equals(token) ? null : token;
+        }
+    }
+
+    private final List<Entry> _entries;
+
+    public UploadPlan(List<Entry> entries) {
+        _entries = entries;
+    }
+
+    public List<Entry> entries() {
+        return _entries;
+    }
+
+    /**
+     * The entries of the files to upload.
+     */
+    public List<Entry> uploads() {
+        List<Entry> uploads = new ArrayList<Entry>();
+        for (Entry entry : _entries) {
+            if (entry.status() != Status.IGNORED && entry.needsUpload(entry.size(), entry.lastModified())) {
+                uploads.add(entry);
+            }
+        }
+        return uploads;
+    }
+
+    /**
+     * The number of files of each status.
+     */
+    public Map<Status, Long> counts() {
+        Map<Status, Long> counts = new EnumMap<Status, Long>(Status.class);
+        for (Status status : Status.values()) {
+            counts.put(status, 0L);
+        }
+        for (Entry entry : _entries) {
+            counts.put(entry.status(), counts.get(entry.status()) + 1);
+        }
+        return counts;
+    }
+
+    /**
+     * The total size of the files of each status.
+     */
+    public Map<Status, Long> sizes() {
+        Map<Status, Long> sizes = new EnumMap<Status, Long>(Status.class);
+        for (Status status : Status.values()) {
+            sizes.put(status, 0L);
+        }
+        for (Entry entry : _entries) {
+            sizes.put(entry.status(), sizes.get(entry.status()) + entry.size());
+        }
+        return sizes;
+    }
+
+    /**
+     * Reads the plan file. Invalid lines are ignored.
+     */
+    public static UploadPlan read(File file) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Entry entry = Entry.parse(line);
+                if (entry != null) {
+                    entries.add(entry);
+                }
+            }
+        }
+        return new UploadPlan(entries);
+    }
+
+    /**
+     * Writes the plan file. The file is replaced atomically.
+     */
+    public void write(File file) throws IOException {
+        File tmpFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+            for (Entry entry : _entries) {
+                writer.write(entry.toLine());
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getChannel().force(false);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
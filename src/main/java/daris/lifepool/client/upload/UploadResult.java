@@ -0,0 +1,31 @@
+package daris.lifepool.client.upload;
+
+public class UploadResult {
+
+    private final UploadStatus _status;
+    private final String _sopInstanceUID;
+    private final String _datasetCid;
+
+    public UploadResult(UploadStatus status, String sopInstanceUID, String datasetCid) {
+        _status = status;
+        _sopInstanceUID = sopInstanceUID;
+        _datasetCid = datasetCid;
+    }
+
+    public UploadResult(UploadStatus status) {
+        this(status, null, null);
+    }
+
+    public UploadStatus status() {
+        return _status;
+    }
+
+    public String sopInstanceUID() {
+        return _sopInstanceUID;
+    }
+
+    public String datasetCid() {
+        return _datasetCid;
+    }
+
+}
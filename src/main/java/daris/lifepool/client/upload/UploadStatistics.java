@@ -0,0 +1,88 @@
+package daris.lifepool.client.upload;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import daris.util.ByteUtils;
+
+public class UploadStatistics {
+
+    private final long _startTime;
+    private final AtomicLong _nbUploaded = new AtomicLong(0);
+    private final AtomicLong _nbSkipped = new AtomicLong(0);
+    private final AtomicLong _nbIgnored = new AtomicLong(0);
+    private final AtomicLong _nbFailed = new AtomicLong(0);
+    private final AtomicLong _bytesUploaded = new AtomicLong(0);
+    private final AtomicLong _bytesProcessed = new AtomicLong(0);
+
+    public UploadStatistics() {
+        _startTime = System.currentTimeMillis();
+    }
+
+    public void add(UploadStatus status, long bytes) {
+        switch (status) {
+        case UPLOADED:
+        case POSTPROCESS_PENDING:
+            _nbUploaded.incrementAndGet();
+            _bytesUploaded.addAndGet(bytes);
+            break;
+        case SKIPPED:
+            _nbSkipped.incrementAndGet();
+            break;
+        case IGNORED:
+            _nbIgnored.incrementAndGet();
+            break;
+        case FAILED:
+            _nbFailed.incrementAndGet();
+            break;
+        default:
+            break;
+        }
+        _bytesProcessed.addAndGet(bytes);
+    }
+
+    public long numberOfUploaded() {
+        return _nbUploaded.get();
+    }
+
+    public long numberOfSkipped() {
+        return _nbSkipped.get();
+    }
+
+    public long numberOfIgnored() {
+        return _nbIgnored.get();
+    }
+
+    public long numberOfFailed() {
+        return _nbFailed.get();
+    }
+
+    public long numberOfProcessed() {
+        return numberOfUploaded() + numberOfSkipped() + numberOfIgnored() + numberOfFailed();
+    }
+
+    public long bytesUploaded() {
+        return _bytesUploaded.get();
+    }
+
+    public long bytesProcessed() {
+        return _bytesProcessed.get();
+    }
+
+    public long elapsedMillis() {
+        return System.currentTimeMillis() - _startTime;
+    }
+
+    public String summary() {
+        double secs = Math.max(elapsedMillis(), 1L) / 1000.0;
+        long nbProcessed = numberOfProcessed();
+        long bytesUploaded = bytesUploaded();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("processed %d files (%d uploaded, %d skipped, %d ignored, %d failed) in %.3f seconds.",
+                nbProcessed, numberOfUploaded(), numberOfSkipped(), numberOfIgnored(), numberOfFailed(), secs));
+        sb.append(String.format(" %.2f files/second.", nbProcessed / secs));
+        sb.append(String.format(" uploaded %s at %s/second.", ByteUtils.getHumanReadableSize(bytesUploaded),
+                ByteUtils.getHumanReadableSize((long) (bytesUploaded / secs))));
+        return sb.toString();
+    }
+
+}
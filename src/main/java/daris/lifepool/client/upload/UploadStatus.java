@@ -0,0 +1,37 @@
+package daris.lifepool.client.upload;
+
+public enum UploadStatus {
+
+    /*
+     * the file was uploaded as a new dataset.
+     */
+    UPLOADED,
+
+    /*
+     * the file was previously uploaded, nothing was sent.
+     */
+    SKIPPED,
+
+    /*
+     * the file is not a DICOM file.
+     */
+    IGNORED,
+
+    /*
+     * the upload of the file failed.
+     */
+    FAILED,
+
+    /*
+     * the file was uploaded as a new dataset, whose post-processing is queued
+     * and has not completed.
+     */
+    POSTPROCESS_PENDING,
+
+    /*
+     * the file was uploaded as a new dataset, whose post-processing failed.
+     * The file does not need to be uploaded again.
+     */
+    POSTPROCESS_FAILED;
+
+}
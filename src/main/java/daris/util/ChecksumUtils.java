@@ -10,6 +10,60 @@ import java.util.zip.CheckedInputStream;
 
 public class ChecksumUtils {
 
+    /**
+     * Incremental checksum, for the callers that feed the bytes themselves
+     * instead of providing an InputStream.
+     */
+    public static abstract class Digester {
+
+        public abstract void update(byte[] b, int off, int len);
+
+        /**
+         * @return the checksum in the same hex format as
+         *         {@link ChecksumUtils#getChecksum(InputStream, String)}.
+         */
+        public abstract String digest();
+    }
+
+    public static Digester createDigester(String type) throws Throwable {
+        if ("crc32".equalsIgnoreCase(type)) {
+            final CRC32 crc32 = new CRC32();
+            return new Digester() {
+                @Override
+                public void update(byte[] b, int off, int len) {
+                    crc32.update(b, off, len);
+                }
+
+                @Override
+                public String digest() {
+                    return Long.toHexString(crc32.getValue());
+                }
+            };
+        }
+        String algorithm;
+        if ("md5".equalsIgnoreCase(type)) {
+            algorithm = "MD5";
+        } else if ("sha1".equalsIgnoreCase(type)) {
+            algorithm = "SHA-1";
+        } else if ("sha256".equalsIgnoreCase(type)) {
+            algorithm = "SHA-256";
+        } else {
+            throw new IllegalArgumentException("Unknown checksum type: " + type);
+        }
+        final MessageDigest md = MessageDigest.getInstance(algorithm);
+        return new Digester() {
+            @Override
+            public void update(byte[] b, int off, int len) {
+                md.update(b, off, len);
+            }
+
+            @Override
+            public String digest() {
+                return toHexString(md.digest());
+            }
+        };
+    }
+
     public static String getChecksum(InputStream in, String type) throws Throwable {
         if ("crc32".equalsIgnoreCase(type)) {
             return ChecksumUtils.getCRC32(in);
@@ -0,0 +1,62 @@
+package daris.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Set;
+
+public class FileUtils {
+
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * Checks if the file is readable and writable by its owner only. Always
+     * true on the file systems without POSIX permissions.
+     */
+    public static boolean isOwnerOnly(File file) throws IOException {
+        return !isPosix() || OWNER_ONLY.containsAll(Files.getPosixFilePermissions(file.toPath()));
+    }
+
+    /**
+     * Replaces the file, atomically, with a file readable and writable by its
+     * owner only. The parent directories are created if needed.
+     */
+    public static void writeOwnerOnly(File file, String content) throws IOException {
+        Path dir = file.getAbsoluteFile().getParentFile().toPath();
+        Files.createDirectories(dir);
+        /*
+         * created with the restricted permissions, so the content is never
+         * readable by others, even briefly.
+         */
+        Path tmp;
+        if (isPosix()) {
+            tmp = Files.createTempFile(dir, file.getName() + ".", ".tmp",
+                    PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+        } else {
+            tmp = Files.createTempFile(dir, file.getName() + ".", ".tmp");
+            File f = tmp.toFile();
+            f.setReadable(false, false);
+            f.setWritable(false, false);
+            f.setReadable(true, true);
+            f.setWritable(true, true);
+        }
+        try {
+            Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package daris.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-key mutual exclusion. Threads locking different keys never block each
+ * other; threads locking the same key are serialized. A lock is only kept in
+ * the map while it is held or waited for, so the number of keys is unbounded.
+ *
+ * @param <K>
+ */
+public class KeyedLock<K> {
+
+    public static interface Handle extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static class Entry {
+        final ReentrantLock lock = new ReentrantLock();
+        int refs; // guarded by ConcurrentHashMap.compute() on the key
+    }
+
+    private final ConcurrentHashMap<K, Entry> _entries = new ConcurrentHashMap<K, Entry>();
+
+    public Handle lock(K key) throws InterruptedException {
+        Entry entry = _entries.compute(key, (k, e) -> {
+            if (e == null) {
+                e = new Entry();
+            }
+            e.refs++;
+            return e;
+        });
+        try {
+            entry.lock.lockInterruptibly();
+        } catch (InterruptedException ie) {
+            release(key, entry);
+            throw ie;
+        }
+        return new Handle() {
+            private boolean _closed = false;
+
+            @Override
+            public void close() {
+                if (!_closed) {
+                    _closed = true;
+                    entry.lock.unlock();
+                    release(key, entry);
+                }
+            }
+        };
+    }
+
+    private void release(K key, Entry entry) {
+        _entries.computeIfPresent(key, (k, e) -> {
+            if (e != entry) {
+                return e;
+            }
+            return --e.refs == 0 ? null : e;
+        });
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+}
@@ -0,0 +1,77 @@
+package daris.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe map of bounded size. When it is full, the least recently used
+ * entry is evicted.
+ *
+ * @param <K>
+ * @param <V>
+ */
+public class LRUCache<K, V> {
+
+    private final int _capacity;
+    private final LinkedHashMap<K, V> _map;
+    private long _hits;
+    private long _misses;
+
+    public LRUCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        _capacity = capacity;
+        _map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > _capacity;
+            }
+        };
+    }
+
+    public int capacity() {
+        return _capacity;
+    }
+
+    /**
+     * @return the cached value or null if the key is not in the cache.
+     */
+    public synchronized V get(K key) {
+        V value = _map.get(key);
+        if (value == null) {
+            _misses++;
+        } else {
+            _hits++;
+        }
+        return value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (value == null) {
+            _map.remove(key);
+        } else {
+            _map.put(key, value);
+        }
+    }
+
+    public synchronized void remove(K key) {
+        _map.remove(key);
+    }
+
+    public synchronized int size() {
+        return _map.size();
+    }
+
+    public synchronized long hits() {
+        return _hits;
+    }
+
+    public synchronized long misses() {
+        return _misses;
+    }
+
+}
@@ -0,0 +1,18 @@
+package daris.util;
+
+import java.io.IOException;
+
+/**
+ * An I/O error on the client side of a request, e.g. reading the file it
+ * sends, as opposed to an error of the connection: retrying the request does
+ * not help.
+ */
+public class LocalIOException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public LocalIOException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,200 @@
+package daris.dicom.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pixelmed.dicom.Attribute;
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.AttributeTag;
+import com.pixelmed.dicom.CodeStringAttribute;
+import com.pixelmed.dicom.FileMetaInformation;
+import com.pixelmed.dicom.OtherByteAttribute;
+import com.pixelmed.dicom.OtherWordAttribute;
+import com.pixelmed.dicom.SOPClass;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+import com.pixelmed.dicom.UniqueIdentifierAttribute;
+import com.pixelmed.dicom.UnsignedShortAttribute;
+
+import daris.util.ChecksumUtils;
+
+/**
+ * The checksums of the file range and of the chunked OW paths are the same as
+ * the ones of the previous implementation, which copied the PixelData value
+ * into a ByteBuffer and hashed it as a stream.
+ */
+public class DicomChecksumUtilsTest {
+
+    private static final String[] TRANSFER_SYNTAXES = { TransferSyntax.ExplicitVRLittleEndian,
+            TransferSyntax.ImplicitVRLittleEndian, TransferSyntax.ExplicitVRBigEndian };
+
+    private static final String[] CHECKSUM_TYPES = { "md5", "crc32" };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /*
+     * the previous implementation of getPixelDataChecksum(Attribute, boolean,
+     * String).
+     */
+    private static String previousChecksum(Attribute pixelDataAttribute, boolean bigEndian, String checksumType)
+            throws Throwable {
+        String vr = new String(pixelDataAttribute.getVR());
+        byte[] bytes;
+        if ("OW".equalsIgnoreCase(vr)) {
+            short[] words = pixelDataAttribute.getShortValues();
+            ByteBuffer buffer = ByteBuffer.allocate(words.length * 2)
+                    .order(bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+            for (short word : words) {
+                buffer.putShort(word);
+            }
+            bytes = buffer.array();
+        } else if ("OB".equalsIgnoreCase(vr)) {
+            bytes = pixelDataAttribute.getByteValues();
+        } else {
+            throw new Exception("Invalid VR: " + vr + " for PixelData(7FE0,0010).");
+        }
+        InputStream in = new ByteArrayInputStream(bytes);
+        try {
+            return ChecksumUtils.getChecksum(in, checksumType);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void putUnsignedShort(AttributeList list, AttributeTag tag, int value) throws Throwable {
+        Attribute attribute = new UnsignedShortAttribute(tag);
+        attribute.addValue(value);
+        list.put(attribute);
+    }
+
+    private static void putString(AttributeList list, Attribute attribute, String value) throws Throwable {
+        attribute.addValue(value);
+        list.put(attribute);
+    }
+
+    /*
+     * writes a single frame image of random pixels, with the PixelData in
+     * the VR.
+     */
+    private File write(String transferSyntax, boolean ow, int bitsAllocated, int rows, int columns)
+            throws Throwable {
+        Random random = new Random(rows * 31 + columns);
+        AttributeList list = new AttributeList();
+        String sopInstanceUID = "1.2.3.4." + rows + "." + columns + "." + bitsAllocated;
+        putString(list, new UniqueIdentifierAttribute(TagFromName.SOPClassUID),
+                SOPClass.SecondaryCaptureImageStorage);
+        putString(list, new UniqueIdentifierAttribute(TagFromName.SOPInstanceUID), sopInstanceUID);
+        putUnsignedShort(list, TagFromName.SamplesPerPixel, 1);
+        putString(list, new CodeStringAttribute(TagFromName.PhotometricInterpretation), "MONOCHROME2");
+        putUnsignedShort(list, TagFromName.Rows, rows);
+        putUnsignedShort(list, TagFromName.Columns, columns);
+        putUnsignedShort(list, TagFromName.BitsAllocated, bitsAllocated);
+        putUnsignedShort(list, TagFromName.BitsStored, bitsAllocated);
+        putUnsignedShort(list, TagFromName.HighBit, bitsAllocated - 1);
+        putUnsignedShort(list, TagFromName.PixelRepresentation, 0);
+        int nbBytes = rows * columns * (bitsAllocated / 8);
+        if (ow) {
+            short[] words = new short[(nbBytes + 1) / 2];
+            for (int i = 0; i < words.length; i++) {
+                words[i] = (short) random.nextInt();
+            }
+            OtherWordAttribute pixelData = new OtherWordAttribute(TagFromName.PixelData);
+            pixelData.setValues(words);
+            list.put(pixelData);
+        } else {
+            byte[] bytes = new byte[nbBytes];
+            random.nextBytes(bytes);
+            OtherByteAttribute pixelData = new OtherByteAttribute(TagFromName.PixelData);
+            pixelData.setValues(bytes);
+            list.put(pixelData);
+        }
+        FileMetaInformation.addFileMetaInformation(list, transferSyntax, "TEST");
+        File file = folder.newFile(sopInstanceUID + "." + (ow ? "ow" : "ob") + "." + transferSyntax + ".dcm");
+        list.write(file, transferSyntax, true, true);
+        return file;
+    }
+
+    /*
+     * compares the checksums of both paths, in both byte orders, with the
+     * ones of the previous implementation.
+     */
+    private static void check(File file) throws Throwable {
+        AttributeList list = new AttributeList();
+        list.read(file);
+        Attribute pixelData = list.getPixelData();
+        String transferSyntax = Attribute.getSingleStringValueOrNull(list, TagFromName.TransferSyntaxUID);
+        for (String checksumType : CHECKSUM_TYPES) {
+            for (boolean bigEndian : new boolean[] { false, true }) {
+                String expected = previousChecksum(pixelData, bigEndian, checksumType);
+                String message = file.getName() + " " + checksumType + (bigEndian ? " BE" : " LE");
+                assertEquals(message + " (attribute)", expected,
+                        DicomChecksumUtils.getPixelDataChecksum(pixelData, bigEndian, checksumType));
+                assertEquals(message + " (file)", expected,
+                        DicomChecksumUtils.getPixelDataChecksum(file, bigEndian, checksumType));
+            }
+            assertEquals(file.getName() + " " + checksumType,
+                    previousChecksum(pixelData, TransferSyntax.isBigEndian(transferSyntax), checksumType),
+                    DicomChecksumUtils.getPixelDataChecksum(file, checksumType).getKey());
+        }
+    }
+
+    private void check(boolean ow, int bitsAllocated, int rows, int columns) throws Throwable {
+        for (String transferSyntax : TRANSFER_SYNTAXES) {
+            File file = write(transferSyntax, ow, bitsAllocated, rows, columns);
+            DicomFileLayout layout = DicomFileLayout.parse(file);
+            assertTrue(file.getName(), layout.hasPixelDataByteRange());
+            check(file);
+        }
+    }
+
+    @Test
+    public void testOW() throws Throwable {
+        check(true, 16, 4, 6);
+    }
+
+    @Test
+    public void testOB() throws Throwable {
+        check(false, 8, 4, 6);
+    }
+
+    /**
+     * 8 bit pixels in OW.
+     */
+    @Test
+    public void testOWBytes() throws Throwable {
+        check(true, 8, 4, 6);
+    }
+
+    /**
+     * An odd number of bytes: the value is padded to an even length.
+     */
+    @Test
+    public void testOddLength() throws Throwable {
+        check(false, 8, 5, 7);
+        check(true, 8, 5, 7);
+        check(true, 16, 5, 7);
+    }
+
+    /**
+     * Values longer than the 64KB chunk, neither of them a multiple of it.
+     */
+    @Test
+    public void testLargerThanChunk() throws Throwable {
+        check(true, 16, 301, 307);
+        check(false, 8, 301, 307);
+        check(true, 8, 301, 307);
+    }
+
+}
@@ -0,0 +1,152 @@
+package daris.lifepool.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.pixelmed.dicom.AttributeList;
+
+import arc.archive.ArchiveOutput;
+import daris.lifepool.client.dicom.DicomEntry;
+import daris.lifepool.client.task.ServiceExecutor;
+import daris.lifepool.client.upload.UploadResult;
+import daris.lifepool.client.upload.UploadStatus;
+
+public class DataUploadConcurrencyTest {
+
+    private static final int NB_THREADS = 16;
+    private static final int NB_ACCESSIONS = 3;
+    private static final int NB_SERIES_PER_ACCESSION = 4;
+    private static final int NB_INSTANCES_PER_SERIES = 5;
+
+    static DataUpload newUpload() throws Throwable {
+        DataUploadSettings settings = new DataUploadSettings();
+        settings.setProjectId(FakeServer.PROJECT_CID);
+        settings.setWorkers(NB_THREADS);
+        DataUpload upload = new DataUpload(settings);
+        Logger logger = Logger.getAnonymousLogger();
+        logger.setLevel(Level.OFF);
+        upload.setLogger(logger);
+        upload.initState();
+        return upload;
+    }
+
+    /*
+     * a file of the accession, read and prepared already. The server does
+     * not read its data.
+     */
+    static DataUpload.UploadItem item(String accessionNumber, String seriesInstanceUID, String sopInstanceUID,
+            String fileName) {
+        DicomEntry dicom = new DicomEntry() {
+
+            @Override
+            public long length() {
+                return 1024;
+            }
+
+            @Override
+            public boolean isCompressed() {
+                return false;
+            }
+
+            @Override
+            public InputStream stream() {
+                return new ByteArrayInputStream(new byte[1024]);
+            }
+
+            @Override
+            public void addTo(ArchiveOutput ao, String name) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        File file = new File(new File("/data", accessionNumber), fileName);
+        return new DataUpload.UploadItem(file, new AttributeList(), seriesInstanceUID, sopInstanceUID, dicom);
+    }
+
+    static UploadResult send(DataUpload upload, ServiceExecutor cxn, DataUpload.UploadItem item)
+            throws Exception {
+        try {
+            return upload.send(cxn, item);
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new Exception(e);
+        }
+    }
+
+    /**
+     * The files of several series of the same accessions, each sent twice
+     * (from two copies of the file), by concurrent workers in random order:
+     * each series is ingested once, and each instance is uploaded once.
+     */
+    @Test
+    public void testOneIngestPerSeries() throws Throwable {
+        FakeServer server = new FakeServer();
+        DataUpload upload = newUpload();
+        List<String[]> files = new ArrayList<String[]>();
+        for (int a = 1; a <= NB_ACCESSIONS; a++) {
+            for (int s = 1; s <= NB_SERIES_PER_ACCESSION; s++) {
+                for (int i = 1; i <= NB_INSTANCES_PER_SERIES; i++) {
+                    String accessionNumber = "A" + a;
+                    String seriesInstanceUID = "1.2.3." + a + "." + s;
+                    String sopInstanceUID = seriesInstanceUID + "." + i;
+                    files.add(new String[] { accessionNumber, seriesInstanceUID, sopInstanceUID, i + ".dcm" });
+                    files.add(new String[] { accessionNumber, seriesInstanceUID, sopInstanceUID, i + "-copy.dcm" });
+                }
+            }
+        }
+        Collections.shuffle(files, new Random(42));
+
+        ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<UploadResult>> results = new ArrayList<Future<UploadResult>>();
+        for (String[] f : files) {
+            DataUpload.UploadItem item = item(f[0], f[1], f[2], f[3]);
+            results.add(executor.submit(() -> {
+                start.await();
+                return send(upload, server.connect(f[0], f[1]), item);
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+
+        int nbUploaded = 0;
+        int nbSkipped = 0;
+        for (Future<UploadResult> result : results) {
+            UploadStatus status = result.get().status();
+            if (status == UploadStatus.UPLOADED) {
+                nbUploaded++;
+            } else if (status == UploadStatus.SKIPPED) {
+                nbSkipped++;
+            }
+        }
+        int nbInstances = NB_ACCESSIONS * NB_SERIES_PER_ACCESSION * NB_INSTANCES_PER_SERIES;
+        assertEquals(nbInstances, nbUploaded);
+        assertEquals(nbInstances, nbSkipped);
+        for (int a = 1; a <= NB_ACCESSIONS; a++) {
+            for (int s = 1; s <= NB_SERIES_PER_ACCESSION; s++) {
+                String seriesInstanceUID = "1.2.3." + a + "." + s;
+                assertEquals("ingests of series " + seriesInstanceUID, 1, server.ingests(seriesInstanceUID));
+                assertEquals("datasets of series " + seriesInstanceUID, NB_INSTANCES_PER_SERIES,
+                        server.datasets(seriesInstanceUID));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package daris.lifepool.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import daris.lifepool.client.task.ServiceExecutor;
+import daris.lifepool.client.upload.DatasetIndex;
+import daris.lifepool.client.upload.UploadResult;
+import daris.lifepool.client.upload.UploadStatus;
+
+/**
+ * An upload without a journal is killed while the post-processing of its
+ * datasets is still queued, so their daris:dicom-dataset is never set (the
+ * FakeServer does not set it). The next upload of the same files finds their
+ * datasets by the mf-note of their source path, submits their
+ * post-processing, and uploads only the files the killed one did not get to.
+ */
+public class DataUploadRerunTest {
+
+    private static final String ACCESSION_NUMBER = "A1";
+
+    private static final String SERIES_INSTANCE_UID = "1.2.3.1.1";
+
+    private static final int NB_INSTANCES = 6;
+
+    private static final int NB_UPLOADED = 4;
+
+    private static DataUpload.UploadItem item(int instance) {
+        return DataUploadConcurrencyTest.item(ACCESSION_NUMBER, SERIES_INSTANCE_UID,
+                SERIES_INSTANCE_UID + "." + instance, instance + ".dcm");
+    }
+
+    @Test
+    public void testKilledBeforePostProcessing() throws Throwable {
+        FakeServer server = new FakeServer();
+        ServiceExecutor cxn = server.connect(ACCESSION_NUMBER, SERIES_INSTANCE_UID);
+
+        /*
+         * the killed upload: its post-processing requests are lost and its
+         * last files are not sent.
+         */
+        server.losePostProcessing(true);
+        DataUpload killed = DataUploadConcurrencyTest.newUpload();
+        List<String> cids = new ArrayList<String>();
+        for (int i = 1; i <= NB_UPLOADED; i++) {
+            DataUpload.UploadItem item = item(i);
+            assertNull(killed.findUploadedDataset(cxn, item));
+            cids.add(DataUploadConcurrencyTest.send(killed, cxn, item).datasetCid());
+        }
+        assertEquals(NB_UPLOADED, server.datasets(SERIES_INSTANCE_UID));
+        server.losePostProcessing(false);
+
+        /*
+         * the prefetched index of the next upload has the datasets by their
+         * mf-note (loaded in pages of 3).
+         */
+        DatasetIndex index = DatasetIndex.load(cxn, FakeServer.PROJECT_CID, 3);
+        for (int i = 1; i <= NB_UPLOADED; i++) {
+            String path = new File(new File("/data", ACCESSION_NUMBER), i + ".dcm").getAbsolutePath();
+            assertEquals("instance " + i, cids.get(i - 1), index.findByNote("source: " + path));
+        }
+
+        /*
+         * the next upload skips the files found, as the reader does, and
+         * submits their post-processing.
+         */
+        DataUpload upload = DataUploadConcurrencyTest.newUpload();
+        for (int i = 1; i <= NB_INSTANCES; i++) {
+            DataUpload.UploadItem item = item(i);
+            String cid = upload.findUploadedDataset(cxn, item);
+            if (i <= NB_UPLOADED) {
+                assertEquals("instance " + i, cids.get(i - 1), cid);
+                assertTrue("instance " + i, server.postProcessed(cid));
+            } else {
+                assertNull("instance " + i, cid);
+                UploadResult result = DataUploadConcurrencyTest.send(upload, cxn, item);
+                assertEquals(UploadStatus.UPLOADED, result.status());
+                assertTrue("instance " + i, server.postProcessed(result.datasetCid()));
+            }
+        }
+        assertEquals(NB_INSTANCES, server.datasets(SERIES_INSTANCE_UID));
+        assertEquals(1, server.ingests(SERIES_INSTANCE_UID));
+    }
+
+}
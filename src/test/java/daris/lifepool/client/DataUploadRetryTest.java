@@ -0,0 +1,99 @@
+package daris.lifepool.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.SocketException;
+
+import org.junit.Test;
+
+import daris.lifepool.client.task.ServiceExecutor;
+import daris.lifepool.client.upload.UploadResult;
+import daris.lifepool.client.upload.UploadStatus;
+
+/**
+ * A request is executed by the server, but its reply is lost: the retry finds
+ * what the request did by the mf-note of the file (daris:dicom-dataset is not
+ * set until the post-processing runs), and does not create a duplicate.
+ */
+public class DataUploadRetryTest {
+
+    private static final String ACCESSION_NUMBER = "A1";
+
+    private static final String SERIES_INSTANCE_UID = "1.2.3.1.1";
+
+    private static DataUpload.UploadItem item(int instance) {
+        return DataUploadConcurrencyTest.item(ACCESSION_NUMBER, SERIES_INSTANCE_UID,
+                SERIES_INSTANCE_UID + "." + instance, instance + ".dcm");
+    }
+
+    /*
+     * the first attempt fails on the lost reply, the retry succeeds.
+     */
+    private static UploadResult sendAndRetry(DataUpload upload, ServiceExecutor cxn,
+            DataUpload.UploadItem item) throws Throwable {
+        try {
+            upload.send(cxn, item);
+            fail("reply not lost");
+        } catch (SocketException e) {
+            // expected.
+        }
+        return upload.resend(cxn, item);
+    }
+
+    @Test
+    public void testCreateReplyLost() throws Throwable {
+        FakeServer server = new FakeServer();
+        ServiceExecutor cxn = server.connect(ACCESSION_NUMBER, SERIES_INSTANCE_UID);
+        DataUpload upload = DataUploadConcurrencyTest.newUpload();
+        assertEquals(UploadStatus.UPLOADED, upload.send(cxn, item(1)).status());
+
+        server.loseNextReply("om.pssd.dataset.derivation.create");
+        UploadResult result = sendAndRetry(upload, cxn, item(2));
+        assertEquals(UploadStatus.UPLOADED, result.status());
+        assertEquals(2, server.datasets(SERIES_INSTANCE_UID));
+        assertEquals(UploadStatus.SKIPPED, upload.send(cxn, item(2)).status());
+    }
+
+    @Test
+    public void testIngestReplyLost() throws Throwable {
+        FakeServer server = new FakeServer();
+        ServiceExecutor cxn = server.connect(ACCESSION_NUMBER, SERIES_INSTANCE_UID);
+        DataUpload upload = DataUploadConcurrencyTest.newUpload();
+
+        server.loseNextReply("dicom.ingest");
+        assertEquals(UploadStatus.UPLOADED, sendAndRetry(upload, cxn, item(1)).status());
+        assertEquals(1, server.ingests(SERIES_INSTANCE_UID));
+        assertEquals(1, server.datasets(SERIES_INSTANCE_UID));
+
+        /*
+         * the ingested dataset was updated: the next file of the series is
+         * created next to it.
+         */
+        assertEquals(UploadStatus.UPLOADED, upload.send(cxn, item(2)).status());
+        assertEquals(1, server.ingests(SERIES_INSTANCE_UID));
+        assertEquals(2, server.datasets(SERIES_INSTANCE_UID));
+    }
+
+    /**
+     * The query of the newly ingested dataset fails: it is updated by the
+     * retry, not ingested again.
+     */
+    @Test
+    public void testIngestFollowUpLost() throws Throwable {
+        FakeServer server = new FakeServer();
+        ServiceExecutor cxn = server.connect(ACCESSION_NUMBER, SERIES_INSTANCE_UID);
+        DataUpload upload = DataUploadConcurrencyTest.newUpload();
+
+        server.loseNextReply("service.execute");
+        assertEquals(UploadStatus.UPLOADED, sendAndRetry(upload, cxn, item(1)).status());
+        assertEquals(1, server.ingests(SERIES_INSTANCE_UID));
+        assertEquals(1, server.datasets(SERIES_INSTANCE_UID));
+        assertEquals(UploadStatus.SKIPPED, upload.send(cxn, item(1)).status());
+
+        assertEquals(UploadStatus.UPLOADED, upload.send(cxn, item(2)).status());
+        assertEquals(1, server.ingests(SERIES_INSTANCE_UID));
+        assertEquals(2, server.datasets(SERIES_INSTANCE_UID));
+    }
+
+}
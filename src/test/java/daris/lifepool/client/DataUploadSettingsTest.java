@@ -0,0 +1,79 @@
+package daris.lifepool.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DataUploadSettingsTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private DataUploadSettings settings() throws Throwable {
+        DataUploadSettings settings = new DataUploadSettings();
+        settings.setServer("localhost", 443, "https");
+        settings.setToken("token");
+        settings.setProjectId(FakeServer.PROJECT_CID);
+        settings.addFile(folder.newFolder("A1"));
+        return settings;
+    }
+
+    private static void assertInvalid(DataUploadSettings settings, String message) throws Throwable {
+        try {
+            settings.validate();
+            fail("valid");
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testPatientIdMapping() throws Throwable {
+        DataUploadSettings settings = settings();
+        assertInvalid(settings, "Missing patient.id.map");
+
+        File mappingFile = new File(folder.getRoot(), "mapping.csv");
+        settings.setPatientIdMappingFile(mappingFile);
+        assertInvalid(settings, "patient.id.map file: '" + mappingFile.getPath() + "' does not exist.");
+
+        mappingFile.createNewFile();
+        settings.validate();
+    }
+
+    /**
+     * Reconciling does not map the PatientIDs.
+     */
+    @Test
+    public void testReconcile() throws Throwable {
+        DataUploadSettings settings = settings();
+        settings.setReconcileFile(new File(folder.getRoot(), "upload.plan"));
+        settings.validate();
+
+        settings.setPatientIdMappingFile(new File(folder.getRoot(), "mapping.csv"));
+        settings.validate();
+    }
+
+    @Test
+    public void testPlan() throws Throwable {
+        DataUploadSettings settings = new DataUploadSettings();
+        settings.setServer("localhost", 443, "https");
+        settings.setToken("token");
+        settings.setProjectId(FakeServer.PROJECT_CID);
+        settings.setPatientIdMappingFile(folder.newFile("mapping.csv"));
+        File planFile = new File(folder.getRoot(), "upload.plan");
+        settings.setPlanFile(planFile);
+        assertInvalid(settings, "Plan file: '" + planFile.getPath() + "' does not exist.");
+
+        planFile.createNewFile();
+        settings.validate();
+
+        settings.setReconcileFile(new File(folder.getRoot(), "other.plan"));
+        assertInvalid(settings, "Cannot reconcile and upload a plan at the same time.");
+    }
+
+}
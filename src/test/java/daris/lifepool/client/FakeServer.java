@@ -0,0 +1,354 @@
+package daris.lifepool.client;
+
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import arc.mf.client.ServerClient;
+import arc.xml.XmlDoc;
+import daris.lifepool.client.task.ServiceExecutor;
+
+/**
+ * An in-memory server with the services the upload calls: dicom.ingest
+ * creates the study of the accession (if it does not exist) and a dataset
+ * without mf-note; om.pssd.dataset.derivation.create creates a dataset with
+ * the mf-note of its arguments; asset.query understands the where clauses of
+ * the upload. The DICOM data sent is not read: a connection is opened for
+ * the accession and the series of the data it sends. The post-processing
+ * requests are recorded, but daris:dicom-dataset is never set, as while the
+ * post-processing is pending.
+ */
+class FakeServer {
+
+    static final String PROJECT_CID = "1.5.1";
+
+    private static final Pattern CID_IN = Pattern.compile("cid in '([^']+)'");
+    private static final Pattern CID_STARTS_WITH = Pattern.compile("cid starts with '([^']+)'");
+    private static final Pattern SERIES_UID = Pattern.compile("xpath\\(mf-dicom-series/uid\\)='([^']+)'");
+    private static final Pattern NOTE = Pattern.compile("xpath\\(mf-note/note\\)='([^']*)'");
+
+    private static class Study {
+
+        final String id;
+        final String cid;
+        String name;
+
+        Study(String id, String cid) {
+            this.id = id;
+            this.cid = cid;
+        }
+    }
+
+    private static class Dataset {
+
+        final String id;
+        final String cid;
+        final String seriesInstanceUID;
+        String note;
+
+        Dataset(String id, String cid, String seriesInstanceUID, String note) {
+            this.id = id;
+            this.cid = cid;
+            this.seriesInstanceUID = seriesInstanceUID;
+            this.note = note;
+        }
+    }
+
+    private final Map<String, Study> _studies = new LinkedHashMap<String, Study>();
+    private final Map<String, List<Dataset>> _datasets = new LinkedHashMap<String, List<Dataset>>();
+    private final Map<String, Integer> _ingests = new HashMap<String, Integer>();
+    private final Set<String> _lostReplies = new HashSet<String>();
+    private final Set<String> _postProcessed = new HashSet<String>();
+    private boolean _postProcessingLost;
+    private int _nextId;
+
+    /**
+     * A connection sending the DICOM data of the series.
+     */
+    ServiceExecutor connect(String accessionNumber, String seriesInstanceUID) {
+        return new ServiceExecutor() {
+
+            @Override
+            public XmlDoc.Element execute(String service, String args) throws Throwable {
+                return execute(service, args, null);
+            }
+
+            @Override
+            public XmlDoc.Element execute(String service, String args, ServerClient.Input in) throws Throwable {
+                XmlDoc.Element ae = new XmlDoc().parse("<args>" + (args == null ? "" : args) + "</args>");
+                String reply = FakeServer.this.execute(service, ae, accessionNumber, seriesInstanceUID);
+                /*
+                 * the latency of the network: the other uploads run
+                 * meanwhile.
+                 */
+                Thread.sleep(1);
+                if (replyLost(service)) {
+                    throw new SocketException("Connection reset");
+                }
+                return new XmlDoc().parse("<result>" + reply + "</result>");
+            }
+        };
+    }
+
+    /**
+     * The next call of the service is executed, but the connection fails
+     * before its reply is received.
+     */
+    synchronized void loseNextReply(String service) {
+        _lostReplies.add(service);
+    }
+
+    private synchronized boolean replyLost(String service) {
+        return _lostReplies.remove(service);
+    }
+
+    /**
+     * The post-processing requests are lost (as if queued by an upload that
+     * is killed), or received.
+     */
+    synchronized void losePostProcessing(boolean lost) {
+        _postProcessingLost = lost;
+    }
+
+    /**
+     * The post-processing of the dataset was requested. (It does not set
+     * daris:dicom-dataset.)
+     */
+    synchronized boolean postProcessed(String datasetCid) {
+        return _postProcessed.contains(datasetCid);
+    }
+
+    synchronized int ingests(String seriesInstanceUID) {
+        Integer n = _ingests.get(seriesInstanceUID);
+        return n == null ? 0 : n;
+    }
+
+    synchronized int datasets(String seriesInstanceUID) {
+        List<Dataset> datasets = _datasets.get(seriesInstanceUID);
+        return datasets == null ? 0 : datasets.size();
+    }
+
+    synchronized int datasets() {
+        int n = 0;
+        for (List<Dataset> datasets : _datasets.values()) {
+            n += datasets.size();
+        }
+        return n;
+    }
+
+    private synchronized String execute(String service, XmlDoc.Element args, String accessionNumber,
+            String seriesInstanceUID) throws Throwable {
+        if ("service.execute".equals(service)) {
+            StringBuilder sb = new StringBuilder("<reply>");
+            List<XmlDoc.Element> ses = args.elements("service");
+            if (ses != null) {
+                for (XmlDoc.Element se : ses) {
+                    sb.append("<response>");
+                    sb.append(execute(se.value("@name"), se, accessionNumber, seriesInstanceUID));
+                    sb.append("</response>");
+                }
+            }
+            return sb.append("</reply>").toString();
+        } else if ("dicom.ingest".equals(service)) {
+            Study study = _studies.get(accessionNumber);
+            if (study == null) {
+                study = new Study(nextId(), PROJECT_CID + ".1.1." + (_studies.size() + 1));
+                _studies.put(accessionNumber, study);
+            }
+            _ingests.put(seriesInstanceUID, ingests(seriesInstanceUID) + 1);
+            create(study.cid, seriesInstanceUID, null);
+            return "<study id=\"" + study.id + "\"/>";
+        } else if ("asset.identifier.get".equals(service)) {
+            return "<id cid=\"" + studyById(args.value("id")).cid + "\"/>";
+        } else if ("om.pssd.dataset.derivation.create".equals(service)) {
+            return "<id>" + create(args.value("pid"), seriesInstanceUID, args.value("meta/mf-note/note")).cid
+                    + "</id>";
+        } else if ("asset.query".equals(service)) {
+            return query(args);
+        } else if ("asset.get".equals(service)) {
+            String cid = args.value("cid");
+            Study study = studyByCid(cid);
+            return study != null ? toXml(study) : toXml(datasetByCid(cid));
+        } else if ("asset.set".equals(service)) {
+            String note = args.value("meta/mf-note/note");
+            if (note != null) {
+                datasetById(args.value("id")).note = note;
+            }
+            String name = args.value("meta/daris:pssd-object/name");
+            if (name != null && args.value("cid") != null) {
+                studyByCid(args.value("cid")).name = name;
+            }
+            return "";
+        } else if ("vicnode.daris.lifepool.metadata.extract".equals(service)) {
+            if (!_postProcessingLost) {
+                _postProcessed.add(args.value("cid"));
+            }
+            return "";
+        }
+        // checksums: not modelled.
+        return "";
+    }
+
+    private Dataset create(String studyCid, String seriesInstanceUID, String note) {
+        int n = 0;
+        for (List<Dataset> datasets : _datasets.values()) {
+            for (Dataset dataset : datasets) {
+                if (dataset.cid.startsWith(studyCid + ".")) {
+                    n++;
+                }
+            }
+        }
+        Dataset dataset = new Dataset(nextId(), studyCid + "." + (n + 1), seriesInstanceUID, note);
+        List<Dataset> datasets = _datasets.get(seriesInstanceUID);
+        if (datasets == null) {
+            datasets = new ArrayList<Dataset>();
+            _datasets.put(seriesInstanceUID, datasets);
+        }
+        datasets.add(dataset);
+        return dataset;
+    }
+
+    /*
+     * the actions get-cid, get-value (of the cid and mf-note/note only: the
+     * other values are not set), count and get-meta.
+     */
+    private String query(XmlDoc.Element args) throws Throwable {
+        String where = args.value("where");
+        String action = args.value("action");
+        int size = args.intValue("size", Integer.MAX_VALUE);
+        int skipped = args.intValue("idx", 1) - 1;
+        String studyCid = group(CID_IN, where);
+        String projectCid = group(CID_STARTS_WITH, where);
+        String seriesInstanceUID = group(SERIES_UID, where);
+        String note = group(NOTE, where);
+        boolean hasNote = where.contains("mf-note has value");
+        boolean hasNoNote = where.contains("mf-note hasno value");
+        /*
+         * daris:dicom-dataset is never set: its values never match, unless
+         * the mf-note is an alternative.
+         */
+        boolean daris = where.contains("daris:dicom-dataset") && !where.contains("daris:dicom-dataset hasno value")
+                && !where.contains(" or xpath(mf-note/note)=");
+        StringBuilder sb = new StringBuilder();
+        int n = 0;
+        for (List<Dataset> datasets : _datasets.values()) {
+            for (Dataset dataset : datasets) {
+                if (n >= size || daris || (studyCid != null && !dataset.cid.startsWith(studyCid + "."))
+                        || (projectCid != null && !dataset.cid.startsWith(projectCid + "."))
+                        || (seriesInstanceUID != null && !seriesInstanceUID.equals(dataset.seriesInstanceUID))
+                        || (note != null && !note.equals(dataset.note)) || (hasNote && dataset.note == null)
+                        || (hasNoNote && dataset.note != null)) {
+                    continue;
+                }
+                if (skipped > 0) {
+                    skipped--;
+                    continue;
+                }
+                if ("get-cid".equals(action)) {
+                    sb.append("<cid>").append(dataset.cid).append("</cid>");
+                } else if ("get-value".equals(action)) {
+                    sb.append("<asset>");
+                    for (XmlDoc.Element xe : args.elements("xpath")) {
+                        String value = "cid".equals(xe.value()) ? dataset.cid
+                                : "meta/mf-note/note".equals(xe.value()) ? dataset.note : null;
+                        if (value != null) {
+                            String ename = xe.value("@ename");
+                            sb.append("<").append(ename).append(">").append(escape(value)).append("</")
+                                    .append(ename).append(">");
+                        }
+                    }
+                    sb.append("</asset>");
+                } else if (!"count".equals(action)) {
+                    sb.append(toXml(dataset));
+                }
+                n++;
+            }
+        }
+        return "count".equals(action) ? "<value>" + n + "</value>" : sb.toString();
+    }
+
+    private static String group(Pattern pattern, String where) {
+        Matcher m = pattern.matcher(where);
+        return m.find() ? m.group(1) : null;
+    }
+
+    private String nextId() {
+        return Integer.toString(++_nextId);
+    }
+
+    private Study studyById(String id) {
+        for (Study study : _studies.values()) {
+            if (study.id.equals(id)) {
+                return study;
+            }
+        }
+        throw new IllegalArgumentException("No study of id " + id);
+    }
+
+    private Study studyByCid(String cid) {
+        for (Study study : _studies.values()) {
+            if (study.cid.equals(cid)) {
+                return study;
+            }
+        }
+        return null;
+    }
+
+    private Dataset datasetById(String id) {
+        for (List<Dataset> datasets : _datasets.values()) {
+            for (Dataset dataset : datasets) {
+                if (dataset.id.equals(id)) {
+                    return dataset;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No dataset of id " + id);
+    }
+
+    private Dataset datasetByCid(String cid) {
+        for (List<Dataset> datasets : _datasets.values()) {
+            for (Dataset dataset : datasets) {
+                if (dataset.cid.equals(cid)) {
+                    return dataset;
+                }
+            }
+        }
+        throw new IllegalArgumentException("No dataset of cid " + cid);
+    }
+
+    private static String toXml(Study study) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<asset id=\"").append(study.id).append("\"><cid>").append(study.cid).append("</cid><meta>");
+        sb.append("<daris:pssd-object id=\"1\">");
+        if (study.name != null) {
+            sb.append("<name>").append(escape(study.name)).append("</name>");
+        }
+        sb.append("</daris:pssd-object></meta></asset>");
+        return sb.toString();
+    }
+
+    private static String toXml(Dataset dataset) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<asset id=\"").append(dataset.id).append("\"><cid>").append(dataset.cid).append("</cid><meta>");
+        sb.append("<daris:pssd-derivation><method step=\"1\">").append(PROJECT_CID)
+                .append(".2.1</method></daris:pssd-derivation>");
+        sb.append("<mf-dicom-series><uid>").append(dataset.seriesInstanceUID).append("</uid></mf-dicom-series>");
+        if (dataset.note != null) {
+            sb.append("<mf-note><note>").append(escape(dataset.note)).append("</note></mf-note>");
+        }
+        sb.append("</meta></asset>");
+        return sb.toString();
+    }
+
+    private static String escape(String s) {
+        return s.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+}
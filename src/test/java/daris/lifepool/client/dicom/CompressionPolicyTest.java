@@ -0,0 +1,133 @@
+package daris.lifepool.client.dicom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CompressionPolicyTest {
+
+    private static final long BYTES = 1024 * 1024;
+
+    /*
+     * records a transfer of 1MB at the level, given its CPU cost per byte,
+     * its ratio and the network cost per compressed byte.
+     */
+    private static void record(CompressionPolicy policy, int level, double cpuNanosPerByte, double ratio,
+            double networkNanosPerByte) {
+        long compressedBytes = (long) (ratio * BYTES);
+        long writeNanos = (long) (networkNanosPerByte * compressedBytes);
+        policy.record(level, BYTES, compressedBytes, (long) (cpuNanosPerByte * BYTES) + writeNanos, writeNanos);
+    }
+
+    /*
+     * measures each level twice, on a slow link: level 1 has the least
+     * estimated time per byte (2 + 0.4 * 10).
+     */
+    private static CompressionPolicy warmUp() {
+        CompressionPolicy policy = CompressionPolicy.auto();
+        List<Integer> tried = new ArrayList<Integer>();
+        for (int i = 0; i < 8; i++) {
+            int level = policy.level(false);
+            tried.add(level);
+            switch (level) {
+            case 0:
+                record(policy, 0, 0.0, 1.0, 10.0);
+                break;
+            case 1:
+                record(policy, 1, 2.0, 0.4, 10.0);
+                break;
+            case 3:
+                record(policy, 3, 4.0, 0.39, 10.0);
+                break;
+            case 6:
+                record(policy, 6, 8.0, 0.38, 10.0);
+                break;
+            default:
+                fail("unexpected level " + level);
+            }
+        }
+        assertEquals(Arrays.asList(1, 1, 6, 6, 0, 0, 3, 3), tried);
+        return policy;
+    }
+
+    @Test
+    public void testParse() {
+        assertEquals("off", CompressionPolicy.parse("off").toString());
+        assertEquals("auto", CompressionPolicy.parse(" AUTO ").toString());
+        assertEquals("6", CompressionPolicy.parse("6").toString());
+        assertEquals(9, CompressionPolicy.parse(" 9").level(false));
+        assertEquals(0, CompressionPolicy.parse("off").level(false));
+        for (String value : new String[] { "10", "-1", "fast", "", null }) {
+            try {
+                CompressionPolicy.parse(value);
+                fail("parsed " + value);
+            } catch (IllegalArgumentException e) {
+                // expected.
+            }
+        }
+    }
+
+    @Test
+    public void testCompressedPixelData() {
+        assertEquals(0, CompressionPolicy.fixed(6).level(true));
+        assertEquals(0, CompressionPolicy.auto().level(true));
+        assertEquals(0, warmUp().level(true));
+    }
+
+    /**
+     * Once every level is measured, the best one is used, and every 50th
+     * choice tries one of the others in turn (skipping the best one).
+     */
+    @Test
+    public void testExplorationInterval() {
+        CompressionPolicy policy = warmUp();
+        for (int choice = 1; choice <= 200; choice++) {
+            int level = policy.level(false);
+            switch (choice) {
+            case 50:
+                assertEquals(6, level);
+                break;
+            case 100:
+                assertEquals(0, level);
+                break;
+            case 150:
+                assertEquals(3, level);
+                break;
+            default:
+                assertEquals("choice " + choice, 1, level);
+            }
+        }
+        assertEquals("auto (level 1, 100.0 MB/s network)", policy.toString());
+    }
+
+    /**
+     * The transfers too small to be measured are ignored.
+     */
+    @Test
+    public void testSmallTransfers() {
+        CompressionPolicy policy = CompressionPolicy.auto();
+        for (int i = 0; i < 10; i++) {
+            policy.record(1, 1024, 512, 100000, 50000);
+        }
+        assertEquals(1, policy.level(false));
+        assertEquals("auto", policy.toString());
+    }
+
+    /**
+     * When the link gets faster, compressing costs more than it saves.
+     */
+    @Test
+    public void testFasterLink() {
+        CompressionPolicy policy = warmUp();
+        for (int i = 0; i < 50; i++) {
+            record(policy, 1, 2.0, 0.4, 0.1);
+        }
+        assertEquals(0, policy.level(false));
+    }
+
+}
@@ -0,0 +1,299 @@
+package daris.lifepool.client.dicom;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.pixelmed.dicom.AttributeList;
+import com.pixelmed.dicom.DicomInputStream;
+import com.pixelmed.dicom.TagFromName;
+import com.pixelmed.dicom.TransferSyntax;
+
+import daris.dicom.util.DicomFileLayout;
+
+/**
+ * A spliced DICOM object (re-encoded header + PixelData copied from the file)
+ * is the same as the complete AttributeList re-encoded, after the same edits
+ * of the header.
+ */
+public class DicomSpliceTest {
+
+    private static final int PIXEL_DATA = 0x7FE00010;
+
+    private static final int ITEM = 0xFFFEE000;
+    private static final int ITEM_DELIMITATION = 0xFFFEE00D;
+    private static final int SEQUENCE_DELIMITATION = 0xFFFEE0DD;
+
+    private static final int UNDEFINED_LENGTH = 0xFFFFFFFF;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /*
+     * encodes elements in explicit or implicit VR little endian, as they are
+     * given: in particular the values are not padded, so their length can be
+     * odd.
+     */
+    private static class Encoder {
+
+        private final boolean _explicit;
+        private final ByteArrayOutputStream _os = new ByteArrayOutputStream();
+
+        Encoder(boolean explicit) {
+            _explicit = explicit;
+        }
+
+        private void writeShort(int value) {
+            _os.write(value & 0xFF);
+            _os.write((value >>> 8) & 0xFF);
+        }
+
+        private void writeInt(int value) {
+            writeShort(value & 0xFFFF);
+            writeShort(value >>> 16);
+        }
+
+        private void writeTag(int tag) {
+            writeShort(tag >>> 16);
+            writeShort(tag & 0xFFFF);
+        }
+
+        private void writeHeader(int tag, String vr, int length) {
+            writeTag(tag);
+            if (!_explicit) {
+                writeInt(length);
+            } else if (vr.equals("OB") || vr.equals("OW") || vr.equals("SQ")) {
+                _os.write(vr.charAt(0));
+                _os.write(vr.charAt(1));
+                writeShort(0);
+                writeInt(length);
+            } else {
+                _os.write(vr.charAt(0));
+                _os.write(vr.charAt(1));
+                writeShort(length);
+            }
+        }
+
+        Encoder element(int tag, String vr, byte[] value) {
+            writeHeader(tag, vr, value.length);
+            _os.write(value, 0, value.length);
+            return this;
+        }
+
+        Encoder string(int tag, String vr, String value) {
+            return element(tag, vr, value.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        Encoder unsignedShort(int tag, int value) {
+            return element(tag, "US", new byte[] { (byte) value, (byte) (value >>> 8) });
+        }
+
+        Encoder unsignedInt(int tag, int value) {
+            return element(tag, "UL",
+                    new byte[] { (byte) value, (byte) (value >>> 8), (byte) (value >>> 16), (byte) (value >>> 24) });
+        }
+
+        /*
+         * a sequence of the items (see item()), of undefined length or not.
+         */
+        Encoder sequence(int tag, boolean undefinedLength, byte[]... items) {
+            int length = 0;
+            for (byte[] item : items) {
+                length += item.length;
+            }
+            writeHeader(tag, "SQ", undefinedLength ? UNDEFINED_LENGTH : length);
+            for (byte[] item : items) {
+                _os.write(item, 0, item.length);
+            }
+            if (undefinedLength) {
+                writeTag(SEQUENCE_DELIMITATION);
+                writeInt(0);
+            }
+            return this;
+        }
+
+        /*
+         * an item of the sequence, with the elements of the encoder.
+         */
+        byte[] item(boolean undefinedLength) {
+            byte[] content = toByteArray();
+            Encoder item = new Encoder(_explicit);
+            item.writeTag(ITEM);
+            item.writeInt(undefinedLength ? UNDEFINED_LENGTH : content.length);
+            item._os.write(content, 0, content.length);
+            if (undefinedLength) {
+                item.writeTag(ITEM_DELIMITATION);
+                item.writeInt(0);
+            }
+            return item.toByteArray();
+        }
+
+        byte[] toByteArray() {
+            return _os.toByteArray();
+        }
+    }
+
+    private static String uid(String uid) {
+        return uid.length() % 2 == 0 ? uid : uid + '\0';
+    }
+
+    /*
+     * writes a part 10 file with a header of odd length values and of
+     * sequences (and items) of defined and undefined length, followed by the
+     * PixelData. Its length is even: 8 bit pixels are padded.
+     */
+    private File write(String name, String transferSyntax, int bitsAllocated) throws IOException {
+        boolean explicit = !TransferSyntax.ImplicitVRLittleEndian.equals(transferSyntax);
+        String sopClassUID = "1.2.840.10008.5.1.4.1.1.7";
+        String sopInstanceUID = "1.2.3.4.5.6." + bitsAllocated + (explicit ? ".1" : ".2");
+
+        byte[] meta = new Encoder(true).element(0x00020001, "OB", new byte[] { 0x00, 0x01 })
+                .string(0x00020002, "UI", uid(sopClassUID)).string(0x00020003, "UI", uid(sopInstanceUID))
+                .string(0x00020010, "UI", uid(transferSyntax)).toByteArray();
+
+        byte[] referencedImage = new Encoder(explicit).string(0x00081150, "UI", sopClassUID)
+                .string(0x00081155, "UI", "1.2.3.4.5.7").item(true);
+        byte[] code = new Encoder(explicit).string(0x00080100, "SH", "X1").string(0x00080102, "SH", "L")
+                .item(true);
+        byte[] requestAttributes = new Encoder(explicit).sequence(0x00400008, false, code)
+                .string(0x00401001, "SH", "ABC").item(false);
+
+        int rows = 5;
+        int columns = 7;
+        byte[] pixels = new byte[(rows * columns * bitsAllocated / 8 + 1) & ~1];
+        new Random(bitsAllocated).nextBytes(pixels);
+
+        Encoder dataset = new Encoder(explicit).string(0x00080016, "UI", sopClassUID)
+                .string(0x00080018, "UI", sopInstanceUID).string(0x00080050, "SH", "A1")
+                .sequence(0x00081140, true, referencedImage).string(0x00100010, "PN", "Doe^J")
+                .string(0x00100020, "LO", "P1").string(0x0020000D, "UI", "1.2.3.4.5")
+                .string(0x0020000E, "UI", "1.2.3.4.5.6").unsignedShort(0x00280002, 1)
+                .string(0x00280004, "CS", "MONOCHROME2").unsignedShort(0x00280010, rows)
+                .unsignedShort(0x00280011, columns).unsignedShort(0x00280100, bitsAllocated)
+                .unsignedShort(0x00280101, bitsAllocated).unsignedShort(0x00280102, bitsAllocated - 1)
+                .unsignedShort(0x00280103, 0).sequence(0x00400260, true)
+                .sequence(0x00400275, false, requestAttributes);
+        dataset.element(PIXEL_DATA, bitsAllocated > 8 ? "OW" : "OB", pixels);
+
+        File file = folder.newFile(name);
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(new byte[DicomFileLayout.PREAMBLE_LENGTH]);
+            os.write("DICM".getBytes(StandardCharsets.US_ASCII));
+            os.write(new Encoder(true).unsignedInt(0x00020000, meta.length).toByteArray());
+            os.write(meta);
+            os.write(dataset.toByteArray());
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    /*
+     * the edits DataUpload makes to the header.
+     */
+    private static void edit(AttributeList attributeList) throws Throwable {
+        DicomModify.putAttribute(attributeList, TagFromName.AccessionNumber, "ACC123");
+        DicomModify.putAttribute(attributeList, TagFromName.PatientName, "1.5.1");
+        DicomModify.putAttribute(attributeList, TagFromName.PatientID, "LP0000123");
+    }
+
+    private static byte[] bytesOf(DicomEntry dicom) throws IOException {
+        InputStream in = dicom.stream();
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                os.write(buffer, 0, n);
+            }
+            return os.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /*
+     * the VR of the PixelData of an encoded object, whose last element is the
+     * PixelData of the length.
+     */
+    private static String pixelDataVR(byte[] encoded, long pixelDataLength) {
+        return new String(encoded, (int) (encoded.length - pixelDataLength - 8), 2, StandardCharsets.US_ASCII);
+    }
+
+    private void check(String transferSyntax, int bitsAllocated) throws Throwable {
+        String name = (TransferSyntax.ImplicitVRLittleEndian.equals(transferSyntax) ? "implicit" : "explicit")
+                + bitsAllocated + ".dcm";
+        File file = write(name, transferSyntax, bitsAllocated);
+
+        DicomFileLayout layout = DicomFileLayout.parse(file);
+        assertTrue(name, DicomSplice.canSplice(layout));
+
+        /*
+         * the header only, as DataUpload reads it.
+         */
+        AttributeList header = new AttributeList();
+        DicomInputStream dis = new DicomInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            header.read(dis, TagFromName.PixelData);
+        } finally {
+            dis.close();
+        }
+        edit(header);
+        DicomSplice splice = DicomSplice.create(file, layout, header);
+        assertNotNull(name, splice);
+
+        AttributeList attributeList = new AttributeList();
+        attributeList.read(file);
+        edit(attributeList);
+        DicomBuffer buffer = DicomBuffer.encode(attributeList, false);
+
+        byte[] expected = bytesOf(buffer);
+        byte[] spliced = bytesOf(splice);
+        assertEquals(name, expected.length, spliced.length);
+        assertEquals(name + " PixelData VR", pixelDataVR(expected, layout.pixelDataLength()),
+                pixelDataVR(spliced, layout.pixelDataLength()));
+        assertArrayEquals(name, expected, spliced);
+    }
+
+    @Test
+    public void testExplicitVR8Bit() throws Throwable {
+        check(TransferSyntax.ExplicitVRLittleEndian, 8);
+    }
+
+    @Test
+    public void testExplicitVR16Bit() throws Throwable {
+        check(TransferSyntax.ExplicitVRLittleEndian, 16);
+    }
+
+    /**
+     * The VR of PixelData is not in the file: the splice has to pick the
+     * same one as the full encoding (OB or OW).
+     */
+    @Test
+    public void testImplicitVR8Bit() throws Throwable {
+        check(TransferSyntax.ImplicitVRLittleEndian, 8);
+    }
+
+    @Test
+    public void testImplicitVR16Bit() throws Throwable {
+        check(TransferSyntax.ImplicitVRLittleEndian, 16);
+    }
+
+}
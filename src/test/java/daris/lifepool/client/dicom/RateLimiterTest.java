@@ -0,0 +1,36 @@
+package daris.lifepool.client.dicom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RateLimiterTest {
+
+    /**
+     * The time waited is summed per thread: the other threads do not see it.
+     */
+    @Test
+    public void testThreadWaitNanos() throws Throwable {
+        RateLimiter rateLimiter = new RateLimiter(RateSchedule.constant(new RateSchedule.Rate(0, 10)));
+        long startWaitNanos = RateLimiter.threadWaitNanos();
+        /*
+         * the bucket starts full, with one second of requests.
+         */
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.acquireRequest();
+        }
+        assertEquals(startWaitNanos, RateLimiter.threadWaitNanos());
+        rateLimiter.acquireRequest();
+        long waitNanos = RateLimiter.threadWaitNanos() - startWaitNanos;
+        assertTrue("waited " + waitNanos, waitNanos >= 50000000L);
+        assertEquals(waitNanos, rateLimiter.waitNanos());
+
+        long[] otherWaitNanos = new long[1];
+        Thread thread = new Thread(() -> otherWaitNanos[0] = RateLimiter.threadWaitNanos());
+        thread.start();
+        thread.join();
+        assertEquals(0, otherWaitNanos[0]);
+    }
+
+}
@@ -0,0 +1,112 @@
+package daris.lifepool.client.dicom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.time.LocalTime;
+
+import org.junit.Test;
+
+public class RateScheduleTest {
+
+    private static final RateSchedule.Rate DEFAULT = new RateSchedule.Rate(10 * RateSchedule.MB, 0);
+
+    private static final RateSchedule.Rate NIGHT = RateSchedule.Rate.UNLIMITED;
+
+    private static final RateSchedule.Rate LUNCH = new RateSchedule.Rate(20 * RateSchedule.MB, 5);
+
+    private static LocalTime time(String value) {
+        return LocalTime.parse(value);
+    }
+
+    @Test
+    public void testParseRate() {
+        assertEquals(new RateSchedule.Rate(RateSchedule.MB / 2, 0), RateSchedule.Rate.parse(" 0.5 "));
+        assertEquals(LUNCH, RateSchedule.Rate.parse("20 / 5"));
+        assertTrue(RateSchedule.Rate.parse("0").isUnlimited());
+        assertEquals("20.0 MB/s, 5.0 requests/s", LUNCH.toString());
+        assertEquals("unlimited", NIGHT.toString());
+        for (String value : new String[] { "", "fast", "-1", "1/-1", "1/x", "NaN", null }) {
+            try {
+                RateSchedule.Rate.parse(value);
+                fail("parsed " + value);
+            } catch (IllegalArgumentException e) {
+                // expected.
+            }
+        }
+    }
+
+    /**
+     * A window ending before it starts spans midnight: it contains its start,
+     * midnight and the time before its end, but not its end.
+     */
+    @Test
+    public void testMidnight() {
+        RateSchedule schedule = RateSchedule.parse("20:00-06:00=0, 12:00-14:00=20/5", DEFAULT);
+        assertEquals(DEFAULT, schedule.rateAt(time("19:59:59")));
+        assertEquals(NIGHT, schedule.rateAt(time("20:00")));
+        assertEquals(NIGHT, schedule.rateAt(time("23:59:59.999")));
+        assertEquals(NIGHT, schedule.rateAt(LocalTime.MIDNIGHT));
+        assertEquals(NIGHT, schedule.rateAt(time("05:59:59")));
+        assertEquals(DEFAULT, schedule.rateAt(time("06:00")));
+        assertEquals(DEFAULT, schedule.rateAt(time("11:59")));
+        assertEquals(LUNCH, schedule.rateAt(time("12:00")));
+        assertEquals(LUNCH, schedule.rateAt(time("13:59:59")));
+        assertEquals(DEFAULT, schedule.rateAt(time("14:00")));
+        assertFalse(schedule.isUnlimited());
+
+        /*
+         * ending at midnight.
+         */
+        schedule = RateSchedule.parse("22:00-00:00=20/5", DEFAULT);
+        assertEquals(LUNCH, schedule.rateAt(time("23:59")));
+        assertEquals(DEFAULT, schedule.rateAt(LocalTime.MIDNIGHT));
+        assertEquals(DEFAULT, schedule.rateAt(time("21:59")));
+
+        /*
+         * starting at midnight.
+         */
+        schedule = RateSchedule.parse("00:00-01:00=20/5", DEFAULT);
+        assertEquals(LUNCH, schedule.rateAt(LocalTime.MIDNIGHT));
+        assertEquals(DEFAULT, schedule.rateAt(time("01:00")));
+        assertEquals(DEFAULT, schedule.rateAt(time("23:59")));
+    }
+
+    /**
+     * The first window containing the time wins.
+     */
+    @Test
+    public void testOverlap() {
+        RateSchedule schedule = RateSchedule.parse("23:00-02:00=20/5,00:00-04:00=0", DEFAULT);
+        assertEquals(LUNCH, schedule.rateAt(time("01:00")));
+        assertEquals(NIGHT, schedule.rateAt(time("03:00")));
+        assertEquals(DEFAULT, schedule.rateAt(time("04:00")));
+    }
+
+    @Test
+    public void testParse() {
+        RateSchedule schedule = RateSchedule.parse(null, DEFAULT);
+        assertEquals(DEFAULT, schedule.rateAt(time("12:00")));
+        assertEquals(DEFAULT.toString(), schedule.toString());
+        assertEquals(DEFAULT, RateSchedule.parse("  ", DEFAULT).rateAt(time("12:00")));
+        assertEquals("10.0 MB/s, unlimited requests/s (20:00-06:00=0)",
+                RateSchedule.parse(" 20:00-06:00=0 ", DEFAULT).toString());
+
+        assertTrue(RateSchedule.parse("20:00-06:00=0", NIGHT).isUnlimited());
+        assertFalse(RateSchedule.parse("20:00-06:00=1", NIGHT).isUnlimited());
+        assertTrue(RateSchedule.constant(NIGHT).isUnlimited());
+
+        for (String value : new String[] { "20:00=1", "20:00-06:00", "06:00=1-20:00", "25:00-06:00=1",
+                "20-06=1", "20:00-06:00=x", "20:00-06:00=1,,12:00-14:00=1" }) {
+            try {
+                RateSchedule.parse(value, DEFAULT);
+                fail("parsed " + value);
+            } catch (IllegalArgumentException e) {
+                // expected.
+            }
+        }
+    }
+
+}
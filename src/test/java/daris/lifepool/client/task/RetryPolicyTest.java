@@ -0,0 +1,80 @@
+package daris.lifepool.client.task;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.file.AccessDeniedException;
+import java.util.concurrent.ExecutionException;
+
+import javax.net.ssl.SSLException;
+
+import org.junit.Test;
+
+import daris.util.LocalIOException;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy _policy = new RetryPolicy(3, 100, 1000);
+
+    @Test
+    public void testNetworkErrors() {
+        assertTrue(_policy.isRetryable(new SocketException("Connection reset")));
+        assertTrue(_policy.isRetryable(new ConnectException("Connection refused")));
+        assertTrue(_policy.isRetryable(new SocketTimeoutException("Read timed out")));
+        assertTrue(_policy.isRetryable(new SSLException("Connection has been shutdown")));
+        assertTrue(_policy.isRetryable(new UnknownHostException("mediaflux.example.org")));
+        assertTrue(_policy.isRetryable(new EOFException()));
+        assertTrue(_policy.isRetryable(new Exception("Failed to send", new SocketException("Broken pipe"))));
+        assertTrue(_policy.isRetryable(new ExecutionException(new IOException(new EOFException()))));
+    }
+
+    @Test
+    public void testServerErrors() {
+        assertTrue(_policy.isRetryable(new Exception("call to service 'asset.query' failed: Session has expired")));
+        assertTrue(_policy.isRetryable(new Exception("The server is shutting down")));
+        assertFalse(_policy.isRetryable(new Exception("call to service 'asset.set' failed: access denied")));
+        assertFalse(_policy.isRetryable(new IllegalArgumentException("Invalid pid")));
+    }
+
+    /**
+     * The errors reading the data sent are not retried, even if they look
+     * like network errors.
+     */
+    @Test
+    public void testLocalErrors() {
+        assertFalse(_policy.isRetryable(new FileNotFoundException("/data/A1/1.dcm")));
+        assertFalse(_policy.isRetryable(new AccessDeniedException("/data/A1/1.dcm")));
+        assertFalse(_policy.isRetryable(new IOException("Input/output error")));
+        assertFalse(_policy.isRetryable(new LocalIOException("Unexpected end of file", new EOFException())));
+        SocketException e = new SocketException("Broken pipe");
+        e.initCause(new LocalIOException("Stale file handle", new IOException()));
+        assertFalse(_policy.isRetryable(e));
+        assertFalse(_policy.isRetryable(
+                new Exception("Failed to send", new LocalIOException("timed out", new SocketTimeoutException()))));
+    }
+
+    @Test
+    public void testInterrupted() {
+        assertFalse(_policy.isRetryable(new InterruptedException()));
+        assertFalse(_policy.isRetryable(new InterruptedIOException()));
+        assertFalse(_policy.isRetryable(new Exception(new InterruptedException())));
+    }
+
+    @Test
+    public void testDelay() {
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long max = Math.min(1000, 100L << (attempt - 1));
+            long delay = _policy.delay(attempt);
+            assertTrue("attempt " + attempt + ": " + delay, delay >= max / 2 && delay <= max);
+        }
+    }
+
+}
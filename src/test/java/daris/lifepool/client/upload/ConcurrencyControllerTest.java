@@ -0,0 +1,102 @@
+package daris.lifepool.client.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.SocketTimeoutException;
+
+import org.junit.Test;
+
+/**
+ * The requests are executed one at a time: a request is sent while the limit
+ * is reached as long as the limit is 1.
+ */
+public class ConcurrencyControllerTest {
+
+    private static final long SMALL = ConcurrencyController.MIN_REQUEST_BYTES;
+
+    private static final long LARGE = 64 * 1024 * 1024;
+
+    /*
+     * the time the thread waited for the rate limit, as the calls report it.
+     */
+    private final long[] _waitNanos = new long[1];
+
+    private ConcurrencyController controller() throws Throwable {
+        ConcurrencyController controller = new ConcurrencyController(1, 4, e -> true, () -> _waitNanos[0]);
+        /*
+         * the unloaded latency: small requests of 1ms. They raise the limit
+         * to 2 on the way.
+         */
+        for (int i = 0; i < 16; i++) {
+            execute(controller, SMALL, 1, 0);
+        }
+        assertEquals(2, controller.limit());
+        overload(controller);
+        assertEquals(1, controller.limit());
+        return controller;
+    }
+
+    private void execute(ConcurrencyController controller, long bytes, long millis, long waitMillis)
+            throws Throwable {
+        controller.execute(bytes, () -> {
+            Thread.sleep(millis);
+            _waitNanos[0] += waitMillis * 1000000L;
+            return null;
+        });
+    }
+
+    private static void overload(ConcurrencyController controller) throws Throwable {
+        try {
+            controller.execute(SMALL, () -> {
+                throw new SocketTimeoutException();
+            });
+        } catch (SocketTimeoutException e) {
+            // expected.
+        }
+    }
+
+    /**
+     * A small request much slower than usual holds the limit.
+     */
+    @Test
+    public void testSlowRequest() throws Throwable {
+        ConcurrencyController controller = controller();
+        execute(controller, SMALL, 20, 0);
+        assertEquals(1, controller.limit());
+    }
+
+    /**
+     * A large request takes longer, but not per byte: it is healthy.
+     */
+    @Test
+    public void testLargeRequest() throws Throwable {
+        ConcurrencyController controller = controller();
+        execute(controller, LARGE, 20, 0);
+        assertEquals(2, controller.limit());
+    }
+
+    /**
+     * The time the request waited for the rate limit does not count.
+     */
+    @Test
+    public void testRateLimitWait() throws Throwable {
+        ConcurrencyController controller = controller();
+        execute(controller, SMALL, 20, 20);
+        assertEquals(2, controller.limit());
+    }
+
+    @Test
+    public void testOverload() throws Throwable {
+        ConcurrencyController controller = controller();
+        assertEquals(17, controller.numberOfRequests());
+        assertEquals(1, controller.numberOfErrors());
+        assertEquals(2, controller.peakLimit());
+        /*
+         * the raw latencies are kept for monitoring.
+         */
+        assertTrue(controller.percentile(0.5) >= 1000000L);
+        assertTrue(controller.status(), controller.status().startsWith("concurrency 1 (1 to 4), latency p50 0.00"));
+    }
+
+}
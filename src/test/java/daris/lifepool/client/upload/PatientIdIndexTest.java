@@ -0,0 +1,102 @@
+package daris.lifepool.client.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PatientIdIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The records are in the order of the UTF-8 bytes of the
+     * AccessionNumbers, which both lookups (by chars for ASCII, by bytes
+     * otherwise) rely on. The padding sorts a prefix before the longer keys.
+     */
+    @Test
+    public void testLookup() throws IOException {
+        File mappingFile = PatientIdMappingTest.write(folder.newFile("mapping.csv"),
+                "PatientID,AccessionNumber\n1,b\n2,\u00e9\n3,a10\n4,a1\n5,Z\n6,a\n7,\u65e5\u672c\n8,\u00e9a\n");
+        File indexFile = PatientIdIndex.indexFileOf(mappingFile);
+        assertEquals(8, PatientIdIndex.build(mappingFile, indexFile));
+        PatientIdIndex index = PatientIdIndex.open(indexFile);
+        assertEquals(8, index.size());
+        assertEquals(Arrays.asList("Z", "a", "a1", "a10", "b", "\u00e9", "\u00e9a", "\u65e5\u672c"),
+                PatientIdMappingTest.accessionNumbers(index));
+
+        PatientIdMapping mapping = PatientIdMapping.load(mappingFile);
+        for (String accessionNumber : PatientIdMappingTest.accessionNumbers(mapping)) {
+            assertEquals(accessionNumber, mapping.patientIdOf(accessionNumber), index.patientIdOf(accessionNumber));
+        }
+        assertEquals("6", index.patientIdOf("a"));
+        assertEquals("2", index.patientIdOf("\u00e9"));
+        assertEquals("7", index.patientIdOf("\u65e5\u672c"));
+        assertNull(index.patientIdOf(""));
+        assertNull(index.patientIdOf("a100"));
+        assertNull(index.patientIdOf("c"));
+        assertNull(index.patientIdOf("\u00e8"));
+        /*
+         * longer than the key width.
+         */
+        assertNull(index.patientIdOf("\u65e5\u672c\u65e5"));
+        assertNull(index.patientIdOf("a1000000000"));
+    }
+
+    /**
+     * The PatientIDs are decoded as UTF-8, as the AccessionNumbers are.
+     */
+    @Test
+    public void testValues() throws IOException {
+        File mappingFile = PatientIdMappingTest.write(folder.newFile("mapping.csv"), "123,A1\n4,A2\n0042,A3\n");
+        PatientIdIndex index = PatientIdIndex.open(mappingFile, PatientIdIndex.indexFileOf(mappingFile));
+        assertEquals("123", index.patientIdOf("A1"));
+        assertEquals("4", index.patientIdOf("A2"));
+        assertEquals("0042", index.patientIdOf("A3"));
+    }
+
+    @Test
+    public void testRebuild() throws IOException {
+        File mappingFile = PatientIdMappingTest.write(folder.newFile("mapping.csv"), "1,A1\n");
+        mappingFile.setLastModified(1000000000000L);
+        File indexFile = PatientIdIndex.indexFileOf(mappingFile);
+        assertFalse(indexFile.exists());
+        PatientIdIndex index = PatientIdIndex.open(mappingFile, indexFile);
+        assertTrue(indexFile.exists());
+        assertTrue(index.isUpToDate(mappingFile));
+        assertEquals("1", index.patientIdOf("A1"));
+
+        /*
+         * modified since: rebuilt.
+         */
+        PatientIdMappingTest.write(mappingFile, "2,A1\n3,A2\n");
+        mappingFile.setLastModified(1000000001000L);
+        assertFalse(index.isUpToDate(mappingFile));
+        index = PatientIdIndex.open(mappingFile, indexFile);
+        assertTrue(index.isUpToDate(mappingFile));
+        assertEquals("2", index.patientIdOf("A1"));
+        assertEquals(2, index.size());
+
+        /*
+         * invalid: rebuilt.
+         */
+        PatientIdMappingTest.write(indexFile, "not an index file, but longer than the header");
+        index = PatientIdIndex.open(mappingFile, indexFile);
+        assertEquals("3", index.patientIdOf("A2"));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalid() throws IOException {
+        PatientIdIndex.open(PatientIdMappingTest.write(folder.newFile("mapping.csv.idx"), "1,A1\n"));
+    }
+
+}
@@ -0,0 +1,119 @@
+package daris.lifepool.client.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PatientIdMappingTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static File write(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        return file;
+    }
+
+    /*
+     * the AccessionNumbers, in the order the mapping passes them.
+     */
+    static List<String> accessionNumbers(PatientIdMapping mapping) throws IOException {
+        List<String> accessionNumbers = new ArrayList<String>();
+        mapping.forEach((data, patientIdOffset, patientIdLength, accessionNumberOffset, accessionNumberLength) -> {
+            accessionNumbers.add(new String(data, accessionNumberOffset, accessionNumberLength, StandardCharsets.UTF_8));
+        });
+        return accessionNumbers;
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        File file = write(folder.newFile("mapping.csv"),
+                "PatientID,AccessionNumber\n"
+                        + "1001,A1\n"
+                        + "  1002 ,  A2  \r\n"
+                        + "1003,A3,extra,columns\n"
+                        + "10x4,A4\n"
+                        + "1005,\n"
+                        + ",A6\n"
+                        + "\n"
+                        + "1007, A 7\n"
+                        + "1008,A8");
+        PatientIdMapping mapping = PatientIdMapping.load(file);
+        assertEquals(5, mapping.size());
+        assertEquals("1001", mapping.patientIdOf("A1"));
+        assertEquals("1002", mapping.patientIdOf("A2"));
+        assertEquals("1003", mapping.patientIdOf("A3"));
+        assertNull(mapping.patientIdOf("A4"));
+        assertNull(mapping.patientIdOf("A6"));
+        assertEquals("1007", mapping.patientIdOf("A 7"));
+        /*
+         * the last line has no line break.
+         */
+        assertEquals("1008", mapping.patientIdOf("A8"));
+        assertNull(mapping.patientIdOf("A"));
+        assertNull(mapping.patientIdOf("A10"));
+        assertNull(mapping.patientIdOf("PatientID"));
+        assertNull(mapping.patientIdOf(""));
+    }
+
+    @Test
+    public void testLastDuplicateWins() throws IOException {
+        File file = write(folder.newFile("mapping.csv"), "1,A1\n2,A2\n3,A1\n4,A3\n5,A1\n");
+        PatientIdMapping mapping = PatientIdMapping.load(file);
+        assertEquals(3, mapping.size());
+        assertEquals("5", mapping.patientIdOf("A1"));
+        assertEquals("2", mapping.patientIdOf("A2"));
+    }
+
+    /**
+     * The AccessionNumbers are sorted by their UTF-8 bytes: a prefix before
+     * the longer keys, and the non-ASCII characters after the ASCII ones.
+     */
+    @Test
+    public void testOrder() throws IOException {
+        File file = write(folder.newFile("mapping.csv"),
+                "1,b\n2,\u00e9\n3,a10\n4,a1\n5,Z\n6,a\n7,\u65e5\u672c\n");
+        PatientIdMapping mapping = PatientIdMapping.load(file);
+        assertEquals(Arrays.asList("Z", "a", "a1", "a10", "b", "\u00e9", "\u65e5\u672c"), accessionNumbers(mapping));
+        assertEquals("2", mapping.patientIdOf("\u00e9"));
+        assertEquals("7", mapping.patientIdOf("\u65e5\u672c"));
+        assertEquals("4", mapping.patientIdOf("a1"));
+    }
+
+    /**
+     * More entries than the initial estimate from the file size, in random
+     * order, across several read buffers.
+     */
+    @Test
+    public void testLargeFile() throws IOException {
+        int n = 50000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            int k = (int) ((i * 7919L) % n);
+            sb.append(k).append(",ACC").append(k).append('\n');
+        }
+        PatientIdMapping mapping = PatientIdMapping.load(write(folder.newFile("mapping.csv"), sb.toString()));
+        assertEquals(n, mapping.size());
+        for (int k = 0; k < n; k += 97) {
+            assertEquals(String.valueOf(k), mapping.patientIdOf("ACC" + k));
+        }
+        List<String> accessionNumbers = accessionNumbers(mapping);
+        for (int i = 1; i < accessionNumbers.size(); i++) {
+            assertEquals(-1, Integer.signum(accessionNumbers.get(i - 1).compareTo(accessionNumbers.get(i))));
+        }
+    }
+
+}
@@ -0,0 +1,166 @@
+package daris.lifepool.client.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEntryLine() {
+        UploadJournal.Entry entry = new UploadJournal.Entry("/data/A1/1 2.dcm", 1024, 1500000000000L,
+                UploadStatus.UPLOADED, "1.2.3.4", "1.5.1.1.1.1");
+        UploadJournal.Entry parsed = UploadJournal.Entry.parse(entry.toLine());
+        assertEquals("/data/A1/1 2.dcm", parsed.path());
+        assertEquals(1024, parsed.size());
+        assertEquals(1500000000000L, parsed.lastModified());
+        assertEquals(UploadStatus.UPLOADED, parsed.status());
+        assertEquals("1.2.3.4", parsed.sopInstanceUID());
+        assertEquals("1.5.1.1.1.1", parsed.datasetCid());
+
+        parsed = UploadJournal.Entry
+                .parse(new UploadJournal.Entry("/data/x", 1, 2, UploadStatus.IGNORED, null, null).toLine());
+        assertNull(parsed.sopInstanceUID());
+        assertNull(parsed.datasetCid());
+
+        assertNull(UploadJournal.Entry.parse("UPLOADED\t1024\t15"));
+        assertNull(UploadJournal.Entry.parse("UNKNOWN\t1\t2\t-\t-\t/data/x"));
+        assertNull(UploadJournal.Entry.parse("UPLOADED\tx\t2\t-\t-\t/data/x"));
+    }
+
+    @Test
+    public void testLatestEntryWins() throws IOException {
+        File file = folder.newFile("upload.journal");
+        try (UploadJournal journal = UploadJournal.open(file, false)) {
+            journal.append(new UploadJournal.Entry("/data/a", 1, 10, UploadStatus.FAILED, "1.1", null));
+            journal.append(new UploadJournal.Entry("/data/b", 2, 20, UploadStatus.FAILED, "1.2", null));
+            journal.append(new UploadJournal.Entry("/data/a", 1, 10, UploadStatus.UPLOADED, "1.1", "1.5.1"));
+        }
+        Map<String, UploadJournal.Entry> entries = UploadJournal.read(file);
+        assertEquals(2, entries.size());
+        assertEquals(UploadStatus.UPLOADED, entries.get("/data/a").status());
+        List<UploadJournal.Entry> failures = UploadJournal.failures(file);
+        assertEquals(1, failures.size());
+        assertEquals("/data/b", failures.get(0).path());
+    }
+
+    /**
+     * A crash while the last line was written: the line is ignored, even if
+     * what was written of it parses.
+     */
+    @Test
+    public void testTruncatedLastLine() throws IOException {
+        File file = folder.newFile("upload.journal");
+        String complete = new UploadJournal.Entry("/data/a", 1, 10, UploadStatus.UPLOADED, "1.1", "1.5.1")
+                .toLine();
+        String truncated = new UploadJournal.Entry("/data/b12", 2, 20, UploadStatus.UPLOADED, "1.2", "1.5.2")
+                .toLine();
+        truncated = truncated.substring(0, truncated.length() - 2);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write((complete + "\n" + truncated).getBytes(StandardCharsets.UTF_8));
+        }
+        Map<String, UploadJournal.Entry> entries = UploadJournal.read(file);
+        assertEquals(1, entries.size());
+        assertTrue(entries.containsKey("/data/a"));
+
+        /*
+         * resuming drops the line, so that the next entries start on a line
+         * of their own.
+         */
+        try (UploadJournal journal = UploadJournal.open(file, true)) {
+            assertTrue(journal.isDone("/data/a", 1, 10));
+            assertFalse(journal.isDone("/data/b1", 2, 20));
+            journal.append(new UploadJournal.Entry("/data/c", 3, 30, UploadStatus.SKIPPED, "1.3", "1.5.3"));
+        }
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals(3, UploadJournal.read(file).get("/data/c").size());
+    }
+
+    /**
+     * A file is done once uploaded, but its dataset is post-processed again
+     * on resume until the post-processing completes.
+     */
+    @Test
+    public void testPostProcessing() throws IOException {
+        File file = folder.newFile("upload.journal");
+        UploadJournal.Entry a = new UploadJournal.Entry("/data/a", 1, 10, UploadStatus.POSTPROCESS_PENDING, "1.1",
+                "1.5.1");
+        UploadJournal.Entry b = new UploadJournal.Entry("/data/b", 2, 20, UploadStatus.POSTPROCESS_PENDING, "1.2",
+                "1.5.2");
+        UploadJournal.Entry c = new UploadJournal.Entry("/data/c", 3, 30, UploadStatus.POSTPROCESS_PENDING, "1.3",
+                "1.5.3");
+        try (UploadJournal journal = UploadJournal.open(file, false)) {
+            journal.append(a);
+            journal.append(b);
+            journal.append(c);
+            journal.append(a.withStatus(UploadStatus.UPLOADED));
+            journal.append(b.withStatus(UploadStatus.POSTPROCESS_FAILED));
+        }
+        try (UploadJournal journal = UploadJournal.open(file, true)) {
+            assertTrue(journal.isDone("/data/a", 1, 10));
+            assertTrue(journal.isDone("/data/b", 2, 20));
+            assertTrue(journal.isDone("/data/c", 3, 30));
+            assertTrue(journal.previousFailures().isEmpty());
+            List<UploadJournal.Entry> entries = journal.previousPostProcessing();
+            assertEquals(2, entries.size());
+            assertEquals("1.5.2", entries.get(0).datasetCid());
+            assertEquals(UploadStatus.POSTPROCESS_FAILED, entries.get(0).status());
+            assertEquals("1.5.3", entries.get(1).datasetCid());
+            assertEquals("1.3", entries.get(1).sopInstanceUID());
+        }
+    }
+
+    @Test
+    public void testResume() throws IOException {
+        File file = folder.newFile("upload.journal");
+        try (UploadJournal journal = UploadJournal.open(file, false)) {
+            journal.append(new UploadJournal.Entry("/data/a", 1, 10, UploadStatus.UPLOADED, "1.1", "1.5.1"));
+            journal.append(new UploadJournal.Entry("/data/b", 2, 20, UploadStatus.FAILED, "1.2", null));
+            journal.append(new UploadJournal.Entry("/data/c", 3, 30, UploadStatus.IGNORED, null, null));
+            journal.append(new UploadJournal.Entry("/data/a", 1, 10, UploadStatus.UPLOADED, "1.1", "1.5.1"));
+        }
+        try (UploadJournal journal = UploadJournal.open(file, true)) {
+            assertTrue(journal.isDone("/data/a", 1, 10));
+            /*
+             * modified since.
+             */
+            assertFalse(journal.isDone("/data/a", 1, 11));
+            assertFalse(journal.isDone("/data/a", 2, 10));
+            assertFalse(journal.isDone("/data/b", 2, 20));
+            assertTrue(journal.isDone("/data/c", 3, 30));
+            assertFalse(journal.isDone("/data/d", 4, 40));
+            assertEquals(1, journal.previousFailures().size());
+        }
+        /*
+         * compacted when resumed.
+         */
+        assertEquals(3, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+
+        /*
+         * not resumed: the previous entries are kept in the file, but not
+         * used.
+         */
+        try (UploadJournal journal = UploadJournal.open(file, false)) {
+            assertFalse(journal.isDone("/data/a", 1, 10));
+            assertTrue(journal.previousFailures().isEmpty());
+        }
+    }
+
+}
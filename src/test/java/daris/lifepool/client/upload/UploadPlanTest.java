@@ -0,0 +1,125 @@
+package daris.lifepool.client.upload;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class UploadPlanTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static UploadPlan plan() {
+        return new UploadPlan(Arrays.asList(
+                new UploadPlan.Entry("/data/A1/1.dcm", 100, 10, UploadPlan.Status.MISSING, "1.1", "A1", null, null),
+                new UploadPlan.Entry("/data/A1/2 2.dcm", 200, 20, UploadPlan.Status.PRESENT, "1.2", "A1", null,
+                        "1.5.1.1.1.2"),
+                new UploadPlan.Entry("/data/A2/3.dcm", 300, 30, UploadPlan.Status.DIFFERENT_ACCESSION, "1.3", "A2",
+                        "A9", "1.5.1.1.1.3"),
+                new UploadPlan.Entry("/data/A2/notes.txt", 400, 40, UploadPlan.Status.IGNORED, null, "A2", null,
+                        null)));
+    }
+
+    @Test
+    public void testEntryLine() {
+        UploadPlan.Entry entry = plan().entries().get(2);
+        UploadPlan.Entry parsed = UploadPlan.Entry.parse(entry.toLine());
+        assertEquals("/data/A2/3.dcm", parsed.path());
+        assertEquals(300, parsed.size());
+        assertEquals(30, parsed.lastModified());
+        assertEquals(UploadPlan.Status.DIFFERENT_ACCESSION, parsed.status());
+        assertEquals("1.3", parsed.sopInstanceUID());
+        assertEquals("A2", parsed.accessionNumber());
+        assertEquals("A9", parsed.serverAccessionNumber());
+        assertEquals("1.5.1.1.1.3", parsed.datasetCid());
+
+        parsed = UploadPlan.Entry.parse(plan().entries().get(3).toLine());
+        assertNull(parsed.sopInstanceUID());
+        assertNull(parsed.serverAccessionNumber());
+        assertNull(parsed.datasetCid());
+
+        /*
+         * the path is the last field: it may contain the separator.
+         */
+        parsed = UploadPlan.Entry.parse("PRESENT\t1\t2\t1.1\tA1\t-\t1.5.1\t/data/A1/a\tb.dcm");
+        assertEquals("/data/A1/a\tb.dcm", parsed.path());
+
+        assertNull(UploadPlan.Entry.parse("MISSING\t1\t2\t1.1\tA1\t-\t-"));
+        assertNull(UploadPlan.Entry.parse("MISSING\t1\t2\t1.1\tA1\t-\t-\t"));
+        assertNull(UploadPlan.Entry.parse("UNKNOWN\t1\t2\t1.1\tA1\t-\t-\t/data/x"));
+        assertNull(UploadPlan.Entry.parse("MISSING\tx\t2\t1.1\tA1\t-\t-\t/data/x"));
+        assertNull(UploadPlan.Entry.parse("MISSING\t1\t2.5\t1.1\tA1\t-\t-\t/data/x"));
+    }
+
+    @Test
+    public void testNeedsUpload() {
+        List<UploadPlan.Entry> entries = plan().entries();
+        assertTrue(entries.get(0).needsUpload(100, 10));
+        assertFalse(entries.get(1).needsUpload(200, 20));
+        /*
+         * modified since the plan was made.
+         */
+        assertTrue(entries.get(1).needsUpload(201, 20));
+        assertTrue(entries.get(1).needsUpload(200, 21));
+        assertTrue(entries.get(2).needsUpload(300, 30));
+
+        List<UploadPlan.Entry> uploads = plan().uploads();
+        assertEquals(2, uploads.size());
+        assertEquals("/data/A1/1.dcm", uploads.get(0).path());
+        assertEquals("/data/A2/3.dcm", uploads.get(1).path());
+    }
+
+    @Test
+    public void testCountsAndSizes() {
+        Map<UploadPlan.Status, Long> counts = plan().counts();
+        Map<UploadPlan.Status, Long> sizes = plan().sizes();
+        assertEquals(4, counts.size());
+        for (UploadPlan.Status status : UploadPlan.Status.values()) {
+            assertEquals(Long.valueOf(1), counts.get(status));
+        }
+        assertEquals(Long.valueOf(100), sizes.get(UploadPlan.Status.MISSING));
+        assertEquals(Long.valueOf(400), sizes.get(UploadPlan.Status.IGNORED));
+        assertEquals(Long.valueOf(0), new UploadPlan(Arrays.<UploadPlan.Entry> asList()).counts()
+                .get(UploadPlan.Status.PRESENT));
+    }
+
+    /**
+     * The plan is written and read back; the invalid lines (e.g. edited by
+     * hand) are ignored.
+     */
+    @Test
+    public void testReadWrite() throws IOException {
+        File file = new File(folder.getRoot(), "upload.plan");
+        plan().write(file);
+        assertFalse(new File(folder.getRoot(), "upload.plan.tmp").exists());
+        List<UploadPlan.Entry> entries = UploadPlan.read(file).entries();
+        assertEquals(4, entries.size());
+        assertEquals("/data/A1/2 2.dcm", entries.get(1).path());
+        assertEquals("1.5.1.1.1.2", entries.get(1).datasetCid());
+
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write("# reviewed\n\nPRESENT\t1\n".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(4, UploadPlan.read(file).entries().size());
+
+        /*
+         * replaced.
+         */
+        new UploadPlan(plan().entries().subList(0, 1)).write(file);
+        assertEquals(1, UploadPlan.read(file).entries().size());
+    }
+
+}